@@ -0,0 +1,148 @@
+package net.grc.authc;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLChallengeParser;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing a signed challenge: the single pass parser against the URLEncodedUtils, regex and Base64 path it
+ * replaced, which is reproduced here as {@link #legacy}, and the URI validation within it.
+ * <p/>
+ * gradle jmh -PjmhArgs='SQRLTokenBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class SQRLTokenBenchmark {
+    static final Pattern URL_LOWERCASE_ESCAPES = Pattern.compile("%([a-f][0-9a-f]|[0-9][a-f])");
+    static final Pattern URL_ESCAPES = Pattern.compile("(?i)%([0-9a-f]{2})");
+    static final Pattern URL_UNRESERVED = Pattern.compile("[A-Za-z0-9_\\.~\\-]");
+    static final Pattern URL_HOST_UPPER = Pattern.compile("[A-Z]");
+
+    String challenge;
+    URI challengeUri;
+    String signature;
+    ByteBuffer challengeBytes;
+    ByteBuffer signatureBytes;
+
+    @Setup
+    public void setup() {
+        challenge = "sqrl://www.grc.com/sqrl/login?nut=oOB4QOFJux5ZNvHGCNq7SA&sqrlver=0&d=11"
+                + "&sqrlkey=ocUDZ-uuyMZ7xUk05TeMkTyIGVk7omCTV3nWjHkxJtw";
+        challengeUri = URI.create(challenge);
+        signature = Base64.encodeBase64URLSafeString(new byte[64]);
+
+        Charset ascii = Charset.forName("US-ASCII");
+        challengeBytes = ByteBuffer.allocateDirect(challenge.length());
+        challengeBytes.put(challenge.getBytes(ascii)).flip();
+        signatureBytes = ByteBuffer.allocateDirect(signature.length());
+        signatureBytes.put(signature.getBytes(ascii)).flip();
+    }
+
+    /**
+     * what the parser extracts, without building a token
+     */
+    @Benchmark
+    public void parse(Blackhole bh) {
+        SQRLChallengeParser parser = SQRLChallengeParser.forThread();
+        parser.parse(challenge, signature);
+        bh.consume(parser.getD());
+        bh.consume(parser.getKey());
+        bh.consume(parser.getNut());
+    }
+
+    @Benchmark
+    public void parseBytes(Blackhole bh) {
+        SQRLChallengeParser parser = SQRLChallengeParser.forThread();
+        parser.parse(challengeBytes, signatureBytes);
+        bh.consume(parser.getD());
+        bh.consume(parser.getKey());
+        bh.consume(parser.getNut());
+    }
+
+    @Benchmark
+    public SQRLToken token() {
+        return new SQRLToken(challenge, signature, "192.0.2.1");
+    }
+
+    @Benchmark
+    public SQRLToken tokenFromUri() {
+        return new SQRLToken(challengeUri, signature, "192.0.2.1");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SQRLToken tokenThreads() {
+        return new SQRLToken(challenge, signature, "192.0.2.1");
+    }
+
+    @Benchmark
+    public String validateURI() {
+        return SQRLAnonymousPrincipal.validateURI(challengeUri, 11);
+    }
+
+    /**
+     * the previous SQRLToken(URI, String, String)
+     */
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        String ver = null, key = null, d = null, nut = null;
+        for (NameValuePair param : URLEncodedUtils.parse(challengeUri, "UTF-8")) {
+            if ("sqrlver".equals(param.getName()) && ver == null) ver = param.getValue();
+            else if ("sqrlkey".equals(param.getName()) && key == null) key = param.getValue();
+            else if ("d".equals(param.getName()) && d == null) d = param.getValue();
+            else if ("nut".equals(param.getName()) && nut == null) nut = param.getValue();
+        }
+        bh.consume(ByteBuffer.wrap(new Base64(true).decode(key)));
+        bh.consume(validateURI(challengeUri, Integer.parseInt(d)));
+        Base64 b64 = new Base64(true);
+        bh.consume(ByteBuffer.wrap(b64.decode(signature)));
+        bh.consume(challengeUri.toASCIIString());
+        bh.consume(ByteBuffer.wrap(b64.decode(nut)));
+    }
+
+    static String validateURI(URI uri, int d) {
+        uri = uri.normalize();
+        String asciiString = uri.toASCIIString();
+        if (uri.getHost() == null) throw new IllegalArgumentException(asciiString);
+        Matcher m = URL_HOST_UPPER.matcher(uri.getHost());
+        if (m.find()) throw new IllegalArgumentException(asciiString);
+        String asciiPath = uri.getRawPath();
+        if (d > asciiPath.length()) throw new IllegalArgumentException(asciiString);
+        String schemeHost = uri.getScheme() + "://" + uri.getHost();
+
+        m = URL_LOWERCASE_ESCAPES.matcher(asciiPath);
+        if (m.find()) throw new IllegalArgumentException(asciiString);
+        m = URL_ESCAPES.matcher(asciiPath);
+        while (m.find()) {
+            String escaped = new String(Character.toChars(Integer.parseInt(m.group(1), 16)));
+            if (URL_UNRESERVED.matcher(escaped).find()) throw new IllegalArgumentException(asciiString);
+        }
+        return schemeHost + asciiPath.substring(0, d);
+    }
+}
@@ -0,0 +1,174 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.crypto.Curve25519;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each CredentialsMatcher on a valid attempt. The stored principal keeps its decoded verification key, as one
+ * from the realm's identity store does; {@link #signatureNewToken} also parses the challenge, as every login must.
+ * The pipeline runs its stateless stages only, since consuming a nut would need a fresh signature per call.
+ * <p/>
+ * gradle jmh -PjmhArgs='CredentialsMatcherBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class CredentialsMatcherBenchmark {
+    static final String DOMAIN = "sqrl://www.grc.com/sqrl";
+    static final String NUT = "oOB4QOFJux5ZNvHGCNq7SA";
+
+    static class LockCredentials extends SQRLCredentials implements IdLockCredentials {
+        LockCredentials(URI challenge, String signature) {
+            super(challenge, signature, "0");
+        }
+
+        @Override
+        public ByteBuffer getKeyVerifier() {
+            return ByteBuffer.allocate(32);
+        }
+
+        @Override
+        public ByteBuffer getPublicUnlockKey() {
+            return ByteBuffer.allocate(32);
+        }
+    }
+
+    static class UnlockCredentials extends SQRLCredentials implements IdUnlockCredentials {
+        final byte[] hmac;
+
+        UnlockCredentials(URI challenge, String signature, byte[] hmac) {
+            super(challenge, signature, "0");
+            this.hmac = hmac;
+        }
+
+        @Override
+        public ByteBuffer getVerificationHmac() {
+            return ByteBuffer.wrap(hmac).asReadOnlyBuffer();
+        }
+    }
+
+    final SQRLCredentialsMatcher signatureMatcher = new SQRLCredentialsMatcher();
+    final IdLockCredentialsMatcher idLockMatcher = new IdLockCredentialsMatcher();
+    final IdUnlockCredentialsMatcher idUnlockMatcher = new IdUnlockCredentialsMatcher();
+    final SQRLMatcherPipeline pipeline = new SQRLMatcherPipeline(SQRLMatchStage.version(),
+            SQRLMatchStage.knownPrincipal(), SQRLMatchStage.signature());
+
+    String challenge;
+    String signature;
+    SQRLToken token;
+    AuthenticationInfo info;
+    AuthenticationToken lockToken;
+    AuthenticationInfo unlockInfo;
+    AuthenticationToken unlockToken;
+
+    static AuthenticationToken token(final SQRLAnonymousPrincipal principal, final SQRLCredentials credentials) {
+        return new AuthenticationToken() {
+            @Override
+            public Object getPrincipal() {
+                return principal;
+            }
+
+            @Override
+            public Object getCredentials() {
+                return credentials;
+            }
+        };
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        Ed25519Signer signer = new Ed25519Signer(seed);
+        byte[] key = signer.getPublicKey();
+
+        challenge = DOMAIN + "/login?nut=" + NUT + "&sqrlver=0&d=5&sqrlkey=" + Base64.encodeBase64URLSafeString(key);
+        signature = Base64.encodeBase64URLSafeString(signer.sign(challenge.getBytes(Charset.forName("UTF-8"))));
+        token = new SQRLToken(challenge, signature, "192.0.2.1");
+        SQRLAnonymousPrincipal presented = (SQRLAnonymousPrincipal) token.getPrincipal();
+        info = new SimpleAuthenticationInfo(new SQRLAnonymousPrincipal(DOMAIN, key), null, "sqrl");
+        if (!signatureMatcher.doCredentialsMatch(token, info)) throw new IllegalStateException("signature");
+
+        URI uri = URI.create(challenge);
+        lockToken = token(presented, new LockCredentials(uri, signature));
+        if (!idLockMatcher.doCredentialsMatch(lockToken, info)) throw new IllegalStateException("idLock");
+
+        byte[] verifier = new byte[32];
+        random.nextBytes(verifier);
+        IdLockPrincipal stored = new IdLockPrincipal(DOMAIN, key, Curve25519.publicKey(verifier), verifier);
+        unlockInfo = new SimpleAuthenticationInfo(stored, null, "sqrl");
+        byte[] hmac = IdUnlockCredentialsMatcher.verificationHmac(verifier, Base64.decodeBase64(NUT));
+        unlockToken = token(presented, new UnlockCredentials(uri, signature, hmac));
+        if (!idUnlockMatcher.doCredentialsMatch(unlockToken, unlockInfo)) throw new IllegalStateException("idUnlock");
+    }
+
+    @Benchmark
+    public boolean signature() {
+        return signatureMatcher.doCredentialsMatch(token, info);
+    }
+
+    @Benchmark
+    public boolean signatureNewToken() {
+        return signatureMatcher.doCredentialsMatch(new SQRLToken(challenge, signature, "192.0.2.1"), info);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean signatureThreads() {
+        return signatureMatcher.doCredentialsMatch(token, info);
+    }
+
+    @Benchmark
+    public boolean idLock() {
+        return idLockMatcher.doCredentialsMatch(lockToken, info);
+    }
+
+    @Benchmark
+    public boolean idUnlock() {
+        return idUnlockMatcher.doCredentialsMatch(unlockToken, unlockInfo);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean idUnlockThreads() {
+        return idUnlockMatcher.doCredentialsMatch(unlockToken, unlockInfo);
+    }
+
+    @Benchmark
+    public boolean pipeline() {
+        return pipeline.doCredentialsMatch(token, info);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean pipelineThreads() {
+        return pipeline.doCredentialsMatch(token, info);
+    }
+}
@@ -0,0 +1,92 @@
+package net.grc.authc.credential;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * findMatchingPrincipal as a subject collects identities: the indexed {@link SQRLPrincipalCollection} against the
+ * scan of any other Iterable, looking for the last principal added and for one that is not there.
+ * <p/>
+ * gradle jmh -PjmhArgs='FindMatchingPrincipalBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class FindMatchingPrincipalBenchmark {
+    static final String[] DOMAINS = {"sqrl://www.grc.com/sqrl", "sqrl://example.com/login", "qrl://localhost/sqrl"};
+
+    @Param({"1", "8", "64", "1024"})
+    int size;
+
+    List<Object> list;
+    SQRLPrincipalCollection collection;
+    SQRLAnonymousPrincipal last;
+    SQRLAnonymousPrincipal missing;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        list = new ArrayList<Object>(size);
+        collection = new SQRLPrincipalCollection();
+        for (int i = 0; i < size; i++) {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            String domain = DOMAINS[i % DOMAINS.length];
+            SQRLAnonymousPrincipal principal = i % 4 == 3
+                    ? new IdLockPrincipal(domain, key, new byte[32], new byte[32])
+                    : new SQRLAnonymousPrincipal(domain, key);
+            list.add(principal);
+            collection.add(principal, "sqrl");
+            // looked up through an equal principal, as a token presents it
+            last = new SQRLAnonymousPrincipal(domain, key.clone());
+        }
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        missing = new SQRLAnonymousPrincipal(DOMAINS[0], key);
+    }
+
+    @Benchmark
+    public SQRLAnonymousPrincipal scanLast() {
+        return last.findMatchingPrincipal(list);
+    }
+
+    @Benchmark
+    public SQRLAnonymousPrincipal scanMissing() {
+        return missing.findMatchingPrincipal(list);
+    }
+
+    @Benchmark
+    public SQRLAnonymousPrincipal indexedLast() {
+        return last.findMatchingPrincipal(collection);
+    }
+
+    @Benchmark
+    public SQRLAnonymousPrincipal indexedMissing() {
+        return missing.findMatchingPrincipal(collection);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SQRLAnonymousPrincipal indexedLastThreads() {
+        return last.findMatchingPrincipal(collection);
+    }
+}
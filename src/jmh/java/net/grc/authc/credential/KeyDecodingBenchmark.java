@@ -0,0 +1,39 @@
+package net.grc.authc.credential;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a sqrlkey parameter into a {@link SQRLKey}: the parser's decoder against commons-codec.
+ * <p/>
+ * gradle jmh -PjmhArgs='KeyDecodingBenchmark -prof gc'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDecodingBenchmark {
+    String key = "ocUDZ-uuyMZ7xUk05TeMkTyIGVk7omCTV3nWjHkxJtw";
+
+    @Benchmark
+    public SQRLKey parser() {
+        return SQRLKey.of(SQRLChallengeParser.decodeBase64(key));
+    }
+
+    @Benchmark
+    public SQRLKey codec() {
+        return SQRLKey.of(Base64.decodeBase64(key));
+    }
+}
@@ -0,0 +1,82 @@
+package net.grc.authc.credential;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What every set and map of principals leans on: hashCode, equals against an equal and a different principal of
+ * the same domain, and the two comparators.
+ * <p/>
+ * gradle jmh -PjmhArgs='PrincipalBenchmark -prof gc'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrincipalBenchmark {
+    static final String DOMAIN = "sqrl://www.grc.com/sqrl";
+
+    SQRLAnonymousPrincipal principal;
+    SQRLAnonymousPrincipal equal;
+    SQRLAnonymousPrincipal other;
+    IdLockPrincipal locked;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        principal = new SQRLAnonymousPrincipal(DOMAIN, key);
+        equal = new SQRLAnonymousPrincipal(DOMAIN, key.clone());
+        byte[] otherKey = key.clone();
+        otherKey[31] ^= 1;
+        other = new SQRLAnonymousPrincipal(DOMAIN, otherKey);
+        locked = new IdLockPrincipal(DOMAIN, otherKey, new byte[32], new byte[32]);
+    }
+
+    @Benchmark
+    public int hashCodeAnonymous() {
+        return principal.hashCode();
+    }
+
+    @Benchmark
+    public int hashCodeIdLock() {
+        return locked.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsEqual() {
+        return principal.equals(equal);
+    }
+
+    /**
+     * differs in the last key byte, the worst case for a byte by byte compare
+     */
+    @Benchmark
+    public boolean equalsOther() {
+        return principal.equals(other);
+    }
+
+    @Benchmark
+    public int compareAnySqrlId() {
+        return SQRLAnonymousPrincipal.ANY_SQRL_ID.compare(principal, other);
+    }
+
+    @Benchmark
+    public int compareAnonymousSqrlId() {
+        return SQRLAnonymousPrincipal.ANONYMOUS_SQRL_ID.compare(principal, other);
+    }
+}
@@ -0,0 +1,61 @@
+package net.grc.authc.nut;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of issuing and checking a nut: encrypting and decrypting the stateless nut against probing the
+ * in-memory table. Issuing into the memory store is left out, a tight loop fills any capacity within one tick.
+ * <p/>
+ * gradle jmh -PjmhArgs='NutStoreBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class NutStoreBenchmark {
+    static final String HOST = "192.0.2.1";
+
+    StatelessNutStore stateless;
+    MemoryNutStore memory;
+    ByteBuffer statelessNut;
+    ByteBuffer memoryNut;
+
+    @Setup
+    public void setup() {
+        stateless = new StatelessNutStore(NutKeyRing.random(60, 10, TimeUnit.MINUTES), 1);
+        memory = new MemoryNutStore(1 << 22, 5, TimeUnit.MINUTES);
+        statelessNut = stateless.issue(HOST);
+        memoryNut = memory.issue(HOST);
+    }
+
+    @Benchmark
+    public ByteBuffer statelessIssue() {
+        return stateless.issue(HOST);
+    }
+
+    @Benchmark
+    public NutState statelessState() {
+        return stateless.state(statelessNut, HOST);
+    }
+
+    @Benchmark
+    public NutState memoryState() {
+        return memory.state(memoryNut, HOST);
+    }
+}
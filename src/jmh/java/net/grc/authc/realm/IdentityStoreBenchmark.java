@@ -0,0 +1,81 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The login lookup by domain and key, against a ConcurrentHashMap keyed on a principal, as the number of
+ * identities grows.
+ * <p/>
+ * gradle jmh -PjmhArgs='IdentityStoreBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@Threads(4)
+public class IdentityStoreBenchmark {
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    @Param({"10000", "1000000", "10000000"})
+    int identities;
+
+    MemoryIdentityStore store;
+    ConcurrentHashMap<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal> map;
+    SQRLKey[] keys;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        store = new MemoryIdentityStore();
+        map = new ConcurrentHashMap<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal>();
+        // lookups beyond the first 4096 would measure cache misses on the key array rather than the index
+        keys = new SQRLKey[4096];
+        byte[] key = new byte[SQRLKey.LENGTH];
+        for (int i = 0; i < identities; i++) {
+            random.nextBytes(key);
+            SQRLAnonymousPrincipal id = new SQRLAnonymousPrincipal(DOMAIN, SQRLKey.of(key));
+            store.add(id);
+            map.put(id, id);
+            if (i < keys.length) keys[i] = id.getKey();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public SQRLAnonymousPrincipal find(Cursor cursor) {
+        SQRLKey key = keys[cursor.next++ & (keys.length - 1)];
+        return store.find(DOMAIN, key);
+    }
+
+    /**
+     * what the lookup costs with a map: a probe principal per login
+     */
+    @Benchmark
+    public SQRLAnonymousPrincipal concurrentHashMap(Cursor cursor) {
+        SQRLKey key = keys[cursor.next++ & (keys.length - 1)];
+        return map.get(new SQRLAnonymousPrincipal(DOMAIN, key));
+    }
+}
@@ -0,0 +1,90 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of known identities and appends of new ones in the mapped store, once the files are in the page cache.
+ * <p/>
+ * gradle jmh -PjmhArgs='MappedIdentityPersistenceBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappedIdentityPersistenceBenchmark {
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    @Param({"100000", "1000000"})
+    int identities;
+
+    File directory;
+    MappedIdentityPersistence store;
+    SQRLKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("identities").toFile();
+        store = new MappedIdentityPersistence(directory);
+        keys = new SQRLKey[4096];
+        Random random = new Random(1);
+        byte[] key = new byte[SQRLKey.LENGTH];
+        for (int i = 0; i < identities; i++) {
+            random.nextBytes(key);
+            store.store(new SQRLAnonymousPrincipal(DOMAIN, key));
+            if (i < keys.length) keys[i] = SQRLKey.of(key);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Random random = new Random();
+        final byte[] key = new byte[SQRLKey.LENGTH];
+        int next;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SQRLAnonymousPrincipal load(Client client) {
+        return store.load(DOMAIN, keys[client.next++ & (keys.length - 1)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void append(Client client) {
+        client.random.nextBytes(client.key);
+        store.store(new SQRLAnonymousPrincipal(DOMAIN, client.key));
+    }
+}
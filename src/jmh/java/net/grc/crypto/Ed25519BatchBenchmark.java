@@ -0,0 +1,67 @@
+package net.grc.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signatures per second per core, batched against one at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ed25519BatchBenchmark {
+    static final int BATCH = 64;
+
+    final ByteBuffer[] sigs = new ByteBuffer[BATCH];
+    final byte[][] msgs = new byte[BATCH][];
+    final Ed25519.PublicKey[] keys = new Ed25519.PublicKey[BATCH];
+    final boolean[] results = new boolean[BATCH];
+    Ed25519BatchVerifier verifier;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        for (int i = 0; i < BATCH; i++) {
+            byte[] seed = new byte[32];
+            random.nextBytes(seed);
+            Ed25519Signer signer = new Ed25519Signer(seed);
+            msgs[i] = ("sqrl://www.grc.com/sqrl/login?nut=" + i + "&sqrlver=0&d=11").getBytes(Charset.forName("UTF-8"));
+            sigs[i] = ByteBuffer.wrap(signer.sign(msgs[i]));
+            keys[i] = Ed25519.decodePublicKey(ByteBuffer.wrap(signer.getPublicKey()));
+        }
+        verifier = new Ed25519BatchVerifier(BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean[] batch() {
+        verifier.clear();
+        for (int i = 0; i < BATCH; i++) verifier.add(sigs[i], msgs[i], keys[i]);
+        verifier.verify(results);
+        return results;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean[] oneAtATime() {
+        for (int i = 0; i < BATCH; i++) results[i] = Ed25519.verify(sigs[i], msgs[i], keys[i]);
+        return results;
+    }
+}
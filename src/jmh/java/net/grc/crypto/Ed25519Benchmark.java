@@ -0,0 +1,67 @@
+package net.grc.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifications per second on one core, with and without the per-principal decoded key.
+ * <p/>
+ * gradle jmh -PjmhArgs='Ed25519Benchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class Ed25519Benchmark {
+    byte[] msg;
+    byte[] sig;
+    byte[] pub;
+    ByteBuffer sigBuffer;
+    Ed25519.PublicKey key;
+
+    @Setup
+    public void setup() {
+        byte[] seed = new byte[32];
+        new Random(1).nextBytes(seed);
+        Ed25519Signer signer = new Ed25519Signer(seed);
+
+        msg = "sqrl://www.grc.com/sqrl/login?nut=oOB4QOFJux5ZNvHGCNq7SA&sqrlver=0&d=11&sqrlkey=ocUDZ-uuyMZ7xUk05TeMkTyIGVk7omCTV3nWjHkxJtw"
+                .getBytes(Charset.forName("UTF-8"));
+        sig = signer.sign(msg);
+        pub = signer.getPublicKey();
+        sigBuffer = ByteBuffer.wrap(sig).asReadOnlyBuffer();
+        key = Ed25519.decodePublicKey(ByteBuffer.wrap(pub));
+    }
+
+    @Benchmark
+    public boolean verifyCachedKey() {
+        return Ed25519.verify(sigBuffer, msg, key);
+    }
+
+    @Benchmark
+    public boolean verifyDecodeKey() {
+        return Ed25519.verify(sig, msg, pub);
+    }
+
+    @Benchmark
+    public Ed25519.PublicKey decodePublicKey() {
+        return Ed25519.decodePublicKey(ByteBuffer.wrap(pub));
+    }
+}
@@ -0,0 +1,106 @@
+package net.grc.qrcode;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendering a login QR code at typical page sizes: the per pixel setRGB loop it replaced, reproduced as
+ * {@link #legacy}, against createQRCode, the packed raster and the streamed PNG, with the matrix encoded per call
+ * or kept with the challenge.
+ * <p/>
+ * gradle jmh -PjmhArgs='QRCodeBenchmark -prof gc'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class QRCodeBenchmark {
+    static final String CHALLENGE = "sqrl://www.grc.com/sqrl/login?nut=oOB4QOFJux5ZNvHGCNq7SA&sqrlver=0&d=11"
+            + "&sqrlkey=ocUDZ-uuyMZ7xUk05TeMkTyIGVk7omCTV3nWjHkxJtw";
+
+    /**
+     * each thread's challenges start here, so that threads do not encode the same ones
+     */
+    static final AtomicLong OFFSETS = new AtomicLong();
+
+    @Param({"150", "300", "600"})
+    int size;
+
+    QRMatrix matrix;
+    ByteArrayOutputStream png = new ByteArrayOutputStream(8192);
+    long fresh;
+
+    @Setup
+    public void setup() throws WriterException {
+        matrix = QRCode.encode(CHALLENGE);
+        fresh = OFFSETS.getAndAdd(1L << 32);
+    }
+
+    @Benchmark
+    public BufferedImage legacy() throws WriterException {
+        BitMatrix bits = new QRCodeWriter().encode(CHALLENGE, BarcodeFormat.QR_CODE, size, size);
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.setRGB(x, y, bits.get(x, y) ? 0xff000000 : 0xffffffff);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * a new challenge every call, as on a login page
+     */
+    @Benchmark
+    public BufferedImage encodeAndImage() throws WriterException {
+        return QRCode.toImage(QRCode.encode(CHALLENGE + "&x=" + fresh++), size, size);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BufferedImage encodeAndImageThreads() throws WriterException {
+        return QRCode.toImage(QRCode.encode(CHALLENGE + "&x=" + fresh++), size, size);
+    }
+
+    /**
+     * the public entry point, which encodes every call
+     */
+    @Benchmark
+    public BufferedImage createQRCode() {
+        return QRCode.createQRCode(CHALLENGE, size, size);
+    }
+
+    @Benchmark
+    public BufferedImage image() {
+        return QRCode.toImage(matrix, size, size);
+    }
+
+    @Benchmark
+    public int png() throws IOException {
+        png.reset();
+        QRCode.writePng(matrix, size, size, png);
+        return png.size();
+    }
+}
@@ -1,12 +1,16 @@
 package net.grc.authc;
 
 import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLBinaryParser;
+import net.grc.authc.credential.SQRLChallengeParser;
 import net.grc.authc.credential.SQRLCredentials;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.shiro.authc.HostAuthenticationToken;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -19,12 +23,70 @@ public class SQRLToken implements HostAuthenticationToken {
      */
     private static final String SQRL_VERSION = "0";
 
+    private static final LatencyHistogram PARSE = Metrics.histogram("sqrl.token.parse");
+
     private final SQRLAnonymousPrincipal principal;
     private final SQRLCredentials credentials;
     private final String remoteHost;
 
     public SQRLToken(URI challenge, String signature, String remoteHost) {
-        this(challenge, URLEncodedUtils.parse(challenge, "UTF-8"), signature, remoteHost);
+        this(challenge.toASCIIString(), signature, remoteHost);
+    }
+
+    /**
+     * Parses the challenge in one pass with the calling thread's {@link SQRLChallengeParser}.
+     */
+    public SQRLToken(CharSequence challenge, CharSequence signature, String remoteHost) {
+        this(parse(challenge, signature), remoteHost);
+    }
+
+    /**
+     * As {@link #SQRLToken(CharSequence, CharSequence, String)} for US-ASCII request bytes.
+     */
+    public SQRLToken(ByteBuffer challenge, ByteBuffer signature, String remoteHost) {
+        this(parse(challenge, signature), remoteHost);
+    }
+
+    /**
+     * A request in the {@link SQRLBinaryParser binary form}, decoded with the calling thread's parser. The
+     * credentials keep views of the frame.
+     *
+     * @param challenge the URL the frame was posted to
+     */
+    public SQRLToken(CharSequence challenge, ByteBuffer frame, String remoteHost) {
+        this(parse(challenge, frame), remoteHost);
+    }
+
+    private SQRLToken(SQRLChallengeParser parsed, String remoteHost) {
+        this(parsed.principal(), parsed.credentials(), remoteHost);
+    }
+
+    private SQRLToken(SQRLBinaryParser parsed, String remoteHost) {
+        this(parsed.principal(), parsed.credentials(), remoteHost);
+    }
+
+    private static SQRLChallengeParser parse(CharSequence challenge, CharSequence signature) {
+        long start = System.nanoTime();
+        SQRLChallengeParser parser = SQRLChallengeParser.forThread();
+        parser.parse(challenge, signature);
+        PARSE.recordSince(start);
+        return parser;
+    }
+
+    private static SQRLChallengeParser parse(ByteBuffer challenge, ByteBuffer signature) {
+        long start = System.nanoTime();
+        SQRLChallengeParser parser = SQRLChallengeParser.forThread();
+        parser.parse(challenge, signature);
+        PARSE.recordSince(start);
+        return parser;
+    }
+
+    private static SQRLBinaryParser parse(CharSequence challenge, ByteBuffer frame) {
+        long start = System.nanoTime();
+        SQRLBinaryParser parser = SQRLBinaryParser.forThread();
+        parser.parse(challenge, frame);
+        PARSE.recordSince(start);
+        return parser;
     }
 
     protected SQRLToken(URI challenge, List<NameValuePair> challengeQuery, String signature, String remoteHost) {
@@ -33,6 +95,7 @@ public class SQRLToken implements HostAuthenticationToken {
         String ver = null;
         String key = null;
         String sqrlD = null;
+        String nut = null;
 
         for (NameValuePair param : challengeQuery) {
             if ("sqrlver".equals(param.getName())) {
@@ -47,12 +110,16 @@ public class SQRLToken implements HostAuthenticationToken {
                 if (sqrlD == null) {
                     sqrlD = param.getValue();
                 }
+            } else if ("nut".equals(param.getName())) {
+                if (nut == null) {
+                    nut = param.getValue();
+                }
             }
         }
 
         if (!ver.equals(SQRL_VERSION)) throw new IllegalArgumentException("sqrlver=" + ver);
         this.principal = new SQRLAnonymousPrincipal(challenge, key, Integer.parseInt(sqrlD), ver);
-        this.credentials = new SQRLCredentials(challenge, signature, ver);
+        this.credentials = new SQRLCredentials(challenge, signature, ver, nut);
     }
 
     SQRLToken(SQRLAnonymousPrincipal principal, SQRLCredentials credentials, String remoteHost) {
@@ -0,0 +1,59 @@
+package net.grc.authc.cache;
+
+import java.security.SecureRandom;
+
+/**
+ * How often keys were asked for lately, as in TinyLFU: a count-min sketch of four rows of counters that saturate at
+ * 15 and are all halved once as many keys were counted as ten times the cache holds, so old popularity fades.
+ * <p/>
+ * Not thread safe; each cache segment uses its own under its lock.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counts;
+    private final int mask;
+    private final int sampleSize;
+    private final int[] seeds = new int[DEPTH];
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+        int width = 16;
+        while (width < 2 * capacity && width < 1 << 24) width <<= 1;
+        this.counts = new byte[DEPTH * width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * Math.max(capacity, 16);
+        // keys chosen to share cells with a victim should not be predictable
+        SecureRandom random = new SecureRandom();
+        for (int row = 0; row < DEPTH; row++) seeds[row] = random.nextInt();
+    }
+
+    void increment(int hash) {
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (counts[i] < MAX_COUNT) counts[i]++;
+        }
+        if (++additions >= sampleSize) reset();
+    }
+
+    int frequency(int hash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) min = Math.min(min, counts[index(hash, row)]);
+        return min;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ seeds[row]) * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private void reset() {
+        for (int i = 0; i < counts.length; i++) counts[i] >>>= 1;
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,400 @@
+package net.grc.authc.cache;
+
+import net.grc.metrics.Counter;
+import net.grc.metrics.Metrics;
+import org.apache.shiro.cache.Cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, concurrent Shiro cache for the lookups behind a login: W-TinyLFU eviction, a time to live per entry
+ * and negative entries.
+ * <p/>
+ * Keys are hashed to lock striped segments. A segment takes new entries into a small LRU window; an entry pushed
+ * out of the window competes with the next victim of the main area and stays only if a {@link FrequencySketch}
+ * says it was asked for more often, so a burst of one-off keys, such as logins by unknown identities, cannot flush
+ * the identities that log in every day. The main area is a segmented LRU: a second hit moves an entry from
+ * probation into the protected part, whose oldest entries drop back to probation.
+ * <p/>
+ * An expired entry is dropped when it is next read or reaches the end of its list. A {@link #markUnknown negative
+ * entry} records that the key has no value, with its own time to live, so that repeated lookups of a key nobody
+ * registered skip the store; {@link #get} returns null for it as for a miss, and a caller handed that null by a
+ * get it did not make itself, such as Shiro's, asks {@link #wasUnknown} rather than looking the key up again.
+ * Hits, misses and evictions are counted in {@link Metrics} as sqrl.cache.&lt;name&gt;.hit, .miss and .eviction.
+ */
+public class SQRLCache<K, V> implements Cache<K, V> {
+    private static final Object UNKNOWN = new Object();
+    private static final int MAX_SEGMENTS = 16;
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final String name;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long timeToLiveMillis;
+    private final long negativeTimeToLiveMillis;
+    private final Counter hits;
+    private final Counter misses;
+    // the key of this thread's last get that returned null, if it was marked unknown
+    private final ThreadLocal<Object> lastUnknown = new ThreadLocal<Object>();
+
+    /**
+     * @param maximumSize how many entries, negative ones included, are kept
+     * @param timeToLive how long a value is kept, 0 for as long as it is used
+     * @param negativeTimeToLive how long a {@link #markUnknown negative entry} is kept
+     */
+    public SQRLCache(String name, int maximumSize, long timeToLive, long negativeTimeToLive, TimeUnit unit) {
+        if (name == null) throw new IllegalArgumentException("name=null");
+        if (maximumSize < 1) throw new IllegalArgumentException("maximumSize=" + maximumSize);
+        if (timeToLive < 0) throw new IllegalArgumentException("timeToLive=" + timeToLive);
+        if (negativeTimeToLive < 0) throw new IllegalArgumentException("negativeTimeToLive=" + negativeTimeToLive);
+        this.name = name;
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+        this.negativeTimeToLiveMillis = unit.toMillis(negativeTimeToLive);
+
+        // small caches in one segment, so the bound and the eviction order stay exact
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 64 < maximumSize) count <<= 1;
+        this.segments = new Segment[count];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.hits = Metrics.counter("sqrl.cache." + name + ".hit");
+        this.misses = Metrics.counter("sqrl.cache." + name + ".miss");
+        Counter evictions = Metrics.counter("sqrl.cache." + name + ".eviction");
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0), evictions);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value, null if there is none, it expired or the key is {@link #isUnknown marked unknown}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Object value = lookup(key);
+        if (value == UNKNOWN) {
+            lastUnknown.set(key);
+            return null;
+        }
+        if (value == null) lastUnknown.remove();
+        return (V) value;
+    }
+
+    /**
+     * whether the key is marked as having no value, which then need not be looked up elsewhere
+     */
+    public boolean isUnknown(K key) {
+        return lookup(key) == UNKNOWN;
+    }
+
+    /**
+     * Whether the calling thread's last {@link #get} that returned null was of this key and found it
+     * {@link #isUnknown marked unknown}; answered once, without another lookup.
+     */
+    public boolean wasUnknown(K key) {
+        Object last = lastUnknown.get();
+        if (last == null) return false;
+        lastUnknown.remove();
+        return last.equals(key);
+    }
+
+    /**
+     * Caches the value for the default time to live.
+     *
+     * @return the value it replaced, or null
+     */
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, timeToLiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeToLive 0 for as long as it is used
+     */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value, long timeToLive, TimeUnit unit) {
+        if (value == null) throw new IllegalArgumentException("value=null");
+        Object previous = store(key, value, unit.toMillis(timeToLive));
+        return previous == UNKNOWN ? null : (V) previous;
+    }
+
+    /**
+     * Records that the key has no value, for the negative time to live or until a value is put.
+     */
+    public void markUnknown(K key) {
+        store(key, UNKNOWN, negativeTimeToLiveMillis);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(K key) {
+        if (key == null) return null;
+        int h = hash(key);
+        Object previous = segmentFor(h).remove(key);
+        return previous == UNKNOWN ? null : (V) previous;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) segment.clear();
+    }
+
+    /**
+     * the values cached, expired or negative entries not yet dropped excluded
+     */
+    @Override
+    public int size() {
+        return values().size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<K> keys() {
+        Set<K> keys = new HashSet<K>();
+        long now = currentTimeMillis();
+        for (Segment segment : segments) {
+            for (Node node : segment.nodes()) {
+                if (node.value != UNKNOWN && !node.expired(now)) keys.add((K) node.key);
+            }
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Collection<V> values() {
+        List<V> values = new ArrayList<V>();
+        long now = currentTimeMillis();
+        for (Segment segment : segments) {
+            for (Node node : segment.nodes()) {
+                if (node.value != UNKNOWN && !node.expired(now)) values.add((V) node.value);
+            }
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public String toString() {
+        return "SQRLCache[" + name + "]";
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private Object lookup(K key) {
+        if (key == null) return null;
+        int h = hash(key);
+        Object value = segmentFor(h).get(key, h, currentTimeMillis());
+        if (value == null) misses.increment();
+        else hits.increment();
+        return value;
+    }
+
+    private Object store(K key, Object value, long timeToLiveMillis) {
+        if (key == null) throw new IllegalArgumentException("key=null");
+        if (timeToLiveMillis < 0) throw new IllegalArgumentException("timeToLive=" + timeToLiveMillis);
+        long now = currentTimeMillis();
+        long expires = timeToLiveMillis == 0 ? Long.MAX_VALUE : now + timeToLiveMillis;
+        int h = hash(key);
+        return segmentFor(h).put(key, value, h, expires, now);
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[segmentShift == 32 ? 0 : h >>> segmentShift];
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node {
+        final Object key;
+        final int hash;
+        Object value;
+        long expiresMillis;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(Object key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        boolean expired(long now) {
+            return now >= expiresMillis;
+        }
+    }
+
+    /**
+     * A circular list behind a sentinel, least recently used first.
+     */
+    private static final class Queue {
+        final Node head = new Node(null, 0);
+        int size;
+
+        Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void add(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+            size = 0;
+        }
+    }
+
+    private static final class Segment {
+        final Map<Object, Node> map;
+        final Queue[] queues = {new Queue(), new Queue(), new Queue()};
+        final FrequencySketch sketch;
+        final int windowMax;
+        final int mainMax;
+        final int protectedMax;
+        final Counter evictions;
+
+        Segment(int capacity, Counter evictions) {
+            this.map = new HashMap<Object, Node>(capacity * 4 / 3 + 1);
+            this.sketch = new FrequencySketch(capacity);
+            this.windowMax = Math.max(1, capacity / 100);
+            this.mainMax = capacity - windowMax;
+            this.protectedMax = mainMax * 4 / 5;
+            this.evictions = evictions;
+        }
+
+        synchronized Object get(Object key, int h, long now) {
+            sketch.increment(h);
+            Node node = map.get(key);
+            if (node == null) return null;
+            if (node.expired(now)) {
+                discard(node);
+                return null;
+            }
+            touch(node);
+            return node.value;
+        }
+
+        synchronized Object put(Object key, Object value, int h, long expires, long now) {
+            Node node = map.get(key);
+            if (node != null) {
+                Object previous = node.expired(now) ? null : node.value;
+                node.value = value;
+                node.expiresMillis = expires;
+                touch(node);
+                return previous;
+            }
+            sketch.increment(h);
+            node = new Node(key, h);
+            node.value = value;
+            node.expiresMillis = expires;
+            node.queue = WINDOW;
+            map.put(key, node);
+            queues[WINDOW].add(node);
+            if (queues[WINDOW].size > windowMax) evict(now);
+            return null;
+        }
+
+        synchronized Object remove(Object key) {
+            Node node = map.get(key);
+            if (node == null) return null;
+            discard(node);
+            return node.value;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            for (Queue queue : queues) queue.clear();
+        }
+
+        synchronized List<Node> nodes() {
+            return new ArrayList<Node>(map.values());
+        }
+
+        /**
+         * A hit: within the window or the protected part the entry becomes the most recent, and out of probation
+         * it is promoted.
+         */
+        private void touch(Node node) {
+            queues[node.queue].unlink(node);
+            if (node.queue == PROBATION) {
+                node.queue = PROTECTED;
+                queues[PROTECTED].add(node);
+                if (queues[PROTECTED].size > protectedMax) {
+                    Node demoted = queues[PROTECTED].first();
+                    queues[PROTECTED].unlink(demoted);
+                    demoted.queue = PROBATION;
+                    queues[PROBATION].add(demoted);
+                }
+            } else {
+                queues[node.queue].add(node);
+            }
+        }
+
+        /**
+         * The window's oldest entry moves to probation if there is room, or if it is asked for more often than
+         * the entry the main area would give up for it.
+         */
+        private void evict(long now) {
+            Node candidate = queues[WINDOW].first();
+            queues[WINDOW].unlink(candidate);
+            candidate.queue = PROBATION;
+            if (queues[PROBATION].size + queues[PROTECTED].size < mainMax) {
+                queues[PROBATION].add(candidate);
+                return;
+            }
+            Node victim = queues[PROBATION].first();
+            if (victim == null) victim = queues[PROTECTED].first();
+            if (victim == null || candidate.expired(now)) {
+                map.remove(candidate.key);
+                evictions.increment();
+                return;
+            }
+            if (victim.expired(now) || sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                discard(victim);
+                queues[PROBATION].add(candidate);
+            } else {
+                map.remove(candidate.key);
+            }
+            evictions.increment();
+        }
+
+        private void discard(Node node) {
+            queues[node.queue].unlink(node);
+            map.remove(node.key);
+        }
+    }
+}
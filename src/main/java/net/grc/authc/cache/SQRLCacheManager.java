@@ -0,0 +1,89 @@
+package net.grc.authc.cache;
+
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.util.Destroyable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local, memory bounded tier for Shiro: every named cache is a {@link SQRLCache} of the configured size and times
+ * to live. Set it on the security manager, or on a {@link net.grc.authc.realm.SQRLRealm} with authentication caching
+ * enabled, so that the realm looks identities up in it before the store. The settings apply to caches created after
+ * they are changed.
+ */
+public class SQRLCacheManager implements CacheManager, Destroyable {
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ConcurrentMap<String, SQRLCache<?, ?>> caches = new ConcurrentHashMap<String, SQRLCache<?, ?>>();
+
+    private volatile int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private volatile long timeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+    private volatile long negativeTimeToLiveMillis = DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS;
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * entries per cache
+     */
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) throw new IllegalArgumentException("maximumSize=" + maximumSize);
+        this.maximumSize = maximumSize;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * @param timeToLiveMillis 0 to keep entries for as long as they are used
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        if (timeToLiveMillis < 0) throw new IllegalArgumentException("timeToLiveMillis=" + timeToLiveMillis);
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    public long getNegativeTimeToLiveMillis() {
+        return negativeTimeToLiveMillis;
+    }
+
+    public void setNegativeTimeToLiveMillis(long negativeTimeToLiveMillis) {
+        if (negativeTimeToLiveMillis < 0) {
+            throw new IllegalArgumentException("negativeTimeToLiveMillis=" + negativeTimeToLiveMillis);
+        }
+        this.negativeTimeToLiveMillis = negativeTimeToLiveMillis;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> Cache<K, V> getCache(String name) {
+        if (name == null) throw new IllegalArgumentException("name=null");
+        SQRLCache<?, ?> cache = caches.get(name);
+        if (cache == null) {
+            SQRLCache<?, ?> created = createCache(name);
+            cache = caches.putIfAbsent(name, created);
+            if (cache == null) cache = created;
+        }
+        return (Cache<K, V>) cache;
+    }
+
+    /**
+     * Empties and forgets every cache.
+     */
+    @Override
+    public void destroy() {
+        for (SQRLCache<?, ?> cache : caches.values()) cache.clear();
+        caches.clear();
+    }
+
+    protected <K, V> SQRLCache<K, V> createCache(String name) {
+        return new SQRLCache<K, V>(name, maximumSize, timeToLiveMillis, negativeTimeToLiveMillis,
+                TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,62 @@
+package net.grc.authc.challenge;
+
+import com.google.zxing.WriterException;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.nut.NutStore;
+import net.grc.qrcode.QRCode;
+import org.apache.commons.codec.binary.Base64;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds challenges for one login URL: issues a nut, appends it and d to the URL and encodes the result as a QR
+ * code.
+ * <p/>
+ * The URL is checked once, up front, against the rules {@link SQRLAnonymousPrincipal#validateURI} applies to the
+ * signed challenge, so that every challenge built from it can be accepted.
+ */
+public class ChallengeFactory {
+    private final NutStore nuts;
+    private final String prefix;
+
+    /**
+     * @param url the sqrl:// or qrl:// login URL, without a query
+     * @param d   characters of the path that belong to the SQRL domain
+     */
+    public ChallengeFactory(NutStore nuts, String url, int d) {
+        if (nuts == null) throw new IllegalArgumentException("nuts=null");
+        if (url == null) throw new IllegalArgumentException("url=null");
+        URI uri = URI.create(url);
+        if (uri.getRawQuery() != null || uri.getRawFragment() != null) throw new IllegalArgumentException(url);
+        if (!url.equals(uri.normalize().toASCIIString())) throw new IllegalArgumentException("not canonical: " + url);
+        SQRLAnonymousPrincipal.validateURI(uri, d);
+
+        this.nuts = nuts;
+        this.prefix = url + "?d=" + d + "&nut=";
+    }
+
+    /**
+     * Issues a nut to no particular host, so not for a {@link NutStore} that binds nuts to the host they were
+     * issued to.
+     */
+    public SQRLChallenge create() {
+        return create(null);
+    }
+
+    public SQRLChallenge create(String clientHost) {
+        ByteBuffer nut = nuts.issue(clientHost);
+        byte[] bytes = new byte[nut.remaining()];
+        nut.duplicate().get(bytes);
+        String url = prefix + Base64.encodeBase64URLSafeString(bytes);
+        try {
+            return new SQRLChallenge(nut, url, QRCode.encode(url), currentTimeMillis());
+        } catch (WriterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
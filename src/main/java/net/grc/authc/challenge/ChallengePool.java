@@ -0,0 +1,205 @@
+package net.grc.authc.challenge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Challenges built ahead of demand by a background thread, so that a login page takes one in O(1) rather than
+ * waiting for a nut, a URL and a QR encoding.
+ * <p/>
+ * The pool holds up to capacity challenges in a lock-free ring. The producer tracks how fast challenges are taken
+ * and keeps about {@link #DEFAULT_LEAD_MILLIS lead time}'s worth ready, between a floor and the capacity, so a
+ * quiet server does not issue nuts nobody uses and a burst finds a full pool. Takes that leave the pool below
+ * half its target wake the producer early.
+ * <p/>
+ * Challenges older than maxAge are thrown away rather than handed out, so that a nut shown to a user still has
+ * most of its time to live. When the pool is empty the challenge is built on the caller's thread, for the host
+ * asking, and counted as a miss. Pre-built challenges are issued before anybody asks, so to no host: do not pool
+ * challenges for a {@link net.grc.authc.nut.NutStore} that binds nuts to the host they were issued to.
+ */
+public class ChallengePool {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final long DEFAULT_LEAD_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    static final int MIN_DEPTH = 4;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // weight of the latest rate sample in the moving average
+    private static final double RATE_WEIGHT = 0.25;
+
+    private final ChallengeFactory factory;
+    private final RingBuffer<SQRLChallenge> ring;
+    private final long maxAgeMillis;
+    private final long leadMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong produced = new AtomicLong();
+
+    private final Thread producer;
+    private volatile boolean running = true;
+    private volatile int targetDepth = MIN_DEPTH;
+    private volatile double takesPerSecond;
+
+    public ChallengePool(ChallengeFactory factory) {
+        this(factory, DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public ChallengePool(ChallengeFactory factory, int capacity, long maxAge, TimeUnit unit) {
+        this(factory, capacity, maxAge, unit, DEFAULT_LEAD_MILLIS);
+    }
+
+    /**
+     * @param leadMillis how much demand, at the recent rate, to keep ready
+     */
+    public ChallengePool(ChallengeFactory factory, int capacity, long maxAge, TimeUnit unit, long leadMillis) {
+        if (factory == null) throw new IllegalArgumentException("factory=null");
+        if (capacity < MIN_DEPTH) throw new IllegalArgumentException("capacity=" + capacity);
+        if (maxAge <= 0) throw new IllegalArgumentException("maxAge=" + maxAge);
+        if (leadMillis <= 0) throw new IllegalArgumentException("leadMillis=" + leadMillis);
+        this.factory = factory;
+        this.ring = new RingBuffer<SQRLChallenge>(capacity);
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        this.leadMillis = leadMillis;
+
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, "sqrl-challenge-pool");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * @return a fresh challenge, from the pool if one is ready
+     */
+    public SQRLChallenge take() {
+        return take(null);
+    }
+
+    /**
+     * @param clientHost the host asking, which a challenge built because the pool is empty is issued to
+     * @return a fresh challenge, from the pool if one is ready
+     */
+    public SQRLChallenge take(String clientHost) {
+        long now = factory.currentTimeMillis();
+        SQRLChallenge challenge;
+        while ((challenge = ring.poll()) != null) {
+            if (fresh(challenge, now)) {
+                hits.incrementAndGet();
+                wakeIfLow();
+                return challenge;
+            }
+            expired.incrementAndGet();
+        }
+        misses.incrementAndGet();
+        wakeIfLow();
+        return factory.create(clientHost);
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(producer);
+    }
+
+    /**
+     * challenges ready now
+     */
+    public int getDepth() {
+        return ring.size();
+    }
+
+    /**
+     * how many the producer is currently keeping ready
+     */
+    public int getTargetDepth() {
+        return targetDepth;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * challenges thrown away for being older than maxAge
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getProduced() {
+        return produced.get();
+    }
+
+    /**
+     * takes served from the pool, 1 before the first take
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1 : (double) h / total;
+    }
+
+    /**
+     * the moving average of takes per second
+     */
+    public double getTakesPerSecond() {
+        return takesPerSecond;
+    }
+
+    private boolean fresh(SQRLChallenge challenge, long now) {
+        return now - challenge.getCreatedMillis() <= maxAgeMillis;
+    }
+
+    private void wakeIfLow() {
+        if (ring.size() < targetDepth / 2) LockSupport.unpark(producer);
+    }
+
+    private void produce() {
+        long lastSample = System.nanoTime();
+        long lastTakes = 0;
+        while (running) {
+            long now = System.nanoTime();
+            if (now - lastSample >= IDLE_NANOS) {
+                long takes = hits.get() + misses.get();
+                double rate = (takes - lastTakes) * 1e9 / (now - lastSample);
+                takesPerSecond = takesPerSecond + RATE_WEIGHT * (rate - takesPerSecond);
+                long wanted = (long) Math.ceil(takesPerSecond * leadMillis / 1000);
+                targetDepth = (int) Math.min(ring.capacity(), Math.max(MIN_DEPTH, wanted));
+                lastSample = now;
+                lastTakes = takes;
+                dropExpired();
+            }
+
+            if (ring.size() < targetDepth) {
+                try {
+                    SQRLChallenge challenge = factory.create();
+                    if (ring.offer(challenge)) produced.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // e.g. the nut store is full; takers build their own meanwhile
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            } else {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * The oldest challenges are at the head: drops them up to the first fresh one, which keeps its place.
+     */
+    private void dropExpired() {
+        final long now = factory.currentTimeMillis();
+        while (ring.pollIf(challenge -> !fresh(challenge, now)) != null) {
+            expired.incrementAndGet();
+        }
+    }
+}
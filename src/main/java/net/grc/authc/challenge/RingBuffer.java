@@ -0,0 +1,117 @@
+package net.grc.authc.challenge;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A bounded lock-free multi-producer multi-consumer queue (Vyukov's): each cell carries a sequence number that
+ * says whether it is ready to be written or read at the current lap, so offer and poll are one CAS each when
+ * uncontended.
+ */
+final class RingBuffer<E> {
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // next position to poll, next position to offer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    RingBuffer(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity=" + capacity);
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        items = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if full
+     */
+    boolean offer(E item) {
+        long t = tail.get();
+        for (; ; ) {
+            int i = (int) t & mask;
+            long lap = sequences.get(i) - t;
+            if (lap == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    items.lazySet(i, item);
+                    sequences.lazySet(i, t + 1);
+                    return true;
+                }
+                t = tail.get();
+            } else if (lap < 0) {
+                return false;
+            } else {
+                t = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return null if empty
+     */
+    E poll() {
+        long h = head.get();
+        for (; ; ) {
+            int i = (int) h & mask;
+            long lap = sequences.get(i) - (h + 1);
+            if (lap == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E item = items.get(i);
+                    items.lazySet(i, null);
+                    sequences.lazySet(i, h + mask + 1);
+                    return item;
+                }
+                h = head.get();
+            } else if (lap < 0) {
+                return null;
+            } else {
+                h = head.get();
+            }
+        }
+    }
+
+    /**
+     * Polls the head only if it matches, so an item that does not stays where it is.
+     *
+     * @return null if empty or the head does not match
+     */
+    E pollIf(Predicate<? super E> matches) {
+        long h = head.get();
+        for (; ; ) {
+            int i = (int) h & mask;
+            long lap = sequences.get(i) - (h + 1);
+            if (lap == 0) {
+                // the cell is not written again before its item is polled, which the CAS below tells
+                E item = items.get(i);
+                if (!matches.test(item)) {
+                    if (head.get() == h) return null;
+                } else if (head.compareAndSet(h, h + 1)) {
+                    items.lazySet(i, null);
+                    sequences.lazySet(i, h + mask + 1);
+                    return item;
+                }
+                h = head.get();
+            } else if (lap < 0) {
+                return null;
+            } else {
+                h = head.get();
+            }
+        }
+    }
+
+    /**
+     * items queued, approximate while others offer or poll
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+}
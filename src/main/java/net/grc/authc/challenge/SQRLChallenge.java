@@ -0,0 +1,48 @@
+package net.grc.authc.challenge;
+
+import net.grc.qrcode.QRMatrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A challenge ready to show on a login page: the nut, the sqrl:// URL carrying it and the URL's QR code.
+ * Immutable.
+ */
+public final class SQRLChallenge {
+    private final ByteBuffer nut;
+    private final String url;
+    private final QRMatrix qrCode;
+    private final long createdMillis;
+
+    SQRLChallenge(ByteBuffer nut, String url, QRMatrix qrCode, long createdMillis) {
+        this.nut = nut.asReadOnlyBuffer();
+        this.url = url;
+        this.qrCode = qrCode;
+        this.createdMillis = createdMillis;
+    }
+
+    /**
+     * read only
+     */
+    public ByteBuffer getNut() {
+        return nut.duplicate();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * the encoded URL, to render with {@link net.grc.qrcode.QRCode} or {@link net.grc.qrcode.QRRenderCache}
+     */
+    public QRMatrix getQRCode() {
+        return qrCode;
+    }
+
+    /**
+     * when the nut was issued
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+}
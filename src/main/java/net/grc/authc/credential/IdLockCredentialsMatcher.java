@@ -1,15 +1,28 @@
 package net.grc.authc.credential;
 
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.credential.CredentialsMatcher;
 
 /**
  * The Id Lock phase
+ * <p/>
+ * Does not check the signature itself; {@link SQRLMatcherPipeline#idLock} runs both.
  */
 public class IdLockCredentialsMatcher implements CredentialsMatcher {
+    private static final LatencyHistogram MATCH = Metrics.histogram("sqrl.match.idlock");
+
     @Override
     public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+        long start = System.nanoTime();
+        boolean matched = match(token, info);
+        MATCH.recordSince(start);
+        return matched;
+    }
+
+    private boolean match(AuthenticationToken token, AuthenticationInfo info) {
         SQRLCredentials sqrlCredentials = (SQRLCredentials) token.getCredentials();
 
         // user did not supply ID lock credentials
@@ -1,10 +1,7 @@
 package net.grc.authc.credential;
 
-import org.apache.commons.codec.binary.Base64;
-
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * The principal for a SQRL id which can be securely replaced later.
@@ -21,39 +18,46 @@ import java.util.Arrays;
  * * Key Verifier = DHKA(Pub-Request,SK-IdLock)
  */
 public class IdLockPrincipal extends SQRLAnonymousPrincipal {
+    private static final long serialVersionUID = 1L;
 
-    private final ByteBuffer idLockPublicKey;
-    private final ByteBuffer idLockKeyVerifier;
+    private final SQRLKey idLockPublicKey;
+    private final SQRLKey idLockKeyVerifier;
 
     public IdLockPrincipal(URI challenge, String key, int d, String sqrlver,
                            String xSqrlKeyVerifier, String xSqrlPublicUnlockKey) {
         super(challenge, key, d, sqrlver);
 
-        Base64 b64 = new Base64(true);
-        idLockPublicKey = ByteBuffer.wrap(b64.decode(xSqrlPublicUnlockKey));
-        idLockKeyVerifier = ByteBuffer.wrap(b64.decode(xSqrlKeyVerifier));
+        idLockPublicKey = SQRLKey.of(SQRLChallengeParser.decodeBase64(xSqrlPublicUnlockKey));
+        idLockKeyVerifier = SQRLKey.of(SQRLChallengeParser.decodeBase64(xSqrlKeyVerifier));
     }
 
-    IdLockPrincipal(String sqrlDomain, byte[] sqrlkey, byte[] idLockPublic, byte[] idLockVerifier) {
+    /**
+     * constructor appropriate for data storage layer
+     */
+    public IdLockPrincipal(String sqrlDomain, byte[] sqrlkey, byte[] idLockPublic, byte[] idLockVerifier) {
         super(sqrlDomain, sqrlkey);
 
-        this.idLockPublicKey = ByteBuffer.wrap(idLockVerifier);
-        this.idLockKeyVerifier = ByteBuffer.wrap(idLockVerifier);
+        this.idLockPublicKey = SQRLKey.of(idLockPublic);
+        this.idLockKeyVerifier = SQRLKey.of(idLockVerifier);
     }
 
     public ByteBuffer getIdLockPublicKey() {
-        return idLockPublicKey.asReadOnlyBuffer();
+        return idLockPublicKey.toByteBuffer();
     }
 
     public ByteBuffer getIdLockKeyVerifier() {
-        return idLockKeyVerifier.asReadOnlyBuffer();
+        return idLockKeyVerifier.toByteBuffer();
+    }
+
+    SQRLKey idLockKeyVerifier() {
+        return idLockKeyVerifier;
     }
 
     @Override
     public int hashCode() {
         int hash = super.hashCode();
-        hash = (hash * 31) ^ Arrays.hashCode(idLockPublicKey.array());
-        hash = (hash * 31) ^ Arrays.hashCode(idLockKeyVerifier.array());
+        hash = (hash * 31) ^ idLockPublicKey.hashCode();
+        hash = (hash * 31) ^ idLockKeyVerifier.hashCode();
         return hash;
     }
 
@@ -68,7 +72,7 @@ public class IdLockPrincipal extends SQRLAnonymousPrincipal {
 
     protected boolean fieldsEqual(IdLockPrincipal other) {
         return super.fieldsEqual(other)
-                && Arrays.equals(other.idLockPublicKey.array(), idLockPublicKey.array())
-                && Arrays.equals(other.idLockKeyVerifier.array(), idLockKeyVerifier.array());
+                && other.idLockPublicKey.equals(idLockPublicKey)
+                && other.idLockKeyVerifier.equals(idLockKeyVerifier);
     }
 }
\ No newline at end of file
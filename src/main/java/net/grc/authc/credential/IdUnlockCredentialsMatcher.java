@@ -1,19 +1,53 @@
 package net.grc.authc.credential;
 
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.credential.CredentialsMatcher;
 
-import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Validates a SQRL Identity Unlock request.
  * <p/>
+ * The client recovers the Key Verifier as DHKA(Public Unlock Key, SK-IdLock) (see {@link IdLockPrincipal}) and
+ * proves it has it with HMAC-SHA256(Key Verifier, nut). The server stored the verifier when the id was locked, so
+ * it only has to compute the same HMAC; the comparison takes the same time wherever the first difference is.
+ * <p/>
  * Prerequisite: validated SQRL Credentials.
  */
 public class IdUnlockCredentialsMatcher implements CredentialsMatcher {
+    public static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final LatencyHistogram MATCH = Metrics.histogram("sqrl.match.idunlock");
+
+    // Mac.getInstance looks up the provider on every call; init with a new key is cheap
+    private static final ThreadLocal<Mac> HMAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(HMAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
     @Override
     public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+        long start = System.nanoTime();
+        boolean matched = match(token, info);
+        MATCH.recordSince(start);
+        return matched;
+    }
+
+    private boolean match(AuthenticationToken token, AuthenticationInfo info) {
         SQRLCredentials sqrlCredentials = (SQRLCredentials) token.getCredentials();
 
         // user did not supply ID unlock credentials
@@ -28,17 +62,43 @@ public class IdUnlockCredentialsMatcher implements CredentialsMatcher {
         IdLockPrincipal lockPrincipal = (IdLockPrincipal) authInfoPrincipal;
         IdUnlockCredentials unlockCredentials = (IdUnlockCredentials) sqrlCredentials;
 
-        // TODO read only buffer array is null
-        return checkvalid(unlockCredentials.getVerificationHmac().array(),
-                lockPrincipal.getIdLockKeyVerifier().array(),
-                unlockCredentials.getNut().array());
+        ByteBuffer clientHmac = unlockCredentials.getVerificationHmac();
+        ByteBuffer nut = unlockCredentials.getNut();
+        if (clientHmac == null || nut == null) return false;
+
+        return checkvalid(bytes(clientHmac), lockPrincipal.idLockKeyVerifier().toByteArray(), bytes(nut));
     }
 
     protected boolean checkvalid(byte[] clientVerificationHmac, byte[] keyVerifier, byte[] sharedNut) {
-        return Arrays.equals(clientVerificationHmac, hmac(keyVerifier, sharedNut));
+        return MessageDigest.isEqual(clientVerificationHmac, hmac(keyVerifier, sharedNut));
     }
 
+    /**
+     * HMAC-SHA256 keyed by a, over b
+     */
     protected byte[] hmac(byte[] a, byte[] b) {
-        return new byte[0];
+        return verificationHmac(a, b);
+    }
+
+    /**
+     * What a client that knows the Key Verifier sends to unlock its id for the nut.
+     */
+    public static byte[] verificationHmac(byte[] keyVerifier, byte[] nut) {
+        Mac mac = HMAC.get();
+        try {
+            mac.init(new SecretKeySpec(keyVerifier, HMAC_ALGORITHM));
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+        return mac.doFinal(nut);
+    }
+
+    /**
+     * read only buffers have no array
+     */
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
     }
 }
@@ -0,0 +1,238 @@
+package net.grc.authc.credential;
+
+import net.grc.metrics.Counter;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.credential.CredentialsMatcher;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs another matcher's verification on a dedicated pool, so that the Ed25519 work of a burst of logins is held
+ * to the cores it was given instead of competing with the container's request threads.
+ * <p/>
+ * At most maxPending verifications are queued or running; one more is refused at once with a
+ * {@link VerificationOverloadException}, which the login filter answers with 503, rather than joining a queue
+ * nobody gets through before timing out. {@link #match} is the asynchronous form. {@link #doCredentialsMatch}, the
+ * one Shiro calls, waits for it, unless it already runs on a worker, e.g. because the
+ * {@link net.grc.authc.web.SQRLAuthenticationFilter#setOffload filter} offloaded the whole login, in which case
+ * it verifies in place.
+ * <p/>
+ * A caller that times out gets a {@link VerificationOverloadException}, so the client retries; the worker must
+ * then not use the nut up. A matcher calls {@link #commit} before it consumes anything, which fails once the
+ * caller has stopped waiting and otherwise makes the caller wait for the answer after all.
+ * <p/>
+ * By default the pool has a daemon thread per core. Any executor can be given instead, such as one that starts a
+ * virtual thread per task on a JVM that has them; the pending limit still applies.
+ */
+public class OffloadedCredentialsMatcher implements CredentialsMatcher, Closeable {
+    public static final int DEFAULT_MAX_PENDING_PER_THREAD = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Counter REJECTED = Metrics.counter("sqrl.offload.rejected");
+    private static final LatencyHistogram QUEUED = Metrics.histogram("sqrl.offload.queued");
+    // what the caller of the task a worker runs is doing
+    private static final int WAITING = 0;
+    private static final int COMMITTED = 1;
+    private static final int ABANDONED = 2;
+    private static final ThreadLocal<AtomicInteger> ON_WORKER = new ThreadLocal<>();
+
+    private final CredentialsMatcher delegate;
+    private final Executor executor;
+    private final boolean ownExecutor;
+    private final int maxPending;
+    private final Semaphore permits;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    public OffloadedCredentialsMatcher(CredentialsMatcher delegate) {
+        this(delegate, Runtime.getRuntime().availableProcessors());
+    }
+
+    public OffloadedCredentialsMatcher(CredentialsMatcher delegate, int threads) {
+        this(delegate, threads, threads * DEFAULT_MAX_PENDING_PER_THREAD);
+    }
+
+    public OffloadedCredentialsMatcher(CredentialsMatcher delegate, int threads, int maxPending) {
+        this(delegate, newPool(threads), maxPending, true);
+    }
+
+    /**
+     * @param executor runs the verifications; {@link #close} leaves it running
+     */
+    public OffloadedCredentialsMatcher(CredentialsMatcher delegate, Executor executor, int maxPending) {
+        this(delegate, executor, maxPending, false);
+    }
+
+    private OffloadedCredentialsMatcher(CredentialsMatcher delegate, Executor executor, int maxPending,
+                                        boolean ownExecutor) {
+        if (delegate == null) throw new IllegalArgumentException("delegate=null");
+        if (executor == null) throw new IllegalArgumentException("executor=null");
+        if (maxPending < 1) throw new IllegalArgumentException("maxPending=" + maxPending);
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    private static ExecutorService newPool(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads=" + threads);
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "sqrl-verify-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    public CredentialsMatcher getDelegate() {
+        return delegate;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * verifications queued or running
+     */
+    public int getPending() {
+        return maxPending - permits.availablePermits();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * How long {@link #doCredentialsMatch} waits for a verification before giving up on it.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis=" + timeoutMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return completes with the delegate's answer, or exceptionally with a {@link VerificationOverloadException}
+     * if too many verifications are pending
+     */
+    public CompletableFuture<Boolean> match(AuthenticationToken token, AuthenticationInfo info) {
+        return submit(() -> delegate.doCredentialsMatch(token, info), new AtomicInteger(WAITING));
+    }
+
+    /**
+     * Runs any task, such as a whole login, on a worker under the same pending limit; matches made by the task
+     * verify in place.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (task == null) throw new IllegalArgumentException("task=null");
+        return submit(task, new AtomicInteger(WAITING));
+    }
+
+    /**
+     * Called by a matcher before it changes anything, such as consuming the nut. On a worker whose caller has
+     * timed out it returns false, and the matcher must fail without changing anything; otherwise the caller
+     * waits for the answer from now on. Off a worker it is always true.
+     */
+    public static boolean commit() {
+        AtomicInteger caller = ON_WORKER.get();
+        return caller == null || caller.compareAndSet(WAITING, COMMITTED) || caller.get() == COMMITTED;
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task, AtomicInteger caller) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!permits.tryAcquire()) {
+            REJECTED.increment();
+            future.completeExceptionally(new VerificationOverloadException("pending=" + maxPending));
+            return future;
+        }
+        long queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                QUEUED.recordSince(queued);
+                if (caller.get() == ABANDONED) {
+                    // timed out in the queue
+                    permits.release();
+                    return;
+                }
+                ON_WORKER.set(caller);
+                T result = null;
+                Throwable failure = null;
+                try {
+                    result = task.call();
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    ON_WORKER.remove();
+                    // before completing, so that whoever the answer wakes can submit again
+                    permits.release();
+                }
+                if (failure == null) future.complete(result);
+                else future.completeExceptionally(failure);
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down, or an executor with limits of its own
+            permits.release();
+            REJECTED.increment();
+            future.completeExceptionally(new VerificationOverloadException("rejected by executor"));
+        }
+        return future;
+    }
+
+    /**
+     * @throws VerificationOverloadException if too many verifications are pending, or this one took longer than
+     * the timeout
+     */
+    @Override
+    public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+        if (ON_WORKER.get() != null) return delegate.doCredentialsMatch(token, info);
+
+        AtomicInteger caller = new AtomicInteger(WAITING);
+        CompletableFuture<Boolean> future = submit(() -> delegate.doCredentialsMatch(token, info), caller);
+        try {
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (caller.compareAndSet(WAITING, ABANDONED)) {
+                    // the worker leaves the nut alone, so the client can retry with it
+                    future.cancel(false);
+                    throw new VerificationOverloadException("timeoutMillis=" + timeoutMillis);
+                }
+                // the worker has committed and is about done
+                return future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            caller.compareAndSet(WAITING, ABANDONED);
+            throw new VerificationOverloadException("interrupted");
+        }
+    }
+
+    /**
+     * Stops the pool this matcher created; pending verifications still finish.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor) ((ExecutorService) executor).shutdown();
+    }
+}
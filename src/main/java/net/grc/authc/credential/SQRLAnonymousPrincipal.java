@@ -1,32 +1,32 @@
 package net.grc.authc.credential;
 
-import org.apache.commons.codec.binary.Base64;
+import net.grc.crypto.Ed25519;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
 
+import java.io.Serializable;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Encapsulates the information defining a SQRL id: the domain and public key
  */
-public class SQRLAnonymousPrincipal {
+public class SQRLAnonymousPrincipal implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /**
      * DRAFT standard
      */
     private static final String SQRL_VERSION = "0";
-    static final Pattern URL_LOWERCASE_ESCAPES = Pattern.compile("%([a-f][0-9a-f]|[0-9][a-f])");
-    static final Pattern URL_ESCAPES = Pattern.compile("(?i)%([0-9a-f]{2})");
-    static final Pattern URL_UNRESERVED = Pattern.compile("[A-Za-z0-9_\\.~\\-]");
-    static final Pattern URL_HOST_UPPER = Pattern.compile("[A-Z]");
-    static final Pattern URL_DEFAULTPORT_QRL = Pattern.compile("^qrl://.*:80$");
-    static final Pattern URL_DEFAULTPORT_SQRL = Pattern.compile("^sqrl://.*:443$");
+
+    private static final LatencyHistogram VALIDATE_URI = Metrics.histogram("sqrl.uri.validate");
 
     final String sqrlDomain;
-    final ByteBuffer sqrlkey;
+    final SQRLKey sqrlkey;
+
+    private transient volatile Ed25519.PublicKey verificationKey;
 
     public SQRLAnonymousPrincipal(URI challenge, String key, int d, String sqrlver) {
         if (sqrlver == null) throw new IllegalArgumentException("sqrlver=null");
@@ -34,8 +34,7 @@ public class SQRLAnonymousPrincipal {
 
         if (key == null) throw new IllegalArgumentException("key==null");
 
-        Base64 b64 = new Base64(true);
-        this.sqrlkey = ByteBuffer.wrap(b64.decode(key));
+        this.sqrlkey = SQRLKey.of(SQRLChallengeParser.decodeBase64(key));
 
         sqrlDomain = validateURI(challenge, d);
     }
@@ -44,48 +43,33 @@ public class SQRLAnonymousPrincipal {
      * constructor appropriate for data storage layer
      */
     public SQRLAnonymousPrincipal(String sqrlDomain, byte[] sqrlkey) {
+        this(sqrlDomain, SQRLKey.of(sqrlkey));
+    }
+
+    public SQRLAnonymousPrincipal(String sqrlDomain, SQRLKey sqrlkey) {
+        if (sqrlDomain == null) throw new IllegalArgumentException("sqrlDomain=null");
+        if (sqrlkey == null) throw new IllegalArgumentException("sqrlkey=null");
         this.sqrlDomain = sqrlDomain;
-        this.sqrlkey = ByteBuffer.wrap(sqrlkey);
+        this.sqrlkey = sqrlkey;
     }
 
+    /**
+     * Checks the challenge is a canonical URL: lower case host, upper case escapes and no escaped unreserved
+     * characters in the path.
+     *
+     * @return the scheme, host and first d characters of the normalized path
+     */
     public static String validateURI(URI uri, int d) {
-        // TODO extract to parser class
-
         // TODO discard the scheme from uri?
         // TODO d parameter is superceded by the pipe | path separator
 
         if (uri == null) throw new IllegalArgumentException("challenge=null");
         if (d < 0) throw new IllegalArgumentException("d=" + d);
 
-        uri = uri.normalize();
-        String asciiString = uri.toASCIIString();
-        if (uri.getHost() == null) {
-            throw new IllegalArgumentException(asciiString + " does not appear to have a hostname");
-        }
-        Matcher m = URL_HOST_UPPER.matcher(uri.getHost());
-        if (m.find()) {
-            throw new IllegalArgumentException(asciiString + " hostname contains uppercase");
-        }
-        String asciiPath = uri.getRawPath();
-        if (d > asciiPath.length()) {
-            throw new IllegalArgumentException(asciiString + " path is shorter than d (" + d + ")");
-        }
-        String schemeHost = uri.getScheme() + "://" + uri.getHost();
-
-        m = URL_LOWERCASE_ESCAPES.matcher(asciiPath);
-        if (m.find()) {
-            throw new IllegalArgumentException(asciiString + " path contains lowercase escapes");
-        }
-        m = URL_ESCAPES.matcher(asciiPath);
-        while (m.find()) {
-            String escaped = new String(Character.toChars(Integer.parseInt(m.group(1), 16)));
-            Matcher m2 = URL_UNRESERVED.matcher(escaped);
-            if (m2.find()) {
-                throw new IllegalArgumentException(asciiString + " path escapes unreserved characters");
-            }
-
-        }
-        return schemeHost + asciiPath.substring(0, d);
+        long start = System.nanoTime();
+        String domain = SQRLChallengeParser.domain(uri.normalize().toASCIIString(), d);
+        VALIDATE_URI.recordSince(start);
+        return domain;
     }
 
     /**
@@ -106,13 +90,31 @@ public class SQRLAnonymousPrincipal {
      * An Ed25519 public key which is based on the domain
      */
     public ByteBuffer getPublicKey() {
-        return sqrlkey.asReadOnlyBuffer();
+        return sqrlkey.toByteBuffer();
+    }
+
+    public SQRLKey getKey() {
+        return sqrlkey;
+    }
+
+    /**
+     * The decompressed public key, decoded on first use and kept so a returning identity skips point decompression.
+     * null if the key is not a valid Ed25519 point.
+     */
+    Ed25519.PublicKey getVerificationKey() {
+        Ed25519.PublicKey key = verificationKey;
+        if (key == null) {
+            // racing threads decode the same value, last write wins
+            key = Ed25519.decodePublicKey(getPublicKey());
+            verificationKey = key;
+        }
+        return key;
     }
 
     @Override
     public int hashCode() {
         int hash = sqrlDomain.hashCode();
-        hash = (hash * 31) ^ Arrays.hashCode(sqrlkey.array());
+        hash = (hash * 31) ^ sqrlkey.hashCode();
         return hash;
     }
 
@@ -125,7 +127,14 @@ public class SQRLAnonymousPrincipal {
         return fieldsEqual((SQRLAnonymousPrincipal) o);
     }
 
+    /**
+     * @return the principal with this domain and key, anonymous or locked, or null; a hash lookup in a
+     * {@link SQRLPrincipalCollection}, a scan otherwise
+     */
     public SQRLAnonymousPrincipal findMatchingPrincipal(Iterable principals) {
+        if (principals instanceof SQRLPrincipalCollection) {
+            return ((SQRLPrincipalCollection) principals).find(sqrlDomain, sqrlkey);
+        }
         for (Object o : principals) {
             if (o instanceof SQRLAnonymousPrincipal
                     && fieldsEqual((SQRLAnonymousPrincipal) o)) {
@@ -137,9 +146,7 @@ public class SQRLAnonymousPrincipal {
 
     protected boolean fieldsEqual(SQRLAnonymousPrincipal other) {
         return other.sqrlDomain.equals(this.sqrlDomain)
-                && Arrays.equals(other.sqrlkey.array(), this.sqrlkey.array());
-
-        // TODO wrapped buffer equals may be inconsistent
+                && other.sqrlkey.equals(this.sqrlkey);
     }
 
     public static final Comparator ANY_SQRL_ID = new Comparator() {
@@ -153,9 +160,7 @@ public class SQRLAnonymousPrincipal {
 
             int delta = s1.getDomain().compareTo(s2.getDomain());
             if (delta == 0) {
-                delta = Integer.compare(
-                        Arrays.hashCode(s1.sqrlkey.array()), // TODO array null for read only buffer
-                        Arrays.hashCode(s2.sqrlkey.array()));
+                delta = s1.sqrlkey.compareTo(s2.sqrlkey);
             }
             return delta;
         }
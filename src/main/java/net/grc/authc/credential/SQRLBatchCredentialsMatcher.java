@@ -0,0 +1,38 @@
+package net.grc.authc.credential;
+
+import net.grc.crypto.Ed25519;
+import org.apache.shiro.authc.AuthenticationException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link SQRLCredentialsMatcher} which hands the signature check to a {@link SQRLBatchVerifier} and waits for
+ * the batch it lands in.
+ */
+public class SQRLBatchCredentialsMatcher extends SQRLCredentialsMatcher {
+    private final SQRLBatchVerifier batchVerifier;
+
+    public SQRLBatchCredentialsMatcher(SQRLBatchVerifier batchVerifier) {
+        if (batchVerifier == null) throw new IllegalArgumentException("batchVerifier=null");
+        this.batchVerifier = batchVerifier;
+    }
+
+    public SQRLBatchVerifier getBatchVerifier() {
+        return batchVerifier;
+    }
+
+    @Override
+    protected boolean checkvalid(ByteBuffer sig, byte[] msg, Ed25519.PublicKey pub) {
+        Future<Boolean> result = batchVerifier.submit(sig, msg, pub);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new AuthenticationException("batch verification failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.crypto.Ed25519;
+import net.grc.crypto.Ed25519BatchVerifier;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects SQRL signature checks from many request threads and verifies them in batches.
+ * <p/>
+ * A batch is sent to the worker pool when it reaches maxBatch signatures or when its first signature has waited
+ * maxDelay, whichever comes first. Each caller gets a {@link Future} for its own result. During a login storm
+ * this trades a few milliseconds of latency for roughly twice the verifications per core.
+ */
+public class SQRLBatchVerifier {
+    public static final int DEFAULT_MAX_BATCH = 64;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2;
+
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    private final ThreadLocal<Ed25519BatchVerifier> verifiers = new ThreadLocal<Ed25519BatchVerifier>() {
+        @Override
+        protected Ed25519BatchVerifier initialValue() {
+            return new Ed25519BatchVerifier(maxBatch);
+        }
+    };
+
+    private final Object lock = new Object();
+    private List<Pending> pending;
+    private long generation;
+
+    public SQRLBatchVerifier() {
+        this(DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public SQRLBatchVerifier(int maxBatch, long maxDelay, TimeUnit unit) {
+        this(maxBatch, maxDelay, unit,
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemon("sqrl-batch")));
+    }
+
+    public SQRLBatchVerifier(int maxBatch, long maxDelay, TimeUnit unit, ExecutorService workers) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch=" + maxBatch);
+        if (maxDelay < 0) throw new IllegalArgumentException("maxDelay=" + maxDelay);
+
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.workers = workers;
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("sqrl-batch-timer"));
+        this.pending = new ArrayList<Pending>(maxBatch);
+    }
+
+    /**
+     * Queues the signature check for a SQRL login attempt.
+     *
+     * @return completes with false if the token is not a SQRL token or its key is not a curve point
+     */
+    public Future<Boolean> submit(AuthenticationToken token, AuthenticationInfo info) {
+        if (!(token instanceof SQRLToken)) {
+            return completed(false);
+        }
+
+        SQRLAnonymousPrincipal sqrlId = (SQRLAnonymousPrincipal) token.getPrincipal();
+        SQRLCredentials sqrlCredentials = (SQRLCredentials) token.getCredentials();
+        SQRLCredentialsMatcher.checkVersions(sqrlId, sqrlCredentials);
+
+        Ed25519.PublicKey key = SQRLCredentialsMatcher.verificationKey(sqrlId, info);
+        if (key == null) {
+            return completed(false);
+        }
+        return submit(sqrlCredentials.sqrlsig, SQRLCredentialsMatcher.signedMessage(sqrlCredentials), key);
+    }
+
+    public Future<Boolean> submit(ByteBuffer sig, byte[] msg, Ed25519.PublicKey key) {
+        Pending p = new Pending(sig, msg, key);
+        synchronized (lock) {
+            pending.add(p);
+            if (pending.size() >= maxBatch) {
+                flushLocked();
+            } else if (pending.size() == 1) {
+                scheduleFlush(generation);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Verifies a whole batch on the calling thread.
+     */
+    public boolean[] verify(List<? extends AuthenticationToken> tokens, List<? extends AuthenticationInfo> infos) {
+        if (tokens.size() != infos.size()) {
+            throw new IllegalArgumentException("tokens=" + tokens.size() + " infos=" + infos.size());
+        }
+
+        boolean[] results = new boolean[tokens.size()];
+        Ed25519BatchVerifier verifier = verifiers.get();
+        int offset = 0;
+        while (offset < tokens.size()) {
+            int n = Math.min(verifier.capacity(), tokens.size() - offset);
+            verifier.clear();
+            for (int i = 0; i < n; i++) {
+                add(verifier, tokens.get(offset + i), infos.get(offset + i));
+            }
+            boolean[] chunk = new boolean[n];
+            verifier.verify(chunk);
+            System.arraycopy(chunk, 0, results, offset, n);
+            offset += n;
+        }
+        verifier.clear();
+        return results;
+    }
+
+    private static void add(Ed25519BatchVerifier verifier, AuthenticationToken token, AuthenticationInfo info) {
+        if (!(token instanceof SQRLToken)) {
+            verifier.add(null, null, null);
+            return;
+        }
+        SQRLAnonymousPrincipal sqrlId = (SQRLAnonymousPrincipal) token.getPrincipal();
+        SQRLCredentials sqrlCredentials = (SQRLCredentials) token.getCredentials();
+        SQRLCredentialsMatcher.checkVersions(sqrlId, sqrlCredentials);
+        verifier.add(sqrlCredentials.sqrlsig, SQRLCredentialsMatcher.signedMessage(sqrlCredentials),
+                SQRLCredentialsMatcher.verificationKey(sqrlId, info));
+    }
+
+    /**
+     * Sends whatever is queued to the workers without waiting for the batch to fill.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (!pending.isEmpty()) flushLocked();
+        }
+    }
+
+    public void shutdown() {
+        flush();
+        timer.shutdown();
+        workers.shutdown();
+    }
+
+    private void scheduleFlush(final long batchGeneration) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        // the batch may already have been sent because it filled up
+                        if (generation == batchGeneration && !pending.isEmpty()) flushLocked();
+                    }
+                }
+            }, maxDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        final List<Pending> batch = pending;
+        pending = new ArrayList<Pending>(maxBatch);
+        generation++;
+
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifyBatch(batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (Pending p : batch) p.fail(e);
+        }
+    }
+
+    private void verifyBatch(List<Pending> batch) {
+        Ed25519BatchVerifier verifier = verifiers.get();
+        try {
+            verifier.clear();
+            for (Pending p : batch) {
+                verifier.add(p.sig, p.msg, p.key);
+            }
+            boolean[] results = new boolean[batch.size()];
+            verifier.verify(results);
+            for (int i = 0; i < results.length; i++) {
+                batch.get(i).complete(results[i]);
+            }
+        } catch (RuntimeException e) {
+            for (Pending p : batch) p.fail(e);
+        } finally {
+            verifier.clear();
+        }
+    }
+
+    private static Future<Boolean> completed(boolean result) {
+        Pending p = new Pending(null, null, null);
+        p.complete(result);
+        return p;
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static final Callable<Boolean> NOT_RUN = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            throw new IllegalStateException("completed by the batch");
+        }
+    };
+
+    /**
+     * A queued signature and the future its caller waits on.
+     */
+    private static final class Pending extends FutureTask<Boolean> {
+        final ByteBuffer sig;
+        final byte[] msg;
+        final Ed25519.PublicKey key;
+
+        Pending(ByteBuffer sig, byte[] msg, Ed25519.PublicKey key) {
+            super(NOT_RUN);
+            this.sig = sig;
+            this.msg = msg;
+            this.key = key;
+        }
+
+        void complete(boolean result) {
+            set(result);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+}
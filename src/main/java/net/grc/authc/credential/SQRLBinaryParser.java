@@ -0,0 +1,278 @@
+package net.grc.authc.credential;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Decoder for the compact binary form of a SQRL client request, posted as {@value #CONTENT_TYPE}.
+ * <p/>
+ * The phone posts to the challenge URL as shown by the QR code and sends in the body, instead of query parameters
+ * and base64url text, a frame of:
+ * <pre>
+ * format    1 byte, {@value #FORMAT}
+ * sqrlver   1 byte, 0
+ * flags     1 byte, {@value #FLAG_ID_LOCK} with the id lock fields, {@value #FLAG_ID_UNLOCK} with the unlock HMAC
+ * d         1 byte
+ * nut       1 byte length, then the nut
+ * sqrlkey   32 bytes
+ * suk, vuk  32 bytes each, the Public Unlock Key and the Key Verifier, if id lock
+ * hmac      32 bytes, the Verification HMAC, if id unlock
+ * sqrlsig   64 bytes, over the challenge URL in US-ASCII followed by the frame up to the signature
+ * </pre>
+ * The key, nut, signature and id lock fields are read in place: the credentials keep read only views of the
+ * frame, which must not be reused while they are in use. Only the signed message is copied, once.
+ * <p/>
+ * Not thread safe: use {@link #forThread()} or one instance per thread.
+ */
+public final class SQRLBinaryParser {
+    public static final String CONTENT_TYPE = "application/x-sqrl";
+    public static final int FORMAT = 1;
+    public static final int FLAG_ID_LOCK = 1;
+    public static final int FLAG_ID_UNLOCK = 2;
+    /**
+     * the longest frame there can be
+     */
+    public static final int MAX_LENGTH = 5 + 255 + 3 * SQRLKey.LENGTH + 64;
+
+    private static final int SQRL_VERSION = 0;
+    private static final int HEADER_LENGTH = 5;
+    private static final int SIGNATURE_LENGTH = 64;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final ThreadLocal<SQRLBinaryParser> PARSER = new ThreadLocal<SQRLBinaryParser>() {
+        @Override
+        protected SQRLBinaryParser initialValue() {
+            return new SQRLBinaryParser();
+        }
+    };
+
+    private String challenge;
+    private int flags;
+    private int d;
+    private ByteBuffer nut;
+    private ByteBuffer key;
+    private ByteBuffer publicUnlockKey;
+    private ByteBuffer keyVerifier;
+    private ByteBuffer verificationHmac;
+    private ByteBuffer signature;
+    private byte[] signedMessage;
+
+    /**
+     * the parser of the calling thread
+     */
+    public static SQRLBinaryParser forThread() {
+        return PARSER.get();
+    }
+
+    /**
+     * @param challenge the URL the frame was posted to, as {@link SQRLChallengeParser} expects it
+     * @param frame the request body, from its position to its limit; the position is not moved
+     * @throws IllegalArgumentException if the frame is malformed or has an unknown format or version
+     */
+    public void parse(CharSequence challenge, ByteBuffer frame) {
+        if (challenge == null) throw new IllegalArgumentException("challenge=null");
+        if (frame == null) throw new IllegalArgumentException("frame=null");
+
+        int start = frame.position();
+        int length = frame.remaining();
+        if (length < HEADER_LENGTH) throw new IllegalArgumentException("length=" + length);
+        int format = frame.get(start) & 0xff;
+        if (format != FORMAT) throw new IllegalArgumentException("format=" + format);
+        int sqrlver = frame.get(start + 1) & 0xff;
+        if (sqrlver != SQRL_VERSION) throw new IllegalArgumentException("sqrlver=" + sqrlver);
+        flags = frame.get(start + 2) & 0xff;
+        if ((flags & ~(FLAG_ID_LOCK | FLAG_ID_UNLOCK)) != 0 || flags == (FLAG_ID_LOCK | FLAG_ID_UNLOCK)) {
+            throw new IllegalArgumentException("flags=" + flags);
+        }
+        d = frame.get(start + 3) & 0xff;
+        int nutLength = frame.get(start + 4) & 0xff;
+
+        int fields = nutLength + SQRLKey.LENGTH;
+        if ((flags & FLAG_ID_LOCK) != 0) fields += 2 * SQRLKey.LENGTH;
+        if ((flags & FLAG_ID_UNLOCK) != 0) fields += SQRLKey.LENGTH;
+        int signed = HEADER_LENGTH + fields;
+        if (length != signed + SIGNATURE_LENGTH) throw new IllegalArgumentException("length=" + length);
+
+        this.challenge = challenge.toString();
+        int i = start + HEADER_LENGTH;
+        nut = nutLength == 0 ? null : slice(frame, i, nutLength);
+        i += nutLength;
+        key = slice(frame, i, SQRLKey.LENGTH);
+        i += SQRLKey.LENGTH;
+        publicUnlockKey = keyVerifier = verificationHmac = null;
+        if ((flags & FLAG_ID_LOCK) != 0) {
+            publicUnlockKey = slice(frame, i, SQRLKey.LENGTH);
+            keyVerifier = slice(frame, i + SQRLKey.LENGTH, SQRLKey.LENGTH);
+            i += 2 * SQRLKey.LENGTH;
+        }
+        if ((flags & FLAG_ID_UNLOCK) != 0) {
+            verificationHmac = slice(frame, i, SQRLKey.LENGTH);
+            i += SQRLKey.LENGTH;
+        }
+        signature = slice(frame, i, SIGNATURE_LENGTH);
+
+        byte[] url = this.challenge.getBytes(ASCII);
+        signedMessage = new byte[url.length + signed];
+        System.arraycopy(url, 0, signedMessage, 0, url.length);
+        ByteBuffer prefix = frame.duplicate();
+        prefix.limit(start + signed);
+        prefix.get(signedMessage, url.length, signed);
+    }
+
+    public int getD() {
+        return d;
+    }
+
+    /**
+     * the nut, null if the frame has none
+     */
+    public ByteBuffer getNut() {
+        return nut == null ? null : nut.duplicate();
+    }
+
+    public ByteBuffer getKey() {
+        return key.duplicate();
+    }
+
+    public ByteBuffer getSignature() {
+        return signature.duplicate();
+    }
+
+    /**
+     * The identity the frame was signed by, its domain taken from the challenge URL.
+     *
+     * @throws IllegalArgumentException if the challenge is not a canonical SQRL URL or its path is shorter than d
+     */
+    public SQRLAnonymousPrincipal principal() {
+        return new SQRLAnonymousPrincipal(SQRLChallengeParser.domain(challenge, d), SQRLKey.of(key.duplicate()));
+    }
+
+    /**
+     * The signed request: {@link IdLockCredentials} or {@link IdUnlockCredentials} if the frame has their fields.
+     */
+    public SQRLCredentials credentials() {
+        if (publicUnlockKey != null) {
+            return new LockCredentials(challenge, signature, nut, signedMessage, publicUnlockKey, keyVerifier);
+        }
+        if (verificationHmac != null) {
+            return new UnlockCredentials(challenge, signature, nut, signedMessage, verificationHmac);
+        }
+        return new SQRLCredentials(challenge, signature, nut, signedMessage);
+    }
+
+    /**
+     * A frame's fields up to the signature, as a client would send them.
+     *
+     * @param nut may be null
+     * @param publicUnlockKey with keyVerifier for id lock, else null
+     * @param verificationHmac for id unlock, else null
+     */
+    public static byte[] encodeFields(int d, byte[] nut, byte[] key, byte[] publicUnlockKey, byte[] keyVerifier,
+                                      byte[] verificationHmac) {
+        if (d < 0 || d > 255) throw new IllegalArgumentException("d=" + d);
+        if (nut != null && nut.length > 255) throw new IllegalArgumentException("nut.length=" + nut.length);
+        check("key", key);
+        if ((publicUnlockKey == null) != (keyVerifier == null)) {
+            throw new IllegalArgumentException("publicUnlockKey and keyVerifier go together");
+        }
+        if (publicUnlockKey != null && verificationHmac != null) {
+            throw new IllegalArgumentException("id lock and id unlock go separately");
+        }
+
+        int nutLength = nut == null ? 0 : nut.length;
+        int flags = 0;
+        int length = HEADER_LENGTH + nutLength + SQRLKey.LENGTH;
+        if (publicUnlockKey != null) {
+            check("publicUnlockKey", publicUnlockKey);
+            check("keyVerifier", keyVerifier);
+            flags |= FLAG_ID_LOCK;
+            length += 2 * SQRLKey.LENGTH;
+        }
+        if (verificationHmac != null) {
+            check("verificationHmac", verificationHmac);
+            flags |= FLAG_ID_UNLOCK;
+            length += SQRLKey.LENGTH;
+        }
+
+        ByteBuffer fields = ByteBuffer.allocate(length);
+        fields.put((byte) FORMAT).put((byte) SQRL_VERSION).put((byte) flags).put((byte) d).put((byte) nutLength);
+        if (nut != null) fields.put(nut);
+        fields.put(key);
+        if (publicUnlockKey != null) fields.put(publicUnlockKey).put(keyVerifier);
+        if (verificationHmac != null) fields.put(verificationHmac);
+        return fields.array();
+    }
+
+    /**
+     * what the client signs for a frame posted to the challenge URL
+     */
+    public static byte[] signedMessage(CharSequence challenge, byte[] fields) {
+        byte[] url = challenge.toString().getBytes(ASCII);
+        byte[] message = new byte[url.length + fields.length];
+        System.arraycopy(url, 0, message, 0, url.length);
+        System.arraycopy(fields, 0, message, url.length, fields.length);
+        return message;
+    }
+
+    /**
+     * the frame: the fields followed by their signature
+     */
+    public static byte[] frame(byte[] fields, byte[] signature) {
+        if (signature == null || signature.length != SIGNATURE_LENGTH) {
+            throw new IllegalArgumentException("signature.length=" + (signature == null ? null : signature.length));
+        }
+        byte[] frame = new byte[fields.length + SIGNATURE_LENGTH];
+        System.arraycopy(fields, 0, frame, 0, fields.length);
+        System.arraycopy(signature, 0, frame, fields.length, SIGNATURE_LENGTH);
+        return frame;
+    }
+
+    private static void check(String name, byte[] value) {
+        if (value == null || value.length != SQRLKey.LENGTH) {
+            throw new IllegalArgumentException(name + ".length=" + (value == null ? null : value.length));
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer frame, int offset, int length) {
+        ByteBuffer slice = frame.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    private static final class LockCredentials extends SQRLCredentials implements IdLockCredentials {
+        private final ByteBuffer publicUnlockKey;
+        private final ByteBuffer keyVerifier;
+
+        LockCredentials(String challenge, ByteBuffer signature, ByteBuffer nut, byte[] signedMessage,
+                        ByteBuffer publicUnlockKey, ByteBuffer keyVerifier) {
+            super(challenge, signature, nut, signedMessage);
+            this.publicUnlockKey = publicUnlockKey;
+            this.keyVerifier = keyVerifier;
+        }
+
+        @Override
+        public ByteBuffer getKeyVerifier() {
+            return keyVerifier.duplicate();
+        }
+
+        @Override
+        public ByteBuffer getPublicUnlockKey() {
+            return publicUnlockKey.duplicate();
+        }
+    }
+
+    private static final class UnlockCredentials extends SQRLCredentials implements IdUnlockCredentials {
+        private final ByteBuffer verificationHmac;
+
+        UnlockCredentials(String challenge, ByteBuffer signature, ByteBuffer nut, byte[] signedMessage,
+                          ByteBuffer verificationHmac) {
+            super(challenge, signature, nut, signedMessage);
+            this.verificationHmac = verificationHmac;
+        }
+
+        @Override
+        public ByteBuffer getVerificationHmac() {
+            return verificationHmac.duplicate();
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package net.grc.authc.credential;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Single pass parser for SQRL challenge URLs and their signatures.
+ * <p/>
+ * Walks the characters once: the scheme, the authority (user info and port are dropped from the domain), the
+ * path with the canonical escape rules of {@link SQRLAnonymousPrincipal#validateURI}, and the query for sqrlver,
+ * sqrlkey, d and nut, the first occurrence of each winning. Nothing is copied while parsing; base64url values
+ * are decoded into buffers owned by the parser and reused on the next parse. The only allocations are the
+ * principal and credentials built at the end, and the exception for a rejected challenge.
+ * <p/>
+ * A path with "." or ".." segments is not canonical; it is still accepted, its domain is taken from the
+ * normalized URI the slow way.
+ * <p/>
+ * Not thread safe: use {@link #forThread()} or one instance per thread.
+ */
+public final class SQRLChallengeParser {
+    /**
+     * DRAFT standard
+     */
+    private static final String SQRL_VERSION = "0";
+
+    private static final ThreadLocal<SQRLChallengeParser> PARSER = new ThreadLocal<SQRLChallengeParser>() {
+        @Override
+        protected SQRLChallengeParser initialValue() {
+            return new SQRLChallengeParser();
+        }
+    };
+
+    // separate from PARSER: domain() is called while the thread's parser holds a challenge, by validateURI
+    private static final ThreadLocal<SQRLChallengeParser> DOMAIN_PARSER = new ThreadLocal<SQRLChallengeParser>() {
+        @Override
+        protected SQRLChallengeParser initialValue() {
+            return new SQRLChallengeParser();
+        }
+    };
+
+    private static final byte[] BASE64 = new byte[128];
+    private static final byte[] UNRESERVED = new byte[128];
+    private static final byte[] PATH = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) BASE64[alphabet.charAt(i)] = (byte) i;
+        // both the url safe and the standard alphabet, as commons-codec accepted
+        BASE64['-'] = BASE64['+'] = 62;
+        BASE64['_'] = BASE64['/'] = 63;
+
+        for (int i = 0; i < alphabet.length(); i++) UNRESERVED[alphabet.charAt(i)] = 1;
+        for (char c : "-._~".toCharArray()) UNRESERVED[c] = 1;
+
+        System.arraycopy(UNRESERVED, 0, PATH, 0, PATH.length);
+        for (char c : "!$&'()*+,;=:@/%".toCharArray()) PATH[c] = 1;
+    }
+
+    private final AsciiSequence challengeBytes = new AsciiSequence();
+    private final AsciiSequence signatureBytes = new AsciiSequence();
+
+    private CharSequence challenge;
+    private int schemeEnd;
+    private int hostStart;
+    private int hostEnd;
+    private int pathStart;
+    private int pathEnd;
+    private boolean contiguous;
+    private boolean dotSegments;
+
+    private int d;
+    private int keyStart;
+    private int keyEnd;
+    private int nutStart;
+    private int nutEnd;
+
+    private byte[] key = new byte[32];
+    private int keyLength;
+    private byte[] nut = new byte[16];
+    private int nutLength;
+    private byte[] signature = new byte[64];
+    private int signatureLength;
+
+    /**
+     * the parser of the calling thread
+     */
+    public static SQRLChallengeParser forThread() {
+        return PARSER.get();
+    }
+
+    /**
+     * @param challenge the signed challenge URL
+     * @param signature its base64url signature
+     * @throws IllegalArgumentException if the challenge is not a canonical SQRL URL or a value is missing
+     */
+    public void parse(CharSequence challenge, CharSequence signature) {
+        if (challenge == null) throw new IllegalArgumentException("challenge=null");
+        if (signature == null) throw new IllegalArgumentException("signature=null");
+        this.challenge = challenge;
+
+        int n = challenge.length();
+        int i = location(challenge, 0, n);
+        query(challenge, i, n);
+
+        if (keyStart < 0) throw new IllegalArgumentException("key==null");
+        if (d < 0) throw new IllegalArgumentException("d=null");
+        if (!dotSegments && d > pathEnd - pathStart) {
+            throw new IllegalArgumentException(challenge + " path is shorter than d (" + d + ")");
+        }
+
+        key = ensure(key, keyEnd - keyStart);
+        keyLength = decode(challenge, keyStart, keyEnd, key);
+        if (nutStart >= 0) {
+            nut = ensure(nut, nutEnd - nutStart);
+            nutLength = decode(challenge, nutStart, nutEnd, nut);
+        }
+        this.signature = ensure(this.signature, signature.length());
+        signatureLength = decode(signature, 0, signature.length(), this.signature);
+    }
+
+    /**
+     * Parses US-ASCII bytes, such as a request body, without decoding them to a String first. The buffers'
+     * positions are not moved.
+     */
+    public void parse(ByteBuffer challenge, ByteBuffer signature) {
+        if (challenge == null) throw new IllegalArgumentException("challenge=null");
+        if (signature == null) throw new IllegalArgumentException("signature=null");
+        parse(challengeBytes.reset(challenge), signatureBytes.reset(signature));
+    }
+
+    public int getD() {
+        return d;
+    }
+
+    /**
+     * the decoded sqrlkey, valid until the next parse
+     */
+    public ByteBuffer getKey() {
+        return ByteBuffer.wrap(key, 0, keyLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * the decoded nut, valid until the next parse; null if the challenge has none
+     */
+    public ByteBuffer getNut() {
+        return nutStart < 0 ? null : ByteBuffer.wrap(nut, 0, nutLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * the decoded signature, valid until the next parse
+     */
+    public ByteBuffer getSignature() {
+        return ByteBuffer.wrap(signature, 0, signatureLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * scheme, host and the first d characters of the path
+     */
+    public String getDomain() {
+        if (dotSegments) return SQRLAnonymousPrincipal.validateURI(URI.create(challenge.toString()), d);
+        if (contiguous) return challenge.subSequence(0, pathStart + d).toString();
+
+        StringBuilder domain = new StringBuilder(hostEnd - hostStart + d + 16);
+        domain.append(challenge, 0, schemeEnd).append("://");
+        domain.append(challenge, hostStart, hostEnd);
+        domain.append(challenge, pathStart, pathStart + d);
+        return domain.toString();
+    }
+
+    /**
+     * The identity the challenge was signed by.
+     *
+     * @throws IllegalArgumentException if the key is not 32 bytes
+     */
+    public SQRLAnonymousPrincipal principal() {
+        return new SQRLAnonymousPrincipal(getDomain(), SQRLKey.of(key, 0, keyLength));
+    }
+
+    /**
+     * The signed challenge, owning copies of the signature and nut.
+     */
+    public SQRLCredentials credentials() {
+        return new SQRLCredentials(challenge.toString(), Arrays.copyOf(signature, signatureLength),
+                nutStart < 0 ? null : Arrays.copyOf(nut, nutLength));
+    }
+
+    /**
+     * The domain of a URL, as {@link SQRLAnonymousPrincipal#validateURI}, for a URL without dot segments.
+     */
+    static String domain(CharSequence url, int d) {
+        if (d < 0) throw new IllegalArgumentException("d=" + d);
+
+        SQRLChallengeParser parser = DOMAIN_PARSER.get();
+        try {
+            parser.challenge = url;
+            parser.location(url, 0, url.length());
+            if (d > parser.pathEnd - parser.pathStart) {
+                throw new IllegalArgumentException(url + " path is shorter than d (" + d + ")");
+            }
+            parser.d = d;
+            return parser.getDomain();
+        } finally {
+            parser.challenge = null;
+        }
+    }
+
+    /**
+     * The first value of a query parameter, undecoded.
+     *
+     * @return null if there is none
+     */
+    static String parameter(CharSequence url, String name) {
+        int n = url.length();
+        int i = 0;
+        while (i < n && url.charAt(i) != '?' && url.charAt(i) != '#') i++;
+        if (i == n || url.charAt(i) != '?') return null;
+
+        for (int start = i + 1; start <= n; ) {
+            int end = start;
+            while (end < n && !isSeparator(url.charAt(end))) end++;
+            int eq = start;
+            while (eq < end && url.charAt(eq) != '=') eq++;
+            if (regionEquals(url, start, eq, name)) {
+                return url.subSequence(Math.min(eq + 1, end), end).toString();
+            }
+            if (end == n || url.charAt(end) == '#') break;
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes base64 or base64url, padded or not; line breaks and blanks are skipped.
+     */
+    static byte[] decodeBase64(CharSequence s) {
+        byte[] out = new byte[s.length() * 3 / 4 + 2];
+        return Arrays.copyOf(out, decode(s, 0, s.length(), out));
+    }
+
+    /**
+     * Scheme, authority and path.
+     *
+     * @return the index of the query or fragment, or n
+     */
+    private int location(CharSequence s, int i, int n) {
+        d = -1;
+        keyStart = nutStart = -1;
+        dotSegments = false;
+
+        // scheme
+        int start = i;
+        while (i < n && isSchemeChar(s.charAt(i), i == start)) i++;
+        if (i == start || i + 3 > n || s.charAt(i) != ':' || s.charAt(i + 1) != '/' || s.charAt(i + 2) != '/') {
+            throw new IllegalArgumentException(s + " does not appear to have a hostname");
+        }
+        schemeEnd = i;
+        i += 3;
+
+        // authority: [userinfo@]host[:port]
+        int authorityStart = i;
+        int at = -1;
+        while (i < n && s.charAt(i) != '/' && s.charAt(i) != '?' && s.charAt(i) != '#') {
+            if (s.charAt(i) == '@') at = i;
+            i++;
+        }
+        int authorityEnd = i;
+        hostStart = at < 0 ? authorityStart : at + 1;
+        hostEnd = host(s, hostStart, authorityEnd);
+        if (hostEnd < authorityEnd) port(s, hostEnd, authorityEnd);
+        contiguous = hostStart == authorityStart && hostEnd == authorityEnd;
+
+        // path
+        pathStart = i;
+        int segment = i;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '?' || c == '#') break;
+            if (c >= 128 || PATH[c] == 0) throw new IllegalArgumentException(s + " path contains '" + c + "'");
+            if (c == '/') {
+                dotSegments |= isDotSegment(s, segment, i);
+                segment = i + 1;
+            } else if (c == '%') {
+                escape(s, i, n);
+                i += 2;
+            }
+        }
+        dotSegments |= isDotSegment(s, segment, i);
+        pathEnd = i;
+        return i;
+    }
+
+    /**
+     * @return the end of the host
+     */
+    private static int host(CharSequence s, int i, int end) {
+        int start = i;
+        if (i < end && s.charAt(i) == '[') {
+            // IP literal
+            for (i++; i < end && s.charAt(i) != ']'; i++) {
+                char c = s.charAt(i);
+                if (c >= 'A' && c <= 'Z') throw new IllegalArgumentException(s + " hostname contains uppercase");
+                if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c == ':' || c == '.')) {
+                    throw new IllegalArgumentException(s + " does not appear to have a hostname");
+                }
+            }
+            if (i == end) throw new IllegalArgumentException(s + " does not appear to have a hostname");
+            return i + 1;
+        }
+
+        int label = i;
+        for (; i < end && s.charAt(i) != ':'; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') throw new IllegalArgumentException(s + " hostname contains uppercase");
+            if (c == '.') {
+                if (!isLabel(s, label, i)) break;
+                label = i + 1;
+            } else if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-')) {
+                break;
+            }
+        }
+        // a single trailing dot is allowed
+        if (i == start || (label < i && !isLabel(s, label, i)) || (i < end && s.charAt(i) != ':')) {
+            throw new IllegalArgumentException(s + " does not appear to have a hostname");
+        }
+        return i;
+    }
+
+    private static boolean isLabel(CharSequence s, int start, int end) {
+        return end > start && s.charAt(start) != '-' && s.charAt(end - 1) != '-';
+    }
+
+    private static void port(CharSequence s, int i, int end) {
+        if (s.charAt(i) != ':') throw new IllegalArgumentException(s + " does not appear to have a hostname");
+        for (i++; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException(s + " does not appear to have a hostname");
+        }
+    }
+
+    /**
+     * Escapes must be upper case and must not hide unreserved characters.
+     */
+    private static void escape(CharSequence s, int i, int n) {
+        int hi = i + 1 < n ? hex(s.charAt(i + 1)) : -1;
+        int lo = i + 2 < n ? hex(s.charAt(i + 2)) : -1;
+        if (hi < 0 || lo < 0) throw new IllegalArgumentException(s + " path contains a malformed escape");
+        if (s.charAt(i + 1) >= 'a' || s.charAt(i + 2) >= 'a') {
+            throw new IllegalArgumentException(s + " path contains lowercase escapes");
+        }
+        int c = hi << 4 | lo;
+        if (c < 128 && UNRESERVED[c] != 0) {
+            throw new IllegalArgumentException(s + " path escapes unreserved characters");
+        }
+    }
+
+    private static boolean isDotSegment(CharSequence s, int start, int end) {
+        int length = end - start;
+        return (length == 1 && s.charAt(start) == '.')
+                || (length == 2 && s.charAt(start) == '.' && s.charAt(start + 1) == '.');
+    }
+
+    private void query(CharSequence s, int i, int n) {
+        if (i == n || s.charAt(i) != '?') return;
+
+        boolean version = false;
+        for (int start = i + 1; start <= n; ) {
+            int end = start;
+            while (end < n && !isSeparator(s.charAt(end))) end++;
+            int eq = start;
+            while (eq < end && s.charAt(eq) != '=') eq++;
+            int value = Math.min(eq + 1, end);
+
+            if (!version && regionEquals(s, start, eq, "sqrlver")) {
+                version = true;
+                if (!regionEquals(s, value, end, SQRL_VERSION)) {
+                    throw new IllegalArgumentException("sqrlver=" + s.subSequence(value, end));
+                }
+            } else if (keyStart < 0 && regionEquals(s, start, eq, "sqrlkey")) {
+                keyStart = value;
+                keyEnd = end;
+            } else if (d < 0 && regionEquals(s, start, eq, "d")) {
+                d = parseD(s, value, end);
+            } else if (nutStart < 0 && regionEquals(s, start, eq, "nut")) {
+                nutStart = value;
+                nutEnd = end;
+            }
+
+            if (end == n || s.charAt(end) == '#') break;
+            start = end + 1;
+        }
+        if (!version) throw new IllegalArgumentException("sqrlver=null");
+    }
+
+    private static int parseD(CharSequence s, int start, int end) {
+        if (start == end || end - start > 9) throw new IllegalArgumentException("d=" + s.subSequence(start, end));
+        int d = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException("d=" + s.subSequence(start, end));
+            d = d * 10 + (c - '0');
+        }
+        return d;
+    }
+
+    /**
+     * Decodes into out, which must hold at least 3/4 of the characters.
+     *
+     * @return the number of bytes decoded
+     */
+    private static int decode(CharSequence s, int start, int end, byte[] out) {
+        int bits = 0;
+        int pending = 0;
+        int length = 0;
+        boolean padded = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n' || c == ' ' || c == '\t') continue;
+            if (c == '=' || (c == '%' && i + 2 < end && s.charAt(i + 1) == '3'
+                    && (s.charAt(i + 2) == 'D' || s.charAt(i + 2) == 'd'))) {
+                // padding, raw or percent encoded
+                if (c == '%') i += 2;
+                padded = true;
+                continue;
+            }
+            int v = c < 128 ? BASE64[c] : -1;
+            if (v < 0 || padded) throw new IllegalArgumentException("not base64url: " + s.subSequence(start, end));
+
+            bits = bits << 6 | v;
+            if (++pending == 4) {
+                out[length++] = (byte) (bits >> 16);
+                out[length++] = (byte) (bits >> 8);
+                out[length++] = (byte) bits;
+                bits = 0;
+                pending = 0;
+            }
+        }
+        if (pending == 1) throw new IllegalArgumentException("not base64url: " + s.subSequence(start, end));
+        if (pending == 2) {
+            out[length++] = (byte) (bits >> 4);
+        } else if (pending == 3) {
+            out[length++] = (byte) (bits >> 10);
+            out[length++] = (byte) (bits >> 2);
+        }
+        return length;
+    }
+
+    private static byte[] ensure(byte[] buffer, int chars) {
+        int needed = chars * 3 / 4 + 2;
+        return buffer.length >= needed ? buffer : new byte[needed];
+    }
+
+    private static boolean isSchemeChar(char c, boolean first) {
+        if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z') return true;
+        return !first && (c >= '0' && c <= '9' || c == '+' || c == '-' || c == '.');
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '&' || c == ';' || c == '#';
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String expected) {
+        if (end - start != expected.length()) return false;
+        for (int i = 0; i < expected.length(); i++) {
+            if (s.charAt(start + i) != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    /**
+     * US-ASCII bytes seen as characters, without copying.
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private ByteBuffer bytes;
+        private int offset;
+        private int length;
+
+        AsciiSequence reset(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.offset = bytes.position();
+            this.length = bytes.remaining();
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) chars[i] = charAt(start + i);
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package net.grc.authc.credential;
 
-import org.apache.commons.codec.binary.Base64;
-
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * Encapsulates the authentication attempt
@@ -18,19 +15,53 @@ public class SQRLCredentials {
     final String sqrlChallenge;
     final ByteBuffer sqrlNut;
     final ByteBuffer sqrlsig;
+    /**
+     * what the signature is over, if not the challenge itself
+     */
+    final byte[] signedMessage;
 
     public SQRLCredentials(URI challenge, String signature, String sqrlver) {
+        this(challenge, signature, sqrlver, nutParameter(challenge));
+    }
+
+    /**
+     * @param nut the base64url "nut" query parameter of the challenge, may be null
+     */
+    public SQRLCredentials(URI challenge, String signature, String sqrlver, String nut) {
         if (challenge == null) throw new IllegalArgumentException("challenge=null");
         if (signature == null) throw new IllegalArgumentException("signature=null");
         if (sqrlver == null) throw new IllegalArgumentException("sqrlver=null");
         if (!sqrlver.equals(SQRL_VERSION)) throw new IllegalArgumentException("sqrlver=" + sqrlver);
 
-        Base64 b64 = new Base64(true);
-        this.sqrlsig = ByteBuffer.wrap(b64.decode(signature));
+        this.sqrlsig = ByteBuffer.wrap(SQRLChallengeParser.decodeBase64(signature));
         // TODO challenge validation?
         this.sqrlChallenge = challenge.toASCIIString();
-        // TODO store nut!
-        this.sqrlNut = null;
+        this.sqrlNut = nut == null ? null : ByteBuffer.wrap(SQRLChallengeParser.decodeBase64(nut));
+        this.signedMessage = null;
+    }
+
+    /**
+     * already decoded by {@link SQRLChallengeParser}, which checked the version
+     */
+    SQRLCredentials(String challenge, byte[] signature, byte[] nut) {
+        this.sqrlChallenge = challenge;
+        this.sqrlsig = ByteBuffer.wrap(signature);
+        this.sqrlNut = nut == null ? null : ByteBuffer.wrap(nut);
+        this.signedMessage = null;
+    }
+
+    /**
+     * decoded in place by {@link SQRLBinaryParser}, which checked the version
+     */
+    SQRLCredentials(String challenge, ByteBuffer signature, ByteBuffer nut, byte[] signedMessage) {
+        this.sqrlChallenge = challenge;
+        this.sqrlsig = signature;
+        this.sqrlNut = nut;
+        this.signedMessage = signedMessage;
+    }
+
+    private static String nutParameter(URI challenge) {
+        return challenge == null ? null : SQRLChallengeParser.parameter(challenge.toASCIIString(), "nut");
     }
 
     /**
@@ -48,10 +79,10 @@ public class SQRLCredentials {
     }
 
     /**
-     * The "nut" portion of the SQRL challenge string
+     * The "nut" portion of the SQRL challenge string, null if the challenge has none
      */
     public ByteBuffer getNut() {
-        return sqrlNut;
+        return sqrlNut == null ? null : sqrlNut.asReadOnlyBuffer();
     }
 
     /**
@@ -68,9 +99,7 @@ public class SQRLCredentials {
         }
 
         SQRLCredentials other = (SQRLCredentials) o;
-        return sqrlChallenge.equals(other.sqrlChallenge)
-                && Arrays.equals(sqrlsig.array(), other.sqrlsig.array());
-
-        // TODO wrapped buffer equals may be inconsistent
+        // the remaining bytes, which is all of them whether wrapped or a view of a binary request
+        return sqrlChallenge.equals(other.sqrlChallenge) && sqrlsig.equals(other.sqrlsig);
     }
 }
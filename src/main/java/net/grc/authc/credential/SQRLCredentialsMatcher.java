@@ -1,10 +1,18 @@
 package net.grc.authc.credential;
 
 import net.grc.authc.SQRLToken;
+import net.grc.authc.nut.NutState;
+import net.grc.authc.nut.NutStore;
+import net.grc.crypto.Ed25519;
+import net.grc.metrics.Counter;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.credential.CredentialsMatcher;
+import org.apache.shiro.subject.PrincipalCollection;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 /**
@@ -18,8 +26,34 @@ public class SQRLCredentialsMatcher implements CredentialsMatcher {
 
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
+    private static final LatencyHistogram MATCH = Metrics.histogram("sqrl.match.signature");
+    private static final LatencyHistogram VERIFY = Metrics.histogram("sqrl.match.signature.verify");
+    private static final Counter REJECTED = Metrics.counter("sqrl.match.signature.rejected");
+
+    private NutStore nutStore;
+
+    /**
+     * When set, the challenge's nut must be outstanding and is consumed by a successful match, so every
+     * challenge can be used once.
+     */
+    public void setNutStore(NutStore nutStore) {
+        this.nutStore = nutStore;
+    }
+
+    public NutStore getNutStore() {
+        return nutStore;
+    }
+
     @Override
     public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+        long start = System.nanoTime();
+        boolean matched = match(token, info);
+        MATCH.recordSince(start);
+        if (!matched) REJECTED.increment();
+        return matched;
+    }
+
+    private boolean match(AuthenticationToken token, AuthenticationInfo info) {
         if (!(token instanceof SQRLToken)) {
             return false;
         }
@@ -27,19 +61,59 @@ public class SQRLCredentialsMatcher implements CredentialsMatcher {
         SQRLAnonymousPrincipal sqrlId = (SQRLAnonymousPrincipal) token.getPrincipal();
         SQRLCredentials sqrlCredentials = (SQRLCredentials) token.getCredentials();
 
+        checkVersions(sqrlId, sqrlCredentials);
+
+        // cheap rejection of stale and replayed challenges before the signature check
+        ByteBuffer nut = sqrlCredentials.getNut();
+        String host = ((SQRLToken) token).getHost();
+        if (nutStore != null && nutStore.state(nut, host) != NutState.OUTSTANDING) return false;
+
+        Ed25519.PublicKey key = verificationKey(sqrlId, info);
+        if (key == null) return false;
+
+        long verifyStart = System.nanoTime();
+        boolean valid = checkvalid(sqrlCredentials.sqrlsig, signedMessage(sqrlCredentials), key);
+        VERIFY.recordSince(verifyStart);
+        if (!valid) return false;
+
+        // not if an offloaded match has already been given up on
+        if (!OffloadedCredentialsMatcher.commit()) return false;
+        // only one of several concurrent requests with the same nut wins
+        return nutStore == null || nutStore.consume(nut, host) == NutState.OUTSTANDING;
+    }
+
+    static void checkVersions(SQRLAnonymousPrincipal sqrlId, SQRLCredentials sqrlCredentials) {
         // TODO draft standard is very strict about not accepting future versions
         if (!SQRL_VERSION.equals(sqrlId.getVersion()))
             throw new IllegalArgumentException("sqrlId.version=" + sqrlId.getVersion());
         if (!SQRL_VERSION.equals(sqrlCredentials.getVersion()))
             throw new IllegalArgumentException("sqrlCredentials.version=" + sqrlCredentials.getVersion());
+    }
+
+    /**
+     * The stored principal keeps its decoded key between logins, the token's principal is new every request.
+     *
+     * @return null if the key is not a valid Ed25519 point
+     */
+    static Ed25519.PublicKey verificationKey(SQRLAnonymousPrincipal sqrlId, AuthenticationInfo info) {
+        PrincipalCollection principals = info == null ? null : info.getPrincipals();
+        SQRLAnonymousPrincipal known = principals == null ? null : sqrlId.findMatchingPrincipal(principals);
+        return (known != null ? known : sqrlId).getVerificationKey();
+    }
+
+    /**
+     * the bytes the client signed
+     */
+    static byte[] signedMessage(SQRLCredentials sqrlCredentials) {
+        if (sqrlCredentials.signedMessage != null) return sqrlCredentials.signedMessage;
+        return sqrlCredentials.getChallenge().getBytes(UTF8);
+    }
 
-        // TODO ByteBuffer.array() offset not checked
-        return checkvalid(sqrlCredentials.sqrlsig.array(),
-                sqrlCredentials.getChallenge().getBytes(UTF8),
-                sqrlId.sqrlkey.array());
+    protected boolean checkvalid(ByteBuffer sig, byte[] msg, Ed25519.PublicKey pub) {
+        return Ed25519.verify(sig, msg, pub);
     }
 
     protected boolean checkvalid(byte[] sig, byte[] msg, byte[] pub) {
-        return false;
+        return Ed25519.verify(sig, msg, pub);
     }
 }
@@ -0,0 +1,165 @@
+package net.grc.authc.credential;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+/**
+ * A 32 byte public key held as four longs.
+ * <p/>
+ * Replaces a ByteBuffer around a byte[] in principals: one 48 byte object instead of three, with the hash
+ * computed once. The hash is seeded per JVM so that chosen keys cannot be lined up in one bucket of a hash
+ * index. {@link #equals} looks at every word whatever the first difference, and ordering is lexicographic on
+ * the unsigned bytes. A deserialized key takes the hash of the JVM that reads it.
+ */
+public final class SQRLKey implements Comparable<SQRLKey>, Serializable {
+    public static final int LENGTH = 32;
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long SEED = new SecureRandom().nextLong();
+
+    // big-endian, so comparing words in order compares the bytes in order
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    private final int hash;
+
+    private SQRLKey(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.hash = mix(w0, w1, w2, w3);
+    }
+
+    /**
+     * @throws IllegalArgumentException unless the array holds exactly 32 bytes
+     */
+    public static SQRLKey of(byte[] key) {
+        if (key == null) throw new IllegalArgumentException("key=null");
+        return of(key, 0, key.length);
+    }
+
+    public static SQRLKey of(byte[] key, int off, int len) {
+        if (len != LENGTH) throw new IllegalArgumentException("key length " + len + " != " + LENGTH);
+        return of(ByteBuffer.wrap(key, off, len));
+    }
+
+    /**
+     * Reads the remaining 32 bytes without moving the position; the buffer may be read only or direct.
+     */
+    public static SQRLKey of(ByteBuffer key) {
+        if (key == null) throw new IllegalArgumentException("key=null");
+        if (key.remaining() != LENGTH) {
+            throw new IllegalArgumentException("key length " + key.remaining() + " != " + LENGTH);
+        }
+        ByteBuffer be = key.order() == ByteOrder.BIG_ENDIAN ? key : key.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int p = key.position();
+        return new SQRLKey(be.getLong(p), be.getLong(p + 8), be.getLong(p + 16), be.getLong(p + 24));
+    }
+
+    public void copyTo(byte[] dst, int off) {
+        putLong(dst, off, w0);
+        putLong(dst, off + 8, w1);
+        putLong(dst, off + 16, w2);
+        putLong(dst, off + 24, w3);
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[LENGTH];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * a new read only buffer of the key
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Word i of four, big-endian, e.g. for a hash that must be the same in every JVM.
+     */
+    public long word(int i) {
+        switch (i) {
+            case 0:
+                return w0;
+            case 1:
+                return w1;
+            case 2:
+                return w2;
+            case 3:
+                return w3;
+            default:
+                throw new IndexOutOfBoundsException("word " + i);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Constant time: every word is compared.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SQRLKey)) return false;
+        SQRLKey other = (SQRLKey) o;
+        return ((w0 ^ other.w0) | (w1 ^ other.w1) | (w2 ^ other.w2) | (w3 ^ other.w3)) == 0;
+    }
+
+    @Override
+    public int compareTo(SQRLKey other) {
+        int c = compareUnsigned(w0, other.w0);
+        if (c == 0) c = compareUnsigned(w1, other.w1);
+        if (c == 0) c = compareUnsigned(w2, other.w2);
+        if (c == 0) c = compareUnsigned(w3, other.w3);
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(2 * LENGTH);
+        for (int i = 0; i < 4; i++) {
+            String w = Long.toHexString(word(i));
+            for (int pad = w.length(); pad < 16; pad++) hex.append('0');
+            hex.append(w);
+        }
+        return hex.toString();
+    }
+
+    /**
+     * the hash written was seeded by another JVM
+     */
+    private Object readResolve() {
+        return new SQRLKey(w0, w1, w2, w3);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a ^= Long.MIN_VALUE;
+        b ^= Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int mix(long w0, long w1, long w2, long w3) {
+        long h = SEED;
+        h = (h ^ w0) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w1 ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ w2 ^ (h >>> 32)) * 0x94D049BB133111EBL;
+        h = (h ^ w3 ^ (h >>> 29)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.crypto.Ed25519;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What the stages of a {@link SQRLMatcherPipeline} share about one request: the token taken apart once, and the
+ * stored principal, verification key and signed bytes worked out the first time a stage asks for them.
+ */
+public final class SQRLMatchContext {
+    private final SQRLToken token;
+    private final AuthenticationInfo info;
+    private final SQRLAnonymousPrincipal principal;
+    private final SQRLCredentials credentials;
+    private final ByteBuffer nut;
+
+    private boolean knownLooked;
+    private SQRLAnonymousPrincipal known;
+    private byte[] signedMessage;
+
+    SQRLMatchContext(SQRLToken token, AuthenticationInfo info) {
+        this.token = token;
+        this.info = info;
+        this.principal = (SQRLAnonymousPrincipal) token.getPrincipal();
+        this.credentials = (SQRLCredentials) token.getCredentials();
+        this.nut = credentials.getNut();
+    }
+
+    public SQRLToken getToken() {
+        return token;
+    }
+
+    public AuthenticationInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * the id the request claims
+     */
+    public SQRLAnonymousPrincipal getPrincipal() {
+        return principal;
+    }
+
+    public SQRLCredentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * read only, null if the challenge has none
+     */
+    public ByteBuffer getNut() {
+        return nut;
+    }
+
+    public String getHost() {
+        return token.getHost();
+    }
+
+    /**
+     * the stored principal for the claimed id, anonymous or locked, or null; looked up once
+     */
+    public SQRLAnonymousPrincipal getKnown() {
+        if (!knownLooked) {
+            PrincipalCollection principals = info == null ? null : info.getPrincipals();
+            known = principals == null ? null : principal.findMatchingPrincipal(principals);
+            knownLooked = true;
+        }
+        return known;
+    }
+
+    /**
+     * the decoded key of the stored principal, or of the claimed one if none is stored; null if not a valid point
+     */
+    public Ed25519.PublicKey getVerificationKey() {
+        SQRLAnonymousPrincipal known = getKnown();
+        return (known != null ? known : principal).getVerificationKey();
+    }
+
+    /**
+     * the bytes the client signed
+     */
+    public byte[] getSignedMessage() {
+        if (signedMessage == null) signedMessage = SQRLCredentialsMatcher.signedMessage(credentials);
+        return signedMessage;
+    }
+}
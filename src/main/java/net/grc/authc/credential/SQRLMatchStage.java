@@ -0,0 +1,199 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.limit.HostRateLimiter;
+import net.grc.authc.nut.NutState;
+import net.grc.authc.nut.NutStore;
+import net.grc.crypto.Ed25519;
+import org.apache.shiro.authc.AuthenticationException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One check of a {@link SQRLMatcherPipeline}. Stages must be thread safe; everything about the request is in the
+ * {@link SQRLMatchContext}.
+ * <p/>
+ * The factories below are the stages of the standard pipelines, roughly from cheapest to dearest: a few field
+ * comparisons, a nut store lookup, a principal lookup, an HMAC, an Ed25519 verification, and last the one stage
+ * with a side effect, consuming the nut.
+ */
+public abstract class SQRLMatchStage {
+    private final String name;
+
+    protected SQRLMatchStage(String name) {
+        if (name == null) throw new IllegalArgumentException("name=null");
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return false to reject the request, which skips the stages after this one
+     */
+    public abstract boolean match(SQRLMatchContext context);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * the principal and credentials are of the draft version this server speaks
+     */
+    public static SQRLMatchStage version() {
+        return new SQRLMatchStage("version") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                try {
+                    SQRLCredentialsMatcher.checkVersions(context.getPrincipal(), context.getCredentials());
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * the client host is within its rate; put first, it is the cheapest check and the one floods fail
+     */
+    public static SQRLMatchStage rateLimit(final HostRateLimiter limiter) {
+        if (limiter == null) throw new IllegalArgumentException("limiter=null");
+        return new SQRLMatchStage("rate") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                return limiter.tryAcquire(context.getHost());
+            }
+        };
+    }
+
+    /**
+     * the nut was issued by us, has not expired and has not been used
+     */
+    public static SQRLMatchStage outstandingNut(final NutStore nuts) {
+        if (nuts == null) throw new IllegalArgumentException("nuts=null");
+        return new SQRLMatchStage("nut") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                ByteBuffer nut = context.getNut();
+                return nut != null && nuts.state(nut, context.getHost()) == NutState.OUTSTANDING;
+            }
+        };
+    }
+
+    /**
+     * the claimed id is among the principals the realm found
+     */
+    public static SQRLMatchStage knownPrincipal() {
+        return new SQRLMatchStage("principal") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                return context.getKnown() != null;
+            }
+        };
+    }
+
+    /**
+     * an id lock request for an id that is not locked yet, with a well formed verifier and unlock key
+     */
+    public static SQRLMatchStage lockable() {
+        return new SQRLMatchStage("lockable") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                SQRLCredentials credentials = context.getCredentials();
+                if (!(credentials instanceof IdLockCredentials)) return false;
+                IdLockCredentials lock = (IdLockCredentials) credentials;
+                if (!isKey(lock.getKeyVerifier()) || !isKey(lock.getPublicUnlockKey())) return false;
+                return !(context.getKnown() instanceof IdLockPrincipal);
+            }
+        };
+    }
+
+    /**
+     * an id unlock request for a locked id, proving knowledge of its Key Verifier by HMAC-SHA256 of the nut
+     */
+    public static SQRLMatchStage unlock() {
+        return new SQRLMatchStage("unlock") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                SQRLCredentials credentials = context.getCredentials();
+                if (!(credentials instanceof IdUnlockCredentials)) return false;
+                SQRLAnonymousPrincipal known = context.getKnown();
+                if (!(known instanceof IdLockPrincipal)) return false;
+
+                ByteBuffer hmac = ((IdUnlockCredentials) credentials).getVerificationHmac();
+                ByteBuffer nut = context.getNut();
+                if (hmac == null || nut == null) return false;
+                byte[] expected = IdUnlockCredentialsMatcher.verificationHmac(
+                        ((IdLockPrincipal) known).idLockKeyVerifier().toByteArray(), bytes(nut));
+                return MessageDigest.isEqual(bytes(hmac), expected);
+            }
+        };
+    }
+
+    /**
+     * the Ed25519 signature of the challenge, by the stored principal's key
+     */
+    public static SQRLMatchStage signature() {
+        return new SQRLMatchStage("signature") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                Ed25519.PublicKey key = context.getVerificationKey();
+                return key != null
+                        && Ed25519.verify(context.getCredentials().sqrlsig, context.getSignedMessage(), key);
+            }
+        };
+    }
+
+    /**
+     * as {@link #signature()}, verified in a batch
+     */
+    public static SQRLMatchStage signature(final SQRLBatchVerifier batchVerifier) {
+        if (batchVerifier == null) throw new IllegalArgumentException("batchVerifier=null");
+        return new SQRLMatchStage("signature") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                Ed25519.PublicKey key = context.getVerificationKey();
+                if (key == null) return false;
+                try {
+                    return batchVerifier.submit(context.getCredentials().sqrlsig, context.getSignedMessage(), key)
+                            .get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new AuthenticationException("batch verification failed", e.getCause());
+                }
+            }
+        };
+    }
+
+    /**
+     * uses the nut up; only one of several concurrent requests with the same nut gets past this stage, and none
+     * whose {@link OffloadedCredentialsMatcher offloaded} match has timed out
+     */
+    public static SQRLMatchStage consumeNut(final NutStore nuts) {
+        if (nuts == null) throw new IllegalArgumentException("nuts=null");
+        return new SQRLMatchStage("consume") {
+            @Override
+            public boolean match(SQRLMatchContext context) {
+                ByteBuffer nut = context.getNut();
+                return nut != null && OffloadedCredentialsMatcher.commit()
+                        && nuts.consume(nut, context.getHost()) == NutState.OUTSTANDING;
+            }
+        };
+    }
+
+    private static boolean isKey(ByteBuffer key) {
+        return key != null && key.remaining() == SQRLKey.LENGTH;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,157 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.limit.HostRateLimiter;
+import net.grc.authc.nut.NutStore;
+import net.grc.metrics.Counter;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.credential.CredentialsMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A matcher run as a sequence of {@link SQRLMatchStage}s over one {@link SQRLMatchContext}, stopping at the first
+ * stage that rejects the request.
+ * <p/>
+ * The standard pipelines put the cheap checks first, so that garbage, stale and replayed requests are turned away
+ * before any curve arithmetic, and every stage that depends on another runs after it: an id lock is only accepted
+ * with a valid signature. Each stage's latencies are recorded in the sqrl.pipeline.&lt;stage&gt; histogram of
+ * {@link Metrics}, which also gives its calls and time, and its rejections in the sqrl.pipeline.&lt;stage&gt;.rejected
+ * counter. Both are shared by every pipeline with a stage of that name.
+ */
+public class SQRLMatcherPipeline implements CredentialsMatcher {
+    private final SQRLMatchStage[] stages;
+    private final LatencyHistogram[] latencies;
+    private final Counter[] rejections;
+
+    public SQRLMatcherPipeline(SQRLMatchStage... stages) {
+        this(Arrays.asList(stages));
+    }
+
+    public SQRLMatcherPipeline(List<SQRLMatchStage> stages) {
+        if (stages == null || stages.isEmpty()) throw new IllegalArgumentException("no stages");
+        if (stages.contains(null)) throw new IllegalArgumentException("stage=null");
+        this.stages = stages.toArray(new SQRLMatchStage[stages.size()]);
+        this.latencies = new LatencyHistogram[this.stages.length];
+        this.rejections = new Counter[this.stages.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = Metrics.histogram("sqrl.pipeline." + this.stages[i].getName());
+            rejections[i] = Metrics.counter("sqrl.pipeline." + this.stages[i].getName() + ".rejected");
+        }
+    }
+
+    /**
+     * a login: what {@link SQRLCredentialsMatcher} checks, with the nut store if not null
+     */
+    public static SQRLMatcherPipeline login(NutStore nuts) {
+        List<SQRLMatchStage> stages = new ArrayList<SQRLMatchStage>();
+        stages.add(SQRLMatchStage.version());
+        if (nuts != null) stages.add(SQRLMatchStage.outstandingNut(nuts));
+        stages.add(SQRLMatchStage.signature());
+        if (nuts != null) stages.add(SQRLMatchStage.consumeNut(nuts));
+        return new SQRLMatcherPipeline(stages);
+    }
+
+    /**
+     * a login behind a per host rate limit
+     */
+    public static SQRLMatcherPipeline login(NutStore nuts, HostRateLimiter limiter) {
+        List<SQRLMatchStage> stages = new ArrayList<SQRLMatchStage>(login(nuts).getStages());
+        stages.add(0, SQRLMatchStage.rateLimit(limiter));
+        return new SQRLMatcherPipeline(stages);
+    }
+
+    /**
+     * a signed request to lock an id that is not locked yet
+     */
+    public static SQRLMatcherPipeline idLock(NutStore nuts) {
+        List<SQRLMatchStage> stages = new ArrayList<SQRLMatchStage>();
+        stages.add(SQRLMatchStage.version());
+        stages.add(SQRLMatchStage.lockable());
+        if (nuts != null) stages.add(SQRLMatchStage.outstandingNut(nuts));
+        stages.add(SQRLMatchStage.signature());
+        if (nuts != null) stages.add(SQRLMatchStage.consumeNut(nuts));
+        return new SQRLMatcherPipeline(stages);
+    }
+
+    /**
+     * a request to unlock a locked id; the HMAC costs far less than the signature so it goes first
+     */
+    public static SQRLMatcherPipeline idUnlock(NutStore nuts) {
+        List<SQRLMatchStage> stages = new ArrayList<SQRLMatchStage>();
+        stages.add(SQRLMatchStage.version());
+        if (nuts != null) stages.add(SQRLMatchStage.outstandingNut(nuts));
+        stages.add(SQRLMatchStage.knownPrincipal());
+        stages.add(SQRLMatchStage.unlock());
+        stages.add(SQRLMatchStage.signature());
+        if (nuts != null) stages.add(SQRLMatchStage.consumeNut(nuts));
+        return new SQRLMatcherPipeline(stages);
+    }
+
+    @Override
+    public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+        if (!(token instanceof SQRLToken)) return false;
+        SQRLMatchContext context = new SQRLMatchContext((SQRLToken) token, info);
+
+        for (int i = 0; i < stages.length; i++) {
+            long start = System.nanoTime();
+            boolean matched = false;
+            try {
+                matched = stages[i].match(context);
+            } finally {
+                latencies[i].recordSince(start);
+                if (!matched) rejections[i].increment();
+            }
+            if (!matched) return false;
+        }
+        return true;
+    }
+
+    public List<SQRLMatchStage> getStages() {
+        return Collections.unmodifiableList(Arrays.asList(stages));
+    }
+
+    /**
+     * requests that reached a stage of this name, in any pipeline
+     */
+    public long getCalls(int stage) {
+        return latencies[stage].snapshot().getCount();
+    }
+
+    /**
+     * requests a stage of this name turned away, including by throwing, in any pipeline
+     */
+    public long getRejections(int stage) {
+        return rejections[stage].sum();
+    }
+
+    /**
+     * time spent in stages of this name, in any pipeline
+     */
+    public long getNanos(int stage) {
+        return latencies[stage].snapshot().getSum();
+    }
+
+    /**
+     * one line per stage: name, calls, rejections, mean microseconds
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram.Snapshot latency = latencies[i].snapshot();
+            s.append(stages[i].getName())
+                    .append(" calls=").append(latency.getCount())
+                    .append(" rejected=").append(getRejections(i))
+                    .append(" meanMicros=").append(latency.getMean() / 1000.0)
+                    .append('\n');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package net.grc.authc.credential;
+
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A principal collection that also indexes its SQRL principals on domain and key, so that
+ * {@link SQRLAnonymousPrincipal#findMatchingPrincipal} is a hash lookup on the key's cached hash however many
+ * principals an account carries.
+ * <p/>
+ * Keys are unique per domain in practice; the rare key seen under several domains keeps its principals in a
+ * short array. As with the linear scan, the first principal added for a domain and key is the one found. The index
+ * is not serialized; a deserialized collection builds it again on its first lookup.
+ */
+public class SQRLPrincipalCollection extends SimplePrincipalCollection {
+    private static final long serialVersionUID = 1L;
+
+    // SQRLKey -> SQRLAnonymousPrincipal or SQRLAnonymousPrincipal[]; null until the next lookup after a change
+    private transient volatile Map<SQRLKey, Object> index;
+
+    public SQRLPrincipalCollection() {
+    }
+
+    public SQRLPrincipalCollection(Object principal, String realmName) {
+        add(principal, realmName);
+    }
+
+    public SQRLPrincipalCollection(Collection<?> principals, String realmName) {
+        addAll(principals, realmName);
+    }
+
+    public SQRLPrincipalCollection(PrincipalCollection principals) {
+        addAll(principals);
+    }
+
+    /**
+     * @return the first principal added with this domain and key, anonymous or locked, or null
+     */
+    public SQRLAnonymousPrincipal find(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        Object indexed = index().get(key);
+        if (indexed instanceof SQRLAnonymousPrincipal) {
+            SQRLAnonymousPrincipal principal = (SQRLAnonymousPrincipal) indexed;
+            return principal.getDomain().equals(domain) ? principal : null;
+        }
+        if (indexed != null) {
+            for (SQRLAnonymousPrincipal principal : (SQRLAnonymousPrincipal[]) indexed) {
+                if (principal.getDomain().equals(domain)) return principal;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void add(Object principal, String realmName) {
+        super.add(principal, realmName);
+        index = null;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // as SimplePrincipalCollection declares it
+    public void addAll(Collection principals, String realmName) {
+        super.addAll(principals, realmName);
+        index = null;
+    }
+
+    @Override
+    public void addAll(PrincipalCollection principals) {
+        super.addAll(principals);
+        index = null;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        index = null;
+    }
+
+    /**
+     * Principals are added while the account is assembled and looked up afterwards, so the index is built in
+     * iteration order on the first lookup after a change and published whole.
+     */
+    private Map<SQRLKey, Object> index() {
+        Map<SQRLKey, Object> map = index;
+        if (map == null) {
+            map = new HashMap<SQRLKey, Object>();
+            for (Object o : this) {
+                if (o instanceof SQRLAnonymousPrincipal) index(map, (SQRLAnonymousPrincipal) o);
+            }
+            index = map;
+        }
+        return map;
+    }
+
+    private static void index(Map<SQRLKey, Object> map, SQRLAnonymousPrincipal principal) {
+        Object indexed = map.get(principal.getKey());
+        if (indexed == null) {
+            map.put(principal.getKey(), principal);
+            return;
+        }
+        SQRLAnonymousPrincipal[] others = indexed instanceof SQRLAnonymousPrincipal
+                ? new SQRLAnonymousPrincipal[]{(SQRLAnonymousPrincipal) indexed}
+                : (SQRLAnonymousPrincipal[]) indexed;
+        for (SQRLAnonymousPrincipal other : others) {
+            if (other.getDomain().equals(principal.getDomain())) return;
+        }
+        SQRLAnonymousPrincipal[] all = new SQRLAnonymousPrincipal[others.length + 1];
+        System.arraycopy(others, 0, all, 0, others.length);
+        all[others.length] = principal;
+        map.put(principal.getKey(), all);
+    }
+}
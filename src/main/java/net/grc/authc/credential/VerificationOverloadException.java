@@ -0,0 +1,15 @@
+package net.grc.authc.credential;
+
+import org.apache.shiro.authc.AuthenticationException;
+
+/**
+ * The login was turned away unverified because as many verifications as allowed are already pending. Unlike a
+ * failed match it says nothing about the credentials; the client should retry shortly.
+ */
+public class VerificationOverloadException extends AuthenticationException {
+    private static final long serialVersionUID = 1L;
+
+    public VerificationOverloadException(String message) {
+        super(message);
+    }
+}
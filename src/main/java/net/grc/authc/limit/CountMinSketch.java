@@ -0,0 +1,80 @@
+package net.grc.authc.limit;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximate counts of long keys over a sliding window, in fixed memory however many keys there are.
+ * <p/>
+ * Each of the rows counts every key in one cell chosen by a seeded hash; the estimate is the smallest of a key's
+ * cells, which never undercounts and overcounts by the colliding traffic. The seeds are random per JVM so that
+ * an attacker cannot pick addresses that share cells with a victim. Once per window every cell is halved, so a
+ * count is roughly the key's traffic over the last two windows; halving races with concurrent adds, which can
+ * lose a few increments and is harmless for an estimate.
+ */
+final class CountMinSketch {
+    private static final int DEPTH = 4;
+
+    private final AtomicIntegerArray cells;
+    private final long[] seeds = new long[DEPTH];
+    private final int shift;
+    private final int width;
+    private final long windowMillis;
+    private final AtomicLong nextDecay;
+
+    /**
+     * @param width cells per row, rounded up to a power of two
+     */
+    CountMinSketch(int width, long windowMillis, long nowMillis) {
+        if (width < 1 || width > 1 << 26) throw new IllegalArgumentException("width=" + width);
+        if (windowMillis <= 0) throw new IllegalArgumentException("windowMillis=" + windowMillis);
+        int log2 = Math.max(4, 32 - Integer.numberOfLeadingZeros(width - 1));
+        this.width = 1 << log2;
+        this.shift = 64 - log2;
+        this.cells = new AtomicIntegerArray(DEPTH << log2);
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < DEPTH; i++) seeds[i] = random.nextLong() | 1;
+        this.windowMillis = windowMillis;
+        this.nextDecay = new AtomicLong(nowMillis + windowMillis);
+    }
+
+    /**
+     * Counts the key once.
+     *
+     * @return the estimate including this one
+     */
+    int add(long key, long nowMillis) {
+        decay(nowMillis);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int count = cells.incrementAndGet(cell(row, key));
+            if (count < min) min = count;
+        }
+        return min;
+    }
+
+    int estimate(long key, long nowMillis) {
+        decay(nowMillis);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) min = Math.min(min, cells.get(cell(row, key)));
+        return min;
+    }
+
+    private int cell(int row, long key) {
+        long h = (key ^ seeds[row]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= seeds[row];
+        return row * width + (int) (h >>> shift);
+    }
+
+    private void decay(long nowMillis) {
+        long due = nextDecay.get();
+        if (nowMillis < due) return;
+        // one thread halves; a long quiet spell counts as several windows
+        long windows = (nowMillis - due) / windowMillis + 1;
+        if (!nextDecay.compareAndSet(due, due + windows * windowMillis)) return;
+        int halvings = (int) Math.min(windows, 31);
+        for (int i = 0; i < cells.length(); i++) cells.set(i, cells.get(i) >>> halvings);
+    }
+}
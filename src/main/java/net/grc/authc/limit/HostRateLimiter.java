@@ -0,0 +1,224 @@
+package net.grc.authc.limit;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits requests per client host with a token bucket each, and optionally per network prefix with a count-min
+ * sketch, so that forged logins are turned away before they cost a signature verification.
+ * <p/>
+ * Hosts are keyed by a long: an IPv4 address, the /64 of an IPv6 address (one customer's network), or a hash of
+ * anything else. Buckets live in a fixed size hash table of primitive arrays split into stripes with a lock each;
+ * a bucket is found within a few probes of its home slot and, when those are all taken, the least recently used
+ * of them is reused, so the table never grows and an attacker cycling addresses only evicts idle buckets.
+ * A new or evicted host starts with a full bucket.
+ * <p/>
+ * The prefix limit catches traffic spread over many addresses of one network, a /24 or an IPv6 /48, that each
+ * stay under the per host rate: once a prefix has made more than the limit of requests over about two windows,
+ * all its hosts are refused until the count decays.
+ */
+public class HostRateLimiter {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int STRIPE_BITS = 6;
+    private static final int PROBES = 8;
+    // tokens are counted in millionths
+    private static final long SCALE = 1000000;
+    private static final long EMPTY = 0;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    private final int slotBits;
+    private final long burst;
+    private final long refillPerMilli;
+    private final CountMinSketch prefixes;
+    private final int prefixLimit;
+
+    private static final class Stripe {
+        final long[] keys;
+        final long[] tokens;
+        final long[] stamps;
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            tokens = new long[slots];
+            stamps = new long[slots];
+        }
+    }
+
+    /**
+     * per host only
+     *
+     * @param perSecond sustained requests per second of one host
+     * @param burst     requests a host may make at once
+     */
+    public HostRateLimiter(double perSecond, int burst) {
+        this(perSecond, burst, DEFAULT_CAPACITY, 0, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param capacity    hosts tracked at once
+     * @param prefixLimit requests per network prefix over about two windows, 0 for no prefix limit
+     */
+    public HostRateLimiter(double perSecond, int burst, int capacity, int prefixLimit, long window, TimeUnit unit) {
+        if (!(perSecond > 0)) throw new IllegalArgumentException("perSecond=" + perSecond);
+        if (burst < 1) throw new IllegalArgumentException("burst=" + burst);
+        if (capacity < 1 << STRIPE_BITS) throw new IllegalArgumentException("capacity=" + capacity);
+        if (prefixLimit < 0) throw new IllegalArgumentException("prefixLimit=" + prefixLimit);
+
+        this.burst = burst * SCALE;
+        this.refillPerMilli = Math.max(1, Math.round(perSecond * SCALE / 1000));
+        int perStripe = (capacity + stripes.length - 1) >> STRIPE_BITS;
+        this.slotBits = Math.max(4, 32 - Integer.numberOfLeadingZeros(perStripe - 1));
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe(1 << slotBits);
+
+        this.prefixLimit = prefixLimit;
+        this.prefixes = prefixLimit == 0 ? null
+                : new CountMinSketch(Math.max(1024, capacity / 4), unit.toMillis(window), currentTimeMillis());
+    }
+
+    /**
+     * Takes a token from the host's bucket.
+     *
+     * @param host an address as from ServletRequest.getRemoteAddr(), null if unknown
+     * @return false if the host or its network is over its rate
+     */
+    public boolean tryAcquire(String host) {
+        long now = currentTimeMillis();
+        long key = hostKey(host);
+        if (prefixes != null && prefixes.add(prefixKey(host, key), now) > prefixLimit) return false;
+
+        long h = mix(key);
+        Stripe stripe = stripes[(int) (h >>> (64 - STRIPE_BITS))];
+        int mask = stripe.keys.length - 1;
+        int home = (int) h & mask;
+        synchronized (stripe) {
+            int slot = -1;
+            int oldest = home;
+            for (int i = 0; i < PROBES; i++) {
+                int s = (home + i) & mask;
+                long k = stripe.keys[s];
+                if (k == key) {
+                    slot = s;
+                    break;
+                }
+                if (k == EMPTY) {
+                    oldest = s;
+                    break;
+                }
+                if (stripe.stamps[s] < stripe.stamps[oldest]) oldest = s;
+            }
+            if (slot < 0) {
+                slot = oldest;
+                stripe.keys[slot] = key;
+                stripe.tokens[slot] = burst;
+                stripe.stamps[slot] = now;
+            }
+
+            long elapsed = now - stripe.stamps[slot];
+            long tokens = stripe.tokens[slot];
+            if (elapsed > 0) {
+                tokens = elapsed >= burst / refillPerMilli ? burst : Math.min(burst, tokens + elapsed * refillPerMilli);
+                stripe.stamps[slot] = now;
+            }
+            if (tokens < SCALE) {
+                stripe.tokens[slot] = tokens;
+                return false;
+            }
+            stripe.tokens[slot] = tokens - SCALE;
+            return true;
+        }
+    }
+
+    /**
+     * the approximate recent requests of the host's network, 0 without a prefix limit
+     */
+    public int getPrefixEstimate(String host) {
+        return prefixes == null ? 0 : prefixes.estimate(prefixKey(host, hostKey(host)), currentTimeMillis());
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * never {@link #EMPTY}
+     */
+    static long hostKey(String host) {
+        if (host == null) return 1;
+        long ipv4 = parseIPv4(host);
+        if (ipv4 >= 0) return ipv4 | 1L << 32;
+        if (host.indexOf(':') >= 0) {
+            byte[] address = ipv6(host);
+            if (address != null && address.length == 4) {
+                // IPv4 mapped
+                return ((address[0] & 0xffL) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8
+                        | (address[3] & 0xff)) | 1L << 32;
+            }
+            if (address != null) {
+                long key = 0;
+                for (int i = 0; i < 8; i++) key = key << 8 | (address[i] & 0xff);
+                return key == EMPTY ? 2 : key;
+            }
+        }
+        return (host.hashCode() & 0xffffffffL) | 3L << 32;
+    }
+
+    /**
+     * the /24 of an IPv4 address, the /48 of an IPv6 address, else the host itself
+     */
+    static long prefixKey(String host, long hostKey) {
+        if (host == null) return hostKey;
+        if (hostKey >>> 32 == 1) return hostKey >>> 8 | 1L << 40;
+        if (hostKey >>> 32 != 3) return hostKey >>> 16 | 5L << 56;
+        return hostKey;
+    }
+
+    /**
+     * @return the address as an unsigned int, or -1 if not dotted decimal
+     */
+    static long parseIPv4(String host) {
+        long address = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = 0, n = host.length(); i < n; i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value < 0 ? c - '0' : value * 10 + c - '0';
+                if (value > 255) return -1;
+            } else if (c == '.' && value >= 0 && octets < 3) {
+                address = address << 8 | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (octets != 3 || value < 0) return -1;
+        return address << 8 | value;
+    }
+
+    /**
+     * a literal IPv6 address, never a name lookup; null if it is not one, 4 bytes if it maps an IPv4 address
+     */
+    private static byte[] ipv6(String host) {
+        String literal = host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (!(c == ':' || c == '.' || c == '%' || Character.digit(c, 16) >= 0)) return null;
+        }
+        try {
+            return InetAddress.getByName(literal).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ key >>> 33;
+    }
+}
@@ -0,0 +1,158 @@
+package net.grc.authc.limit;
+
+import net.grc.authc.nut.RotatingBloomFilter;
+import net.grc.authc.nut.StatelessNutStore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A client puzzle that is only asked for while the server is saturated: find a number whose SHA-256 hash together
+ * with the challenge's nut starts with the given number of zero bits.
+ * <p/>
+ * Solving takes about 2^difficulty hashes, checking one, so a client pays a few milliseconds to make a request
+ * that will cost us an Ed25519 verification. The nut binds a solution to one challenge, so solutions cannot be
+ * collected in advance. A nut is only consumed by a valid signature, so each solution is also
+ * {@link #redeem redeemed} once: it is remembered for as long as a nut stays outstanding, and a client that
+ * tries again solves for the next one. Whether the puzzle is required follows the system load average per
+ * processor, sampled at most once a second.
+ */
+public class ProofOfWork {
+    public static final int DEFAULT_DIFFICULTY = 16;
+    public static final double DEFAULT_LOAD_THRESHOLD = 0.9;
+    public static final long DEFAULT_NUT_TTL_MILLIS = StatelessNutStore.DEFAULT_TTL_MILLIS;
+    public static final int DEFAULT_EXPECTED_SOLUTIONS = 1 << 17;
+
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return sha256();
+        }
+    };
+
+    private final int difficulty;
+    private final double loadThreshold;
+    private final RotatingBloomFilter spent;
+
+    private volatile boolean required;
+    private volatile long nextSampleMillis = Long.MIN_VALUE;
+
+    public ProofOfWork() {
+        this(DEFAULT_DIFFICULTY, DEFAULT_LOAD_THRESHOLD);
+    }
+
+    /**
+     * @param difficulty    leading zero bits of a solution
+     * @param loadThreshold load average per processor from which solutions are required, 0 for always
+     */
+    public ProofOfWork(int difficulty, double loadThreshold) {
+        this(difficulty, loadThreshold, DEFAULT_NUT_TTL_MILLIS, DEFAULT_EXPECTED_SOLUTIONS);
+    }
+
+    /**
+     * @param nutTtlMillis      how long a nut stays outstanding, and so how long a redeemed solution is remembered
+     * @param expectedSolutions redeemed per nut time-to-live, sizes the replay filter
+     */
+    public ProofOfWork(int difficulty, double loadThreshold, long nutTtlMillis, int expectedSolutions) {
+        if (difficulty < 1 || difficulty > 32) throw new IllegalArgumentException("difficulty=" + difficulty);
+        if (!(loadThreshold >= 0)) throw new IllegalArgumentException("loadThreshold=" + loadThreshold);
+        this.difficulty = difficulty;
+        this.loadThreshold = loadThreshold;
+        this.spent = new RotatingBloomFilter(expectedSolutions, StatelessNutStore.DEFAULT_FALSE_POSITIVE_RATE,
+                nutTtlMillis, currentTimeMillis());
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * whether requests must carry a solution right now
+     */
+    public boolean isRequired() {
+        long now = currentTimeMillis();
+        if (now >= nextSampleMillis) {
+            // racing threads sample the same value
+            nextSampleMillis = now + SAMPLE_MILLIS;
+            required = load() >= loadThreshold;
+        }
+        return required;
+    }
+
+    public boolean verify(ByteBuffer nut, long solution) {
+        if (nut == null) return false;
+        return leadingZeros(hash(nut, solution)) >= difficulty;
+    }
+
+    /**
+     * Verifies a solution and marks it spent, so that it buys a single request.
+     *
+     * @return false for a wrong solution, or one already redeemed
+     */
+    public boolean redeem(ByteBuffer nut, long solution) {
+        if (nut == null) return false;
+        byte[] hash = hash(nut, solution);
+        if (leadingZeros(hash) < difficulty) return false;
+        // the low half of the hash is as uniform as the filter needs, and differs for every solution
+        ByteBuffer key = ByteBuffer.wrap(hash, 16, 16);
+        return spent.add(key.getLong(), key.getLong(), currentTimeMillis());
+    }
+
+    /**
+     * what a client does: the smallest solution for the nut
+     */
+    public static long solve(ByteBuffer nut, int difficulty) {
+        return solve(nut, difficulty, 0);
+    }
+
+    /**
+     * the smallest solution for the nut from a given one on, to try again after a redeemed solution
+     */
+    public static long solve(ByteBuffer nut, int difficulty, long from) {
+        for (long solution = from; ; solution++) {
+            if (leadingZeros(hash(nut, solution)) >= difficulty) return solution;
+        }
+    }
+
+    /**
+     * load average per processor, 0 where the platform has none
+     */
+    protected double load() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? 0 : average / os.getAvailableProcessors();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static byte[] hash(ByteBuffer nut, long solution) {
+        MessageDigest sha256 = SHA256.get();
+        sha256.update(nut.duplicate());
+        for (int shift = 56; shift >= 0; shift -= 8) sha256.update((byte) (solution >>> shift));
+        return sha256.digest();
+    }
+
+    private static int leadingZeros(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) return bits + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            bits += 8;
+        }
+        return bits;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
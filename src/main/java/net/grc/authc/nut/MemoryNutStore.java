@@ -0,0 +1,288 @@
+package net.grc.authc.nut;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory {@link NutStore} for millions of outstanding nuts.
+ * <p/>
+ * Nuts are 128 random bits kept as two longs in open addressed primitive arrays, split into lock striped
+ * segments. Expiry uses a timing wheel per segment: every slot is linked into the wheel bucket of the tick it
+ * should be forgotten in, and a segment advances its wheel whenever it is written. Consumed and expired nuts are
+ * remembered for one more time-to-live so a replay is reported as such rather than as unknown.
+ * <p/>
+ * Lookups probe the arrays under the segment lock and never allocate. When a segment is full the oldest wheel
+ * bucket is forgotten early; if every nut in it was issued in the current tick, issuing fails instead.
+ */
+public class MemoryNutStore implements NutStore {
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * ticks per time-to-live; slots live for at most two time-to-lives so the wheel never wraps onto itself
+     */
+    static final int TICKS_PER_TTL = 64;
+    static final int WHEEL_SIZE = 4 * TICKS_PER_TTL;
+
+    static final byte FREE = 0;
+    static final byte TOMBSTONE = 1;
+    static final byte OUTSTANDING = 2;
+    static final byte CONSUMED = 3;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long ttlNanos;
+    private final long tickNanos;
+    private final long startNanos;
+
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    public MemoryNutStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public MemoryNutStore(int capacity, long ttl, TimeUnit unit) {
+        this(capacity, ttl, unit, Math.max(1, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 8));
+    }
+
+    /**
+     * @param capacity    outstanding plus recently used nuts held before the oldest are dropped
+     * @param concurrency number of lock stripes, rounded up to a power of two
+     */
+    public MemoryNutStore(int capacity, long ttl, TimeUnit unit, int concurrency) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+        if (ttl <= 0) throw new IllegalArgumentException("ttl=" + ttl);
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency=" + concurrency);
+
+        int stripes = powerOfTwo(concurrency);
+        segments = new Segment[stripes];
+        int perSegment = Math.max(8, (capacity + stripes - 1) / stripes);
+        for (int i = 0; i < stripes; i++) segments[i] = new Segment(perSegment);
+        segmentShift = 64 - Integer.numberOfTrailingZeros(stripes);
+
+        ttlNanos = unit.toNanos(ttl);
+        tickNanos = Math.max(1, ttlNanos / TICKS_PER_TTL);
+        startNanos = nanoTime();
+    }
+
+    public long getTimeToLiveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    @Override
+    public ByteBuffer issue(String clientHost) {
+        byte[] nut = new byte[NUT_LENGTH];
+        random.get().nextBytes(nut);
+        ByteBuffer buffer = ByteBuffer.wrap(nut);
+        long hi = buffer.getLong(0);
+        long lo = buffer.getLong(8);
+
+        long now = tick();
+        segmentFor(hi).insert(hi, lo, now + TICKS_PER_TTL, now);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public NutState state(ByteBuffer nut, String clientHost) {
+        if (nut == null || nut.remaining() != NUT_LENGTH) return NutState.UNKNOWN;
+        int p = nut.position();
+        long hi = nut.getLong(p);
+        long lo = nut.getLong(p + 8);
+        return segmentFor(hi).state(hi, lo, tick(), false);
+    }
+
+    @Override
+    public NutState consume(ByteBuffer nut, String clientHost) {
+        if (nut == null || nut.remaining() != NUT_LENGTH) return NutState.UNKNOWN;
+        int p = nut.position();
+        long hi = nut.getLong(p);
+        long lo = nut.getLong(p + 8);
+        return segmentFor(hi).state(hi, lo, tick(), true);
+    }
+
+    /**
+     * outstanding and remembered nuts, for monitoring
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            s.lock();
+            try {
+                size += s.live;
+            } finally {
+                s.unlock();
+            }
+        }
+        return size;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private long tick() {
+        return (nanoTime() - startNanos) / tickNanos;
+    }
+
+    private Segment segmentFor(long hi) {
+        return segments.length == 1 ? segments[0] : segments[(int) (hi >>> segmentShift)];
+    }
+
+    static int powerOfTwo(int n) {
+        int p = Integer.highestOneBit(n);
+        return p == n ? n : p << 1;
+    }
+
+    static int spread(long lo) {
+        long h = lo * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * One lock stripe: an open addressed table with linear probing plus its timing wheel.
+     */
+    static final class Segment extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxLive;
+        private long[] his;
+        private long[] los;
+        private long[] expiry;
+        private byte[] states;
+        private int[] next;
+        private final int[] wheel = new int[WHEEL_SIZE];
+        private int mask;
+
+        int live;
+        private int used;
+        private long swept;
+
+        Segment(int maxLive) {
+            this.maxLive = maxLive;
+            allocate(powerOfTwo(maxLive * 2));
+            clearWheel();
+        }
+
+        private void allocate(int size) {
+            his = new long[size];
+            los = new long[size];
+            expiry = new long[size];
+            states = new byte[size];
+            next = new int[size];
+            mask = size - 1;
+        }
+
+        private void clearWheel() {
+            for (int i = 0; i < wheel.length; i++) wheel[i] = -1;
+        }
+
+        void insert(long hi, long lo, long expiresAt, long now) {
+            lock();
+            try {
+                advance(now);
+                while (live >= maxLive) dropOldest(expiresAt + TICKS_PER_TTL);
+                if (used >= (mask + 1) - ((mask + 1) >> 2)) rehash();
+
+                int i = spread(lo) & mask;
+                while (states[i] >= OUTSTANDING) i = (i + 1) & mask;
+                if (states[i] == FREE) used++;
+                live++;
+                his[i] = hi;
+                los[i] = lo;
+                expiry[i] = expiresAt;
+                states[i] = OUTSTANDING;
+                link(i, expiresAt);
+            } finally {
+                unlock();
+            }
+        }
+
+        NutState state(long hi, long lo, long now, boolean consume) {
+            lock();
+            try {
+                if (consume) advance(now);
+
+                int i = spread(lo) & mask;
+                for (byte s = states[i]; s != FREE; s = states[i = (i + 1) & mask]) {
+                    if (s == TOMBSTONE || his[i] != hi || los[i] != lo) continue;
+
+                    if (s == CONSUMED) return NutState.CONSUMED;
+                    if (expiry[i] <= now) return NutState.EXPIRED;
+                    if (consume) states[i] = CONSUMED;
+                    return NutState.OUTSTANDING;
+                }
+                return NutState.UNKNOWN;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * the slot is forgotten one time-to-live after it expires
+         */
+        private void link(int i, long expiresAt) {
+            int bucket = (int) ((expiresAt + TICKS_PER_TTL) & (WHEEL_SIZE - 1));
+            next[i] = wheel[bucket];
+            wheel[bucket] = i;
+        }
+
+        private void advance(long now) {
+            if (now <= swept) return;
+            // a full turn visits every bucket
+            long from = Math.max(swept + 1, now - WHEEL_SIZE + 1);
+            for (long t = from; t <= now; t++) {
+                expireBucket((int) (t & (WHEEL_SIZE - 1)));
+            }
+            swept = now;
+        }
+
+        /**
+         * Forgets the bucket due soonest, but never the one new nuts are going into.
+         */
+        private void dropOldest(long newest) {
+            for (long t = swept + 1; t < newest; t++) {
+                int bucket = (int) (t & (WHEEL_SIZE - 1));
+                if (wheel[bucket] != -1) {
+                    expireBucket(bucket);
+                    swept = t;
+                    return;
+                }
+            }
+            throw new IllegalStateException("nut store is full: " + live + " nuts issued within one tick");
+        }
+
+        private void expireBucket(int bucket) {
+            for (int i = wheel[bucket]; i != -1; i = next[i]) {
+                states[i] = TOMBSTONE;
+                live--;
+            }
+            wheel[bucket] = -1;
+        }
+
+        private void rehash() {
+            long[] oldHis = his, oldLos = los, oldExpiry = expiry;
+            byte[] oldStates = states;
+            allocate(oldStates.length);
+            clearWheel();
+            used = 0;
+            for (int j = 0; j < oldStates.length; j++) {
+                if (oldStates[j] < OUTSTANDING) continue;
+                int i = spread(oldLos[j]) & mask;
+                while (states[i] != FREE) i = (i + 1) & mask;
+                his[i] = oldHis[j];
+                los[i] = oldLos[j];
+                expiry[i] = oldExpiry[j];
+                states[i] = oldStates[j];
+                link(i, oldExpiry[j]);
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.grc.authc.nut;
+
+import net.grc.metrics.Counter;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Times another {@link NutStore} and counts the states its nuts are found in, as sqrl.nut.* {@link Metrics}.
+ */
+public class MeteredNutStore implements NutStore {
+    private static final LatencyHistogram ISSUE = Metrics.histogram("sqrl.nut.issue");
+    private static final LatencyHistogram STATE = Metrics.histogram("sqrl.nut.state");
+    private static final LatencyHistogram CONSUME = Metrics.histogram("sqrl.nut.consume");
+    private static final Counter[] CONSUMED = new Counter[NutState.values().length];
+
+    static {
+        for (NutState state : NutState.values()) {
+            CONSUMED[state.ordinal()] = Metrics.counter("sqrl.nut.consume." + state.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private final NutStore nuts;
+
+    public MeteredNutStore(NutStore nuts) {
+        if (nuts == null) throw new IllegalArgumentException("nuts=null");
+        this.nuts = nuts;
+    }
+
+    @Override
+    public ByteBuffer issue(String clientHost) {
+        long start = System.nanoTime();
+        ByteBuffer nut = nuts.issue(clientHost);
+        ISSUE.recordSince(start);
+        return nut;
+    }
+
+    @Override
+    public NutState state(ByteBuffer nut, String clientHost) {
+        long start = System.nanoTime();
+        NutState state = nuts.state(nut, clientHost);
+        STATE.recordSince(start);
+        return state;
+    }
+
+    /**
+     * counts the outcome: outstanding is a successful use, consumed a replay
+     */
+    @Override
+    public NutState consume(ByteBuffer nut, String clientHost) {
+        long start = System.nanoTime();
+        NutState state = nuts.consume(nut, clientHost);
+        CONSUME.recordSince(start);
+        CONSUMED[state.ordinal()].increment();
+        return state;
+    }
+}
@@ -0,0 +1,125 @@
+package net.grc.authc.nut;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Time based AES keys for {@link StatelessNutStore}, derived from one shared secret.
+ * <p/>
+ * Time is cut into rotation periods and the key of each period is HMAC-SHA256(secret, period), so every node
+ * holding the secret agrees on the keys without talking to the others. Nuts are issued under the current
+ * period's key. A key is still accepted for the overlap after its period ends, and the next key is accepted
+ * the overlap before its period starts so that nodes whose clocks disagree slightly read each other's nuts.
+ * The overlap must cover the nut time-to-live.
+ */
+public final class NutKeyRing {
+    public static final long DEFAULT_ROTATION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    static final int MIN_SECRET_LENGTH = 16;
+    private static final int CACHED_KEYS = 4;
+
+    private final byte[] secret;
+    private final long rotationMillis;
+    private final long overlapMillis;
+    private final AtomicReferenceArray<Key> recent = new AtomicReferenceArray<Key>(CACHED_KEYS);
+
+    /**
+     * @param secret   shared by every node, at least 16 bytes
+     * @param rotation how long each key issues nuts
+     * @param overlap  how long a key is accepted either side of its period, less than the rotation
+     */
+    public NutKeyRing(byte[] secret, long rotation, long overlap, TimeUnit unit) {
+        if (secret == null || secret.length < MIN_SECRET_LENGTH)
+            throw new IllegalArgumentException("secret must be at least " + MIN_SECRET_LENGTH + " bytes");
+        if (rotation <= 0) throw new IllegalArgumentException("rotation=" + rotation);
+        if (overlap < 0 || overlap >= rotation) throw new IllegalArgumentException("overlap=" + overlap);
+
+        this.secret = secret.clone();
+        this.rotationMillis = unit.toMillis(rotation);
+        this.overlapMillis = unit.toMillis(overlap);
+    }
+
+    /**
+     * A ring with a secret nobody else knows, for a single node.
+     */
+    public static NutKeyRing random(long rotation, long overlap, TimeUnit unit) {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new NutKeyRing(secret, rotation, overlap, unit);
+    }
+
+    public long getRotationMillis() {
+        return rotationMillis;
+    }
+
+    public long getOverlapMillis() {
+        return overlapMillis;
+    }
+
+    Key issuingKey(long nowMillis) {
+        return key(nowMillis / rotationMillis);
+    }
+
+    /**
+     * Collects the keys a nut seen at this time may have been issued under, current key first.
+     *
+     * @param out receives at most three keys
+     * @return the number of keys
+     */
+    int acceptedKeys(long nowMillis, Key[] out) {
+        long period = nowMillis / rotationMillis;
+        long into = nowMillis - period * rotationMillis;
+        int n = 0;
+        out[n++] = key(period);
+        if (into < overlapMillis) out[n++] = key(period - 1);
+        if (rotationMillis - into <= overlapMillis) out[n++] = key(period + 1);
+        return n;
+    }
+
+    private Key key(long period) {
+        int slot = (int) (period & (CACHED_KEYS - 1));
+        Key key = recent.get(slot);
+        if (key == null || key.period != period) {
+            // racing threads derive the same key, whichever lands is fine
+            key = derive(period);
+            recent.set(slot, key);
+        }
+        return key;
+    }
+
+    private Key derive(long period) {
+        byte[] okm;
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            okm = hmac.doFinal(ByteBuffer.allocate(8).putLong(0, period).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Key(period, new SecretKeySpec(okm, 0, 16, "AES"), ByteBuffer.wrap(okm).getInt(16));
+    }
+
+    /**
+     * The key of one rotation period.
+     */
+    static final class Key {
+        final long period;
+        final SecretKeySpec aes;
+
+        /**
+         * expected in every plaintext, so a nut decrypted with the wrong key or forged is recognised
+         */
+        final int check;
+
+        Key(long period, SecretKeySpec aes, int check) {
+            this.period = period;
+            this.aes = aes;
+            this.check = check;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package net.grc.authc.nut;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Durable storage behind {@link PersistentNutStore}, e.g. a database table or a shared cache. Implementations
+ * must be thread safe.
+ */
+public interface NutPersistence {
+    /**
+     * Records a newly issued nut.
+     */
+    void issued(ByteBuffer nut, long expiresAtMillis);
+
+    NutState state(ByteBuffer nut, long nowMillis);
+
+    /**
+     * Atomically marks an outstanding nut consumed, as {@link NutStore#consume(ByteBuffer, String)}.
+     */
+    NutState consume(ByteBuffer nut, long nowMillis);
+}
@@ -0,0 +1,23 @@
+package net.grc.authc.nut;
+
+/**
+ * Where a nut is in its life cycle.
+ */
+public enum NutState {
+    /**
+     * never issued, malformed, or forgotten long after it expired
+     */
+    UNKNOWN,
+    /**
+     * issued and waiting for the client's signed request
+     */
+    OUTSTANDING,
+    /**
+     * already used by a signed request, any further use is a replay
+     */
+    CONSUMED,
+    /**
+     * issued but not used in time
+     */
+    EXPIRED
+}
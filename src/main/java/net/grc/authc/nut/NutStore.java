@@ -0,0 +1,34 @@
+package net.grc.authc.nut;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Issues the "nut" of SQRL challenges and allows each one to be used only once.
+ * <p/>
+ * Every call takes the address of the client talking to us, null if unknown. Stores may bind a nut to the host
+ * it was issued to; the ones that do not simply ignore it.
+ */
+public interface NutStore {
+    /**
+     * length of a nut in bytes
+     */
+    int NUT_LENGTH = 16;
+
+    /**
+     * @return a new outstanding nut, read only
+     */
+    ByteBuffer issue(String clientHost);
+
+    /**
+     * Looks a nut up without changing it.
+     */
+    NutState state(ByteBuffer nut, String clientHost);
+
+    /**
+     * Atomically moves an outstanding nut to consumed. Exactly one caller sees {@link NutState#OUTSTANDING} for
+     * any nut; everybody else sees the reason it could not be used.
+     *
+     * @return the state the nut was in before this call
+     */
+    NutState consume(ByteBuffer nut, String clientHost);
+}
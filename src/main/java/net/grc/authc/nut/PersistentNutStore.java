@@ -0,0 +1,51 @@
+package net.grc.authc.nut;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes nuts through to a {@link NutPersistence} while answering from an in-memory store.
+ * <p/>
+ * Issued nuts are recorded in both. A consume is decided by the persistent store so that a nut is single use
+ * across restarts and across nodes sharing the store; the in-memory store short-circuits nuts it already knows
+ * are consumed, which is the common replay.
+ */
+public class PersistentNutStore implements NutStore {
+    private final MemoryNutStore memory;
+    private final NutPersistence persistence;
+
+    public PersistentNutStore(MemoryNutStore memory, NutPersistence persistence) {
+        if (memory == null) throw new IllegalArgumentException("memory=null");
+        if (persistence == null) throw new IllegalArgumentException("persistence=null");
+        this.memory = memory;
+        this.persistence = persistence;
+    }
+
+    @Override
+    public ByteBuffer issue(String clientHost) {
+        ByteBuffer nut = memory.issue(clientHost);
+        persistence.issued(nut, currentTimeMillis() + memory.getTimeToLiveMillis());
+        return nut;
+    }
+
+    @Override
+    public NutState state(ByteBuffer nut, String clientHost) {
+        if (nut == null) return NutState.UNKNOWN;
+        NutState local = memory.state(nut, clientHost);
+        return local != NutState.UNKNOWN ? local : persistence.state(nut, currentTimeMillis());
+    }
+
+    @Override
+    public NutState consume(ByteBuffer nut, String clientHost) {
+        if (nut == null) return NutState.UNKNOWN;
+        NutState local = memory.consume(nut, clientHost);
+        if (local == NutState.CONSUMED || local == NutState.EXPIRED) {
+            return local;
+        }
+        // outstanding here, or issued by another node or before a restart
+        return persistence.consume(nut, currentTimeMillis());
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
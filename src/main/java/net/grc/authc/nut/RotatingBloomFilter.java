@@ -0,0 +1,117 @@
+package net.grc.authc.nut;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the nuts consumed on this node for at least one generation.
+ * <p/>
+ * Three Bloom filters take turns: the current generation is written, the previous one is still read, and the
+ * third is cleared when it becomes current. Keys are nuts, which are ciphertext and so already uniformly
+ * distributed, or anything else as uniform, such as a hash; the k probe positions are derived from the two
+ * halves by double hashing. A false positive makes a fresh nut look consumed, which fails that login, so the
+ * rate is kept small.
+ * <p/>
+ * Adding is a test-and-set under a lock striped by the nut, so exactly one of several concurrent adds of the
+ * same nut wins. Bits are set with compare-and-set because different nuts share words.
+ */
+public final class RotatingBloomFilter {
+    private static final int GENERATIONS = 3;
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray[] bits = new AtomicLongArray[GENERATIONS];
+    private final long[] generationOf = new long[GENERATIONS];
+    private final int hashes;
+    private final int shift;
+    private final long generationMillis;
+    private volatile long generation;
+
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * @param expected          insertions per generation
+     * @param falsePositiveRate at the expected load, for a nut checked against two full generations
+     */
+    public RotatingBloomFilter(int expected, double falsePositiveRate, long generationMillis, long nowMillis) {
+        if (expected < 1) throw new IllegalArgumentException("expected=" + expected);
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("falsePositiveRate=" + falsePositiveRate);
+        if (generationMillis <= 0) throw new IllegalArgumentException("generationMillis=" + generationMillis);
+
+        double p = falsePositiveRate / 2;
+        long m = (long) Math.ceil(-expected * Math.log(p) / (Math.log(2) * Math.log(2)));
+        int log2 = Math.max(6, 64 - Long.numberOfLeadingZeros(m - 1));
+        if (log2 > 36) throw new IllegalArgumentException("filter too large for expected=" + expected);
+        hashes = Math.max(1, (int) Math.round(-Math.log(p) / Math.log(2)));
+        shift = 64 - log2;
+
+        for (int g = 0; g < GENERATIONS; g++) {
+            bits[g] = new AtomicLongArray(1 << (log2 - 6));
+            generationOf[g] = Long.MIN_VALUE;
+        }
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+
+        this.generationMillis = generationMillis;
+        generation = nowMillis / generationMillis;
+        generationOf[slot(generation)] = generation;
+    }
+
+    public boolean contains(long hi, long lo, long nowMillis) {
+        long g = advance(nowMillis);
+        return inGeneration(g, hi, lo) || inGeneration(g - 1, hi, lo);
+    }
+
+    /**
+     * @return false if the nut was already there
+     */
+    public boolean add(long hi, long lo, long nowMillis) {
+        synchronized (stripes[(int) (lo >>> 58)]) {
+            long g = advance(nowMillis);
+            if (inGeneration(g, hi, lo) || inGeneration(g - 1, hi, lo)) return false;
+
+            AtomicLongArray words = bits[slot(g)];
+            long h2 = lo | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (hi + i * h2) >>> shift;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                for (long w = words.get(word); (w & mask) == 0; w = words.get(word)) {
+                    if (words.compareAndSet(word, w, w | mask)) break;
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean inGeneration(long g, long hi, long lo) {
+        int slot = slot(g);
+        if (generationOf[slot] != g) return false;
+
+        AtomicLongArray words = bits[slot];
+        long h2 = lo | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (hi + i * h2) >>> shift;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private long advance(long nowMillis) {
+        long g = nowMillis / generationMillis;
+        if (g <= generation) return generation;
+
+        synchronized (generationOf) {
+            if (g > generation) {
+                int slot = slot(g);
+                AtomicLongArray words = bits[slot];
+                for (int i = 0; i < words.length(); i++) words.set(i, 0);
+                generationOf[slot] = g;
+                generation = g;
+            }
+            return generation;
+        }
+    }
+
+    private static int slot(long g) {
+        return (int) ((g % GENERATIONS + GENERATIONS) % GENERATIONS);
+    }
+}
@@ -0,0 +1,210 @@
+package net.grc.authc.nut;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NutStore} that keeps nothing per nut: the nut is one AES block carrying its own issue time, so any node
+ * holding the same {@link NutKeyRing} secret can check it without a shared store.
+ * <p/>
+ * The plaintext is, big-endian:
+ * * issue time, seconds since the epoch (4 bytes)
+ * * issue counter of the node (4 bytes)
+ * * node id (2 bytes)
+ * * hash of the client host it was issued to (2 bytes)
+ * * check value of the key (4 bytes)
+ * <p/>
+ * Time, node and counter never repeat under one key, so encrypting the single block directly is a pseudorandom
+ * permutation of unique inputs. A nut is accepted if it decrypts to the check value under one of the keys
+ * accepted at the time; the odds of a forgery passing are 2^-32 per key tried.
+ * <p/>
+ * Consumed nuts are remembered by a {@link RotatingBloomFilter} on this node only. A nut replayed against a
+ * different node passes that node's filter, so either route a client's requests to one node (see
+ * {@link #issuingNode}) or keep a shared {@link PersistentNutStore} where replay across nodes matters. Nuts that
+ * have expired report {@link NutState#EXPIRED} whether or not they were used.
+ */
+public class StatelessNutStore implements NutStore {
+    public static final long DEFAULT_TTL_MILLIS = MemoryNutStore.DEFAULT_TTL_MILLIS;
+    public static final int DEFAULT_EXPECTED_LOGINS = 1 << 17;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+    /**
+     * how far ahead of this node another node's clock may be
+     */
+    public static final long CLOCK_SKEW_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    static final int MAX_NODE_ID = 0xffff;
+
+    private final NutKeyRing keys;
+    private final int nodeId;
+    private final long ttlMillis;
+    private final RotatingBloomFilter consumed;
+    private final AtomicInteger counter = new AtomicInteger(new SecureRandom().nextInt());
+    private volatile boolean requireSameHost;
+
+    private final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
+
+    public StatelessNutStore(NutKeyRing keys, int nodeId) {
+        this(keys, nodeId, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_EXPECTED_LOGINS);
+    }
+
+    /**
+     * @param nodeId         distinguishes the nodes sharing the key ring, 0 to 65535
+     * @param expectedLogins nuts consumed on this node per time-to-live, sizes the replay filter
+     */
+    public StatelessNutStore(NutKeyRing keys, int nodeId, long ttl, TimeUnit unit, int expectedLogins) {
+        if (keys == null) throw new IllegalArgumentException("keys=null");
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) throw new IllegalArgumentException("nodeId=" + nodeId);
+        if (ttl <= 0) throw new IllegalArgumentException("ttl=" + ttl);
+        if (keys.getOverlapMillis() < unit.toMillis(ttl))
+            throw new IllegalArgumentException("key overlap " + keys.getOverlapMillis() + "ms is shorter than ttl");
+
+        this.keys = keys;
+        this.nodeId = nodeId;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.consumed = new RotatingBloomFilter(expectedLogins, DEFAULT_FALSE_POSITIVE_RATE,
+                ttlMillis + CLOCK_SKEW_MILLIS, currentTimeMillis());
+    }
+
+    /**
+     * When set, a nut is only accepted from the host it was issued to. Off by default: with a second device the
+     * signed request comes from the phone, not the browser that showed the code.
+     */
+    public void setRequireSameHost(boolean requireSameHost) {
+        this.requireSameHost = requireSameHost;
+    }
+
+    public boolean isRequireSameHost() {
+        return requireSameHost;
+    }
+
+    public long getTimeToLiveMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public ByteBuffer issue(String clientHost) {
+        long now = currentTimeMillis();
+        NutKeyRing.Key key = keys.issuingKey(now);
+        Codec codec = codecs.get();
+
+        ByteBuffer plain = codec.plain;
+        plain.putInt(0, (int) (now / 1000));
+        plain.putInt(4, counter.getAndIncrement());
+        plain.putShort(8, (short) nodeId);
+        plain.putShort(10, hostHash(clientHost));
+        plain.putInt(12, key.check);
+
+        byte[] nut = new byte[NUT_LENGTH];
+        codec.crypt(Cipher.ENCRYPT_MODE, key, codec.block, nut);
+        return ByteBuffer.wrap(nut).asReadOnlyBuffer();
+    }
+
+    @Override
+    public NutState state(ByteBuffer nut, String clientHost) {
+        long now = currentTimeMillis();
+        NutState state = decode(nut, clientHost, now, codecs.get());
+        if (state != NutState.OUTSTANDING) return state;
+
+        int p = nut.position();
+        return consumed.contains(nut.getLong(p), nut.getLong(p + 8), now) ? NutState.CONSUMED : state;
+    }
+
+    @Override
+    public NutState consume(ByteBuffer nut, String clientHost) {
+        long now = currentTimeMillis();
+        NutState state = decode(nut, clientHost, now, codecs.get());
+        if (state != NutState.OUTSTANDING) return state;
+
+        int p = nut.position();
+        return consumed.add(nut.getLong(p), nut.getLong(p + 8), now) ? state : NutState.CONSUMED;
+    }
+
+    /**
+     * The node that issued a nut, for routing a client back to the node that remembers its nuts.
+     *
+     * @return -1 if the nut was not issued under an accepted key
+     */
+    public int issuingNode(ByteBuffer nut) {
+        Codec codec = codecs.get();
+        if (!decrypt(nut, currentTimeMillis(), codec)) return -1;
+        return codec.plain.getShort(8) & 0xffff;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private NutState decode(ByteBuffer nut, String clientHost, long now, Codec codec) {
+        if (!decrypt(nut, now, codec)) return NutState.UNKNOWN;
+
+        ByteBuffer plain = codec.plain;
+        if (requireSameHost && plain.getShort(10) != hostHash(clientHost)) return NutState.UNKNOWN;
+
+        long issued = (plain.getInt(0) & 0xffffffffL) * 1000;
+        if (issued > now + CLOCK_SKEW_MILLIS) return NutState.UNKNOWN;
+        return now - issued >= ttlMillis ? NutState.EXPIRED : NutState.OUTSTANDING;
+    }
+
+    /**
+     * Leaves the plaintext in the codec.
+     */
+    private boolean decrypt(ByteBuffer nut, long now, Codec codec) {
+        if (nut == null || nut.remaining() != NUT_LENGTH) return false;
+        int p = nut.position();
+        for (int i = 0; i < NUT_LENGTH; i++) codec.in[i] = nut.get(p + i);
+
+        int n = keys.acceptedKeys(now, codec.accepted);
+        for (int k = 0; k < n; k++) {
+            NutKeyRing.Key key = codec.accepted[k];
+            codec.crypt(Cipher.DECRYPT_MODE, key, codec.in, codec.block);
+            if (codec.plain.getInt(12) == key.check) return true;
+        }
+        return false;
+    }
+
+    static short hostHash(String clientHost) {
+        if (clientHost == null) return 0;
+        int h = clientHost.hashCode() * 0x9E3779B9;
+        return (short) (h ^ (h >>> 16));
+    }
+
+    /**
+     * Per-thread ciphers, initialised once per key and mode.
+     */
+    private static final class Codec {
+        private static final int SLOTS = 4;
+
+        final byte[] in = new byte[NUT_LENGTH];
+        final byte[] block = new byte[NUT_LENGTH];
+        final ByteBuffer plain = ByteBuffer.wrap(block);
+        final NutKeyRing.Key[] accepted = new NutKeyRing.Key[3];
+
+        private final Cipher[] ciphers = new Cipher[2 * SLOTS];
+        private final NutKeyRing.Key[] initialised = new NutKeyRing.Key[2 * SLOTS];
+
+        void crypt(int mode, NutKeyRing.Key key, byte[] input, byte[] output) {
+            int slot = (int) (key.period & (SLOTS - 1)) + (mode == Cipher.ENCRYPT_MODE ? 0 : SLOTS);
+            try {
+                Cipher cipher = ciphers[slot];
+                if (cipher == null) cipher = ciphers[slot] = Cipher.getInstance("AES/ECB/NoPadding");
+                if (initialised[slot] != key) {
+                    cipher.init(mode, key.aes);
+                    initialised[slot] = key;
+                }
+                cipher.doFinal(input, 0, NUT_LENGTH, output, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Streamed dumps of identities, for moving them between stores or through an {@link IdentityMigration}.
+ * <p/>
+ * The binary format is a magic number followed by chunks: a record count, 0 for the end, and that many records of
+ * a type byte (1 anonymous, 2 locked), the domain as by DataOutput.writeUTF, the key and, if locked, the
+ * Public Unlock Key and the Key Verifier. A writer holds at most one chunk. The CSV format has a header line and
+ * a line of domain,key,unlock,verifier per identity, the keys in base64url and the last two empty unless locked;
+ * a domain with a comma or a quote is quoted.
+ * <p/>
+ * Malformed input is reported as an IOException with the number of the record.
+ */
+public final class IdentityDump {
+    public enum Format {
+        BINARY, CSV
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    static final long MAGIC = 0x5351524c44554d31L;
+    static final String CSV_HEADER = "domain,key,unlock,verifier";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte ANONYMOUS = 1;
+    private static final byte LOCKED = 2;
+
+    /**
+     * Reads identities a chunk at a time. Not thread safe.
+     */
+    public interface Reader extends Closeable {
+        /**
+         * Adds up to max identities to the chunk.
+         *
+         * @return how many were added, 0 at the end of the dump
+         */
+        int read(List<SQRLAnonymousPrincipal> chunk, int max) throws IOException;
+    }
+
+    /**
+     * Writes identities, one at a time. Not thread safe. Closing ends the dump.
+     */
+    public interface Writer extends Closeable, Flushable {
+        void write(SQRLAnonymousPrincipal identity) throws IOException;
+    }
+
+    private IdentityDump() {
+    }
+
+    public static Reader reader(InputStream in, Format format) throws IOException {
+        if (in == null) throw new IllegalArgumentException("in=null");
+        if (format == null) throw new IllegalArgumentException("format=null");
+        return format == Format.BINARY ? new BinaryReader(in) : new CsvReader(in);
+    }
+
+    public static Writer writer(OutputStream out, Format format) throws IOException {
+        return writer(out, format, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize identities per binary chunk
+     */
+    public static Writer writer(OutputStream out, Format format, int chunkSize) throws IOException {
+        if (out == null) throw new IllegalArgumentException("out=null");
+        if (format == null) throw new IllegalArgumentException("format=null");
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize=" + chunkSize);
+        return format == Format.BINARY ? new BinaryWriter(out, chunkSize) : new CsvWriter(out);
+    }
+
+    private static final class BinaryReader implements Reader {
+        private final DataInputStream in;
+        private final byte[] key = new byte[SQRLKey.LENGTH];
+        private int remaining;
+        private long records;
+        private boolean ended;
+
+        BinaryReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            if (this.in.readLong() != MAGIC) throw new IOException("not an identity dump");
+        }
+
+        @Override
+        public int read(List<SQRLAnonymousPrincipal> chunk, int max) throws IOException {
+            int added = 0;
+            try {
+                while (added < max && !ended) {
+                    if (remaining == 0) {
+                        remaining = in.readInt();
+                        if (remaining < 0) throw new IOException("chunk of " + remaining + " at record " + records);
+                        if (remaining == 0) {
+                            ended = true;
+                            break;
+                        }
+                    }
+                    chunk.add(record());
+                    remaining--;
+                    records++;
+                    added++;
+                }
+            } catch (EOFException e) {
+                throw new IOException("dump ends in record " + records, e);
+            }
+            return added;
+        }
+
+        private SQRLAnonymousPrincipal record() throws IOException {
+            byte type = in.readByte();
+            if (type != ANONYMOUS && type != LOCKED) throw new IOException("type " + type + " of record " + records);
+            String domain = in.readUTF();
+            in.readFully(key);
+            if (type == ANONYMOUS) return new SQRLAnonymousPrincipal(domain, key);
+
+            byte[] unlock = new byte[SQRLKey.LENGTH];
+            byte[] verifier = new byte[SQRLKey.LENGTH];
+            in.readFully(unlock);
+            in.readFully(verifier);
+            return new IdLockPrincipal(domain, key, unlock, verifier);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class BinaryWriter implements Writer {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream(1 << 16);
+        private final DataOutputStream chunk = new DataOutputStream(chunkBytes);
+        private final int chunkSize;
+        private int count;
+
+        BinaryWriter(OutputStream out, int chunkSize) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.chunkSize = chunkSize;
+            this.out.writeLong(MAGIC);
+        }
+
+        @Override
+        public void write(SQRLAnonymousPrincipal identity) throws IOException {
+            if (identity == null) throw new IllegalArgumentException("identity=null");
+            boolean locked = identity instanceof IdLockPrincipal;
+            chunk.writeByte(locked ? LOCKED : ANONYMOUS);
+            chunk.writeUTF(identity.getDomain());
+            chunk.write(identity.getKey().toByteArray());
+            if (locked) {
+                chunk.write(bytes(((IdLockPrincipal) identity).getIdLockPublicKey()));
+                chunk.write(bytes(((IdLockPrincipal) identity).getIdLockKeyVerifier()));
+            }
+            if (++count == chunkSize) writeChunk();
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0) return;
+            out.writeInt(count);
+            chunkBytes.writeTo(out);
+            chunkBytes.reset();
+            count = 0;
+        }
+
+        /**
+         * Writes the chunk so far, so that what was written can be read.
+         */
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk();
+            out.writeInt(0);
+            out.close();
+        }
+    }
+
+    private static final class CsvReader implements Reader {
+        private final BufferedReader in;
+        private final StringBuilder field = new StringBuilder(256);
+        private long records;
+
+        CsvReader(InputStream in) {
+            this.in = new BufferedReader(new InputStreamReader(in, UTF8), 1 << 16);
+        }
+
+        @Override
+        public int read(List<SQRLAnonymousPrincipal> chunk, int max) throws IOException {
+            int added = 0;
+            String line;
+            while (added < max && (line = in.readLine()) != null) {
+                if (line.isEmpty() || (records == 0 && added == 0 && line.equals(CSV_HEADER))) continue;
+                chunk.add(record(line));
+                records++;
+                added++;
+            }
+            return added;
+        }
+
+        private SQRLAnonymousPrincipal record(String line) throws IOException {
+            int i = domain(line);
+            if (i >= line.length() || line.charAt(i) != ',') throw malformed();
+            String domain = field.toString();
+
+            String[] keys = line.substring(i + 1).split(",", -1);
+            if (keys.length != 3 || keys[1].isEmpty() != keys[2].isEmpty()) throw malformed();
+            try {
+                byte[] key = Base64.decodeBase64(keys[0]);
+                if (keys[1].isEmpty()) return new SQRLAnonymousPrincipal(domain, key);
+                return new IdLockPrincipal(domain, key, Base64.decodeBase64(keys[1]), Base64.decodeBase64(keys[2]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("record " + records + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Reads the domain into the field buffer.
+         *
+         * @return the index after it
+         */
+        private int domain(String line) throws IOException {
+            field.setLength(0);
+            if (line.isEmpty() || line.charAt(0) != '"') {
+                int comma = line.indexOf(',');
+                field.append(line, 0, comma < 0 ? line.length() : comma);
+                return comma < 0 ? line.length() : comma;
+            }
+            for (int i = 1; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    return i + 1;
+                }
+            }
+            throw malformed();
+        }
+
+        private IOException malformed() {
+            return new IOException("record " + records + " is not domain,key,unlock,verifier");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class CsvWriter implements Writer {
+        private final java.io.Writer out;
+
+        CsvWriter(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, UTF8), 1 << 16);
+            this.out.write(CSV_HEADER);
+            this.out.write('\n');
+        }
+
+        @Override
+        public void write(SQRLAnonymousPrincipal identity) throws IOException {
+            if (identity == null) throw new IllegalArgumentException("identity=null");
+            String domain = identity.getDomain();
+            if (domain.indexOf(',') >= 0 || domain.indexOf('"') >= 0) {
+                out.write('"');
+                out.write(domain.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(domain);
+            }
+            out.write(',');
+            out.write(Base64.encodeBase64URLSafeString(identity.getKey().toByteArray()));
+            out.write(',');
+            if (identity instanceof IdLockPrincipal) {
+                IdLockPrincipal locked = (IdLockPrincipal) identity;
+                out.write(Base64.encodeBase64URLSafeString(bytes(locked.getIdLockPublicKey())));
+                out.write(',');
+                out.write(Base64.encodeBase64URLSafeString(bytes(locked.getIdLockKeyVerifier())));
+            } else {
+                out.write(',');
+            }
+            out.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
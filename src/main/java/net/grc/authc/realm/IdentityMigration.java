@@ -0,0 +1,368 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.crypto.Ed25519;
+import net.grc.metrics.Counter;
+import net.grc.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Moves a whole identity set from a {@link IdentityDump dump} into a store, fixing it up on the way.
+ * <p/>
+ * One thread reads the dump a chunk at a time; each chunk is split across a fork-join pool, whose workers
+ * optionally {@link #setCanonicalize canonicalize} the domain, {@link #setVerifyKeys check} that the key is an
+ * Ed25519 point and apply a {@link #setTransform transform}, such as re-deriving id lock verifiers, and then store
+ * the identity. An identity whose domain and key are already in the target is a duplicate and is dropped, unless
+ * it is locked and the stored one is not: then it replaces the stored one and counts as written. At most
+ * {@link #setMaxChunksInFlight} chunks are read ahead, so memory does not grow with the dump.
+ * <p/>
+ * Progress is kept in the {@link Progress} of the run, which another thread may poll, and in {@link Metrics} as
+ * sqrl.migration.read, .written, .duplicate and .rejected. {@link #export} writes a store back out as a dump.
+ */
+public class IdentityMigration {
+    private static final Counter READ = Metrics.counter("sqrl.migration.read");
+    private static final Counter WRITTEN = Metrics.counter("sqrl.migration.written");
+    private static final Counter DUPLICATE = Metrics.counter("sqrl.migration.duplicate");
+    private static final Counter REJECTED = Metrics.counter("sqrl.migration.rejected");
+    private static final Counter EXPORTED = Metrics.counter("sqrl.migration.exported");
+
+    // identities a worker takes on without splitting further
+    private static final int LEAF = 256;
+    private static final int LOCK_STRIPES = 256;
+
+    private final ForkJoinPool pool;
+    // a load and the store that follows it are atomic per domain and key
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private int chunkSize = IdentityDump.DEFAULT_CHUNK_SIZE;
+    private int maxChunksInFlight;
+    private boolean canonicalize;
+    private boolean verifyKeys;
+    private UnaryOperator<SQRLAnonymousPrincipal> transform;
+    private volatile Progress progress = new Progress();
+
+    public IdentityMigration() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public IdentityMigration(ForkJoinPool pool) {
+        if (pool == null) throw new IllegalArgumentException("pool=null");
+        this.pool = pool;
+        this.maxChunksInFlight = 2 * pool.getParallelism();
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize=" + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxChunksInFlight() {
+        return maxChunksInFlight;
+    }
+
+    /**
+     * @param maxChunksInFlight chunks read and not yet stored; by default twice the pool's parallelism
+     */
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        if (maxChunksInFlight < 1) throw new IllegalArgumentException("maxChunksInFlight=" + maxChunksInFlight);
+        this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    public boolean isCanonicalize() {
+        return canonicalize;
+    }
+
+    /**
+     * @param canonicalize whether to run each domain through {@link #canonicalDomain}, rejecting those that fail
+     */
+    public void setCanonicalize(boolean canonicalize) {
+        this.canonicalize = canonicalize;
+    }
+
+    public boolean isVerifyKeys() {
+        return verifyKeys;
+    }
+
+    /**
+     * @param verifyKeys whether to reject identities whose key no signature could ever be verified with
+     */
+    public void setVerifyKeys(boolean verifyKeys) {
+        this.verifyKeys = verifyKeys;
+    }
+
+    public UnaryOperator<SQRLAnonymousPrincipal> getTransform() {
+        return transform;
+    }
+
+    /**
+     * @param transform applied last, from several threads at once; returns the identity to store, or null to
+     * reject it
+     */
+    public void setTransform(UnaryOperator<SQRLAnonymousPrincipal> transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * of the run in progress, or of the last one
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Reads the whole dump into the target. Stops at the first error; what was stored until then stays.
+     *
+     * @throws IOException if the dump cannot be read
+     */
+    public Progress run(IdentityDump.Reader source, IdentityPersistence target) throws IOException {
+        if (source == null) throw new IllegalArgumentException("source=null");
+        if (target == null) throw new IllegalArgumentException("target=null");
+        Progress run = new Progress();
+        progress = run;
+
+        int chunks = maxChunksInFlight;
+        Semaphore inFlight = new Semaphore(chunks);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            while (failure.get() == null) {
+                inFlight.acquire();
+                List<SQRLAnonymousPrincipal> chunk = new ArrayList<SQRLAnonymousPrincipal>(chunkSize);
+                int read;
+                try {
+                    read = source.read(chunk, chunkSize);
+                } catch (IOException | RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                if (read == 0) {
+                    inFlight.release();
+                    break;
+                }
+                run.read.add(read);
+                READ.add(read);
+                Runnable migrate = () -> {
+                    try {
+                        new Slice(chunk, 0, chunk.size(), target, run).invoke();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        inFlight.release();
+                    }
+                };
+                try {
+                    pool.execute(migrate);
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted after " + run.getRead() + " identities");
+        } finally {
+            // the chunks in flight finish either way
+            inFlight.acquireUninterruptibly(chunks);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return run;
+    }
+
+    /**
+     * Writes every identity in the source to the dump, which is left open.
+     *
+     * @return how many were written
+     */
+    public long export(MappedIdentityPersistence source, IdentityDump.Writer target) throws IOException {
+        if (source == null) throw new IllegalArgumentException("source=null");
+        if (target == null) throw new IllegalArgumentException("target=null");
+        LongAdder written = new LongAdder();
+        try {
+            source.forEach(identity -> {
+                try {
+                    target.write(identity);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                written.increment();
+                EXPORTED.increment();
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        target.flush();
+        return written.sum();
+    }
+
+    /**
+     * The domain a challenge with the same path gets from {@link SQRLAnonymousPrincipal#validateURI}: dot segments
+     * resolved and, since they are case insensitive, the scheme and host in lower case.
+     *
+     * @throws IllegalArgumentException if it is not a URL or its escapes are not canonical
+     */
+    public static String canonicalDomain(String domain) {
+        int authority = domain.indexOf("://");
+        if (authority < 0) throw new IllegalArgumentException(domain + " does not appear to have a hostname");
+        int path = authority + 3;
+        while (path < domain.length() && "/?#".indexOf(domain.charAt(path)) < 0) path++;
+        String lower = domain.substring(0, path).toLowerCase(Locale.ROOT) + domain.substring(path);
+
+        URI uri = URI.create(lower);
+        String normalized = uri.normalize().getRawPath();
+        return SQRLAnonymousPrincipal.validateURI(uri, normalized == null ? 0 : normalized.length());
+    }
+
+    /**
+     * @return the identity to store, or null to reject it
+     */
+    private SQRLAnonymousPrincipal fix(SQRLAnonymousPrincipal identity) {
+        try {
+            if (canonicalize) {
+                String domain = canonicalDomain(identity.getDomain());
+                if (!domain.equals(identity.getDomain())) identity = withDomain(identity, domain);
+            }
+            if (verifyKeys && Ed25519.decodePublicKey(identity.getPublicKey()) == null) return null;
+            return transform == null ? identity : transform.apply(identity);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static SQRLAnonymousPrincipal withDomain(SQRLAnonymousPrincipal identity, String domain) {
+        byte[] key = identity.getKey().toByteArray();
+        if (!(identity instanceof IdLockPrincipal)) return new SQRLAnonymousPrincipal(domain, key);
+        IdLockPrincipal locked = (IdLockPrincipal) identity;
+        return new IdLockPrincipal(domain, key, bytes(locked.getIdLockPublicKey()),
+                bytes(locked.getIdLockKeyVerifier()));
+    }
+
+    private void migrate(SQRLAnonymousPrincipal identity, IdentityPersistence target, Progress run) {
+        identity = fix(identity);
+        if (identity == null) {
+            run.rejected.increment();
+            REJECTED.increment();
+            return;
+        }
+
+        boolean stored = false;
+        // by domain and key alone: an id lock's hash also covers its lock, which a duplicate need not share
+        int stripe = identity.getDomain().hashCode() * 31 + identity.getKey().hashCode();
+        synchronized (locks[(stripe & 0x7fffffff) % LOCK_STRIPES]) {
+            SQRLAnonymousPrincipal existing = target.load(identity.getDomain(), identity.getKey());
+            if (existing == null || (identity instanceof IdLockPrincipal && !(existing instanceof IdLockPrincipal))) {
+                target.store(identity);
+                stored = true;
+            }
+        }
+        if (stored) {
+            run.written.increment();
+            WRITTEN.increment();
+        } else {
+            run.duplicates.increment();
+            DUPLICATE.increment();
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Part of a chunk, halved until it is small enough for one worker.
+     */
+    private final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SQRLAnonymousPrincipal> chunk;
+        private final int from;
+        private final int to;
+        private final IdentityPersistence target;
+        private final Progress run;
+
+        Slice(List<SQRLAnonymousPrincipal> chunk, int from, int to, IdentityPersistence target, Progress run) {
+            this.chunk = chunk;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.run = run;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF) {
+                for (int i = from; i < to; i++) migrate(chunk.get(i), target, run);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Slice(chunk, from, middle, target, run), new Slice(chunk, middle, to, target, run));
+        }
+    }
+
+    /**
+     * Counts of a run, updated as it goes.
+     */
+    public static final class Progress {
+        final LongAdder read = new LongAdder();
+        final LongAdder written = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        /**
+         * identities read from the dump, some of them possibly not yet processed
+         */
+        public long getRead() {
+            return read.sum();
+        }
+
+        /**
+         * identities stored: new to the target, or locked ones that replaced an anonymous copy
+         */
+        public long getWritten() {
+            return written.sum();
+        }
+
+        /**
+         * identities dropped because the target already had their domain and key
+         */
+        public long getDuplicates() {
+            return duplicates.sum();
+        }
+
+        /**
+         * identities that failed canonicalization or the key check, or that the transform dropped
+         */
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "read=" + getRead() + " written=" + getWritten() + " duplicates=" + getDuplicates()
+                    + " rejected=" + getRejected();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+
+/**
+ * Durable storage behind {@link PersistentIdentityStore}, e.g. a database table. Implementations must be thread
+ * safe.
+ */
+public interface IdentityPersistence {
+    /**
+     * @return the stored identity, or null if unknown
+     */
+    SQRLAnonymousPrincipal load(String domain, SQRLKey key);
+
+    /**
+     * Inserts or replaces the identity with the same domain and key.
+     */
+    void store(SQRLAnonymousPrincipal identity);
+
+    void delete(String domain, SQRLKey key);
+}
@@ -0,0 +1,35 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+
+/**
+ * The known SQRL identities, keyed on domain and public key. An identity is stored as an
+ * {@link SQRLAnonymousPrincipal}, or as an {@link net.grc.authc.credential.IdLockPrincipal} once locked; either is
+ * found by its domain and key alone. Implementations must be thread safe.
+ */
+public interface IdentityStore {
+    /**
+     * @return the stored identity, or null if unknown
+     */
+    SQRLAnonymousPrincipal find(String domain, SQRLKey key);
+
+    /**
+     * Registers a new identity unless one with the same domain and key exists.
+     *
+     * @return the existing identity, or null if this one was added
+     */
+    SQRLAnonymousPrincipal add(SQRLAnonymousPrincipal identity);
+
+    /**
+     * Adds or replaces the identity with the same domain and key, e.g. with its locked form.
+     *
+     * @return the identity replaced, or null
+     */
+    SQRLAnonymousPrincipal save(SQRLAnonymousPrincipal identity);
+
+    /**
+     * @return the identity removed, or null if unknown
+     */
+    SQRLAnonymousPrincipal remove(String domain, SQRLKey key);
+}
@@ -0,0 +1,115 @@
+package net.grc.authc.realm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped in 64 MB chunks, addressed by long offsets, so that it can outgrow a single mapping. Values
+ * must not straddle a chunk boundary, which holds for power of two sized and aligned records.
+ * <p/>
+ * Not thread safe: the owner guards growth, and reads racing writes.
+ */
+final class MappedFile implements Closeable {
+    static final int CHUNK_BITS = 26;
+    static final long CHUNK = 1L << CHUNK_BITS;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    MappedFile(File path, long minLength) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        ensure(Math.max(minLength, file.length()));
+    }
+
+    long length() {
+        return chunks.length * CHUNK;
+    }
+
+    /**
+     * Grows the file, sparsely, to hold at least length bytes.
+     */
+    void ensure(long length) throws IOException {
+        int count = (int) ((length + CHUNK - 1) >>> CHUNK_BITS);
+        if (count <= chunks.length) return;
+        if (file.length() < count * CHUNK) file.setLength(count * CHUNK);
+        MappedByteBuffer[] grown = new MappedByteBuffer[count];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        for (int i = chunks.length; i < count; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * CHUNK, CHUNK);
+        }
+        chunks = grown;
+    }
+
+    byte get(long offset) {
+        return chunk(offset).get(at(offset));
+    }
+
+    void put(long offset, byte value) {
+        chunk(offset).put(at(offset), value);
+    }
+
+    short getShort(long offset) {
+        return chunk(offset).getShort(at(offset));
+    }
+
+    int getInt(long offset) {
+        return chunk(offset).getInt(at(offset));
+    }
+
+    void putInt(long offset, int value) {
+        chunk(offset).putInt(at(offset), value);
+    }
+
+    long getLong(long offset) {
+        return chunk(offset).getLong(at(offset));
+    }
+
+    void putLong(long offset, long value) {
+        chunk(offset).putLong(at(offset), value);
+    }
+
+    void get(long offset, byte[] dst, int off, int len) {
+        ByteBuffer view = chunk(offset).duplicate();
+        view.position(at(offset));
+        view.get(dst, off, len);
+    }
+
+    void put(long offset, byte[] src, int off, int len) {
+        ByteBuffer view = chunk(offset).duplicate();
+        view.position(at(offset));
+        view.put(src, off, len);
+    }
+
+    /**
+     * writes the mapped pages to the device
+     */
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * The mappings stay valid until collected; nothing may use this afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    private MappedByteBuffer chunk(long offset) {
+        return chunks[(int) (offset >>> CHUNK_BITS)];
+    }
+
+    private static int at(long offset) {
+        return (int) (offset & (CHUNK - 1));
+    }
+}
@@ -0,0 +1,652 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Identities in memory mapped files in one directory, with no database behind them.
+ * <p/>
+ * Every store and delete appends a fixed size record to a log; a hash index of record numbers, mapped from a
+ * second file, points at the latest record for each domain and key. Opening maps both files, so lookups are
+ * served from the page cache without loading anything onto the heap. Superseded and deleted records stay in the
+ * log until {@link #compact}, which writes the live records to a new generation of files and switches to it by
+ * renaming a pointer file.
+ * <p/>
+ * Each record carries a CRC. Writes reach the page cache at once and so survive the process; {@link #sync}
+ * makes them survive the machine. After a crash, detected by the log not having been closed, the index is
+ * rebuilt from the log, which ends at the first torn record.
+ * <p/>
+ * Domains are limited to {@value #MAX_DOMAIN_BYTES} bytes of UTF-8.
+ */
+public class MappedIdentityPersistence implements IdentityPersistence, Closeable {
+    public static final int MAX_DOMAIN_BYTES = 152;
+
+    static final int RECORD_SIZE = 256;
+
+    private static final int FOR_EACH_CHUNK = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // log: a header in the first record's place, then records
+    private static final long LOG_MAGIC = 0x5351524c4c4f4731L;
+    private static final int LOG_COUNT_AT = 8;
+    private static final int LOG_CLEAN_AT = 16;
+
+    // record: crc of the rest | type | unused | domain length | key | unlock key | verifier | domain
+    private static final int CRC_AT = 0;
+    private static final int TYPE_AT = 4;
+    private static final int DOMAIN_LENGTH_AT = 6;
+    private static final int KEY_AT = 8;
+    private static final int UNLOCK_AT = 40;
+    private static final int VERIFIER_AT = 72;
+    private static final int DOMAIN_AT = 104;
+    private static final byte ANONYMOUS = 1;
+    private static final byte LOCKED = 2;
+    private static final byte DELETED = 3;
+
+    // index: a header, then linear probed slots of fingerprint << 32 | record number + 1
+    private static final long INDEX_MAGIC = 0x5351524c49445831L;
+    private static final int INDEX_HEADER = 64;
+    private static final int SEED_AT = 8;
+    private static final int CAPACITY_AT = 16;
+    private static final int SIZE_AT = 24;
+    private static final int USED_AT = 32;
+    private static final long TOMBSTONE = 0xFFFFFFFFL;
+    private static final long MIN_CAPACITY = 1 << 12;
+
+    private final File directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the record being written, guarded by the write lock
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final CRC32 crc = new CRC32();
+
+    private long generation;
+    private MappedFile log;
+    private MappedFile index;
+    private long records;
+    private long seed;
+    private long capacity;
+    // live slots, and live and tombstone slots
+    private long size;
+    private long used;
+    private boolean closed;
+
+    public MappedIdentityPersistence(File directory) throws IOException {
+        if (directory == null) throw new IllegalArgumentException("directory=null");
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("cannot create " + directory);
+        this.directory = directory;
+
+        generation = readCurrent();
+        deleteOtherGenerations();
+        log = new MappedFile(logFile(generation), RECORD_SIZE);
+        long magic = log.getLong(0);
+        if (magic != 0 && magic != LOG_MAGIC) throw new IOException("not an identity log: " + logFile(generation));
+        if (magic == 0) log.putLong(0, LOG_MAGIC);
+
+        if (magic != 0 && log.getInt(LOG_CLEAN_AT) == 1) {
+            openIndex();
+        }
+        if (index == null) {
+            recover();
+        }
+        // cleared until close, so that a crash is detected on the next open
+        log.putInt(LOG_CLEAN_AT, 0);
+        log.force();
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal load(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        byte[] d = domain.getBytes(UTF8);
+        if (d.length > MAX_DOMAIN_BYTES) return null;
+        long w0 = key.word(0), w1 = key.word(1), w2 = key.word(2), w3 = key.word(3);
+
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long h = hash(w0, w1, w2, w3, d, 0, d.length);
+            long slot = findSlot(h, w0, w1, w2, w3, d, 0, d.length);
+            if (slot < 0) return null;
+            return read(recordOf(index.getLong(slotAt(slot))), domain);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void store(SQRLAnonymousPrincipal identity) {
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        byte[] d = identity.getDomain().getBytes(UTF8);
+        if (d.length > MAX_DOMAIN_BYTES) {
+            throw new IllegalArgumentException("domain longer than " + MAX_DOMAIN_BYTES + " bytes: "
+                    + identity.getDomain());
+        }
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            Arrays.fill(record, (byte) 0);
+            identity.getKey().copyTo(record, KEY_AT);
+            if (identity instanceof IdLockPrincipal) {
+                IdLockPrincipal locked = (IdLockPrincipal) identity;
+                record[TYPE_AT] = LOCKED;
+                locked.getIdLockPublicKey().get(record, UNLOCK_AT, SQRLKey.LENGTH);
+                locked.getIdLockKeyVerifier().get(record, VERIFIER_AT, SQRLKey.LENGTH);
+            } else {
+                record[TYPE_AT] = ANONYMOUS;
+            }
+            recordBuffer.putShort(DOMAIN_LENGTH_AT, (short) d.length);
+            System.arraycopy(d, 0, record, DOMAIN_AT, d.length);
+            append();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String domain, SQRLKey key) {
+        if (domain == null || key == null) return;
+        byte[] d = domain.getBytes(UTF8);
+        if (d.length > MAX_DOMAIN_BYTES) return;
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            long w0 = key.word(0), w1 = key.word(1), w2 = key.word(2), w3 = key.word(3);
+            if (findSlot(hash(w0, w1, w2, w3, d, 0, d.length), w0, w1, w2, w3, d, 0, d.length) < 0) return;
+
+            Arrays.fill(record, (byte) 0);
+            record[TYPE_AT] = DELETED;
+            key.copyTo(record, KEY_AT);
+            recordBuffer.putShort(DOMAIN_LENGTH_AT, (short) d.length);
+            System.arraycopy(d, 0, record, DOMAIN_AT, d.length);
+            append();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * the number of identities
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * the number of records in the log, live or not; {@link #compact} when well above {@link #size}
+     */
+    public long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes every identity to the action, in the order they were last written, e.g. to export the store. The
+     * read lock is held for a chunk of records at a time and released while the action runs, so stores go on
+     * meanwhile; an identity written during the walk may or may not be seen.
+     *
+     * @throws IllegalStateException if the store is compacted during the walk
+     */
+    public void forEach(Consumer<? super SQRLAnonymousPrincipal> action) {
+        if (action == null) throw new IllegalArgumentException("action=null");
+        List<SQRLAnonymousPrincipal> chunk = new ArrayList<SQRLAnonymousPrincipal>(FOR_EACH_CHUNK);
+        long walked = -1;
+        for (long n = 0; ; ) {
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                if (walked < 0) walked = generation;
+                if (generation != walked) throw new IllegalStateException("compacted during the walk");
+                for (long end = Math.min(records, n + FOR_EACH_CHUNK); n < end; n++) {
+                    SQRLAnonymousPrincipal identity = live(n);
+                    if (identity != null) chunk.add(identity);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (chunk.isEmpty() && n >= getRecordCount()) return;
+            for (SQRLAnonymousPrincipal identity : chunk) action.accept(identity);
+            chunk.clear();
+        }
+    }
+
+    /**
+     * Rewrites the live records to a new log and index and switches to them. Lookups wait meanwhile.
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            long oldGeneration = generation;
+            MappedFile oldLog = log;
+            MappedFile oldIndex = index;
+            long oldRecords = records, oldCapacity = capacity, oldSize = size, oldUsed = used;
+
+            generation = oldGeneration + 1;
+            try {
+                log = new MappedFile(logFile(generation), RECORD_SIZE * (oldSize + 1));
+                log.putLong(0, LOG_MAGIC);
+                records = 0;
+                index = null;
+                createIndex(capacityFor(oldSize), seed);
+                for (long i = 0; i < oldCapacity; i++) {
+                    long slot = oldIndex.getLong(slotAt(i));
+                    if (slot == 0 || (slot & TOMBSTONE) == TOMBSTONE) continue;
+                    oldLog.get(offset(recordOf(slot)), record, 0, RECORD_SIZE);
+                    append();
+                }
+                log.force();
+                writeCurrent(generation);
+            } catch (IOException e) {
+                if (log != oldLog) log.close();
+                if (index != null && index != oldIndex) index.close();
+                logFile(generation).delete();
+                indexFile(generation).delete();
+                generation = oldGeneration;
+                log = oldLog;
+                index = oldIndex;
+                records = oldRecords;
+                capacity = oldCapacity;
+                size = oldSize;
+                used = oldUsed;
+                throw e;
+            }
+            oldLog.close();
+            oldIndex.close();
+            logFile(oldGeneration).delete();
+            indexFile(oldGeneration).delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces everything written so far to the device.
+     */
+    public void sync() {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            log.force();
+            index.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            writeIndexHeader();
+            index.close();
+            log.putLong(LOG_COUNT_AT, records);
+            log.putInt(LOG_CLEAN_AT, 1);
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("closed");
+    }
+
+    /**
+     * Writes the record buffer at the end of the log and indexes it.
+     */
+    private void append() throws IOException {
+        if (records >= TOMBSTONE - 1) throw new IllegalStateException("identity log is full, compact it");
+        crc.reset();
+        crc.update(record, TYPE_AT, RECORD_SIZE - TYPE_AT);
+        recordBuffer.putInt(CRC_AT, (int) crc.getValue());
+
+        long at = offset(records);
+        log.ensure(at + RECORD_SIZE);
+        log.put(at, record, 0, RECORD_SIZE);
+        apply(records);
+        records++;
+        log.putLong(LOG_COUNT_AT, records);
+    }
+
+    /**
+     * Updates the index for the record in the record buffer.
+     */
+    private void apply(long n) throws IOException {
+        long w0 = recordBuffer.getLong(KEY_AT), w1 = recordBuffer.getLong(KEY_AT + 8);
+        long w2 = recordBuffer.getLong(KEY_AT + 16), w3 = recordBuffer.getLong(KEY_AT + 24);
+        int len = recordBuffer.getShort(DOMAIN_LENGTH_AT);
+        long h = hash(w0, w1, w2, w3, record, DOMAIN_AT, len);
+        if (record[TYPE_AT] == DELETED) {
+            long slot = findSlot(h, w0, w1, w2, w3, record, DOMAIN_AT, len);
+            if (slot >= 0) {
+                index.putLong(slotAt(slot), (h & ~TOMBSTONE) | TOMBSTONE);
+                size--;
+            }
+        } else {
+            put(h, n, w0, w1, w2, w3, record, DOMAIN_AT, len);
+        }
+    }
+
+    private void put(long h, long n, long w0, long w1, long w2, long w3, byte[] d, int off, int len)
+            throws IOException {
+        long mask = capacity - 1;
+        long free = -1;
+        for (long i = h & mask; ; i = (i + 1) & mask) {
+            long slot = index.getLong(slotAt(i));
+            if (slot == 0) {
+                if (free < 0) free = i;
+                break;
+            }
+            if ((slot & TOMBSTONE) == TOMBSTONE) {
+                if (free < 0) free = i;
+            } else if (fingerprintMatches(slot, h) && matches(recordOf(slot), w0, w1, w2, w3, d, off, len)) {
+                index.putLong(slotAt(i), (h & ~TOMBSTONE) | (n + 1));
+                return;
+            }
+        }
+        if (index.getLong(slotAt(free)) == 0) {
+            // taking an empty slot: keep the index at most half used
+            if ((used + 1) * 2 > capacity) {
+                rehash(size + 1 > capacity / 4 ? capacity * 2 : capacity);
+                put(h, n, w0, w1, w2, w3, d, off, len);
+                return;
+            }
+            used++;
+        }
+        index.putLong(slotAt(free), (h & ~TOMBSTONE) | (n + 1));
+        size++;
+    }
+
+    /**
+     * @return the index slot of the live record for this domain and key, or -1
+     */
+    private long findSlot(long h, long w0, long w1, long w2, long w3, byte[] d, int off, int len) {
+        long mask = capacity - 1;
+        for (long i = h & mask; ; i = (i + 1) & mask) {
+            long slot = index.getLong(slotAt(i));
+            if (slot == 0) return -1;
+            if ((slot & TOMBSTONE) != TOMBSTONE && fingerprintMatches(slot, h)
+                    && matches(recordOf(slot), w0, w1, w2, w3, d, off, len)) {
+                return i;
+            }
+        }
+    }
+
+    private boolean matches(long n, long w0, long w1, long w2, long w3, byte[] d, int off, int len) {
+        long at = offset(n);
+        if (log.getLong(at + KEY_AT) != w0 || log.getLong(at + KEY_AT + 8) != w1
+                || log.getLong(at + KEY_AT + 16) != w2 || log.getLong(at + KEY_AT + 24) != w3) {
+            return false;
+        }
+        if (log.getShort(at + DOMAIN_LENGTH_AT) != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (log.get(at + DOMAIN_AT + i) != d[off + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the identity of record n, or null if it is a deletion or was superseded
+     */
+    private SQRLAnonymousPrincipal live(long n) {
+        long at = offset(n);
+        if (log.get(at + TYPE_AT) == DELETED) return null;
+        int len = log.getShort(at + DOMAIN_LENGTH_AT);
+        byte[] d = new byte[len];
+        log.get(at + DOMAIN_AT, d, 0, len);
+        long w0 = log.getLong(at + KEY_AT), w1 = log.getLong(at + KEY_AT + 8);
+        long w2 = log.getLong(at + KEY_AT + 16), w3 = log.getLong(at + KEY_AT + 24);
+        long slot = findSlot(hash(w0, w1, w2, w3, d, 0, len), w0, w1, w2, w3, d, 0, len);
+        if (slot < 0 || recordOf(index.getLong(slotAt(slot))) != n) return null;
+        return read(n, new String(d, UTF8));
+    }
+
+    private SQRLAnonymousPrincipal read(long n, String domain) {
+        long at = offset(n);
+        byte[] key = new byte[SQRLKey.LENGTH];
+        log.get(at + KEY_AT, key, 0, key.length);
+        if (log.get(at + TYPE_AT) != LOCKED) return new SQRLAnonymousPrincipal(domain, key);
+
+        byte[] unlock = new byte[SQRLKey.LENGTH];
+        byte[] verifier = new byte[SQRLKey.LENGTH];
+        log.get(at + UNLOCK_AT, unlock, 0, unlock.length);
+        log.get(at + VERIFIER_AT, verifier, 0, verifier.length);
+        return new IdLockPrincipal(domain, key, unlock, verifier);
+    }
+
+    /**
+     * Rebuilds the index into a new file of the given capacity, dropping tombstones.
+     */
+    private void rehash(long newCapacity) throws IOException {
+        MappedFile oldIndex = index;
+        long oldCapacity = capacity;
+        File tmp = new File(directory, indexFile(generation).getName() + ".tmp");
+        index = createIndex(tmp, newCapacity, seed);
+        capacity = newCapacity;
+        size = 0;
+        used = 0;
+        for (long i = 0; i < oldCapacity; i++) {
+            long slot = oldIndex.getLong(slotAt(i));
+            if (slot == 0 || (slot & TOMBSTONE) == TOMBSTONE) continue;
+            long mask = capacity - 1;
+            long j = rehashOf(recordOf(slot)) & mask;
+            while (index.getLong(slotAt(j)) != 0) j = (j + 1) & mask;
+            index.putLong(slotAt(j), slot);
+            size++;
+            used++;
+        }
+        oldIndex.close();
+        rename(tmp, indexFile(generation));
+    }
+
+    private long rehashOf(long n) {
+        long at = offset(n);
+        int len = log.getShort(at + DOMAIN_LENGTH_AT);
+        byte[] d = new byte[len];
+        log.get(at + DOMAIN_AT, d, 0, len);
+        return hash(log.getLong(at + KEY_AT), log.getLong(at + KEY_AT + 8), log.getLong(at + KEY_AT + 16),
+                log.getLong(at + KEY_AT + 24), d, 0, len);
+    }
+
+    private void openIndex() throws IOException {
+        File file = indexFile(generation);
+        if (!file.exists()) return;
+        MappedFile mapped = new MappedFile(file, INDEX_HEADER);
+        if (mapped.getLong(0) != INDEX_MAGIC) {
+            mapped.close();
+            return;
+        }
+        index = mapped;
+        seed = index.getLong(SEED_AT);
+        capacity = index.getLong(CAPACITY_AT);
+        size = index.getLong(SIZE_AT);
+        used = index.getLong(USED_AT);
+        records = log.getLong(LOG_COUNT_AT);
+    }
+
+    /**
+     * Replays the log into a new index, up to the first record that is not intact, and wipes what follows.
+     */
+    private void recover() throws IOException {
+        createIndex(MIN_CAPACITY, new SecureRandom().nextLong());
+        records = 0;
+        long at;
+        while ((at = offset(records)) + RECORD_SIZE <= log.length()) {
+            log.get(at, record, 0, RECORD_SIZE);
+            if (!intact()) break;
+            apply(records);
+            records++;
+        }
+        // records written after a torn one must not be picked up by a later recovery
+        byte[] zeros = new byte[RECORD_SIZE];
+        for (at = offset(records); at + RECORD_SIZE <= log.length(); at += RECORD_SIZE) {
+            log.get(at, record, 0, RECORD_SIZE);
+            if (Arrays.equals(record, zeros)) break;
+            log.put(at, zeros, 0, RECORD_SIZE);
+        }
+        log.putLong(LOG_COUNT_AT, records);
+    }
+
+    private boolean intact() {
+        byte type = record[TYPE_AT];
+        if (type != ANONYMOUS && type != LOCKED && type != DELETED) return false;
+        int len = recordBuffer.getShort(DOMAIN_LENGTH_AT);
+        if (len < 0 || len > MAX_DOMAIN_BYTES) return false;
+        crc.reset();
+        crc.update(record, TYPE_AT, RECORD_SIZE - TYPE_AT);
+        return recordBuffer.getInt(CRC_AT) == (int) crc.getValue();
+    }
+
+    private void createIndex(long newCapacity, long newSeed) throws IOException {
+        File file = indexFile(generation);
+        if (file.exists() && !file.delete()) throw new IOException("cannot delete " + file);
+        index = createIndex(file, newCapacity, newSeed);
+        seed = newSeed;
+        capacity = newCapacity;
+        size = 0;
+        used = 0;
+    }
+
+    private static MappedFile createIndex(File file, long capacity, long seed) throws IOException {
+        MappedFile mapped = new MappedFile(file, INDEX_HEADER + 8 * capacity);
+        mapped.putLong(0, INDEX_MAGIC);
+        mapped.putLong(SEED_AT, seed);
+        mapped.putLong(CAPACITY_AT, capacity);
+        return mapped;
+    }
+
+    private void writeIndexHeader() {
+        index.putLong(SIZE_AT, size);
+        index.putLong(USED_AT, used);
+    }
+
+    private static long capacityFor(long identities) {
+        long capacity = MIN_CAPACITY;
+        while (capacity < identities * 3) capacity <<= 1;
+        return capacity;
+    }
+
+    private static long offset(long n) {
+        return RECORD_SIZE * (n + 1);
+    }
+
+    private static long slotAt(long i) {
+        return INDEX_HEADER + 8 * i;
+    }
+
+    private static long recordOf(long slot) {
+        return (slot & TOMBSTONE) - 1;
+    }
+
+    private static boolean fingerprintMatches(long slot, long h) {
+        return ((slot ^ h) & ~TOMBSTONE) == 0;
+    }
+
+    /**
+     * Seeded per store and kept in the index header, since the index outlives the JVM.
+     */
+    private long hash(long w0, long w1, long w2, long w3, byte[] d, int off, int len) {
+        long h = seed;
+        for (int i = 0; i < len; i++) {
+            h = (h ^ d[off + i]) * 0x100000001B3L;
+        }
+        h = (h ^ w0) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w1 ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ w2 ^ (h >>> 32)) * 0x94D049BB133111EBL;
+        h = (h ^ w3 ^ (h >>> 29)) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, "identities." + generation + ".log");
+    }
+
+    private File indexFile(long generation) {
+        return new File(directory, "identities." + generation + ".idx");
+    }
+
+    private long readCurrent() throws IOException {
+        File current = new File(directory, "CURRENT");
+        if (!current.exists()) return 0;
+        RandomAccessFile in = new RandomAccessFile(current, "r");
+        try {
+            byte[] bytes = new byte[(int) Math.min(in.length(), 64)];
+            in.readFully(bytes);
+            return Long.parseLong(new String(bytes, UTF8).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("corrupt " + current, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCurrent(long generation) throws IOException {
+        File tmp = new File(directory, "CURRENT.tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(Long.toString(generation).getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        rename(tmp, new File(directory, "CURRENT"));
+    }
+
+    /**
+     * Replaces a file by another, atomically where rename is, as on POSIX file systems.
+     */
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) throw new IOException("cannot rename " + from + " to " + to);
+    }
+
+    /**
+     * the files of an interrupted compaction, or of the generation before a completed one
+     */
+    private void deleteOtherGenerations() {
+        String log = logFile(generation).getName();
+        String idx = indexFile(generation).getName();
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("identities.") && !name.equals(log) && !name.equals(idx)) {
+                file.delete();
+            }
+        }
+    }
+}
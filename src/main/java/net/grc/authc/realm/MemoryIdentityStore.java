@@ -0,0 +1,206 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Identities held in memory, in open addressed tables split into lock striped segments.
+ * <p/>
+ * Logins read far more often than identities are registered, so {@link #find} takes no lock: it probes the
+ * segment's current table with volatile reads until it meets the identity or an empty slot. Writers lock their
+ * segment, update slots in place and publish a grown table only once it is filled. A reader on the table a
+ * writer just replaced sees the store as it was before that write. Removed slots are marked rather than
+ * emptied so probe chains stay intact, and are dropped when the segment next rehashes.
+ */
+public class MemoryIdentityStore implements IdentityStore {
+    public static final int DEFAULT_EXPECTED_IDENTITIES = 1 << 12;
+
+    private static final int SEGMENT_BITS = 8;
+    private static final int MIN_TABLE = 16;
+    private static final Object TOMBSTONE = new Object();
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public MemoryIdentityStore() {
+        this(DEFAULT_EXPECTED_IDENTITIES);
+    }
+
+    public MemoryIdentityStore(int expectedIdentities) {
+        if (expectedIdentities < 0) throw new IllegalArgumentException("expectedIdentities=" + expectedIdentities);
+        int perSegment = (expectedIdentities >>> SEGMENT_BITS) + 1;
+        int capacity = MIN_TABLE;
+        while (capacity < perSegment * 4 / 3 + 1) capacity <<= 1;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal find(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        int h = hash(domain, key);
+        return segmentFor(h).find(h, domain, key);
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal add(SQRLAnonymousPrincipal identity) {
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        int h = hash(identity.getDomain(), identity.getKey());
+        return segmentFor(h).put(h, identity, true);
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal save(SQRLAnonymousPrincipal identity) {
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        int h = hash(identity.getDomain(), identity.getKey());
+        return segmentFor(h).put(h, identity, false);
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal remove(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        int h = hash(domain, key);
+        return segmentFor(h).remove(h, domain, key);
+    }
+
+    /**
+     * the number of identities, exact only when no writes are in progress
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[h >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * The key's hash is seeded and well mixed; the domain is usually one of a few. High bits pick the segment, low
+     * bits the slot.
+     */
+    static int hash(String domain, SQRLKey key) {
+        int h = (domain.hashCode() * 31) ^ key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static boolean matches(SQRLAnonymousPrincipal identity, String domain, SQRLKey key) {
+        return identity.getKey().equals(key) && identity.getDomain().equals(domain);
+    }
+
+    private static final class Segment extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        volatile AtomicReferenceArray<Object> table;
+        // live identities, written under the lock
+        volatile int size;
+        // live identities and tombstones, guarded by the lock
+        int used;
+
+        Segment(int capacity) {
+            table = new AtomicReferenceArray<Object>(capacity);
+        }
+
+        SQRLAnonymousPrincipal find(int h, String domain, SQRLKey key) {
+            AtomicReferenceArray<Object> t = table;
+            int mask = t.length() - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Object o = t.get(i);
+                if (o == null) return null;
+                if (o != TOMBSTONE && matches((SQRLAnonymousPrincipal) o, domain, key)) {
+                    return (SQRLAnonymousPrincipal) o;
+                }
+            }
+        }
+
+        SQRLAnonymousPrincipal put(int h, SQRLAnonymousPrincipal identity, boolean onlyIfAbsent) {
+            String domain = identity.getDomain();
+            SQRLKey key = identity.getKey();
+            lock();
+            try {
+                AtomicReferenceArray<Object> t = table;
+                int mask = t.length() - 1;
+                int free = -1;
+                for (int i = h & mask; ; i = (i + 1) & mask) {
+                    Object o = t.get(i);
+                    if (o == null) {
+                        if (free < 0) free = i;
+                        break;
+                    }
+                    if (o == TOMBSTONE) {
+                        if (free < 0) free = i;
+                    } else if (matches((SQRLAnonymousPrincipal) o, domain, key)) {
+                        if (!onlyIfAbsent) t.set(i, identity);
+                        return (SQRLAnonymousPrincipal) o;
+                    }
+                }
+
+                if (t.get(free) == null) {
+                    // taking an empty slot: keep the table at most three quarters used
+                    if ((used + 1) * 4 > t.length() * 3) {
+                        t = rehash(t);
+                        free = emptySlot(t, h);
+                    }
+                    used++;
+                }
+                t.set(free, identity);
+                size = size + 1;
+                return null;
+            } finally {
+                unlock();
+            }
+        }
+
+        SQRLAnonymousPrincipal remove(int h, String domain, SQRLKey key) {
+            lock();
+            try {
+                AtomicReferenceArray<Object> t = table;
+                int mask = t.length() - 1;
+                for (int i = h & mask; ; i = (i + 1) & mask) {
+                    Object o = t.get(i);
+                    if (o == null) return null;
+                    if (o != TOMBSTONE && matches((SQRLAnonymousPrincipal) o, domain, key)) {
+                        t.set(i, TOMBSTONE);
+                        size = size - 1;
+                        return (SQRLAnonymousPrincipal) o;
+                    }
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Copies the live identities into a new table, twice the size unless most of the old one was tombstones,
+         * and publishes it.
+         */
+        private AtomicReferenceArray<Object> rehash(AtomicReferenceArray<Object> old) {
+            int capacity = old.length();
+            if ((size + 1) * 8 > capacity * 3) capacity <<= 1;
+            AtomicReferenceArray<Object> t = new AtomicReferenceArray<Object>(capacity);
+            for (int i = 0; i < old.length(); i++) {
+                Object o = old.get(i);
+                if (o != null && o != TOMBSTONE) {
+                    SQRLAnonymousPrincipal identity = (SQRLAnonymousPrincipal) o;
+                    t.set(emptySlot(t, hash(identity.getDomain(), identity.getKey())), identity);
+                }
+            }
+            used = size;
+            table = t;
+            return t;
+        }
+
+        private static int emptySlot(AtomicReferenceArray<Object> t, int h) {
+            int mask = t.length() - 1;
+            int i = h & mask;
+            while (t.get(i) != null) i = (i + 1) & mask;
+            return i;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.cache.SQRLCache;
+import net.grc.authc.cache.SQRLCacheManager;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded {@link SQRLCache} in front of an {@link IdentityPersistence}.
+ * <p/>
+ * Lookups are answered from the cache; a miss is loaded from persistence and cached. The cache holds the
+ * identities most used, not all of them, so the heap stays bounded however many identities persistence holds.
+ * Writes go to the cache and either straight through to persistence, or, given a flush delay, behind it: the latest
+ * write for each identity is queued and a background thread flushes the queue every delay, so an identity saved
+ * several times between flushes is stored once. A queued write is found even once the cache has dropped it, and a
+ * queued removal hides the identity from lookups until it has been flushed.
+ * <p/>
+ * Loads and writes of one identity hold one of a fixed set of locks, chosen by domain and key, so that registering
+ * an identity is atomic and a load never caches a copy older than a write that raced it.
+ * <p/>
+ * Write-behind trades durability of the last delay's registrations for login latency; call {@link #close} on
+ * shutdown.
+ */
+public class PersistentIdentityStore implements IdentityStore, Closeable {
+    public static final int DEFAULT_MAXIMUM_SIZE = SQRLCacheManager.DEFAULT_MAXIMUM_SIZE;
+
+    private static final Object REMOVED = new Object();
+    private static final int LOCK_STRIPES = 64;
+
+    // keyed on a plain principal for its domain and key; null if nothing is cached
+    private final SQRLCache<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal> cache;
+    private final IdentityPersistence persistence;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    // write-behind: the identity to store, or REMOVED, keyed like the cache
+    private final ConcurrentMap<SQRLAnonymousPrincipal, Object> pending;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * write-through, caching up to {@link #DEFAULT_MAXIMUM_SIZE} identities
+     */
+    public PersistentIdentityStore(IdentityPersistence persistence) {
+        this(persistence, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * write-through
+     *
+     * @param maximumSize how many identities are cached; 0 to look every one up in persistence
+     */
+    public PersistentIdentityStore(IdentityPersistence persistence, int maximumSize) {
+        this(persistence, maximumSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * write-behind, flushed every flushDelay; write-through if 0
+     */
+    public PersistentIdentityStore(IdentityPersistence persistence, int maximumSize,
+                                   long flushDelay, TimeUnit unit) {
+        if (persistence == null) throw new IllegalArgumentException("persistence=null");
+        if (maximumSize < 0) throw new IllegalArgumentException("maximumSize=" + maximumSize);
+        if (flushDelay < 0) throw new IllegalArgumentException("flushDelay=" + flushDelay);
+        this.persistence = persistence;
+        this.cache = maximumSize == 0 ? null : new SQRLCache<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal>(
+                "identities", maximumSize, 0, 0, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+
+        if (flushDelay == 0) {
+            pending = null;
+            flusher = null;
+        } else {
+            pending = new ConcurrentHashMap<SQRLAnonymousPrincipal, Object>();
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sqrl-identity-flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        // unflushed writes stay queued for the next attempt
+                    }
+                }
+            }, flushDelay, flushDelay, unit);
+        }
+    }
+
+    public boolean isWriteBehind() {
+        return pending != null;
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal find(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        SQRLAnonymousPrincipal id = new SQRLAnonymousPrincipal(domain, key);
+        SQRLAnonymousPrincipal identity = cache != null ? cache.get(id) : null;
+        if (identity != null) return identity;
+        synchronized (lockFor(id)) {
+            return load(id);
+        }
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal add(SQRLAnonymousPrincipal identity) {
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        SQRLAnonymousPrincipal id = plain(identity);
+        synchronized (lockFor(id)) {
+            SQRLAnonymousPrincipal existing = current(id);
+            if (existing != null) return existing;
+            write(id, identity);
+            if (cache != null) cache.put(id, identity);
+            return null;
+        }
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal save(SQRLAnonymousPrincipal identity) {
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        SQRLAnonymousPrincipal id = plain(identity);
+        synchronized (lockFor(id)) {
+            SQRLAnonymousPrincipal previous = current(id);
+            write(id, identity);
+            if (cache != null) cache.put(id, identity);
+            return previous;
+        }
+    }
+
+    @Override
+    public SQRLAnonymousPrincipal remove(String domain, SQRLKey key) {
+        if (domain == null || key == null) return null;
+        SQRLAnonymousPrincipal id = new SQRLAnonymousPrincipal(domain, key);
+        synchronized (lockFor(id)) {
+            SQRLAnonymousPrincipal previous = current(id);
+            if (pending == null) {
+                persistence.delete(domain, key);
+            } else {
+                pending.put(id, REMOVED);
+            }
+            if (cache != null) cache.remove(id);
+            return previous;
+        }
+    }
+
+    /**
+     * Writes out every queued write. Writes queued meanwhile for the same identity stay queued, and a failed
+     * write stays queued with everything after it.
+     */
+    public synchronized void flush() {
+        if (pending == null) return;
+        for (Map.Entry<SQRLAnonymousPrincipal, Object> entry : pending.entrySet()) {
+            SQRLAnonymousPrincipal id = entry.getKey();
+            Object write = entry.getValue();
+            if (write == REMOVED) {
+                persistence.delete(id.getDomain(), id.getKey());
+            } else {
+                persistence.store((SQRLAnonymousPrincipal) write);
+            }
+            // only once written, so that a lookup never falls through to a stale persistent copy
+            pending.remove(id, write);
+        }
+    }
+
+    /**
+     * the number of identities waiting to be written
+     */
+    public int pendingWrites() {
+        return pending == null ? 0 : pending.size();
+    }
+
+    /**
+     * Flushes and stops the background thread.
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * the identity from the queued writes or persistence, cached; called holding its lock
+     */
+    private SQRLAnonymousPrincipal load(SQRLAnonymousPrincipal id) {
+        if (pending != null) {
+            Object write = pending.get(id);
+            if (write == REMOVED) return null;
+            if (write != null) return (SQRLAnonymousPrincipal) write;
+        }
+        SQRLAnonymousPrincipal identity = persistence.load(id.getDomain(), id.getKey());
+        if (identity != null && cache != null) cache.put(id, identity);
+        return identity;
+    }
+
+    private SQRLAnonymousPrincipal current(SQRLAnonymousPrincipal id) {
+        SQRLAnonymousPrincipal identity = cache != null ? cache.get(id) : null;
+        return identity != null ? identity : load(id);
+    }
+
+    private void write(SQRLAnonymousPrincipal id, SQRLAnonymousPrincipal identity) {
+        if (pending == null) {
+            persistence.store(identity);
+        } else {
+            pending.put(id, identity);
+        }
+    }
+
+    private Object lockFor(SQRLAnonymousPrincipal id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * a locked identity's hash and equality take in its lock, so keys are plain principals
+     */
+    private static SQRLAnonymousPrincipal plain(SQRLAnonymousPrincipal identity) {
+        if (identity.getClass() == SQRLAnonymousPrincipal.class) return identity;
+        return new SQRLAnonymousPrincipal(identity.getDomain(), identity.getKey());
+    }
+}
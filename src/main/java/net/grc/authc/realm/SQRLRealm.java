@@ -0,0 +1,297 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.cache.SQRLCache;
+import net.grc.authc.cache.SQRLCacheManager;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLCredentialsMatcher;
+import net.grc.authc.credential.SQRLPrincipalCollection;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.credential.CredentialsMatcher;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.CacheManager;
+import org.apache.shiro.realm.AuthenticatingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticates {@link SQRLToken}s against the identities in an {@link IdentityStore}.
+ * <p/>
+ * The stored principal, anonymous or locked, is returned as the account in a {@link SQRLPrincipalCollection},
+ * so that the credentials matcher finds it by hash and checks the signature with the key it already decoded. An
+ * unknown identity is not an account unless {@link #setRegisterNewIdentities registration} is on, in which case
+ * the first correctly signed login registers it.
+ * <p/>
+ * With a {@link SQRLCacheManager} and authentication caching enabled, identities are looked up
+ * in the cache by domain and key before the store, and a {@link SQRLCache} also remembers the identities the store
+ * does not know. Change identities through {@link #register}, {@link #save} and {@link #remove} so that the cached
+ * ones are dropped and the {@link IdentityListener}s hear of it, e.g. when an id is locked. A session can be
+ * {@link #bindSession bound} to an identity, and then resolves to its current form.
+ */
+public class SQRLRealm extends AuthenticatingRealm {
+    public static final String SESSION_IDENTITY_CACHE_SUFFIX = ".sessionIdentityCache";
+
+    private static final LatencyHistogram LOOKUP = Metrics.histogram("sqrl.realm.lookup");
+
+    public interface IdentityListener {
+        /**
+         * Called after the store changed an identity and the caches dropped it.
+         *
+         * @param previous the identity as it was, null if it was unknown
+         * @param current the identity now stored, null if it was removed
+         */
+        void identityChanged(SQRLAnonymousPrincipal previous, SQRLAnonymousPrincipal current);
+    }
+
+    private final IdentityStore identities;
+    private final List<IdentityListener> listeners = new CopyOnWriteArrayList<IdentityListener>();
+
+    private boolean registerNewIdentities;
+    private volatile Cache<Object, SQRLAnonymousPrincipal> sessionIdentities;
+
+    public SQRLRealm() {
+        this(new MemoryIdentityStore());
+    }
+
+    public SQRLRealm(IdentityStore identities) {
+        this(identities, new SQRLCredentialsMatcher());
+    }
+
+    public SQRLRealm(IdentityStore identities, CredentialsMatcher matcher) {
+        super(matcher);
+        if (identities == null) throw new IllegalArgumentException("identities=null");
+        this.identities = identities;
+        setAuthenticationTokenClass(SQRLToken.class);
+    }
+
+    public IdentityStore getIdentityStore() {
+        return identities;
+    }
+
+    public boolean isRegisterNewIdentities() {
+        return registerNewIdentities;
+    }
+
+    /**
+     * When set, a correctly signed login by an unknown identity adds it to the store.
+     */
+    public void setRegisterNewIdentities(boolean registerNewIdentities) {
+        this.registerNewIdentities = registerNewIdentities;
+    }
+
+    /**
+     * Adds an identity, e.g. from an enrolment flow outside of login, and tells the listeners if it is new.
+     *
+     * @return the identity already stored with the same domain and key, or null
+     */
+    public SQRLAnonymousPrincipal register(SQRLAnonymousPrincipal identity) {
+        SQRLAnonymousPrincipal existing = identities.add(identity);
+        if (existing == null) {
+            invalidate(identity);
+            fireChanged(null, identity);
+        }
+        return existing;
+    }
+
+    /**
+     * Adds or replaces an identity, e.g. with its {@link net.grc.authc.credential.IdLockPrincipal locked} form,
+     * and drops the cached one.
+     *
+     * @return the identity replaced, or null
+     */
+    public SQRLAnonymousPrincipal save(SQRLAnonymousPrincipal identity) {
+        SQRLAnonymousPrincipal previous = identities.save(identity);
+        invalidate(identity);
+        fireChanged(previous, identity);
+        return previous;
+    }
+
+    /**
+     * @return the identity removed, or null if unknown
+     */
+    public SQRLAnonymousPrincipal remove(SQRLAnonymousPrincipal identity) {
+        SQRLAnonymousPrincipal previous = identities.remove(identity.getDomain(), identity.getKey());
+        invalidate(identity);
+        if (previous != null) fireChanged(previous, null);
+        return previous;
+    }
+
+    public void addIdentityListener(IdentityListener listener) {
+        if (listener == null) throw new IllegalArgumentException("listener=null");
+        listeners.add(listener);
+    }
+
+    public void removeIdentityListener(IdentityListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Remembers which identity logged the session in, until it is unbound or the bounded cache gives it up.
+     */
+    @SuppressWarnings("unchecked")
+    public void bindSession(Object sessionId, SQRLAnonymousPrincipal identity) {
+        if (sessionId == null) throw new IllegalArgumentException("sessionId=null");
+        if (identity == null) throw new IllegalArgumentException("identity=null");
+        Cache<Object, SQRLAnonymousPrincipal> cache = getSessionIdentityCache();
+        if (cache instanceof SQRLCache) {
+            // for as long as the session is used, not the time to live of a lookup
+            ((SQRLCache<Object, SQRLAnonymousPrincipal>) cache).put(sessionId, identityKey(identity), 0,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            cache.put(sessionId, identityKey(identity));
+        }
+    }
+
+    public void unbindSession(Object sessionId) {
+        if (sessionId != null) getSessionIdentityCache().remove(sessionId);
+    }
+
+    /**
+     * @return the identity as now stored, locked perhaps, or null if the session is not bound or the identity
+     * was removed
+     */
+    public SQRLAnonymousPrincipal getSessionIdentity(Object sessionId) {
+        if (sessionId == null) return null;
+        SQRLAnonymousPrincipal key = getSessionIdentityCache().get(sessionId);
+        if (key == null) return null;
+        Cache<Object, AuthenticationInfo> cache = authenticationCache();
+        AuthenticationInfo info = cache == null ? null : cache.get(key);
+        if (info != null) return (SQRLAnonymousPrincipal) info.getPrincipals().getPrimaryPrincipal();
+        return identities.find(key.getDomain(), key.getKey());
+    }
+
+    /**
+     * The session to identity cache, from the cache manager, or a {@link SQRLCacheManager} default without one.
+     */
+    public Cache<Object, SQRLAnonymousPrincipal> getSessionIdentityCache() {
+        Cache<Object, SQRLAnonymousPrincipal> cache = sessionIdentities;
+        if (cache == null) {
+            synchronized (this) {
+                cache = sessionIdentities;
+                if (cache == null) {
+                    CacheManager manager = getCacheManager();
+                    if (manager == null) manager = new SQRLCacheManager();
+                    cache = manager.getCache(getName() + SESSION_IDENTITY_CACHE_SUFFIX);
+                    sessionIdentities = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    protected void afterCacheManagerSet() {
+        super.afterCacheManagerSet();
+        sessionIdentities = null;
+    }
+
+    @Override
+    protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
+        SQRLAnonymousPrincipal presented = (SQRLAnonymousPrincipal) token.getPrincipal();
+        SQRLCache<Object, AuthenticationInfo> negative = negativeCache();
+        Object cacheKey = identityKey(presented);
+        // Shiro has just missed the cache for this key: a negative entry is what it found
+        if (negative != null && negative.wasUnknown(cacheKey)) return unknown(presented);
+
+        long start = System.nanoTime();
+        SQRLAnonymousPrincipal known = identities.find(presented.getDomain(), presented.getKey());
+        LOOKUP.recordSince(start);
+        if (known == null) {
+            if (negative != null) negative.markUnknown(cacheKey);
+            return unknown(presented);
+        }
+        return account(known);
+    }
+
+    /**
+     * Never caches the presented identity of a login that may register it: until the signature checks out it is
+     * not an account.
+     */
+    @Override
+    protected boolean isAuthenticationCachingEnabled(AuthenticationToken token, AuthenticationInfo info) {
+        return super.isAuthenticationCachingEnabled(token, info)
+                && info.getPrincipals().getPrimaryPrincipal() != token.getPrincipal();
+    }
+
+    /**
+     * the identity's domain and key, whether it is anonymous or locked
+     */
+    @Override
+    protected Object getAuthenticationCacheKey(AuthenticationToken token) {
+        return identityKey((SQRLAnonymousPrincipal) token.getPrincipal());
+    }
+
+    @Override
+    protected Object getAuthenticationCacheKey(PrincipalCollection principals) {
+        Object primary = principals.getPrimaryPrincipal();
+        return primary instanceof SQRLAnonymousPrincipal ? identityKey((SQRLAnonymousPrincipal) primary) : primary;
+    }
+
+    @Override
+    protected void assertCredentialsMatch(AuthenticationToken token, AuthenticationInfo info)
+            throws AuthenticationException {
+        super.assertCredentialsMatch(token, info);
+        Object principal = info.getPrincipals().getPrimaryPrincipal();
+        if (principal == token.getPrincipal()) {
+            register((SQRLAnonymousPrincipal) principal);
+        }
+    }
+
+    private AuthenticationInfo unknown(SQRLAnonymousPrincipal presented) {
+        if (!registerNewIdentities) return null;
+        // registered by assertCredentialsMatch once the signature checks out
+        return account(presented);
+    }
+
+    /**
+     * Set rather than passed to the constructor, which would copy the principals into a plain collection.
+     */
+    private AuthenticationInfo account(SQRLAnonymousPrincipal identity) {
+        SimpleAuthenticationInfo info = new SimpleAuthenticationInfo();
+        info.setPrincipals(new SQRLPrincipalCollection(identity, getName()));
+        return info;
+    }
+
+    private void invalidate(SQRLAnonymousPrincipal identity) {
+        Cache<Object, AuthenticationInfo> cache = authenticationCache();
+        if (cache != null) cache.remove(identityKey(identity));
+    }
+
+    private void fireChanged(SQRLAnonymousPrincipal previous, SQRLAnonymousPrincipal current) {
+        for (IdentityListener listener : listeners) listener.identityChanged(previous, current);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SQRLCache<Object, AuthenticationInfo> negativeCache() {
+        Cache<Object, AuthenticationInfo> cache = authenticationCache();
+        return cache instanceof SQRLCache ? (SQRLCache<Object, AuthenticationInfo>) cache : null;
+    }
+
+    /**
+     * the authentication cache, created as Shiro would if caching is on but no login has used it yet
+     */
+    private Cache<Object, AuthenticationInfo> authenticationCache() {
+        Cache<Object, AuthenticationInfo> cache = getAuthenticationCache();
+        if (cache == null && isAuthenticationCachingEnabled() && getCacheManager() != null) {
+            cache = getCacheManager().getCache(getAuthenticationCacheName());
+            setAuthenticationCache(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * An anonymous principal of the identity's domain and key: equal for its anonymous and its locked form.
+     */
+    private static SQRLAnonymousPrincipal identityKey(SQRLAnonymousPrincipal identity) {
+        if (identity.getClass() == SQRLAnonymousPrincipal.class) return identity;
+        return new SQRLAnonymousPrincipal(identity.getDomain(), identity.getKey());
+    }
+}
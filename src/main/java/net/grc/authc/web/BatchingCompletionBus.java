@@ -0,0 +1,134 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces published completions for a batch delay and hands each batch to {@link #send} in one go, so that a
+ * burst of logins costs one message rather than one per nut. With no delay every completion is sent as it is
+ * published, on the publishing thread.
+ */
+public abstract class BatchingCompletionBus implements CompletionBus {
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final long batchDelayMillis;
+    private final ScheduledThreadPoolExecutor sender;
+
+    // guarded by this
+    private Map<String, PrincipalCollection> batch;
+    private boolean closed;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // the batch is lost; waiting browsers time out and poll again
+            }
+        }
+    };
+
+    protected BatchingCompletionBus(long batchDelay, TimeUnit unit) {
+        if (batchDelay < 0) throw new IllegalArgumentException("batchDelay=" + batchDelay);
+        this.batchDelayMillis = unit.toMillis(batchDelay);
+        if (batchDelayMillis == 0) {
+            sender = null;
+        } else {
+            sender = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sqrl-completion-send");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // close() sends the last batch itself
+            sender.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+    }
+
+    @Override
+    public void publish(String nut, PrincipalCollection principals) {
+        if (nut == null) throw new IllegalArgumentException("nut=null");
+        if (principals == null) throw new IllegalArgumentException("principals=null");
+        if (sender == null) {
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("closed");
+            }
+            send(Collections.singletonMap(nut, principals));
+            return;
+        }
+
+        boolean first;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("closed");
+            first = batch == null;
+            if (first) batch = new LinkedHashMap<String, PrincipalCollection>();
+            batch.put(nut, principals);
+        }
+        if (first) sender.schedule(flush, batchDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) throw new IllegalArgumentException("subscriber=null");
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Sends the current batch now.
+     */
+    public void flush() {
+        Map<String, PrincipalCollection> sending;
+        synchronized (this) {
+            sending = batch;
+            batch = null;
+        }
+        if (sending != null) send(sending);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (sender != null) {
+            sender.shutdown();
+            try {
+                sender.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends a batch to every node, this one included.
+     */
+    protected abstract void send(Map<String, PrincipalCollection> batch);
+
+    /**
+     * Hands a batch to this node's subscribers.
+     */
+    protected void deliver(Map<String, PrincipalCollection> batch) {
+        if (batch.isEmpty()) return;
+        Map<String, PrincipalCollection> readOnly = Collections.unmodifiableMap(batch);
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.completed(readOnly);
+            } catch (RuntimeException e) {
+                // one failing subscriber does not keep the batch from the others
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * Carries nut completions from the node the phone's request landed on to every node, so that a browser parked on
+ * any of them hears of it. Keyed by nut as in {@link LoginCompletions}, which subscribes to a bus to receive them.
+ * <p/>
+ * Publishing may be asynchronous; subscribers receive completions in batches, with at most one completion per
+ * nut.
+ */
+public interface CompletionBus extends Closeable {
+    interface Subscriber {
+        /**
+         * @param batch nut to principals, read only
+         */
+        void completed(Map<String, PrincipalCollection> batch);
+    }
+
+    void publish(String nut, PrincipalCollection principals);
+
+    void subscribe(Subscriber subscriber);
+
+    /**
+     * Sends anything still batched and stops.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,132 @@
+package net.grc.authc.web;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import net.grc.authc.credential.SQRLPrincipalCollection;
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Frames a batch of completions for a bus between nodes.
+ * <p/>
+ * frame: length of the rest | sending node | count | count x (nut | realms | realms x (realm | principals |
+ * principals x principal)), with strings in modified UTF-8. A principal is its type (1 anonymous, 2 id lock),
+ * domain, key and for an id lock the unlock key and verifier. Only SQRL principals can be framed: the receiving
+ * node rebuilds them as a {@link SQRLPrincipalCollection}, nothing is deserialized by class name.
+ */
+final class CompletionCodec {
+    static final int ANONYMOUS = 1;
+    static final int ID_LOCK = 2;
+    /**
+     * the longest frame body a reader takes
+     */
+    static final int MAX_FRAME = 16 << 20;
+
+    private CompletionCodec() {
+    }
+
+    /**
+     * @throws IllegalArgumentException for a principal that is not a SQRL id, or a frame longer than
+     *                                  {@link #MAX_FRAME}
+     */
+    static ByteBuffer encode(long node, Map<String, PrincipalCollection> batch) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 160 * batch.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeLong(node);
+            out.writeInt(batch.size());
+            byte[] key = new byte[SQRLKey.LENGTH];
+            for (Map.Entry<String, PrincipalCollection> completion : batch.entrySet()) {
+                out.writeUTF(completion.getKey());
+                PrincipalCollection principals = completion.getValue();
+                Collection<String> realms = principals.getRealmNames();
+                out.writeInt(realms.size());
+                for (String realm : realms) {
+                    Collection<?> fromRealm = principals.fromRealm(realm);
+                    out.writeUTF(realm);
+                    out.writeInt(fromRealm.size());
+                    for (Object principal : fromRealm) {
+                        if (!(principal instanceof SQRLAnonymousPrincipal)) {
+                            throw new IllegalArgumentException("not a SQRL principal: " + principal);
+                        }
+                        SQRLAnonymousPrincipal id = (SQRLAnonymousPrincipal) principal;
+                        boolean locked = id instanceof IdLockPrincipal;
+                        out.writeByte(locked ? ID_LOCK : ANONYMOUS);
+                        out.writeUTF(id.getDomain());
+                        id.getKey().copyTo(key, 0);
+                        out.write(key);
+                        if (locked) {
+                            IdLockPrincipal lock = (IdLockPrincipal) id;
+                            lock.getIdLockPublicKey().get(key);
+                            out.write(key);
+                            lock.getIdLockKeyVerifier().get(key);
+                            out.write(key);
+                        }
+                    }
+                }
+            }
+            out.flush();
+            if (bytes.size() - 4 > MAX_FRAME) {
+                throw new IllegalArgumentException("frame of " + (bytes.size() - 4) + " bytes for " + batch.size()
+                        + " completions");
+            }
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.remaining() - 4);
+            return frame;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes the frame body after the length into the batch.
+     *
+     * @return the sending node
+     * @throws IllegalArgumentException for a malformed frame
+     */
+    static long decode(byte[] body, int off, int len, Map<String, PrincipalCollection> into) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, off, len));
+            long node = in.readLong();
+            int count = in.readInt();
+            byte[] key = new byte[SQRLKey.LENGTH];
+            byte[] unlock = new byte[SQRLKey.LENGTH];
+            byte[] verifier = new byte[SQRLKey.LENGTH];
+            for (int i = 0; i < count; i++) {
+                String nut = in.readUTF();
+                SQRLPrincipalCollection principals = new SQRLPrincipalCollection();
+                for (int realms = in.readInt(); realms > 0; realms--) {
+                    String realm = in.readUTF();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        int type = in.readByte();
+                        String domain = in.readUTF();
+                        in.readFully(key);
+                        if (type == ID_LOCK) {
+                            in.readFully(unlock);
+                            in.readFully(verifier);
+                            principals.add(new IdLockPrincipal(domain, key, unlock, verifier), realm);
+                        } else if (type == ANONYMOUS) {
+                            principals.add(new SQRLAnonymousPrincipal(domain, SQRLKey.of(key)), realm);
+                        } else {
+                            throw new IllegalArgumentException("principal type " + type);
+                        }
+                    }
+                }
+                into.put(nut, principals);
+            }
+            return node;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated frame", e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.grc.authc.web;
+
+import net.grc.metrics.Counter;
+import net.grc.metrics.Metrics;
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bus through a file every node can reach, standing in for a message broker when trying several nodes on one
+ * machine.
+ * <p/>
+ * Each batch is one {@link CompletionCodec} frame appended with a single write in append mode, so frames from
+ * different nodes do not interleave. Every node reads the frames appended since it last looked once per poll
+ * interval and delivers those of other nodes as one batch; its own are delivered as they are sent. A node sees
+ * only what is appended after it opened the file, and the file is never truncated: delete it between runs.
+ * <p/>
+ * A frame that does not decode is skipped; after a length that cannot be right there is no telling where the next
+ * frame starts, so everything appended up to then is skipped.
+ */
+public class FileCompletionBus extends BatchingCompletionBus {
+    private static final int MAX_FRAME = CompletionCodec.MAX_FRAME;
+    private static final Counter SKIPPED = Metrics.counter("sqrl.completion.skipped");
+
+    private final long node = new SecureRandom().nextLong();
+    private final FileChannel out;
+    private final FileChannel in;
+    private final ScheduledExecutorService poller;
+
+    // guarded by this
+    private long offset;
+    private byte[] buffer = new byte[64 << 10];
+
+    public FileCompletionBus(File file, long batchDelay, long pollInterval, TimeUnit unit) {
+        super(batchDelay, unit);
+        if (file == null) throw new IllegalArgumentException("file=null");
+        if (pollInterval <= 0) throw new IllegalArgumentException("pollInterval=" + pollInterval);
+        try {
+            out = new FileOutputStream(file, true).getChannel();
+            in = new RandomAccessFile(file, "r").getChannel();
+            offset = in.size();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sqrl-completion-poll");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    // tried again next interval
+                }
+            }
+        }, pollInterval, pollInterval, unit);
+    }
+
+    /**
+     * Delivers what other nodes have appended since the last poll; called every poll interval.
+     */
+    public void poll() {
+        Map<String, PrincipalCollection> received = new LinkedHashMap<String, PrincipalCollection>();
+        synchronized (this) {
+            try {
+                long size = in.size();
+                while (size - offset >= 4) {
+                    int length = (int) Math.min(size - offset, MAX_FRAME + 4);
+                    if (buffer.length < length) buffer = new byte[Math.max(length, 2 * buffer.length)];
+                    ByteBuffer read = ByteBuffer.wrap(buffer, 0, length);
+                    while (read.hasRemaining()) {
+                        if (in.read(read, offset + read.position()) < 0) break;
+                    }
+                    int consumed = frames(read.position(), received);
+                    if (consumed < 0) {
+                        SKIPPED.increment();
+                        offset = size;
+                        break;
+                    }
+                    if (consumed == 0) break; // a frame still being written
+                    offset += consumed;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        deliver(received);
+    }
+
+    /**
+     * @return the bytes of whole frames decoded from the buffer, or -1 at a length out of range
+     */
+    private int frames(int length, Map<String, PrincipalCollection> received) {
+        int at = 0;
+        while (length - at >= 4) {
+            int frame = ByteBuffer.wrap(buffer, at, 4).getInt();
+            if (frame < 12 || frame > MAX_FRAME) return -1;
+            if (length - at - 4 < frame) break;
+            Map<String, PrincipalCollection> batch = new LinkedHashMap<String, PrincipalCollection>();
+            try {
+                if (CompletionCodec.decode(buffer, at + 4, frame, batch) != node) received.putAll(batch);
+            } catch (IllegalArgumentException e) {
+                SKIPPED.increment();
+            }
+            at += 4 + frame;
+        }
+        return at;
+    }
+
+    @Override
+    protected void send(Map<String, PrincipalCollection> batch) {
+        ByteBuffer frame;
+        try {
+            frame = CompletionCodec.encode(node, batch);
+        } catch (IllegalArgumentException e) {
+            if (batch.size() == 1) throw e;
+            // too long for one frame, or a completion that cannot be framed: the rest still goes
+            int half = batch.size() / 2;
+            Map<String, PrincipalCollection> first = new LinkedHashMap<String, PrincipalCollection>();
+            Map<String, PrincipalCollection> second = new LinkedHashMap<String, PrincipalCollection>();
+            for (Map.Entry<String, PrincipalCollection> completion : batch.entrySet()) {
+                (first.size() < half ? first : second).put(completion.getKey(), completion.getValue());
+            }
+            try {
+                send(first);
+            } finally {
+                send(second);
+            }
+            return;
+        }
+        try {
+            // one write, so that the frame is appended whole
+            out.write(frame);
+            if (frame.hasRemaining()) throw new IOException("short append");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        deliver(batch);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        poller.shutdown();
+        try {
+            poller.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+            in.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
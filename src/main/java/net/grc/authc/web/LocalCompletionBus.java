@@ -0,0 +1,27 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.PrincipalCollection;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bus for a single node: batches are delivered straight to the subscribers.
+ */
+public class LocalCompletionBus extends BatchingCompletionBus {
+    /**
+     * delivers on the publishing thread
+     */
+    public LocalCompletionBus() {
+        this(0, TimeUnit.MILLISECONDS);
+    }
+
+    public LocalCompletionBus(long batchDelay, TimeUnit unit) {
+        super(batchDelay, unit);
+    }
+
+    @Override
+    protected void send(Map<String, PrincipalCollection> batch) {
+        deliver(batch);
+    }
+}
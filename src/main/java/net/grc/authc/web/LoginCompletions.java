@@ -0,0 +1,220 @@
+package net.grc.authc.web;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.subject.PrincipalCollection;
+
+import javax.servlet.ServletContext;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the outcome of a phone's login to whoever is waiting on its nut, normally a browser parked in
+ * {@link SQRLLoginPollServlet}.
+ * <p/>
+ * Nuts are keyed by their base64url text, as they appear in the challenge URL. A completion is kept for a
+ * retention period so that a browser that arrives after the phone, or between two polls, still sees it; a waiter
+ * that gives up must {@link #cancel} so that nuts nobody completes are not kept. Listeners are called on the
+ * completing thread, outside any lock, and should be quick.
+ * <p/>
+ * With several nodes, subscribe each node's instance to a {@link CompletionBus} and publish to the bus instead of
+ * completing directly.
+ */
+public class LoginCompletions implements CompletionBus.Subscriber {
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * the servlet context attribute {@link #forContext} keeps the shared instance under
+     */
+    public static final String CONTEXT_ATTRIBUTE = LoginCompletions.class.getName();
+
+    public interface Listener {
+        /**
+         * @param principals what the phone authenticated as
+         */
+        void completed(PrincipalCollection principals);
+    }
+
+    private static final class Entry {
+        PrincipalCollection principals;
+        List<Listener> listeners;
+        long completedMillis;
+    }
+
+    private static final class Retained {
+        final String nut;
+        final Entry entry;
+
+        Retained(String nut, Entry entry) {
+            this.nut = nut;
+            this.entry = entry;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // completed entries in completion order, which with a fixed retention is also expiry order
+    private final Queue<Retained> retained = new ConcurrentLinkedQueue<Retained>();
+    private final long retentionMillis;
+
+    public LoginCompletions() {
+        this(DEFAULT_RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public LoginCompletions(long retention, TimeUnit unit) {
+        if (retention <= 0) throw new IllegalArgumentException("retention=" + retention);
+        this.retentionMillis = unit.toMillis(retention);
+    }
+
+    /**
+     * The instance shared by the filter and the servlet of one web application, created on first use.
+     */
+    public static LoginCompletions forContext(ServletContext context) {
+        synchronized (context) {
+            Object completions = context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (completions == null) {
+                completions = new LoginCompletions();
+                context.setAttribute(CONTEXT_ATTRIBUTE, completions);
+            }
+            return (LoginCompletions) completions;
+        }
+    }
+
+    /**
+     * the nut as it appears in a challenge URL
+     */
+    public static String key(ByteBuffer nut) {
+        byte[] bytes = new byte[nut.remaining()];
+        nut.duplicate().get(bytes);
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    /**
+     * Calls the listener once the nut is completed, straight away if it already has been.
+     */
+    public void await(String nut, Listener listener) {
+        if (nut == null) throw new IllegalArgumentException("nut=null");
+        if (listener == null) throw new IllegalArgumentException("listener=null");
+        expire();
+
+        PrincipalCollection principals;
+        for (; ; ) {
+            Entry entry = entry(nut);
+            synchronized (entry) {
+                if (entries.get(nut) != entry) continue; // removed meanwhile
+                principals = entry.principals;
+                if (principals == null) {
+                    if (entry.listeners == null) entry.listeners = new ArrayList<Listener>(1);
+                    entry.listeners.add(listener);
+                    return;
+                }
+            }
+            break;
+        }
+        listener.completed(principals);
+    }
+
+    /**
+     * Stops waiting; a no-op if the listener was already called.
+     */
+    public void cancel(String nut, Listener listener) {
+        if (nut == null) return;
+        Entry entry = entries.get(nut);
+        if (entry == null) return;
+        synchronized (entry) {
+            if (entry.listeners == null || !entry.listeners.remove(listener)) return;
+            if (entry.listeners.isEmpty() && entry.principals == null) entries.remove(nut, entry);
+        }
+    }
+
+    /**
+     * Records the login and calls everyone waiting on the nut.
+     *
+     * @return false if the nut was already completed, which the nut store should have prevented
+     */
+    public boolean complete(String nut, PrincipalCollection principals) {
+        if (nut == null) throw new IllegalArgumentException("nut=null");
+        if (principals == null) throw new IllegalArgumentException("principals=null");
+        expire();
+
+        List<Listener> listeners;
+        for (; ; ) {
+            Entry entry = entry(nut);
+            synchronized (entry) {
+                if (entries.get(nut) != entry) continue;
+                if (entry.principals != null) return false;
+                entry.principals = principals;
+                entry.completedMillis = currentTimeMillis();
+                listeners = entry.listeners;
+                entry.listeners = null;
+                retained.add(new Retained(nut, entry));
+            }
+            break;
+        }
+        if (listeners != null) {
+            for (Listener listener : listeners) listener.completed(principals);
+        }
+        return true;
+    }
+
+    /**
+     * Completes every nut of a batch from a {@link CompletionBus}.
+     */
+    @Override
+    public void completed(Map<String, PrincipalCollection> batch) {
+        for (Map.Entry<String, PrincipalCollection> completion : batch.entrySet()) {
+            complete(completion.getKey(), completion.getValue());
+        }
+    }
+
+    /**
+     * the principals the nut was completed with, null if it is not (or no longer) known
+     */
+    public PrincipalCollection get(String nut) {
+        if (nut == null) return null;
+        Entry entry = entries.get(nut);
+        if (entry == null) return null;
+        synchronized (entry) {
+            return entry.principals != null && !expired(entry) ? entry.principals : null;
+        }
+    }
+
+    /**
+     * nuts with a waiter or a retained completion
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private Entry entry(String nut) {
+        Entry entry = entries.get(nut);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(nut, created);
+            if (entry == null) entry = created;
+        }
+        return entry;
+    }
+
+    private boolean expired(Entry entry) {
+        return currentTimeMillis() - entry.completedMillis >= retentionMillis;
+    }
+
+    private void expire() {
+        for (Retained head; (head = retained.peek()) != null; ) {
+            synchronized (head.entry) {
+                if (!expired(head.entry)) return;
+            }
+            if (retained.remove(head)) entries.remove(head.nut, head.entry);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.grc.authc.web;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.credential.OffloadedCredentialsMatcher;
+import net.grc.authc.credential.SQRLBinaryParser;
+import net.grc.authc.credential.SQRLCredentials;
+import net.grc.authc.credential.VerificationOverloadException;
+import net.grc.authc.limit.ProofOfWork;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+import net.grc.metrics.Tracer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.web.filter.authc.AuthenticatingFilter;
+import org.apache.shiro.web.util.WebUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * The URL the phone posts its signed challenge to.
+ * <p/>
+ * The phone turns the sqrl:// (qrl://) URL of the QR code into https:// (http://), adds its query parameters and
+ * posts the signature as {@value #SIGNATURE_PARAM}. This filter rebuilds the signed challenge from the request
+ * URL, logs the phone in with a {@link SQRLToken} and, if that works, {@link LoginCompletions#complete completes}
+ * the nut so that the browser showing the QR code can carry on. Every request is a login attempt: the phone gets
+ * 200 on success, 403 on failure and 400 for a malformed challenge, and the filter chain is never continued. No
+ * session is created for the phone.
+ * <p/>
+ * A native client may instead post to the challenge URL as shown, with a body of Content-Type
+ * {@value SQRLBinaryParser#CONTENT_TYPE} holding the {@link SQRLBinaryParser binary form} of its key, nut and
+ * signature, whose nut must be the one in the URL. Any other body is read as the text form.
+ * <p/>
+ * Without {@link #setLoginCompletions} the instance shared through the servlet context is used. Given a
+ * {@link #setCompletionBus bus}, the nut is published to it instead, for whichever node the browser waits on.
+ * <p/>
+ * Given a {@link #setProofOfWork proof of work}, while it is required a post without a solution for its nut in
+ * {@value #WORK_PARAM} is answered 429 with the difficulty in the {@value #WORK_HEADER} header, before the
+ * challenge is even parsed. A solution is {@link ProofOfWork#redeem redeemed} by the post that carries it, so
+ * it cannot be replayed with other signatures.
+ * <p/>
+ * A login turned away by an {@link OffloadedCredentialsMatcher} that has too many verifications pending is
+ * answered 503 with a Retry-After. Given that matcher as the {@link #setOffload offload}, a request that supports
+ * async (every filter in front of this one must) is released at once and the whole login runs on a verification
+ * worker, so the container's threads only carry the I/O.
+ */
+public class SQRLAuthenticationFilter extends AuthenticatingFilter {
+    public static final String SIGNATURE_PARAM = "sqrlsig";
+    public static final String WORK_PARAM = "sqrlwork";
+    public static final String WORK_HEADER = "X-SQRL-Work";
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final LatencyHistogram LOGIN = Metrics.histogram("sqrl.login");
+
+    private LoginCompletions completions;
+    private CompletionBus bus;
+    private ProofOfWork proofOfWork;
+    private OffloadedCredentialsMatcher offload;
+
+    public LoginCompletions getLoginCompletions() {
+        if (completions == null) completions = LoginCompletions.forContext(getServletContext());
+        return completions;
+    }
+
+    public void setLoginCompletions(LoginCompletions completions) {
+        this.completions = completions;
+    }
+
+    public CompletionBus getCompletionBus() {
+        return bus;
+    }
+
+    /**
+     * @param bus subscribed to by the {@link LoginCompletions} of every node, this one included
+     */
+    public void setCompletionBus(CompletionBus bus) {
+        this.bus = bus;
+    }
+
+    public ProofOfWork getProofOfWork() {
+        return proofOfWork;
+    }
+
+    public void setProofOfWork(ProofOfWork proofOfWork) {
+        this.proofOfWork = proofOfWork;
+    }
+
+    public OffloadedCredentialsMatcher getOffload() {
+        return offload;
+    }
+
+    /**
+     * @param offload normally the realm's matcher, so that logins and verifications share one pending limit
+     */
+    public void setOffload(OffloadedCredentialsMatcher offload) {
+        this.offload = offload;
+    }
+
+    /**
+     * The challenge the phone signed: the request URL with the scheme turned back into sqrl or qrl. The port is
+     * kept only if it is not the scheme's default.
+     */
+    public static String challenge(HttpServletRequest request) {
+        boolean secure = request.isSecure();
+        int port = request.getServerPort();
+        StringBuilder challenge = new StringBuilder(256);
+        challenge.append(secure ? "sqrl://" : "qrl://").append(request.getServerName());
+        if (port > 0 && port != (secure ? 443 : 80)) challenge.append(':').append(port);
+        challenge.append(request.getRequestURI());
+        String query = request.getQueryString();
+        if (query != null) challenge.append('?').append(query);
+        return challenge.toString();
+    }
+
+    @Override
+    protected AuthenticationToken createToken(ServletRequest request, ServletResponse response) throws IOException {
+        HttpServletRequest http = WebUtils.toHttp(request);
+        if (isBinary(http)) {
+            SQRLToken token = new SQRLToken(challenge(http), readFrame(http), getHost(request));
+            checkNut(http, token);
+            return token;
+        }
+
+        String signature = http.getParameter(SIGNATURE_PARAM);
+        if (signature == null) throw new IllegalArgumentException(SIGNATURE_PARAM + "=null");
+        return new SQRLToken(challenge(http), signature, getHost(request));
+    }
+
+    /**
+     * Never: the phone has no session worth trusting, each post is authenticated on its own.
+     */
+    @Override
+    protected boolean isAccessAllowed(ServletRequest request, ServletResponse response, Object mappedValue) {
+        return false;
+    }
+
+    @Override
+    protected boolean onAccessDenied(ServletRequest request, ServletResponse response) throws Exception {
+        HttpServletResponse http = WebUtils.toHttp(response);
+        if (!"POST".equalsIgnoreCase(WebUtils.toHttp(request).getMethod())) {
+            http.setHeader("Allow", "POST");
+            http.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return false;
+        }
+        // as noSessionCreation: a login storm must not leave a session behind per post
+        request.setAttribute(DefaultSubjectContext.SESSION_CREATION_ENABLED, Boolean.FALSE);
+        if (proofOfWork != null && proofOfWork.isRequired() && !solved(WebUtils.toHttp(request))) {
+            http.setHeader(WORK_HEADER, Integer.toString(proofOfWork.getDifficulty()));
+            respond(response, SC_TOO_MANY_REQUESTS);
+            return false;
+        }
+        if (offload != null && request.isAsyncSupported()) {
+            loginAsync(request, response);
+            return false;
+        }
+        return login(request, response);
+    }
+
+    private boolean login(ServletRequest request, ServletResponse response) throws Exception {
+        HttpServletResponse http = WebUtils.toHttp(response);
+        long start = System.nanoTime();
+        Tracer.Trace trace = Tracer.begin("sqrl.login");
+        try {
+            return executeLogin(request, response);
+        } catch (IllegalArgumentException e) {
+            http.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return false;
+        } finally {
+            LOGIN.recordSince(start);
+            Tracer.end(trace);
+        }
+    }
+
+    private void loginAsync(ServletRequest request, ServletResponse response) {
+        AsyncContext async = request.startAsync(request, response);
+        Callable<Boolean> login = getSubject(request, response).associateWith(() -> login(request, response));
+        offload.submit(login).whenComplete((done, failure) -> {
+            try {
+                if (failure != null && !response.isCommitted()) {
+                    if (failure instanceof VerificationOverloadException) {
+                        overloaded(response);
+                    } else {
+                        WebUtils.toHttp(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                }
+            } catch (IOException e) {
+                // the phone gave up
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    @Override
+    protected boolean onLoginSuccess(AuthenticationToken token, Subject subject,
+                                     ServletRequest request, ServletResponse response) throws Exception {
+        ByteBuffer nut = ((SQRLCredentials) token.getCredentials()).getNut();
+        if (nut != null) {
+            if (bus != null) {
+                bus.publish(LoginCompletions.key(nut), subject.getPrincipals());
+            } else {
+                getLoginCompletions().complete(LoginCompletions.key(nut), subject.getPrincipals());
+            }
+        }
+        respond(response, HttpServletResponse.SC_OK);
+        return false;
+    }
+
+    @Override
+    protected boolean onLoginFailure(AuthenticationToken token, AuthenticationException e,
+                                     ServletRequest request, ServletResponse response) {
+        try {
+            if (e instanceof VerificationOverloadException) {
+                overloaded(response);
+            } else {
+                respond(response, HttpServletResponse.SC_FORBIDDEN);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return false;
+    }
+
+    private static boolean isBinary(HttpServletRequest request) {
+        String type = request.getContentType();
+        if (type == null) return false;
+        int end = type.indexOf(';');
+        return (end < 0 ? type : type.substring(0, end)).trim().equalsIgnoreCase(SQRLBinaryParser.CONTENT_TYPE);
+    }
+
+    /**
+     * the body, refused before it is read if it is longer than any frame
+     */
+    private static ByteBuffer readFrame(HttpServletRequest request) throws IOException {
+        int length = request.getContentLength();
+        if (length > SQRLBinaryParser.MAX_LENGTH) throw new IllegalArgumentException("length=" + length);
+
+        byte[] frame = new byte[length < 0 ? SQRLBinaryParser.MAX_LENGTH + 1 : length];
+        InputStream in = request.getInputStream();
+        int n = 0;
+        for (int read; n < frame.length && (read = in.read(frame, n, frame.length - n)) >= 0; ) n += read;
+        if (n > SQRLBinaryParser.MAX_LENGTH || n < length) throw new IllegalArgumentException("length=" + n);
+        return ByteBuffer.wrap(frame, 0, n);
+    }
+
+    /**
+     * A frame carries its own nut, which is the one consumed; it must be the URL's, which is the one the proof
+     * of work was checked against.
+     */
+    private static void checkNut(HttpServletRequest request, SQRLToken token) {
+        String nut = request.getParameter("nut");
+        if (nut == null) return;
+        ByteBuffer signed = ((SQRLCredentials) token.getCredentials()).getNut();
+        if (!ByteBuffer.wrap(Base64.decodeBase64(nut)).equals(signed)) {
+            throw new IllegalArgumentException("frame nut is not the URL's");
+        }
+    }
+
+    private boolean solved(HttpServletRequest request) {
+        String nut = request.getParameter("nut");
+        String work = request.getParameter(WORK_PARAM);
+        if (nut == null || work == null) return false;
+        try {
+            return proofOfWork.redeem(ByteBuffer.wrap(Base64.decodeBase64(nut)), Long.parseLong(work));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void overloaded(ServletResponse response) throws IOException {
+        WebUtils.toHttp(response).setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        respond(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private static void respond(ServletResponse response, int status) throws IOException {
+        HttpServletResponse http = WebUtils.toHttp(response);
+        http.setStatus(status);
+        http.setContentLength(0);
+        http.flushBuffer();
+    }
+}
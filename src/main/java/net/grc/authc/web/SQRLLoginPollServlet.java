@@ -0,0 +1,135 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.PrincipalCollection;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The long poll a login page parks on until the phone has logged in with its nut: GET ?{@value #NUT_PARAM}=nut.
+ * <p/>
+ * The request is suspended with an {@link AsyncContext}, so a waiting browser holds a connection but no thread,
+ * and is answered by the phone's request as soon as {@link SQRLAuthenticationFilter} completes the nut. After the
+ * timeout the answer is 204 and the page polls again. Map it with async support enabled.
+ * <p/>
+ * The default answer only says that the nut was used; override {@link #completed} to log the browser's own
+ * session in, after checking that the nut was issued to that session, since anyone who saw the QR code knows the
+ * nut. Without {@link #SQRLLoginPollServlet(LoginCompletions)} the instance shared through the servlet context is
+ * used.
+ */
+public class SQRLLoginPollServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    public static final String NUT_PARAM = "nut";
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private LoginCompletions completions;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    public SQRLLoginPollServlet() {
+    }
+
+    public SQRLLoginPollServlet(LoginCompletions completions) {
+        if (completions == null) throw new IllegalArgumentException("completions=null");
+        this.completions = completions;
+    }
+
+    /**
+     * Reads init parameter timeoutMillis.
+     */
+    @Override
+    public void init() throws ServletException {
+        if (completions == null) completions = LoginCompletions.forContext(getServletContext());
+        String timeout = getInitParameter("timeoutMillis");
+        if (timeout != null) setTimeoutMillis(Long.parseLong(timeout));
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis=" + timeoutMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String nut = request.getParameter(NUT_PARAM);
+        if (nut == null || nut.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        response.setHeader("Cache-Control", "no-store");
+
+        PrincipalCollection principals = completions.get(nut);
+        if (principals != null) {
+            completed(request, response, principals);
+            return;
+        }
+
+        final AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(timeoutMillis);
+        // whichever of completion, timeout and error comes first answers
+        final AtomicBoolean answered = new AtomicBoolean();
+        final LoginCompletions.Listener listener = new LoginCompletions.Listener() {
+            @Override
+            public void completed(PrincipalCollection principals) {
+                if (!answered.compareAndSet(false, true)) return;
+                try {
+                    SQRLLoginPollServlet.this.completed((HttpServletRequest) async.getRequest(),
+                            (HttpServletResponse) async.getResponse(), principals);
+                } catch (IOException e) {
+                    // the browser went away
+                } finally {
+                    async.complete();
+                }
+            }
+        };
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                completions.cancel(nut, listener);
+                if (answered.compareAndSet(false, true)) {
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                completions.cancel(nut, listener);
+                if (answered.compareAndSet(false, true)) async.complete();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                completions.cancel(nut, listener);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        completions.await(nut, listener);
+    }
+
+    /**
+     * Answers a browser whose nut has been used, on the phone's request thread if the browser was waiting.
+     */
+    protected void completed(HttpServletRequest request, HttpServletResponse response, PrincipalCollection principals)
+            throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain");
+        response.getWriter().write("authenticated");
+        response.flushBuffer();
+    }
+}
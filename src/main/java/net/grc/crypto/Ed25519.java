@@ -0,0 +1,171 @@
+package net.grc.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Pure Java Ed25519 signature verification.
+ * <p/>
+ * Verification checks the cofactored equation [8]([S]B - [H(R,A,M)]A - R) == 0, as {@link Ed25519BatchVerifier}
+ * does, rejecting non-canonical S and an R that is not a point. The working state
+ * lives in a per-thread {@link Context}, so once a thread is warm no call allocates. A {@link PublicKey} holds the
+ * decompressed key and its precomputed odd multiples and can be cached with the principal it belongs to.
+ */
+public final class Ed25519 {
+    public static final int PUBLIC_KEY_LENGTH = 32;
+    public static final int SIGNATURE_LENGTH = 64;
+
+    /**
+     * odd multiples of -A kept for the sliding window multiplication
+     */
+    static final int TABLE_SIZE = 8;
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private Ed25519() {
+    }
+
+    /**
+     * A decoded public key. Immutable and safe to share between threads.
+     */
+    public static final class PublicKey {
+        private final byte[] encoded;
+        final Edwards25519.Cached[] negatedOddMultiples;
+
+        PublicKey(byte[] encoded, Edwards25519.Cached[] negatedOddMultiples) {
+            this.encoded = encoded;
+            this.negatedOddMultiples = negatedOddMultiples;
+        }
+
+        public ByteBuffer getEncoded() {
+            return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+        }
+
+        byte[] encoded() {
+            return encoded;
+        }
+    }
+
+    /**
+     * @return the decoded key, or null if the remaining bytes are not a 32 byte encoding of a curve point
+     */
+    public static PublicKey decodePublicKey(ByteBuffer key) {
+        if (key == null || key.remaining() != PUBLIC_KEY_LENGTH) return null;
+
+        byte[] encoded = new byte[PUBLIC_KEY_LENGTH];
+        copy(encoded, key);
+
+        Context ctx = CONTEXT.get();
+        Edwards25519.P3 negA = new Edwards25519.P3();
+        if (!Edwards25519.decodeNegated(negA, encoded, 0, ctx.scratch)) return null;
+
+        Edwards25519.Cached[] table = new Edwards25519.Cached[TABLE_SIZE];
+        Edwards25519.oddMultiples(table, negA, ctx.t, ctx.u, ctx.p2, ctx.t0);
+        return new PublicKey(encoded, table);
+    }
+
+    /**
+     * Verifies without a cached key; the key is decompressed into thread local scratch.
+     */
+    public static boolean verify(byte[] sig, byte[] msg, byte[] pub) {
+        if (sig == null || msg == null || pub == null) return false;
+        if (sig.length != SIGNATURE_LENGTH || pub.length != PUBLIC_KEY_LENGTH) return false;
+
+        Context ctx = CONTEXT.get();
+        if (!Edwards25519.decodeNegated(ctx.negA, pub, 0, ctx.scratch)) return false;
+        Edwards25519.oddMultiples(ctx.aTable, ctx.negA, ctx.t, ctx.u, ctx.p2, ctx.t0);
+        return verify(ctx, sig, 0, msg, 0, msg.length, pub, ctx.aTable);
+    }
+
+    public static boolean verify(ByteBuffer sig, byte[] msg, PublicKey pub) {
+        if (sig == null || msg == null || pub == null) return false;
+        if (sig.remaining() != SIGNATURE_LENGTH) return false;
+
+        Context ctx = CONTEXT.get();
+        copy(ctx.sig, sig);
+        return verify(ctx, ctx.sig, 0, msg, 0, msg.length, pub.encoded, pub.negatedOddMultiples);
+    }
+
+    public static boolean verify(byte[] sig, int sigOff, byte[] msg, int msgOff, int msgLen, PublicKey pub) {
+        if (sig == null || msg == null || pub == null) return false;
+        if (sig.length - sigOff < SIGNATURE_LENGTH) return false;
+
+        return verify(CONTEXT.get(), sig, sigOff, msg, msgOff, msgLen, pub.encoded, pub.negatedOddMultiples);
+    }
+
+    private static boolean verify(Context ctx, byte[] sig, int sigOff, byte[] msg, int msgOff, int msgLen,
+                                  byte[] pub, Edwards25519.Cached[] negATable) {
+        // S must be reduced, otherwise the signature is malleable
+        if (!Scalar25519.isCanonical(sig, sigOff + 32)) return false;
+
+        MessageDigest sha512 = ctx.sha512;
+        sha512.update(sig, sigOff, 32);
+        sha512.update(pub, 0, PUBLIC_KEY_LENGTH);
+        sha512.update(msg, msgOff, msgLen);
+        try {
+            sha512.digest(ctx.hash, 0, ctx.hash.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        Scalar25519.reduce(ctx.h, ctx.hash, 0, ctx.limbs);
+
+        Edwards25519.slide(ctx.aSlide, ctx.h, 0);
+        Edwards25519.slide(ctx.bSlide, sig, sigOff + 32);
+        Edwards25519.doubleScalarMult(ctx.r, ctx.aSlide, negATable, ctx.bSlide, ctx.t, ctx.u, ctx.t0);
+
+        // subtract R rather than compare its encoding, so that a small order component is cleared as in a batch
+        if (!Edwards25519.decodeNegated(ctx.negR, sig, sigOff, ctx.scratch)) return false;
+        Edwards25519.toCached(ctx.negRCached, ctx.negR);
+        Edwards25519.toP3(ctx.u, ctx.r);
+        Edwards25519.addCached(ctx.t, ctx.u, ctx.negRCached, ctx.t0);
+        Edwards25519.toP2(ctx.r, ctx.t);
+        return Edwards25519.clearCofactor(ctx.r, ctx.t, ctx.t0, ctx.scratch);
+    }
+
+    private static void copy(byte[] dst, ByteBuffer src) {
+        int p = src.position();
+        for (int i = 0; i < dst.length; i++) dst[i] = src.get(p + i);
+    }
+
+    static MessageDigest sha512() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Per-thread working state for one verification.
+     */
+    static final class Context {
+        final MessageDigest sha512 = sha512();
+        final byte[] hash = new byte[64];
+        final byte[] h = new byte[32];
+        final byte[] sig = new byte[SIGNATURE_LENGTH];
+        final byte[] aSlide = new byte[256];
+        final byte[] bSlide = new byte[256];
+        final long[] limbs = new long[3 * Scalar25519.LIMBS];
+        final int[] t0 = Field25519.create();
+        final Edwards25519.P2 r = new Edwards25519.P2();
+        final Edwards25519.P1P1 t = new Edwards25519.P1P1();
+        final Edwards25519.P3 u = new Edwards25519.P3();
+        final Edwards25519.P3 p2 = new Edwards25519.P3();
+        final Edwards25519.P3 negA = new Edwards25519.P3();
+        final Edwards25519.P3 negR = new Edwards25519.P3();
+        final Edwards25519.Cached negRCached = new Edwards25519.Cached();
+        final Edwards25519.Cached[] aTable = new Edwards25519.Cached[TABLE_SIZE];
+        final Edwards25519.Scratch scratch = new Edwards25519.Scratch();
+
+        Context() {
+            for (int i = 0; i < aTable.length; i++) aTable[i] = new Edwards25519.Cached();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package net.grc.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Verifies many Ed25519 signatures with one multi-scalar multiplication.
+ * <p/>
+ * For random 128 bit z_i the batch equation is
+ * 8 * ((sum z_i S_i) B + sum (z_i H_i)(-A_i) + sum z_i (-R_i)) == 0
+ * evaluated with interleaved sliding windows so the 253 doublings are shared by every signature. If the batch
+ * equation fails the batch is bisected until the bad signatures are found; small groups are checked one at a
+ * time with {@link Ed25519#verify}, which checks the same cofactored equation, so a signature is accepted or
+ * rejected the same way whether or not it was batched.
+ * <p/>
+ * Not thread safe: keep one instance per worker thread. All storage is allocated up front for the capacity.
+ */
+public final class Ed25519BatchVerifier {
+    /**
+     * groups smaller than this are verified one signature at a time
+     */
+    static final int MIN_BATCH = 4;
+
+    private final int capacity;
+    private int size;
+
+    private final byte[] sigs;
+    private final byte[][] msgs;
+    private final int[] msgOffsets;
+    private final int[] msgLengths;
+    private final Ed25519.PublicKey[] keys;
+    private final boolean[] candidate;
+
+    private final byte[][] z;
+    private final byte[][] aSlide;
+    private final byte[][] zSlide;
+    private final Edwards25519.Cached[][] negRTables;
+    private final int[] order;
+
+    private final SecureRandom random = new SecureRandom();
+    private final MessageDigest sha512 = Ed25519.sha512();
+    private final byte[] hash = new byte[64];
+    private final byte[] h = new byte[32];
+    private final byte[] scalar = new byte[32];
+    private final byte[] zero = new byte[32];
+    private final byte[] bSlide = new byte[256];
+    private final long[] limbs = new long[3 * Scalar25519.LIMBS];
+    private final int[] t0 = Field25519.create();
+    private final Edwards25519.P2 r = new Edwards25519.P2();
+    private final Edwards25519.P1P1 t = new Edwards25519.P1P1();
+    private final Edwards25519.P3 u = new Edwards25519.P3();
+    private final Edwards25519.P3 p2 = new Edwards25519.P3();
+    private final Edwards25519.P3 negR = new Edwards25519.P3();
+    private final Edwards25519.Scratch scratch = new Edwards25519.Scratch();
+
+    public Ed25519BatchVerifier(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+
+        this.capacity = capacity;
+        sigs = new byte[capacity * Ed25519.SIGNATURE_LENGTH];
+        msgs = new byte[capacity][];
+        msgOffsets = new int[capacity];
+        msgLengths = new int[capacity];
+        keys = new Ed25519.PublicKey[capacity];
+        candidate = new boolean[capacity];
+        z = new byte[capacity][32];
+        aSlide = new byte[capacity][256];
+        zSlide = new byte[capacity][256];
+        negRTables = new Edwards25519.Cached[capacity][Ed25519.TABLE_SIZE];
+        for (Edwards25519.Cached[] table : negRTables) {
+            for (int i = 0; i < table.length; i++) table[i] = new Edwards25519.Cached();
+        }
+        order = new int[capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            msgs[i] = null;
+            keys[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Queues a signature. The message array is referenced, not copied, until {@link #clear()}.
+     *
+     * @return the index of this signature in the results
+     */
+    public int add(ByteBuffer sig, byte[] msg, Ed25519.PublicKey key) {
+        return add(sig, msg, 0, msg == null ? 0 : msg.length, key);
+    }
+
+    public int add(ByteBuffer sig, byte[] msg, int msgOff, int msgLen, Ed25519.PublicKey key) {
+        if (size == capacity) throw new IllegalStateException("batch is full: " + capacity);
+
+        int i = size++;
+        msgs[i] = msg;
+        msgOffsets[i] = msgOff;
+        msgLengths[i] = msgLen;
+        keys[i] = key;
+        candidate[i] = sig != null && msg != null && key != null && sig.remaining() == Ed25519.SIGNATURE_LENGTH;
+        if (candidate[i]) {
+            int p = sig.position();
+            for (int b = 0; b < Ed25519.SIGNATURE_LENGTH; b++) sigs[i * Ed25519.SIGNATURE_LENGTH + b] = sig.get(p + b);
+        }
+        return i;
+    }
+
+    /**
+     * Verifies everything added since the last {@link #clear()}.
+     *
+     * @param results receives the outcome for each index, must hold at least {@link #size()} entries
+     */
+    public void verify(boolean[] results) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            results[i] = false;
+            if (candidate[i] && prepare(i)) order[n++] = i;
+        }
+        resolve(0, n, results);
+    }
+
+    private void resolve(int from, int to, boolean[] results) {
+        if (to - from < MIN_BATCH) {
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                results[i] = Ed25519.verify(sigs, i * Ed25519.SIGNATURE_LENGTH,
+                        msgs[i], msgOffsets[i], msgLengths[i], keys[i]);
+            }
+        } else if (batchEquationHolds(from, to)) {
+            for (int k = from; k < to; k++) results[order[k]] = true;
+        } else {
+            int mid = (from + to) >>> 1;
+            resolve(from, mid, results);
+            resolve(mid, to, results);
+        }
+    }
+
+    /**
+     * Computes everything about signature i that does not depend on the rest of the batch.
+     *
+     * @return false if the signature is malformed
+     */
+    private boolean prepare(int i) {
+        int sigOff = i * Ed25519.SIGNATURE_LENGTH;
+        if (!Scalar25519.isCanonical(sigs, sigOff + 32)) return false;
+
+        // -R, straight from the signature
+        if (!Edwards25519.decodeNegated(negR, sigs, sigOff, scratch)) return false;
+        Edwards25519.oddMultiples(negRTables[i], negR, t, u, p2, t0);
+
+        sha512.update(sigs, sigOff, 32);
+        sha512.update(keys[i].encoded(), 0, Ed25519.PUBLIC_KEY_LENGTH);
+        sha512.update(msgs[i], msgOffsets[i], msgLengths[i]);
+        try {
+            sha512.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        Scalar25519.reduce(h, hash, 0, limbs);
+
+        byte[] zi = z[i];
+        random.nextBytes(zi);
+        for (int b = 16; b < 32; b++) zi[b] = 0;
+        Edwards25519.slide(zSlide[i], zi, 0);
+
+        Scalar25519.mulAdd(scalar, zi, h, zero, limbs);
+        Edwards25519.slide(aSlide[i], scalar, 0);
+        return true;
+    }
+
+    private boolean batchEquationHolds(int from, int to) {
+        // b = sum z_i S_i
+        for (int b = 0; b < 32; b++) scalar[b] = 0;
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            System.arraycopy(sigs, i * Ed25519.SIGNATURE_LENGTH + 32, h, 0, 32);
+            Scalar25519.mulAdd(scalar, z[i], h, scalar, limbs);
+        }
+        Edwards25519.slide(bSlide, scalar, 0);
+
+        r.setIdentity();
+        int top = 255;
+        while (top >= 0 && !anyDigit(top, from, to)) top--;
+
+        for (int bit = top; bit >= 0; bit--) {
+            Edwards25519.dbl(t, r, t0);
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                addDigit(aSlide[i][bit], keys[i].negatedOddMultiples);
+                addDigit(zSlide[i][bit], negRTables[i]);
+            }
+            addDigit(bSlide[bit], Edwards25519.BASE_ODD_MULTIPLES);
+            Edwards25519.toP2(r, t);
+        }
+
+        return Edwards25519.clearCofactor(r, t, t0, scratch);
+    }
+
+    private void addDigit(int digit, Edwards25519.Cached[] table) {
+        if (digit > 0) {
+            Edwards25519.toP3(u, t);
+            Edwards25519.addCached(t, u, table[digit >> 1], t0);
+        } else if (digit < 0) {
+            Edwards25519.toP3(u, t);
+            Edwards25519.subCached(t, u, table[(-digit) >> 1], t0);
+        }
+    }
+
+    private boolean anyDigit(int bit, int from, int to) {
+        if (bSlide[bit] != 0) return true;
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            if (aSlide[i][bit] != 0 || zSlide[i][bit] != 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,361 @@
+package net.grc.crypto;
+
+import static net.grc.crypto.Field25519.add;
+import static net.grc.crypto.Field25519.copy;
+import static net.grc.crypto.Field25519.mul;
+import static net.grc.crypto.Field25519.sq;
+import static net.grc.crypto.Field25519.sq2;
+import static net.grc.crypto.Field25519.sub;
+
+/**
+ * Point arithmetic on the twisted Edwards curve -x^2 + y^2 = 1 + d x^2 y^2 used by Ed25519.
+ * <p/>
+ * Follows the ref10 representations:
+ * * P2: projective (X:Y:Z)
+ * * P3: extended (X:Y:Z:T) with XY = ZT
+ * * P1P1: completed ((X:Z),(Y:T))
+ * * Cached: (Y+X, Y-X, Z, 2dT), the form the right hand side of an addition is kept in
+ * <p/>
+ * Every operation writes into a caller supplied point so the verification loop does not allocate.
+ */
+final class Edwards25519 {
+    static final int[] D = Field25519.create(
+            56195235, 13857412, 51736253, 6949390, 114729, 24766616, 60832955, 30306712, 48412415, 21499315);
+    static final int[] D2 = Field25519.create(
+            45281625, 27714825, 36363642, 13898781, 229458, 15978800, 54557047, 27058993, 29715967, 9444199);
+    static final int[] SQRTM1 = Field25519.create(
+            34513072, 25610706, 9377949, 3500415, 12389472, 33281959, 41962654, 31548777, 326685, 11406482);
+
+    /**
+     * odd multiples 1B, 3B, 5B ... 15B of the base point
+     */
+    static final Cached[] BASE_ODD_MULTIPLES;
+
+    static {
+        // B = (x, 4/5) with x positive
+        int[] t0 = Field25519.create(), t1 = Field25519.create(), t2 = Field25519.create(), t3 = Field25519.create();
+        int[] four = Field25519.create(4, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        int[] five = Field25519.create(5, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        int[] y = Field25519.create();
+        Field25519.invert(y, five, t0, t1, t2, t3);
+        mul(y, y, four);
+        byte[] encoded = new byte[32];
+        Field25519.toBytes(encoded, 0, y);
+
+        P3 negB = new P3();
+        if (!decodeNegated(negB, encoded, 0, new Scratch())) throw new IllegalStateException("base point");
+        P3 base = new P3();
+        negate(base, negB);
+
+        BASE_ODD_MULTIPLES = new Cached[8];
+        oddMultiples(BASE_ODD_MULTIPLES, base, new P1P1(), new P3(), new P3(), t0);
+    }
+
+    private Edwards25519() {
+    }
+
+    static final class P2 {
+        final int[] X = Field25519.create();
+        final int[] Y = Field25519.create();
+        final int[] Z = Field25519.create();
+
+        void setIdentity() {
+            Field25519.zero(X);
+            Field25519.one(Y);
+            Field25519.one(Z);
+        }
+    }
+
+    static final class P3 {
+        final int[] X = Field25519.create();
+        final int[] Y = Field25519.create();
+        final int[] Z = Field25519.create();
+        final int[] T = Field25519.create();
+
+        void setIdentity() {
+            Field25519.zero(X);
+            Field25519.one(Y);
+            Field25519.one(Z);
+            Field25519.zero(T);
+        }
+    }
+
+    static final class P1P1 {
+        final int[] X = Field25519.create();
+        final int[] Y = Field25519.create();
+        final int[] Z = Field25519.create();
+        final int[] T = Field25519.create();
+    }
+
+    static final class Cached {
+        final int[] YplusX = Field25519.create();
+        final int[] YminusX = Field25519.create();
+        final int[] Z = Field25519.create();
+        final int[] T2d = Field25519.create();
+    }
+
+    /**
+     * Field temporaries for decoding points, owned by one thread at a time.
+     */
+    static final class Scratch {
+        final int[] u = Field25519.create();
+        final int[] v = Field25519.create();
+        final int[] v3 = Field25519.create();
+        final int[] vxx = Field25519.create();
+        final int[] check = Field25519.create();
+        final int[] t0 = Field25519.create();
+        final int[] t1 = Field25519.create();
+        final int[] t2 = Field25519.create();
+        final int[] t3 = Field25519.create();
+        final byte[] bytes = new byte[32];
+    }
+
+    /**
+     * Decodes a compressed point and negates it (-A is what verification needs).
+     *
+     * @return false if the encoding is not a point on the curve
+     */
+    static boolean decodeNegated(P3 h, byte[] s, int off, Scratch scratch) {
+        int[] u = scratch.u, v = scratch.v, v3 = scratch.v3, vxx = scratch.vxx, check = scratch.check;
+
+        Field25519.fromBytes(h.Y, s, off);
+        Field25519.one(h.Z);
+        sq(u, h.Y);
+        mul(v, u, D);
+        sub(u, u, h.Z);             // u = y^2 - 1
+        add(v, v, h.Z);             // v = dy^2 + 1
+
+        sq(v3, v);
+        mul(v3, v3, v);             // v3 = v^3
+        sq(h.X, v3);
+        mul(h.X, h.X, v);
+        mul(h.X, h.X, u);           // x = uv^7
+
+        Field25519.pow22523(h.X, h.X, scratch.t0, scratch.t1, scratch.t2);
+        mul(h.X, h.X, v3);
+        mul(h.X, h.X, u);           // x = uv^3 (uv^7)^((q-5)/8)
+
+        sq(vxx, h.X);
+        mul(vxx, vxx, v);
+        sub(check, vxx, u);         // vx^2 - u
+        if (Field25519.isNonZero(check, scratch.bytes)) {
+            add(check, vxx, u);     // vx^2 + u
+            if (Field25519.isNonZero(check, scratch.bytes)) return false;
+            mul(h.X, h.X, SQRTM1);
+        }
+
+        if (Field25519.isNegative(h.X, scratch.bytes) == ((s[off + 31] >> 7) & 1)) {
+            Field25519.neg(h.X, h.X);
+        }
+        mul(h.T, h.X, h.Y);
+        return true;
+    }
+
+    static void encode(byte[] s, int off, P2 h, Scratch scratch) {
+        int[] recip = scratch.u, x = scratch.v, y = scratch.v3;
+        Field25519.invert(recip, h.Z, scratch.t0, scratch.t1, scratch.t2, scratch.t3);
+        mul(x, h.X, recip);
+        mul(y, h.Y, recip);
+        Field25519.toBytes(s, off, y);
+        s[off + 31] ^= Field25519.isNegative(x, scratch.bytes) << 7;
+    }
+
+    static void negate(P3 r, P3 p) {
+        Field25519.neg(r.X, p.X);
+        copy(r.Y, p.Y);
+        copy(r.Z, p.Z);
+        Field25519.neg(r.T, p.T);
+    }
+
+    static void toCached(Cached r, P3 p) {
+        add(r.YplusX, p.Y, p.X);
+        sub(r.YminusX, p.Y, p.X);
+        copy(r.Z, p.Z);
+        mul(r.T2d, p.T, D2);
+    }
+
+    static void toP2(P2 r, P1P1 p) {
+        mul(r.X, p.X, p.T);
+        mul(r.Y, p.Y, p.Z);
+        mul(r.Z, p.Z, p.T);
+    }
+
+    static void toP3(P3 r, P1P1 p) {
+        mul(r.X, p.X, p.T);
+        mul(r.Y, p.Y, p.Z);
+        mul(r.Z, p.Z, p.T);
+        mul(r.T, p.X, p.Y);
+    }
+
+    static void toP3(P3 r, P2 p) {
+        mul(r.X, p.X, p.Z);
+        mul(r.Y, p.Y, p.Z);
+        sq(r.Z, p.Z);
+        mul(r.T, p.X, p.Y);
+    }
+
+    static void toP2(P2 r, P3 p) {
+        copy(r.X, p.X);
+        copy(r.Y, p.Y);
+        copy(r.Z, p.Z);
+    }
+
+    /**
+     * r = 2 * p
+     */
+    static void dbl(P1P1 r, P2 p, int[] t0) {
+        sq(r.X, p.X);
+        sq(r.Z, p.Y);
+        sq2(r.T, p.Z);
+        add(r.Y, p.X, p.Y);
+        sq(t0, r.Y);
+        add(r.Y, r.Z, r.X);
+        sub(r.Z, r.Z, r.X);
+        sub(r.X, t0, r.Y);
+        sub(r.T, r.T, r.Z);
+    }
+
+    /**
+     * r = 2 * p
+     */
+    static void dbl(P1P1 r, P3 p, int[] t0) {
+        sq(r.X, p.X);
+        sq(r.Z, p.Y);
+        sq2(r.T, p.Z);
+        add(r.Y, p.X, p.Y);
+        sq(t0, r.Y);
+        add(r.Y, r.Z, r.X);
+        sub(r.Z, r.Z, r.X);
+        sub(r.X, t0, r.Y);
+        sub(r.T, r.T, r.Z);
+    }
+
+    /**
+     * r = p + q
+     */
+    static void addCached(P1P1 r, P3 p, Cached q, int[] t0) {
+        add(r.X, p.Y, p.X);
+        sub(r.Y, p.Y, p.X);
+        mul(r.Z, r.X, q.YplusX);
+        mul(r.Y, r.Y, q.YminusX);
+        mul(r.T, q.T2d, p.T);
+        mul(r.X, p.Z, q.Z);
+        add(t0, r.X, r.X);
+        sub(r.X, r.Z, r.Y);
+        add(r.Y, r.Z, r.Y);
+        add(r.Z, t0, r.T);
+        sub(r.T, t0, r.T);
+    }
+
+    /**
+     * r = p - q
+     */
+    static void subCached(P1P1 r, P3 p, Cached q, int[] t0) {
+        add(r.X, p.Y, p.X);
+        sub(r.Y, p.Y, p.X);
+        mul(r.Z, r.X, q.YminusX);
+        mul(r.Y, r.Y, q.YplusX);
+        mul(r.T, q.T2d, p.T);
+        mul(r.X, p.Z, q.Z);
+        add(t0, r.X, r.X);
+        sub(r.X, r.Z, r.Y);
+        add(r.Y, r.Z, r.Y);
+        sub(r.Z, t0, r.T);
+        add(r.T, t0, r.T);
+    }
+
+    /**
+     * Multiplies p by the cofactor 8 in place, clearing any small order component.
+     *
+     * @return whether that leaves the neutral element
+     */
+    static boolean clearCofactor(P2 p, P1P1 t, int[] t0, Scratch scratch) {
+        for (int c = 0; c < 3; c++) {
+            dbl(t, p, t0);
+            toP2(p, t);
+        }
+        if (Field25519.isNonZero(p.X, scratch.bytes)) return false;
+        sub(t0, p.Y, p.Z);
+        return !Field25519.isNonZero(t0, scratch.bytes);
+    }
+
+    /**
+     * Fills table with p, 3p, 5p ... (2 * table.length - 1)p, allocating the entries if they are null.
+     */
+    static void oddMultiples(Cached[] table, P3 p, P1P1 t, P3 u, P3 p2, int[] t0) {
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] == null) table[i] = new Cached();
+        }
+        toCached(table[0], p);
+        dbl(t, p, t0);
+        toP3(p2, t);
+        for (int i = 0; i < table.length - 1; i++) {
+            addCached(t, p2, table[i], t0);
+            toP3(u, t);
+            toCached(table[i + 1], u);
+        }
+    }
+
+    /**
+     * Signed sliding window recoding of a 256 bit little-endian scalar: every non-zero digit is odd and
+     * in [-15, 15], and any two non-zero digits are at least 5 positions apart.
+     */
+    static void slide(byte[] r, byte[] a, int off) {
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte) (1 & (a[off + (i >> 3)] >> (i & 7)));
+        }
+        for (int i = 0; i < 256; i++) {
+            if (r[i] == 0) continue;
+            for (int b = 1; b <= 6 && i + b < 256; b++) {
+                if (r[i + b] == 0) continue;
+                if (r[i] + (r[i + b] << b) <= 15) {
+                    r[i] += r[i + b] << b;
+                    r[i + b] = 0;
+                } else if (r[i] - (r[i + b] << b) >= -15) {
+                    r[i] -= r[i + b] << b;
+                    for (int k = i + b; k < 256; k++) {
+                        if (r[k] == 0) {
+                            r[k] = 1;
+                            break;
+                        }
+                        r[k] = 0;
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * r = a * A + b * B, where A is given by its odd multiples and B is the base point. Variable time, which is
+     * fine for verification where every input is public.
+     */
+    static void doubleScalarMult(P2 r, byte[] aSlide, Cached[] aTable, byte[] bSlide,
+                                 P1P1 t, P3 u, int[] t0) {
+        r.setIdentity();
+        int i = 255;
+        while (i >= 0 && aSlide[i] == 0 && bSlide[i] == 0) i--;
+
+        for (; i >= 0; i--) {
+            dbl(t, r, t0);
+            int a = aSlide[i];
+            if (a > 0) {
+                toP3(u, t);
+                addCached(t, u, aTable[a >> 1], t0);
+            } else if (a < 0) {
+                toP3(u, t);
+                subCached(t, u, aTable[(-a) >> 1], t0);
+            }
+            int b = bSlide[i];
+            if (b > 0) {
+                toP3(u, t);
+                addCached(t, u, BASE_ODD_MULTIPLES[b >> 1], t0);
+            } else if (b < 0) {
+                toP3(u, t);
+                subCached(t, u, BASE_ODD_MULTIPLES[(-b) >> 1], t0);
+            }
+            toP2(r, t);
+        }
+    }
+}
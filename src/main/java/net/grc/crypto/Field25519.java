@@ -0,0 +1,316 @@
+package net.grc.crypto;
+
+/**
+ * Arithmetic in GF(2^255 - 19) on field elements represented as 10 signed limbs in radix 2^25.5
+ * (26, 25, 26, 25... bits), as in the ref10 reference implementation.
+ * <p/>
+ * All operations write into a caller supplied output array and never allocate. The output may alias either input.
+ */
+final class Field25519 {
+    static final int LIMBS = 10;
+
+    private Field25519() {
+    }
+
+    static int[] create() {
+        return new int[LIMBS];
+    }
+
+    static int[] create(int... limbs) {
+        if (limbs.length != LIMBS) throw new IllegalArgumentException("limbs=" + limbs.length);
+        return limbs.clone();
+    }
+
+    static void zero(int[] h) {
+        for (int i = 0; i < LIMBS; i++) h[i] = 0;
+    }
+
+    static void one(int[] h) {
+        zero(h);
+        h[0] = 1;
+    }
+
+    static void copy(int[] h, int[] f) {
+        System.arraycopy(f, 0, h, 0, LIMBS);
+    }
+
+    static void add(int[] h, int[] f, int[] g) {
+        for (int i = 0; i < LIMBS; i++) h[i] = f[i] + g[i];
+    }
+
+    static void sub(int[] h, int[] f, int[] g) {
+        for (int i = 0; i < LIMBS; i++) h[i] = f[i] - g[i];
+    }
+
+    static void neg(int[] h, int[] f) {
+        for (int i = 0; i < LIMBS; i++) h[i] = -f[i];
+    }
+
+    /**
+     * h = f if b == 1, unchanged if b == 0
+     */
+    static void cmov(int[] h, int[] f, int b) {
+        b = -b;
+        for (int i = 0; i < LIMBS; i++) h[i] ^= b & (h[i] ^ f[i]);
+    }
+
+    /**
+     * swaps f and g if b == 1, neither if b == 0
+     */
+    static void cswap(int[] f, int[] g, int b) {
+        b = -b;
+        for (int i = 0; i < LIMBS; i++) {
+            int x = b & (f[i] ^ g[i]);
+            f[i] ^= x;
+            g[i] ^= x;
+        }
+    }
+
+    /**
+     * Loads the low 255 bits of a little-endian encoding, ignoring the top (sign) bit.
+     */
+    static void fromBytes(int[] h, byte[] s, int off) {
+        int bit = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            int width = (i & 1) == 0 ? 26 : 25;
+            h[i] = (int) ((load4(s, off + (bit >> 3)) >>> (bit & 7)) & ((1L << width) - 1));
+            bit += width;
+        }
+    }
+
+    /**
+     * Writes the canonical (fully reduced) little-endian encoding of h.
+     */
+    static void toBytes(byte[] s, int off, int[] h) {
+        long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+        long h5 = h[5], h6 = h[6], h7 = h[7], h8 = h[8], h9 = h[9];
+
+        long q = (19 * h9 + (1L << 24)) >> 25;
+        q = (h0 + q) >> 26;
+        q = (h1 + q) >> 25;
+        q = (h2 + q) >> 26;
+        q = (h3 + q) >> 25;
+        q = (h4 + q) >> 26;
+        q = (h5 + q) >> 25;
+        q = (h6 + q) >> 26;
+        q = (h7 + q) >> 25;
+        q = (h8 + q) >> 26;
+        q = (h9 + q) >> 25;
+
+        // h - (2^255 - 19) q is between 0 and 2^255 - 20
+        h0 += 19 * q;
+
+        long carry;
+        carry = h0 >> 26; h1 += carry; h0 -= carry << 26;
+        carry = h1 >> 25; h2 += carry; h1 -= carry << 25;
+        carry = h2 >> 26; h3 += carry; h2 -= carry << 26;
+        carry = h3 >> 25; h4 += carry; h3 -= carry << 25;
+        carry = h4 >> 26; h5 += carry; h4 -= carry << 26;
+        carry = h5 >> 25; h6 += carry; h5 -= carry << 25;
+        carry = h6 >> 26; h7 += carry; h6 -= carry << 26;
+        carry = h7 >> 25; h8 += carry; h7 -= carry << 25;
+        carry = h8 >> 26; h9 += carry; h8 -= carry << 26;
+        carry = h9 >> 25; h9 -= carry << 25;
+
+        s[off] = (byte) h0;
+        s[off + 1] = (byte) (h0 >> 8);
+        s[off + 2] = (byte) (h0 >> 16);
+        s[off + 3] = (byte) ((h0 >> 24) | (h1 << 2));
+        s[off + 4] = (byte) (h1 >> 6);
+        s[off + 5] = (byte) (h1 >> 14);
+        s[off + 6] = (byte) ((h1 >> 22) | (h2 << 3));
+        s[off + 7] = (byte) (h2 >> 5);
+        s[off + 8] = (byte) (h2 >> 13);
+        s[off + 9] = (byte) ((h2 >> 21) | (h3 << 5));
+        s[off + 10] = (byte) (h3 >> 3);
+        s[off + 11] = (byte) (h3 >> 11);
+        s[off + 12] = (byte) ((h3 >> 19) | (h4 << 6));
+        s[off + 13] = (byte) (h4 >> 2);
+        s[off + 14] = (byte) (h4 >> 10);
+        s[off + 15] = (byte) (h4 >> 18);
+        s[off + 16] = (byte) h5;
+        s[off + 17] = (byte) (h5 >> 8);
+        s[off + 18] = (byte) (h5 >> 16);
+        s[off + 19] = (byte) ((h5 >> 24) | (h6 << 1));
+        s[off + 20] = (byte) (h6 >> 7);
+        s[off + 21] = (byte) (h6 >> 15);
+        s[off + 22] = (byte) ((h6 >> 23) | (h7 << 3));
+        s[off + 23] = (byte) (h7 >> 5);
+        s[off + 24] = (byte) (h7 >> 13);
+        s[off + 25] = (byte) ((h7 >> 21) | (h8 << 4));
+        s[off + 26] = (byte) (h8 >> 4);
+        s[off + 27] = (byte) (h8 >> 12);
+        s[off + 28] = (byte) ((h8 >> 20) | (h9 << 6));
+        s[off + 29] = (byte) (h9 >> 2);
+        s[off + 30] = (byte) (h9 >> 10);
+        s[off + 31] = (byte) (h9 >> 18);
+    }
+
+    /**
+     * @return 1 if the canonical encoding of f is odd ("negative"), otherwise 0
+     */
+    static int isNegative(int[] f, byte[] scratch) {
+        toBytes(scratch, 0, f);
+        return scratch[0] & 1;
+    }
+
+    static boolean isNonZero(int[] f, byte[] scratch) {
+        toBytes(scratch, 0, f);
+        int r = 0;
+        for (int i = 0; i < 32; i++) r |= scratch[i];
+        return r != 0;
+    }
+
+    static void mul(int[] h, int[] f, int[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        long g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+        long g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+
+        long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19 + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+        long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19 + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+        long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19 + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+        long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19 + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+        long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0 + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+        long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1 + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+        long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2 + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+        long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3 + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+        long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4 + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+        long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5 + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    static void sq(int[] h, int[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+
+        long f0_2 = 2 * f0, f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4;
+        long f5_2 = 2 * f5, f6_2 = 2 * f6, f7_2 = 2 * f7, f8_2 = 2 * f8, f9_2 = 2 * f9;
+        long f1_4 = 4 * f1, f3_4 = 4 * f3, f5_4 = 4 * f5, f7_4 = 4 * f7;
+        long f5_19 = 19 * f5, f6_19 = 19 * f6, f7_19 = 19 * f7, f8_19 = 19 * f8, f9_19 = 19 * f9;
+
+        long h0 = f0 * f0 + f1_4 * f9_19 + f2_2 * f8_19 + f3_4 * f7_19 + f4_2 * f6_19 + f5_2 * f5_19;
+        long h1 = f0_2 * f1 + f2_2 * f9_19 + f3_2 * f8_19 + f4_2 * f7_19 + f5_2 * f6_19;
+        long h2 = f0_2 * f2 + f1_2 * f1 + f3_4 * f9_19 + f4_2 * f8_19 + f5_4 * f7_19 + f6 * f6_19;
+        long h3 = f0_2 * f3 + f1_2 * f2 + f4_2 * f9_19 + f5_2 * f8_19 + f6_2 * f7_19;
+        long h4 = f0_2 * f4 + f1_4 * f3 + f2 * f2 + f5_4 * f9_19 + f6_2 * f8_19 + f7_2 * f7_19;
+        long h5 = f0_2 * f5 + f1_2 * f4 + f2_2 * f3 + f6_2 * f9_19 + f7_2 * f8_19;
+        long h6 = f0_2 * f6 + f1_4 * f5 + f2_2 * f4 + f3_2 * f3 + f7_4 * f9_19 + f8 * f8_19;
+        long h7 = f0_2 * f7 + f1_2 * f6 + f2_2 * f5 + f3_2 * f4 + f8_2 * f9_19;
+        long h8 = f0_2 * f8 + f1_4 * f7 + f2_2 * f6 + f3_4 * f5 + f4 * f4 + f9_2 * f9_19;
+        long h9 = f0_2 * f9 + f1_2 * f8 + f2_2 * f7 + f3_2 * f6 + f4_2 * f5;
+
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /**
+     * h = 2 * f * f
+     */
+    static void sq2(int[] h, int[] f) {
+        sq(h, f);
+        add(h, h, h);
+    }
+
+    private static void carry(int[] h, long h0, long h1, long h2, long h3, long h4,
+                              long h5, long h6, long h7, long h8, long h9) {
+        long carry;
+        carry = (h0 + (1L << 25)) >> 26; h1 += carry; h0 -= carry << 26;
+        carry = (h4 + (1L << 25)) >> 26; h5 += carry; h4 -= carry << 26;
+        carry = (h1 + (1L << 24)) >> 25; h2 += carry; h1 -= carry << 25;
+        carry = (h5 + (1L << 24)) >> 25; h6 += carry; h5 -= carry << 25;
+        carry = (h2 + (1L << 25)) >> 26; h3 += carry; h2 -= carry << 26;
+        carry = (h6 + (1L << 25)) >> 26; h7 += carry; h6 -= carry << 26;
+        carry = (h3 + (1L << 24)) >> 25; h4 += carry; h3 -= carry << 25;
+        carry = (h7 + (1L << 24)) >> 25; h8 += carry; h7 -= carry << 25;
+        carry = (h4 + (1L << 25)) >> 26; h5 += carry; h4 -= carry << 26;
+        carry = (h8 + (1L << 25)) >> 26; h9 += carry; h8 -= carry << 26;
+        carry = (h9 + (1L << 24)) >> 25; h0 += carry * 19; h9 -= carry << 25;
+        carry = (h0 + (1L << 25)) >> 26; h1 += carry; h0 -= carry << 26;
+
+        h[0] = (int) h0;
+        h[1] = (int) h1;
+        h[2] = (int) h2;
+        h[3] = (int) h3;
+        h[4] = (int) h4;
+        h[5] = (int) h5;
+        h[6] = (int) h6;
+        h[7] = (int) h7;
+        h[8] = (int) h8;
+        h[9] = (int) h9;
+    }
+
+    /**
+     * out = z^(p-2) = 1/z, using the ref10 addition chain. t0..t3 are scratch.
+     */
+    static void invert(int[] out, int[] z, int[] t0, int[] t1, int[] t2, int[] t3) {
+        sq(t0, z);
+        sq(t1, t0);
+        sq(t1, t1);
+        mul(t1, z, t1);
+        mul(t0, t0, t1);
+        sq(t2, t0);
+        mul(t1, t1, t2);
+        sqn(t2, t1, 5);
+        mul(t1, t2, t1);
+        sqn(t2, t1, 10);
+        mul(t2, t2, t1);
+        sqn(t3, t2, 20);
+        mul(t2, t3, t2);
+        sqn(t2, t2, 10);
+        mul(t1, t2, t1);
+        sqn(t2, t1, 50);
+        mul(t2, t2, t1);
+        sqn(t3, t2, 100);
+        mul(t2, t3, t2);
+        sqn(t2, t2, 50);
+        mul(t1, t2, t1);
+        sqn(t1, t1, 5);
+        mul(out, t1, t0);
+    }
+
+    /**
+     * out = z^((p-5)/8) = z^(2^252 - 3), used for square roots. t0..t2 are scratch.
+     */
+    static void pow22523(int[] out, int[] z, int[] t0, int[] t1, int[] t2) {
+        sq(t0, z);
+        sq(t1, t0);
+        sq(t1, t1);
+        mul(t1, z, t1);
+        mul(t0, t0, t1);
+        sq(t0, t0);
+        mul(t0, t1, t0);
+        sqn(t1, t0, 5);
+        mul(t0, t1, t0);
+        sqn(t1, t0, 10);
+        mul(t1, t1, t0);
+        sqn(t2, t1, 20);
+        mul(t1, t2, t1);
+        sqn(t1, t1, 10);
+        mul(t0, t1, t0);
+        sqn(t1, t0, 50);
+        mul(t1, t1, t0);
+        sqn(t2, t1, 100);
+        mul(t1, t2, t1);
+        sqn(t1, t1, 50);
+        mul(t0, t1, t0);
+        sqn(t0, t0, 2);
+        mul(out, t0, z);
+    }
+
+    private static void sqn(int[] h, int[] f, int n) {
+        sq(h, f);
+        for (int i = 1; i < n; i++) sq(h, h);
+    }
+
+    static long load4(byte[] s, int off) {
+        return (s[off] & 0xffL)
+                | (s[off + 1] & 0xffL) << 8
+                | (s[off + 2] & 0xffL) << 16
+                | (s[off + 3] & 0xffL) << 24;
+    }
+}
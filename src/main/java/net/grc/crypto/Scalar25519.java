@@ -0,0 +1,141 @@
+package net.grc.crypto;
+
+/**
+ * Arithmetic modulo the Ed25519 group order l = 2^252 + 27742317777372353535851937790883648493.
+ * <p/>
+ * Scalars are worked on as 24 signed 21-bit limbs. Reduction folds the limbs above 2^252 down using
+ * 2^252 == -c (mod l), where -c fits in six signed 21-bit limbs.
+ */
+final class Scalar25519 {
+    static final int LIMBS = 24;
+
+    /**
+     * -(l - 2^252) as signed 21-bit limbs
+     */
+    private static final long[] NEG_C = {666643, 470296, 654183, -997805, 136657, -683901};
+
+    /**
+     * l in little-endian byte order
+     */
+    private static final byte[] ORDER = {
+            (byte) 0xed, (byte) 0xd3, (byte) 0xf5, (byte) 0x5c, (byte) 0x1a, (byte) 0x63, (byte) 0x12, (byte) 0x58,
+            (byte) 0xd6, (byte) 0x9c, (byte) 0xf7, (byte) 0xa2, (byte) 0xde, (byte) 0xf9, (byte) 0xde, (byte) 0x14,
+            0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, (byte) 0x10};
+
+    private static final long MASK21 = (1L << 21) - 1;
+
+    private Scalar25519() {
+    }
+
+    /**
+     * @return true if the 32 byte little-endian scalar at s[off] is less than l
+     */
+    static boolean isCanonical(byte[] s, int off) {
+        for (int i = 31; i >= 0; i--) {
+            int a = s[off + i] & 0xff;
+            int b = ORDER[i] & 0xff;
+            if (a != b) return a < b;
+        }
+        return false;
+    }
+
+    /**
+     * out[0..32) = in[inOff..inOff+64) mod l
+     *
+     * @param limbs scratch of {@link #LIMBS} longs
+     */
+    static void reduce(byte[] out, byte[] in, int inOff, long[] limbs) {
+        for (int i = 0; i < 23; i++) {
+            int bit = 21 * i;
+            limbs[i] = (load8(in, inOff, 64, bit >> 3) >>> (bit & 7)) & MASK21;
+        }
+        limbs[23] = (Field25519.load4(in, inOff + 60) & 0xffffffffL) >>> 3;
+        reduceLimbs(out, limbs);
+    }
+
+    /**
+     * out = (a * b + c) mod l for 32 byte little-endian scalars
+     *
+     * @param limbs scratch of 3 * {@link #LIMBS} longs
+     */
+    static void mulAdd(byte[] out, byte[] a, byte[] b, byte[] c, long[] limbs) {
+        int ao = LIMBS, bo = LIMBS + 12;
+        for (int i = 0; i < 12; i++) {
+            limbs[ao + i] = limb(a, i);
+            limbs[bo + i] = limb(b, i);
+        }
+        for (int k = 0; k < LIMBS; k++) limbs[k] = k < 12 ? limb(c, k) : 0;
+        for (int i = 0; i < 12; i++) {
+            long ai = limbs[ao + i];
+            for (int j = 0; j < 12; j++) {
+                limbs[i + j] += ai * limbs[bo + j];
+            }
+        }
+        // products are up to 2^42 * 12; normalise before folding
+        for (int k = 0; k < LIMBS - 1; k++) carry(limbs, k);
+        reduceLimbs(out, limbs);
+    }
+
+    private static long limb(byte[] s, int i) {
+        int bit = 21 * i;
+        if (i == 11) {
+            // the last limb of a 256 bit scalar holds 25 bits
+            return (Field25519.load4(s, 28) & 0xffffffffL) >>> 7;
+        }
+        return (load8(s, 0, 32, bit >> 3) >>> (bit & 7)) & MASK21;
+    }
+
+    private static void reduceLimbs(byte[] out, long[] s) {
+        for (int i = 23; i >= 18; i--) fold(s, i);
+        for (int i = 6; i <= 16; i++) carry(s, i);
+        for (int i = 17; i >= 12; i--) fold(s, i);
+        for (int i = 0; i <= 11; i++) carry(s, i);
+        fold(s, 12);
+        for (int i = 0; i <= 11; i++) carryFloor(s, i);
+        fold(s, 12);
+        for (int i = 0; i <= 10; i++) carryFloor(s, i);
+
+        long acc = 0;
+        int bits = 0;
+        int o = 0;
+        for (int i = 0; i < 12; i++) {
+            acc |= s[i] << bits;
+            bits += 21;
+            while (bits >= 8) {
+                out[o++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        out[o] = (byte) acc;
+    }
+
+    private static void fold(long[] s, int i) {
+        long v = s[i];
+        for (int k = 0; k < NEG_C.length; k++) s[i - 12 + k] += v * NEG_C[k];
+        s[i] = 0;
+    }
+
+    private static void carry(long[] s, int i) {
+        long c = (s[i] + (1L << 20)) >> 21;
+        s[i + 1] += c;
+        s[i] -= c << 21;
+    }
+
+    private static void carryFloor(long[] s, int i) {
+        long c = s[i] >> 21;
+        s[i + 1] += c;
+        s[i] -= c << 21;
+    }
+
+    /**
+     * little-endian load of up to 8 bytes from s[base + byteOff], stopping at s[base + length]
+     */
+    private static long load8(byte[] s, int base, int length, int byteOff) {
+        long r = 0;
+        int end = Math.min(byteOff + 8, length);
+        for (int i = end - 1; i >= byteOff; i--) r = (r << 8) | (s[base + i] & 0xff);
+        return r;
+    }
+}
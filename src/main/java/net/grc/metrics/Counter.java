@@ -0,0 +1,35 @@
+package net.grc.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count updated from many threads, kept in a {@link LongAdder}: contended adds go to separate cells and reading
+ * sums them.
+ */
+public final class Counter {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    /**
+     * not a snapshot: adds made while summing may or may not be included
+     */
+    public long sum() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,137 @@
+package net.grc.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in nanoseconds counted in log-linear buckets, as in HdrHistogram: 16 buckets per power of two, so a
+ * reported value is within 1/16 of the true one, up to about two hours. The buckets are allocated up front and
+ * striped per thread, so recording is an array index computation and an atomic add.
+ * <p/>
+ * Recording also reports to the thread's {@link Tracer trace}, if it has one.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 42;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB + SUB;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int MAX_STRIPES = 8;
+    // bucket counts, then count, sum and max
+    private static final int STRIDE = BUCKETS + 3;
+
+    private final String name;
+    private final int stripes;
+    private final AtomicLongArray cells;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+        this.stripes = Striping.stripes(MAX_STRIPES);
+        this.cells = new AtomicLongArray(stripes * STRIDE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int base = Striping.index(stripes) * STRIDE;
+        cells.incrementAndGet(base + bucket(nanos));
+        cells.incrementAndGet(base + BUCKETS);
+        cells.addAndGet(base + BUCKETS + 1, nanos);
+        for (long max; nanos > (max = cells.get(base + BUCKETS + 2)); ) {
+            if (cells.compareAndSet(base + BUCKETS + 2, max, nanos)) break;
+        }
+        if (Tracer.active) Tracer.phase(name, nanos);
+    }
+
+    /**
+     * records the time since a System.nanoTime() reading
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int s = 0; s < stripes; s++) {
+            int base = s * STRIDE;
+            for (int b = 0; b < BUCKETS; b++) counts[b] += cells.get(base + b);
+            count += cells.get(base + BUCKETS);
+            sum += cells.get(base + BUCKETS + 1);
+            max = Math.max(max, cells.get(base + BUCKETS + 2));
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    static int bucket(long value) {
+        if (value < 2 * SUB) return (int) value;
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * the largest value counted in the bucket
+     */
+    static long highest(int bucket) {
+        if (bucket < 2 * SUB) return bucket;
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long mantissa = bucket - ((long) shift << SUB_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * The histogram at one moment, give or take the records made while it was copied.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the value at or below which that fraction of the recorded values lie, 0 if none were
+         */
+        public long getValueAt(double quantile) {
+            if (quantile < 0 || quantile > 1) throw new IllegalArgumentException("quantile=" + quantile);
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank) return Math.min(highest(b), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.grc.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The process wide registry of counters and latency histograms.
+ * <p/>
+ * Instrumented classes look their metrics up once, into static final fields, so the hot path never touches the
+ * registry. Names are dotted, e.g. sqrl.token.parse; {@link #writeText} turns the dots into underscores.
+ */
+public final class Metrics {
+    public static final String OBJECT_NAME = "net.grc:type=Metrics";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        if (name == null) throw new IllegalArgumentException("name=null");
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter(name);
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        if (name == null) throw new IllegalArgumentException("name=null");
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * by name
+     */
+    public static Map<String, Counter> counters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * by name
+     */
+    public static Map<String, LatencyHistogram> histograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Every metric in the Prometheus text format: counters as name_total, histograms as summaries in seconds.
+     */
+    public static void writeText(Appendable out) throws IOException {
+        for (Counter counter : counters.values()) {
+            String name = textName(counter.getName()) + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(Long.toString(counter.sum())).append('\n');
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            String name = textName(histogram.getName()) + "_seconds";
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(Double.toString(q)).append("\"} ")
+                        .append(seconds(snapshot.getValueAt(q))).append('\n');
+            }
+            out.append(name).append("_max ").append(seconds(snapshot.getMax())).append('\n');
+            out.append(name).append("_sum ").append(seconds(snapshot.getSum())).append('\n');
+            out.append(name).append("_count ").append(Long.toString(snapshot.getCount())).append('\n');
+        }
+    }
+
+    /**
+     * Registers {@link #OBJECT_NAME} with the platform MBean server: a read only attribute per counter, and
+     * count, mean, p50, p99, p999 and max in microseconds per histogram. Registering twice is a no-op.
+     */
+    public static void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // already there
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String textName(String name) {
+        return name.replace('.', '_').replace('-', '_');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /**
+     * Attributes are listed afresh on every getMBeanInfo, so metrics created later show up.
+     */
+    static final class MetricsMBean implements DynamicMBean {
+        private static final String[] STATS = {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros",
+                "maxMicros"};
+
+        @Override
+        public Object getAttribute(String attribute) {
+            Counter counter = counters.get(attribute);
+            if (counter != null) return counter.sum();
+
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+            if (histogram == null) throw new IllegalArgumentException(attribute);
+            LatencyHistogram.Snapshot s = histogram.snapshot();
+            String stat = attribute.substring(dot + 1);
+            if (stat.equals("count")) return s.getCount();
+            if (stat.equals("meanMicros")) return s.getMean() / 1000;
+            if (stat.equals("p50Micros")) return s.getValueAt(0.5) / 1000.0;
+            if (stat.equals("p99Micros")) return s.getValueAt(0.99) / 1000.0;
+            if (stat.equals("p999Micros")) return s.getValueAt(0.999) / 1000.0;
+            if (stat.equals("maxMicros")) return s.getMax() / 1000.0;
+            throw new IllegalArgumentException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (IllegalArgumentException e) {
+                    // left out, as the interface asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : counters.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            for (String name : histograms.keySet()) {
+                for (String stat : STATS) {
+                    String type = stat.equals("count") ? "long" : "double";
+                    attributes.add(new MBeanAttributeInfo(name + "." + stat, type, name, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "SQRL authentication metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
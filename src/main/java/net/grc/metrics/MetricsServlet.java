@@ -0,0 +1,28 @@
+package net.grc.metrics;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Serves {@link Metrics#writeText} for a scraper to pull, and with ?traces the latest {@link Tracer} traces, one
+ * per line. Map it where only operators can reach it.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        PrintWriter out = response.getWriter();
+        if (request.getParameter("traces") != null) {
+            for (Tracer.Trace trace : Tracer.recent()) out.append(trace.toString()).append('\n');
+        } else {
+            Metrics.writeText(out);
+        }
+        out.flush();
+    }
+}
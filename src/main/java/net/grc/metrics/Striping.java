@@ -0,0 +1,27 @@
+package net.grc.metrics;
+
+/**
+ * Picks the stripe a thread updates, so that threads on different cores mostly touch different cache lines.
+ */
+final class Striping {
+    private Striping() {
+    }
+
+    /**
+     * a power of two, at least twice the processors, at most max (a power of two)
+     */
+    static int stripes(int max) {
+        int wanted = Math.min(max, 2 * Runtime.getRuntime().availableProcessors());
+        int stripes = 1;
+        while (stripes < wanted) stripes <<= 1;
+        return stripes;
+    }
+
+    /**
+     * the calling thread's stripe of a power of two
+     */
+    static int index(int stripes) {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (stripes - 1);
+    }
+}
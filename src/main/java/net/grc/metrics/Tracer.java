@@ -0,0 +1,147 @@
+package net.grc.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Samples whole requests: a sampled request collects every {@link LatencyHistogram} recording made on its thread,
+ * in order, so one slow login shows whether its time went on parsing, storage, crypto or rendering.
+ * <p/>
+ * Off by default. While off, or for a request that is not sampled, the cost is one volatile read per recording.
+ * The latest traces are kept in a small ring for {@link MetricsServlet}.
+ */
+public final class Tracer {
+    public static final int RECENT = 64;
+
+    // any sampled trace open on some thread; saves the thread local lookup while there is none
+    static volatile boolean active;
+
+    private static volatile int sampleOneIn;
+    private static final AtomicLong open = new AtomicLong();
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+    private static final AtomicReferenceArray<Trace> recent = new AtomicReferenceArray<Trace>(RECENT);
+    private static final AtomicLong finished = new AtomicLong();
+
+    private Tracer() {
+    }
+
+    /**
+     * @param oneIn trace one request in so many, 1 for all, 0 for none
+     */
+    public static void setSampleRate(int oneIn) {
+        if (oneIn < 0) throw new IllegalArgumentException("oneIn=" + oneIn);
+        sampleOneIn = oneIn;
+    }
+
+    public static int getSampleRate() {
+        return sampleOneIn;
+    }
+
+    /**
+     * Starts a trace on this thread if the request is sampled.
+     *
+     * @return the trace to {@link #end}, null if not sampled
+     */
+    public static Trace begin(String name) {
+        int oneIn = sampleOneIn;
+        if (oneIn == 0 || CURRENT.get() != null) return null;
+        if (oneIn > 1 && ThreadLocalRandom.current().nextInt(oneIn) != 0) return null;
+
+        Trace trace = new Trace(name);
+        CURRENT.set(trace);
+        open.incrementAndGet();
+        active = true;
+        return trace;
+    }
+
+    /**
+     * Finishes a trace from {@link #begin}; a no-op for null.
+     */
+    public static void end(Trace trace) {
+        if (trace == null) return;
+        trace.finish();
+        CURRENT.remove();
+        // racing a begin elsewhere can lose that trace a few phases, never leave the flag off for good
+        if (open.decrementAndGet() == 0) active = open.get() > 0;
+        recent.set((int) (finished.getAndIncrement() % RECENT), trace);
+    }
+
+    /**
+     * the latest finished traces, newest first
+     */
+    public static List<Trace> recent() {
+        List<Trace> traces = new ArrayList<Trace>(RECENT);
+        long last = finished.get();
+        for (long i = last - 1; i >= 0 && i >= last - RECENT; i--) {
+            Trace trace = recent.get((int) (i % RECENT));
+            if (trace != null) traces.add(trace);
+        }
+        return Collections.unmodifiableList(traces);
+    }
+
+    static void phase(String name, long nanos) {
+        Trace trace = CURRENT.get();
+        if (trace != null) trace.add(name, nanos);
+    }
+
+    /**
+     * One sampled request: its phases in the order they finished.
+     */
+    public static final class Trace {
+        private final String name;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final List<String> phases = new ArrayList<String>();
+        private final List<Long> phaseNanos = new ArrayList<Long>();
+        private volatile long totalNanos = -1;
+
+        Trace(String name) {
+            this.name = name;
+        }
+
+        void add(String phase, long nanos) {
+            phases.add(phase);
+            phaseNanos.add(nanos);
+        }
+
+        void finish() {
+            totalNanos = System.nanoTime() - startNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * -1 until ended
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public List<String> getPhases() {
+            return Collections.unmodifiableList(phases);
+        }
+
+        public List<Long> getPhaseNanos() {
+            return Collections.unmodifiableList(phaseNanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(name).append(' ').append(totalNanos / 1000).append("us");
+            for (int i = 0; i < phases.size(); i++) {
+                s.append(' ').append(phases.get(i)).append('=').append(phaseNanos.get(i) / 1000).append("us");
+            }
+            return s.toString();
+        }
+    }
+}
@@ -1,25 +1,54 @@
 package net.grc.qrcode;
 
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.Encoder;
+import net.grc.metrics.LatencyHistogram;
+import net.grc.metrics.Metrics;
+import org.apache.commons.codec.binary.Base64;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+/**
+ * QR codes for SQRL challenges.
+ * <p/>
+ * {@link #encode} returns the module matrix, and the renderers write whole runs of modules into packed 1 bit
+ * rows: {@link #toImage} into the raster of a binary image, {@link #writePng} straight to a stream as PNG
+ * scanlines with no image in between. Each module row is packed once and repeated for every pixel row it
+ * covers. {@link #toSvg} draws the same modules as a vector path for the browser to scale, and
+ * {@link QRRenderCache} keeps the renders of recent challenges at the sizes served.
+ */
 public class QRCode {
-    public static BufferedImage createQRCode(byte[] byteData, int width, int height) {
-        char[] data = new char[byteData.length];
-        for(int i = data.length-1; i >= 0; i--) {
-            data[i] = (char)(0xFF & byteData[i]); // flip signed to unsigned
-        }
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final LatencyHistogram ENCODE = Metrics.histogram("qr.encode");
+    private static final LatencyHistogram PNG = Metrics.histogram("qr.png");
+    private static final LatencyHistogram SVG = Metrics.histogram("qr.svg");
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int IDAT_SIZE = 1 << 15;
 
-        QRCodeWriter writer = new QRCodeWriter();
+    public static BufferedImage createQRCode(byte[] byteData, int width, int height) {
         try {
             // default encoding is full-width bytes
-            BitMatrix bitMatrix = writer.encode(new String(data), BarcodeFormat.QR_CODE, width, height);
-            BufferedImage image = toBufferedImage(bitMatrix);
-            return image;
+            return toImage(encode(byteData), width, height);
         } catch( WriterException e ) {
             e.printStackTrace(); // TODO re-throw
         }
@@ -27,27 +56,281 @@ public class QRCode {
     }
 
     public static BufferedImage createQRCode(String stringData, int width, int height) {
-        QRCodeWriter writer = new QRCodeWriter();
         try {
-            BitMatrix bitMatrix = writer.encode(stringData, BarcodeFormat.QR_CODE, width, height);
-            BufferedImage image = toBufferedImage(bitMatrix);
-            return image;
+            return toImage(encode(stringData), width, height);
         } catch( WriterException e ) {
             e.printStackTrace(); // TODO re-throw
         }
         return null;
     }
 
+    /**
+     * Encodes bytes as ISO-8859-1 characters, which the QR byte mode carries unchanged.
+     */
+    public static QRMatrix encode(byte[] byteData) throws WriterException {
+        return encode(new String(byteData, ISO_8859_1));
+    }
+
+    /**
+     * Encodes at error correction level L, as {@link QRCodeWriter} does by default. Nothing is cached here: every
+     * challenge carries a fresh nut, so keep the matrix with the challenge, as {@link
+     * net.grc.authc.challenge.SQRLChallenge} does, to render it again or at several sizes.
+     * <p/>
+     * Contents that share a prefix share nothing else: the error correction covers the whole payload and the mask
+     * is chosen for the whole symbol.
+     */
+    public static QRMatrix encode(String contents) throws WriterException {
+        long start = System.nanoTime();
+        QRMatrix matrix = new QRMatrix(Encoder.encode(contents, ErrorCorrectionLevel.L).getMatrix());
+        ENCODE.recordSince(start);
+        return matrix;
+    }
+
+    /**
+     * A binary image of at least width by height pixels, the same pixels {@link QRCodeWriter} renders.
+     */
+    public static BufferedImage toImage(QRMatrix matrix, int width, int height) {
+        int w = matrix.extent(width);
+        int h = matrix.extent(height);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] raster = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int stride = (w + 7) >>> 3;
+
+        int scale = matrix.scale(width, height);
+        int left = matrix.padding(width, scale);
+        int top = matrix.padding(height, scale);
+        // index 1 of the binary palette is white
+        Arrays.fill(raster, (byte) 0xff);
+        byte[] row = new byte[stride];
+        for (int y = 0; y < matrix.getSize(); y++) {
+            packRow(matrix, y, scale, left, row);
+            for (int r = 0, at = (top + y * scale) * stride; r < scale; r++, at += stride) {
+                System.arraycopy(row, 0, raster, at, stride);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Writes a 1 bit greyscale PNG of at least width by height pixels.
+     */
+    public static void writePng(QRMatrix matrix, int width, int height, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        int w = matrix.extent(width);
+        int h = matrix.extent(height);
+        int scale = matrix.scale(width, height);
+        int left = matrix.padding(width, scale);
+        int top = matrix.padding(height, scale);
+
+        out.write(PNG_SIGNATURE);
+        ChunkOutputStream chunks = new ChunkOutputStream(out);
+        DataOutputStream header = new DataOutputStream(chunks);
+        header.writeInt(w);
+        header.writeInt(h);
+        // bit depth 1, greyscale, deflate, adaptive filtering, no interlace
+        header.write(new byte[]{1, 0, 0, 0, 0});
+        chunks.flushChunk("IHDR");
+
+        // each scanline is a filter type byte, 0 for none, then the packed pixels
+        byte[] white = new byte[1 + ((w + 7) >>> 3)];
+        Arrays.fill(white, 1, white.length, (byte) 0xff);
+        byte[] row = new byte[white.length];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream idat = new DeflaterOutputStream(chunks.idat(), deflater, IDAT_SIZE);
+            for (int y = 0; y < top; y++) {
+                idat.write(white);
+            }
+            for (int y = 0; y < matrix.getSize(); y++) {
+                packRow(matrix, y, scale, left, row, 1);
+                for (int r = 0; r < scale; r++) {
+                    idat.write(row);
+                }
+            }
+            for (int y = top + matrix.getSize() * scale; y < h; y++) {
+                idat.write(white);
+            }
+            idat.finish();
+            chunks.flushChunk("IDAT");
+        } finally {
+            deflater.end();
+        }
+        chunks.flushChunk("IEND");
+        PNG.recordSince(start);
+    }
+
+    /**
+     * A 1 bit greyscale PNG of the given pixels per module, quiet zone included, as a data URI for an img src.
+     */
+    public static String toPngDataUri(QRMatrix matrix, int scale) {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            writePng(matrix, pixels(matrix, scale), pixels(matrix, scale), png);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return "data:image/png;base64," + Base64.encodeBase64String(png.toByteArray());
+    }
+
+    /**
+     * An SVG document one unit per module, quiet zone included, to be scaled by its container. Dark modules are
+     * merged into rectangles, first along rows and then across rows with the same runs, and drawn as one path.
+     */
+    public static String toSvg(QRMatrix matrix) {
+        long start = System.nanoTime();
+        int size = matrix.getSize();
+        int n = size + 2 * QRMatrix.QUIET_ZONE;
+        // x, y, width, height; created in row order, grown downwards while the run repeats
+        List<int[]> rectangles = new ArrayList<int[]>();
+        Map<Long, int[]> open = new HashMap<Long, int[]>();
+        Map<Long, int[]> next = new HashMap<Long, int[]>();
+        for (int y = 0; y < size; y++) {
+            for (int x = matrix.next(0, y, true); x < size; ) {
+                int end = matrix.next(x, y, false);
+                Long run = ((long) x << 32) | end;
+                int[] rectangle = open.remove(run);
+                if (rectangle == null) {
+                    rectangle = new int[]{x, y, end - x, 0};
+                    rectangles.add(rectangle);
+                }
+                rectangle[3]++;
+                next.put(run, rectangle);
+                x = matrix.next(end, y, true);
+            }
+            Map<Long, int[]> swap = open;
+            open = next;
+            next = swap;
+            next.clear();
+        }
+
+        StringBuilder svg = new StringBuilder(64 + 16 * rectangles.size());
+        svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 ").append(n).append(' ').append(n)
+                .append("\" shape-rendering=\"crispEdges\"><rect width=\"100%\" height=\"100%\" fill=\"#fff\"/>")
+                .append("<path d=\"");
+        // each move is relative to the corner of the previous rectangle, where closing it left the pen; the first
+        // is relative to the origin
+        int penX = -QRMatrix.QUIET_ZONE, penY = -QRMatrix.QUIET_ZONE;
+        for (int[] r : rectangles) {
+            svg.append('m').append(r[0] - penX).append(' ').append(r[1] - penY)
+                    .append('h').append(r[2]).append('v').append(r[3]).append('h').append(-r[2]).append('z');
+            penX = r[0];
+            penY = r[1];
+        }
+        String document = svg.append("\"/></svg>").toString();
+        SVG.recordSince(start);
+        return document;
+    }
+
+    /**
+     * the side in pixels of an image with the given pixels per module, quiet zone included
+     */
+    public static int pixels(QRMatrix matrix, int scale) {
+        if (scale < 1) throw new IllegalArgumentException("scale=" + scale);
+        return (matrix.getSize() + 2 * QRMatrix.QUIET_ZONE) * scale;
+    }
+
     public static BufferedImage toBufferedImage(BitMatrix matrix) {
         int h = matrix.getHeight();
         int w = matrix.getWidth();
-        BufferedImage image = new BufferedImage(w, h, 1);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
         for (int y = 0; y < h; y++) {
             for (int x = 0; x < w; x++) {
-                image.setRGB(x, y,
-                        matrix.get(x, y) ? 0xff000000 : 0xffffffff);
+                pixels[y * w + x] = matrix.get(x, y) ? 0x000000 : 0xffffff;
             }
         }
         return image;
     }
+
+    static void packRow(QRMatrix matrix, int y, int scale, int left, byte[] row) {
+        packRow(matrix, y, scale, left, row, 0);
+    }
+
+    /**
+     * Packs module row y into row from off, most significant bit first, 1 for white and 0 for dark.
+     */
+    static void packRow(QRMatrix matrix, int y, int scale, int left, byte[] row, int off) {
+        Arrays.fill(row, off, row.length, (byte) 0xff);
+        int size = matrix.getSize();
+        for (int x = matrix.next(0, y, true); x < size; ) {
+            int end = matrix.next(x, y, false);
+            clearBits(row, off, left + x * scale, left + end * scale);
+            x = matrix.next(end, y, true);
+        }
+    }
+
+    /**
+     * clears bits from inclusive to exclusive
+     */
+    static void clearBits(byte[] row, int off, int from, int to) {
+        int first = off + (from >>> 3);
+        int last = off + ((to - 1) >>> 3);
+        int head = 0xff << (8 - (from & 7)) & 0xff;
+        int tail = 0xff >>> (((to - 1) & 7) + 1);
+        if (first == last) {
+            row[first] &= (byte) (head | tail);
+            return;
+        }
+        row[first] &= (byte) head;
+        Arrays.fill(row, first + 1, last, (byte) 0);
+        row[last] &= (byte) tail;
+    }
+
+    /**
+     * Buffers a chunk's data and writes it out as a length, type, data and CRC chunk.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private byte[] data = new byte[IDAT_SIZE];
+        private int length;
+
+        ChunkOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            if (length == data.length) data = Arrays.copyOf(data, 2 * data.length);
+            data[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (length + len > data.length) data = Arrays.copyOf(data, Math.max(2 * data.length, length + len));
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        /**
+         * a stream that writes out an IDAT chunk whenever a chunk's worth is buffered
+         */
+        OutputStream idat() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ChunkOutputStream.this.write(b, off, len);
+                    if (length >= IDAT_SIZE) flushChunk("IDAT");
+                }
+            };
+        }
+
+        void flushChunk(String type) throws IOException {
+            byte[] header = {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+                    (byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3)};
+            out.write(header);
+            out.write(data, 0, length);
+            crc.reset();
+            crc.update(header, 4, 4);
+            crc.update(data, 0, length);
+            int c = (int) crc.getValue();
+            out.write(new byte[]{(byte) (c >>> 24), (byte) (c >>> 16), (byte) (c >>> 8), (byte) c});
+            length = 0;
+        }
+    }
 }
@@ -0,0 +1,115 @@
+package net.grc.qrcode;
+
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+
+import java.util.Arrays;
+
+/**
+ * The modules of an encoded QR code, one bit each, without the quiet zone. Immutable.
+ * <p/>
+ * Renderers place it in an image of a given size the way {@link com.google.zxing.qrcode.QRCodeWriter} does: the
+ * largest whole number of pixels per module that fits the code and its quiet zone, centred.
+ */
+public final class QRMatrix {
+    /**
+     * modules of white border required around the code
+     */
+    public static final int QUIET_ZONE = 4;
+
+    private final int size;
+    private final int words;
+    // row major, bit x of row y is set for a dark module
+    private final long[] bits;
+    private final int hash;
+
+    QRMatrix(ByteMatrix matrix) {
+        size = matrix.getWidth();
+        words = (size + 63) >>> 6;
+        bits = new long[words * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (matrix.get(x, y) == 1) bits[y * words + (x >>> 6)] |= 1L << x;
+            }
+        }
+        hash = Arrays.hashCode(bits);
+    }
+
+    /**
+     * modules per side
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return true for a dark module
+     */
+    public boolean get(int x, int y) {
+        if (x < 0 || y < 0 || x >= size || y >= size) throw new IndexOutOfBoundsException(x + "," + y);
+        return (bits[y * words + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * The modules as a bitmap: size rows of (size + 7) / 8 bytes, most significant bit first, 1 for dark.
+     */
+    public byte[] toBitmap() {
+        int stride = (size + 7) >>> 3;
+        byte[] bitmap = new byte[stride * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = next(0, y, true); x < size; x = next(x + 1, y, true)) {
+                bitmap[y * stride + (x >>> 3)] |= (byte) (0x80 >>> (x & 7));
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the first module at or after x in row y whose darkness is dark, or size
+     */
+    int next(int x, int y, boolean dark) {
+        int base = y * words;
+        while (x < size) {
+            long w = bits[base + (x >>> 6)];
+            if (!dark) w = ~w;
+            w &= -1L << x;
+            if (w != 0) return Math.min(size, (x & ~63) + Long.numberOfTrailingZeros(w));
+            x = (x & ~63) + 64;
+        }
+        return size;
+    }
+
+    /**
+     * the image length along an axis: as asked, or enough for a pixel per module and the quiet zone
+     */
+    int extent(int length) {
+        return Math.max(length, size + 2 * QUIET_ZONE);
+    }
+
+    /**
+     * pixels per module in an image of at least width by height pixels
+     */
+    int scale(int width, int height) {
+        int qr = size + 2 * QUIET_ZONE;
+        return Math.min(extent(width) / qr, extent(height) / qr);
+    }
+
+    /**
+     * pixels before the first module, given the image length along that axis and the scale
+     */
+    int padding(int length, int scale) {
+        return (extent(length) - size * scale) / 2;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof QRMatrix)) return false;
+        QRMatrix other = (QRMatrix) o;
+        return hash == other.hash && size == other.size && Arrays.equals(bits, other.bits);
+    }
+}
@@ -0,0 +1,116 @@
+package net.grc.qrcode;
+
+import net.grc.authc.cache.SQRLCache;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent renders by module matrix, output format and pixels per module, so that a challenge shown at several
+ * sizes, say for mobile, desktop and print, is rendered once per size however often it is requested.
+ * <p/>
+ * The renders are held in a {@link SQRLCache}, whose segments are locked separately, so threads serving
+ * different challenges do not queue on one lock; its counters are sqrl.cache.qr.render.*. Concurrent misses for
+ * the same render may each render it.
+ */
+public class QRRenderCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final int PNG = 0;
+    private static final int PNG_DATA_URI = 1;
+    private static final int SVG = 2;
+
+    private final SQRLCache<Key, Object> renders;
+
+    public QRRenderCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public QRRenderCache(final int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries=" + maxEntries);
+        renders = new SQRLCache<Key, Object>("qr.render", maxEntries, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a PNG of the given pixels per module, quiet zone included.
+     */
+    public void writePng(QRMatrix matrix, int scale, OutputStream out) throws IOException {
+        out.write(png(matrix, scale));
+    }
+
+    /**
+     * @see QRCode#toPngDataUri
+     */
+    public String pngDataUri(QRMatrix matrix, int scale) {
+        Key key = new Key(matrix, PNG_DATA_URI, scale);
+        String uri = (String) renders.get(key);
+        if (uri == null) {
+            // the cached PNG of the same size, encoded
+            uri = "data:image/png;base64," + Base64.encodeBase64String(png(matrix, scale));
+            renders.put(key, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * @see QRCode#toSvg
+     */
+    public String svg(QRMatrix matrix) {
+        Key key = new Key(matrix, SVG, 1);
+        String svg = (String) renders.get(key);
+        if (svg == null) {
+            svg = QRCode.toSvg(matrix);
+            renders.put(key, svg);
+        }
+        return svg;
+    }
+
+    public int size() {
+        return renders.size();
+    }
+
+    private byte[] png(QRMatrix matrix, int scale) {
+        Key key = new Key(matrix, PNG, scale);
+        byte[] png = (byte[]) renders.get(key);
+        if (png == null) {
+            int pixels = QRCode.pixels(matrix, scale);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try {
+                QRCode.writePng(matrix, pixels, pixels, buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            png = buffer.toByteArray();
+            renders.put(key, png);
+        }
+        return png;
+    }
+
+    private static final class Key {
+        final QRMatrix matrix;
+        final int format;
+        final int scale;
+
+        Key(QRMatrix matrix, int format, int scale) {
+            if (matrix == null) throw new IllegalArgumentException("matrix=null");
+            this.matrix = matrix;
+            this.format = format;
+            this.scale = scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return (matrix.hashCode() * 31 + format) * 31 + scale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return format == other.format && scale == other.scale && matrix.equals(other.matrix);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package net.grc.authc.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLCacheTest {
+
+    static class ClockCache extends SQRLCache<String, String> {
+        long now = 1000;
+
+        ClockCache(int maximumSize) {
+            super("test", maximumSize, 10, 1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        ClockCache cache = new ClockCache(100);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertTrue(cache.keys().contains("a"));
+        assertEquals("2", cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTimeToLive() {
+        ClockCache cache = new ClockCache(100);
+        cache.put("a", "1");
+        cache.put("b", "2", 1, TimeUnit.MINUTES);
+        cache.put("c", "3", 0, TimeUnit.SECONDS);
+        cache.now += 10000;
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        cache.now += 60000;
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testNegativeEntries() {
+        ClockCache cache = new ClockCache(100);
+        cache.markUnknown("a");
+        assertTrue(cache.isUnknown("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+
+        cache.now += 1000;
+        assertFalse(cache.isUnknown("a"));
+
+        cache.markUnknown("b");
+        assertNull(cache.put("b", "1"));
+        assertFalse(cache.isUnknown("b"));
+        assertEquals("1", cache.get("b"));
+    }
+
+    @Test
+    public void testWasUnknown() {
+        ClockCache cache = new ClockCache(100);
+        cache.markUnknown("a");
+        assertFalse(cache.wasUnknown("a"));
+
+        assertNull(cache.get("a"));
+        assertFalse(cache.wasUnknown("b"));
+        assertNull(cache.get("a"));
+        assertTrue(cache.wasUnknown("a"));
+        // answered once
+        assertFalse(cache.wasUnknown("a"));
+
+        // a plain miss since
+        assertNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        assertFalse(cache.wasUnknown("a"));
+    }
+
+    @Test
+    public void testBounded() {
+        SQRLCache<Integer, Integer> cache = new SQRLCache<Integer, Integer>("test", 1000, 0, 0, TimeUnit.SECONDS);
+        for (int i = 0; i < 100000; i++) cache.put(i, i);
+        assertTrue(cache.size() <= 1000);
+    }
+
+    @Test
+    public void testFrequentKeysSurviveAScan() {
+        SQRLCache<Integer, Integer> cache = new SQRLCache<Integer, Integer>("test", 100, 0, 0, TimeUnit.SECONDS);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null) cache.put(i, i);
+            }
+        }
+        // one-off keys, e.g. logins by identities nobody registered
+        for (int i = 1000; i < 100000; i++) {
+            if (cache.get(i) == null) cache.put(i, i);
+        }
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(i) != null) kept++;
+        }
+        assertTrue("kept " + kept, kept >= 45);
+    }
+
+    @Test
+    public void testManagerSharesCachesByName() {
+        SQRLCacheManager manager = new SQRLCacheManager();
+        manager.setMaximumSize(10);
+        SQRLCache<String, String> cache = (SQRLCache<String, String>) manager.<String, String>getCache("a");
+        assertSame(cache, manager.getCache("a"));
+        for (int i = 0; i < 100; i++) cache.put("k" + i, "v");
+        assertTrue(cache.size() <= 10);
+
+        manager.destroy();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,187 @@
+package net.grc.authc.challenge;
+
+import net.grc.authc.credential.SQRLChallengeParser;
+import net.grc.authc.nut.MemoryNutStore;
+import net.grc.authc.nut.NutState;
+import net.grc.qrcode.QRCode;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChallengePoolTest {
+    final MemoryNutStore nuts = new MemoryNutStore(1000, 5, TimeUnit.MINUTES);
+    final AtomicLong clock = new AtomicLong(1000000);
+    final ChallengeFactory factory = new ChallengeFactory(nuts, "sqrl://grc.com/login", 6) {
+        @Override
+        protected long currentTimeMillis() {
+            return clock.get();
+        }
+    };
+
+    void awaitDepth(ChallengePool pool, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getDepth() < depth) {
+            if (System.currentTimeMillis() > deadline) fail("depth " + pool.getDepth());
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testChallenge() throws Exception {
+        SQRLChallenge challenge = factory.create("127.0.0.1");
+        assertTrue(challenge.getUrl().startsWith("sqrl://grc.com/login?d=6&nut="));
+        assertEquals(NutState.OUTSTANDING, nuts.state(challenge.getNut(), "127.0.0.1"));
+
+        // the challenge the phone signs is the URL with its parameters appended
+        String signed = challenge.getUrl() + "&sqrlver=0&sqrlkey=" + Base64.encodeBase64URLSafeString(new byte[32]);
+        SQRLChallengeParser parser = new SQRLChallengeParser();
+        parser.parse(signed, "AAAA");
+        assertEquals("sqrl://grc.com/login", parser.getDomain());
+        assertEquals(challenge.getNut(), parser.getNut());
+        assertEquals(QRCode.encode(challenge.getUrl()), challenge.getQRCode());
+    }
+
+    @Test
+    public void testRejectsNonCanonicalUrl() {
+        String[] urls = {"sqrl://GRC.com/login", "sqrl://grc.com/login?x=1", "sqrl://grc.com/a/../login",
+                "sqrl://grc.com/%7elogin"};
+        for (String url : urls) {
+            try {
+                new ChallengeFactory(nuts, url, 0);
+                fail(url);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testTakeFromPool() throws Exception {
+        ChallengePool pool = new ChallengePool(factory, 16, 1, TimeUnit.MINUTES);
+        try {
+            awaitDepth(pool, ChallengePool.MIN_DEPTH);
+            Set<String> urls = new HashSet<String>();
+            for (int i = 0; i < ChallengePool.MIN_DEPTH; i++) {
+                SQRLChallenge challenge = pool.take();
+                assertTrue(urls.add(challenge.getUrl()));
+                assertEquals(NutState.OUTSTANDING, nuts.state(challenge.getNut(), null));
+            }
+            assertEquals(ChallengePool.MIN_DEPTH, pool.getHits());
+            assertEquals(1.0, pool.getHitRate(), 0);
+
+            // refilled
+            awaitDepth(pool, ChallengePool.MIN_DEPTH);
+            assertTrue(pool.getProduced() >= 2 * ChallengePool.MIN_DEPTH);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStaleChallengesExpire() throws Exception {
+        ChallengePool pool = new ChallengePool(factory, 16, 1, TimeUnit.MINUTES);
+        try {
+            awaitDepth(pool, ChallengePool.MIN_DEPTH);
+            clock.addAndGet(TimeUnit.MINUTES.toMillis(2));
+            SQRLChallenge challenge = pool.take();
+            assertEquals(clock.get(), challenge.getCreatedMillis());
+            assertTrue(pool.getExpired() >= 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEmptyPoolMisses() {
+        ChallengePool pool = new ChallengePool(factory, 16, 1, TimeUnit.MINUTES);
+        pool.shutdown();
+        for (int i = 0; i < 40; i++) {
+            assertNotNull(pool.take());
+        }
+        assertEquals(40, pool.getHits() + pool.getMisses());
+        assertTrue(pool.getMisses() >= 40 - 16);
+
+        // a miss is issued to the host asking
+        final Set<String> hosts = new HashSet<String>();
+        ChallengePool bound = new ChallengePool(new ChallengeFactory(new MemoryNutStore() {
+            @Override
+            public ByteBuffer issue(String clientHost) {
+                synchronized (hosts) {
+                    hosts.add(String.valueOf(clientHost));
+                }
+                return super.issue(clientHost);
+            }
+        }, "sqrl://grc.com/login", 6), 16, 1, TimeUnit.MINUTES);
+        bound.shutdown();
+        long misses = bound.getMisses();
+        while (bound.getMisses() == misses) bound.take("10.0.0.1");
+        synchronized (hosts) {
+            assertTrue(hosts.contains("10.0.0.1"));
+        }
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(64);
+        assertEquals(64, ring.capacity());
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i));
+        // stops at the first item that does not match, which stays at the head
+        assertEquals(Integer.valueOf(0), ring.pollIf(i -> i < 2));
+        assertEquals(Integer.valueOf(1), ring.pollIf(i -> i < 2));
+        assertNull(ring.pollIf(i -> i < 2));
+        assertEquals(2, ring.size());
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertNull(ring.pollIf(i -> true));
+
+        for (int i = 0; i < 64; i++) assertTrue(ring.offer(i));
+        assertTrue(!ring.offer(64));
+        assertEquals(64, ring.size());
+        for (int i = 0; i < 64; i++) assertEquals(Integer.valueOf(i), ring.poll());
+        assertNull(ring.poll());
+
+        // every item offered is polled exactly once
+        final int perProducer = 100000;
+        final ConcurrentHashMap<Integer, Boolean> seen = new ConcurrentHashMap<Integer, Boolean>();
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicLong polled = new AtomicLong();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final int n = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    if (n < 2) {
+                        for (int i = 0; i < perProducer; i++) {
+                            while (!ring.offer(n * perProducer + i)) Thread.yield();
+                        }
+                    } else {
+                        while (polled.get() < 2 * perProducer) {
+                            Integer item = ring.poll();
+                            if (item == null) continue;
+                            if (seen.put(item, Boolean.TRUE) != null) throw new AssertionError("twice " + item);
+                            polled.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(2 * perProducer, seen.size());
+    }
+}
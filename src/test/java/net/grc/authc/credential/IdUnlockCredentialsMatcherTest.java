@@ -0,0 +1,101 @@
+package net.grc.authc.credential;
+
+import net.grc.crypto.Curve25519;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdUnlockCredentialsMatcherTest {
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    final Random random = new Random(1);
+    final IdUnlockCredentialsMatcher matcher = new IdUnlockCredentialsMatcher();
+
+    static class UnlockCredentials extends SQRLCredentials implements IdUnlockCredentials {
+        final byte[] hmac;
+
+        UnlockCredentials(String nut, byte[] hmac) {
+            super(URI.create(DOMAIN + "?nut=" + nut), Base64.encodeBase64URLSafeString(new byte[64]), "0", nut);
+            this.hmac = hmac;
+        }
+
+        @Override
+        public ByteBuffer getVerificationHmac() {
+            return ByteBuffer.wrap(hmac).asReadOnlyBuffer();
+        }
+    }
+
+    byte[] random32() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    static AuthenticationToken token(final SQRLAnonymousPrincipal principal, final SQRLCredentials credentials) {
+        return new AuthenticationToken() {
+            @Override
+            public Object getPrincipal() {
+                return principal;
+            }
+
+            @Override
+            public Object getCredentials() {
+                return credentials;
+            }
+        };
+    }
+
+    @Test
+    public void testLockThenUnlock() {
+        byte[] key = random32();
+        byte[] idLockSecret = random32();
+        byte[] idLockPublic = Curve25519.publicKey(idLockSecret);
+
+        // initiation: the client keeps SK-IdLock offline and sends the verifier and Pub-Request
+        byte[] requestSecret = random32();
+        byte[] verifier = Curve25519.agree(requestSecret, idLockPublic);
+        IdLockPrincipal stored = new IdLockPrincipal(DOMAIN, key, Curve25519.publicKey(requestSecret), verifier);
+
+        // reassociation: SK-IdLock and the stored Public Unlock Key give back the verifier
+        byte[] recovered = Curve25519.agree(idLockSecret, stored.getIdLockPublicKey());
+        assertArrayEquals(verifier, recovered);
+
+        byte[] nut = new byte[16];
+        random.nextBytes(nut);
+        String nutParam = Base64.encodeBase64URLSafeString(nut);
+        byte[] hmac = IdUnlockCredentialsMatcher.verificationHmac(recovered, nut);
+
+        SimpleAuthenticationInfo info = new SimpleAuthenticationInfo(stored, null, "sqrl");
+        SQRLAnonymousPrincipal presented = new SQRLAnonymousPrincipal(DOMAIN, key);
+        assertTrue(matcher.doCredentialsMatch(token(presented, new UnlockCredentials(nutParam, hmac)), info));
+
+        // another nut, a wrong verifier, a truncated hmac
+        byte[] otherNut = nut.clone();
+        otherNut[0] ^= 1;
+        assertFalse(matcher.doCredentialsMatch(token(presented,
+                new UnlockCredentials(Base64.encodeBase64URLSafeString(otherNut), hmac)), info));
+        byte[] guessed = IdUnlockCredentialsMatcher.verificationHmac(random32(), nut);
+        assertFalse(matcher.doCredentialsMatch(token(presented, new UnlockCredentials(nutParam, guessed)), info));
+        byte[] truncated = new byte[16];
+        System.arraycopy(hmac, 0, truncated, 0, 16);
+        assertFalse(matcher.doCredentialsMatch(token(presented, new UnlockCredentials(nutParam, truncated)), info));
+    }
+
+    @Test
+    public void testUnlockedId() {
+        byte[] key = random32();
+        SimpleAuthenticationInfo info = new SimpleAuthenticationInfo(new SQRLAnonymousPrincipal(DOMAIN, key), null,
+                "sqrl");
+        assertFalse(matcher.doCredentialsMatch(token(new SQRLAnonymousPrincipal(DOMAIN, key),
+                new UnlockCredentials("AAAA", new byte[32])), info));
+    }
+}
@@ -0,0 +1,196 @@
+package net.grc.authc.credential;
+
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.credential.CredentialsMatcher;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffloadedCredentialsMatcherTest {
+
+    /**
+     * matches while the gate is open, remembering the thread it ran on
+     */
+    static class GatedMatcher implements CredentialsMatcher {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile Thread thread;
+
+        @Override
+        public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+            thread = Thread.currentThread();
+            entered.countDown();
+            try {
+                return gate.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesOnWorker() {
+        GatedMatcher delegate = new GatedMatcher();
+        delegate.gate.countDown();
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 1);
+        try {
+            assertTrue(matcher.doCredentialsMatch(null, null));
+            assertNotEquals(Thread.currentThread(), delegate.thread);
+            assertTrue(delegate.thread.getName().startsWith("sqrl-verify-"));
+            assertTrue(matcher.match(null, null).join());
+        } finally {
+            matcher.close();
+        }
+    }
+
+    @Test
+    public void testRejectsBeyondPending() throws Exception {
+        GatedMatcher delegate = new GatedMatcher();
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 2);
+        try {
+            CompletableFuture<Boolean> running = matcher.match(null, null);
+            CompletableFuture<Boolean> queued = matcher.match(null, null);
+            delegate.entered.await();
+            assertEquals(2, matcher.getPending());
+
+            CompletableFuture<Boolean> refused = matcher.match(null, null);
+            assertTrue(refused.isCompletedExceptionally());
+            try {
+                refused.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof VerificationOverloadException);
+            }
+            try {
+                matcher.doCredentialsMatch(null, null);
+                fail();
+            } catch (VerificationOverloadException expected) {
+            }
+
+            delegate.gate.countDown();
+            assertTrue(running.get());
+            assertTrue(queued.get());
+            assertTrue(matcher.match(null, null).get());
+        } finally {
+            delegate.gate.countDown();
+            matcher.close();
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        GatedMatcher delegate = new GatedMatcher();
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 1);
+        matcher.setTimeoutMillis(10);
+        try {
+            matcher.doCredentialsMatch(null, null);
+            fail();
+        } catch (VerificationOverloadException expected) {
+        } finally {
+            delegate.gate.countDown();
+            matcher.close();
+        }
+    }
+
+    /**
+     * commits once the gate opens, as a matcher does before consuming the nut
+     */
+    static class CommittingMatcher extends GatedMatcher {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean committed;
+
+        @Override
+        public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+            super.doCredentialsMatch(token, info);
+            committed = OffloadedCredentialsMatcher.commit();
+            done.countDown();
+            return committed;
+        }
+    }
+
+    @Test
+    public void testTimedOutMatchDoesNotCommit() throws Exception {
+        CommittingMatcher delegate = new CommittingMatcher();
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 2);
+        matcher.setTimeoutMillis(10);
+        try {
+            matcher.doCredentialsMatch(null, null);
+            fail();
+        } catch (VerificationOverloadException expected) {
+        }
+        delegate.gate.countDown();
+        // or it never ran, if it was still queued
+        delegate.done.await(1, TimeUnit.SECONDS);
+        assertFalse(delegate.committed);
+        assertTrue(OffloadedCredentialsMatcher.commit());
+        matcher.close();
+    }
+
+    @Test
+    public void testCommittedMatchIsWaitedFor() {
+        GatedMatcher delegate = new GatedMatcher() {
+            @Override
+            public boolean doCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) {
+                assertTrue(OffloadedCredentialsMatcher.commit());
+                return super.doCredentialsMatch(token, info);
+            }
+        };
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 1);
+        matcher.setTimeoutMillis(200);
+        try {
+            new Thread(() -> {
+                try {
+                    delegate.entered.await();
+                    Thread.sleep(400);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delegate.gate.countDown();
+            }).start();
+            assertTrue(matcher.doCredentialsMatch(null, null));
+        } finally {
+            delegate.gate.countDown();
+            matcher.close();
+        }
+    }
+
+    @Test
+    public void testSubmittedTaskMatchesInPlace() throws Exception {
+        GatedMatcher delegate = new GatedMatcher();
+        delegate.gate.countDown();
+        // one permit: a match that queued again from within the task would be refused
+        final OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher(delegate, 1, 1);
+        try {
+            assertTrue(matcher.submit(() -> matcher.doCredentialsMatch(null, null)).get());
+            assertEquals(0, matcher.getPending());
+        } finally {
+            matcher.close();
+        }
+    }
+
+    @Test
+    public void testDelegateExceptionsPassThrough() {
+        OffloadedCredentialsMatcher matcher = new OffloadedCredentialsMatcher((token, info) -> {
+            throw new ClassCastException("not a SQRL token");
+        }, 1, 1);
+        try {
+            matcher.doCredentialsMatch(null, null);
+            fail();
+        } catch (ClassCastException expected) {
+        } finally {
+            matcher.close();
+        }
+        // a closed pool is as good as a full one
+        assertTrue(matcher.match(null, null).isCompletedExceptionally());
+    }
+}
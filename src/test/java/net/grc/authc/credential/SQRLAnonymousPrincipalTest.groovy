@@ -9,7 +9,7 @@ public class SQRLAnonymousPrincipalTest extends Specification {
     static base64 = new Base64(true);
     static okver = '0'
     static okuri = new URI('qrl://grc.com')
-    static okkey = base64.encodeToString([0] * 64 as byte[])
+    static okkey = base64.encodeToString([0] * 32 as byte[])
 
     @Unroll
     def 'test parse #challenge'() {
@@ -22,10 +22,10 @@ public class SQRLAnonymousPrincipalTest extends Specification {
         def pr = new SQRLAnonymousPrincipal(uri,key,d,ver)
 
         then:
-        pr.realm == realm
+        pr.domain == domain
 
         where:
-        challenge                         || realm
+        challenge                         || domain
         'sqrl://grc.com/'                 || 'sqrl://grc.com'
         'qrl://grc.com/'                  || 'qrl://grc.com'
         'qrl://grc.com'                   || 'qrl://grc.com'
@@ -46,10 +46,10 @@ public class SQRLAnonymousPrincipalTest extends Specification {
         def pr = new SQRLAnonymousPrincipal(uri,key,d,ver)
 
         then:
-        pr.realm == realm
+        pr.domain == domain
 
         where:
-        challenge                   | d || realm
+        challenge                   | d || domain
         'qrl://grc.com/a%C2%B1b'    | 9 || 'qrl://grc.com/a%C2%B1b'
         'qrl://grc.com/~sg'         | 4 || 'qrl://grc.com/~sg'
     }
@@ -67,7 +67,7 @@ public class SQRLAnonymousPrincipalTest extends Specification {
         thrown(IllegalArgumentException)
 
         where:
-        challenge                   | d || realm
+        challenge                   | d || domain
         'qrl://grc.com/a%c2%b1b'    | 9 || 'qrl://grc.com/a%C2%B1b'
         'qrl://grc.com/%7Esg'       | 4 || 'qrl://grc.com/~sg'
         'qrl://grc.com/%44'         | 2 || 'qrl://grc.com/d'
@@ -85,10 +85,10 @@ public class SQRLAnonymousPrincipalTest extends Specification {
         def pr = new SQRLAnonymousPrincipal(uri,key,d,ver)
 
         then:
-        pr.realm == realm
+        pr.domain == domain
 
         where:
-        challenge                   | d || realm
+        challenge                   | d || domain
         'qrl://grc.com/'            | 1 || 'qrl://grc.com/'
         'qrl://grc.com/login'       | 6 || 'qrl://grc.com/login'
     }
@@ -0,0 +1,76 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLBatchVerifierTest {
+    final List<SQRLToken> tokens = new ArrayList<SQRLToken>();
+    final List<AuthenticationInfo> infos = new ArrayList<AuthenticationInfo>();
+
+    public SQRLBatchVerifierTest() {
+        for (int i = 0; i < 10; i++) {
+            byte[] seed = new byte[32];
+            seed[0] = (byte) i;
+            Ed25519Signer signer = new Ed25519Signer(seed);
+            URI challenge = URI.create("sqrl://grc.com/login?nut=n" + i + "&sqrlver=0&sqrlkey="
+                    + Base64.encodeBase64URLSafeString(signer.getPublicKey()) + "&d=0");
+            byte[] sig = signer.sign(challenge.toASCIIString().getBytes(Charset.forName("UTF-8")));
+            if (i == 4) sig[0] ^= 1;
+
+            tokens.add(new SQRLToken(challenge, Base64.encodeBase64URLSafeString(sig), "127.0.0.1"));
+            infos.add(new SimpleAuthenticationInfo(
+                    new SQRLAnonymousPrincipal("sqrl://grc.com", signer.getPublicKey()), null, "sqrl"));
+        }
+    }
+
+    @Test
+    public void testFuturesCompleteWhenBatchFills() throws Exception {
+        // long delay: only the size cap can send this batch
+        SQRLBatchVerifier batch = new SQRLBatchVerifier(tokens.size(), 1, TimeUnit.HOURS);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < tokens.size(); i++) {
+            results.add(batch.submit(tokens.get(i), infos.get(i)));
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals("index " + i, i != 4, results.get(i).get(10, TimeUnit.SECONDS));
+        }
+        batch.shutdown();
+    }
+
+    @Test
+    public void testFuturesCompleteAfterDelay() throws Exception {
+        SQRLBatchVerifier batch = new SQRLBatchVerifier(1000, 5, TimeUnit.MILLISECONDS);
+        Future<Boolean> ok = batch.submit(tokens.get(0), infos.get(0));
+        Future<Boolean> bad = batch.submit(tokens.get(4), infos.get(4));
+        assertTrue(ok.get(10, TimeUnit.SECONDS));
+        assertFalse(bad.get(10, TimeUnit.SECONDS));
+        batch.shutdown();
+    }
+
+    @Test
+    public void testMatcherAndSynchronousBatch() {
+        SQRLBatchVerifier batch = new SQRLBatchVerifier(3, 1, TimeUnit.MILLISECONDS);
+        boolean[] results = batch.verify(tokens, infos);
+        for (int i = 0; i < results.length; i++) assertEquals(i != 4, results[i]);
+
+        SQRLBatchCredentialsMatcher matcher = new SQRLBatchCredentialsMatcher(batch);
+        assertTrue(matcher.doCredentialsMatch(tokens.get(1), infos.get(1)));
+        assertFalse(matcher.doCredentialsMatch(tokens.get(4), infos.get(4)));
+        batch.shutdown();
+    }
+}
@@ -0,0 +1,156 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static net.grc.authc.credential.SQRLChallengeParserTest.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SQRLBinaryParserTest {
+    static final String CHALLENGE = "sqrl://grc.com/login?nut=oOB4QOFJux5Z";
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    final Ed25519Signer signer = new Ed25519Signer(new byte[32]);
+    final SQRLBinaryParser parser = new SQRLBinaryParser();
+    final Random random = new Random(1);
+
+    byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    byte[] signed(String challenge, byte[] fields) {
+        return SQRLBinaryParser.frame(fields, signer.sign(SQRLBinaryParser.signedMessage(challenge, fields)));
+    }
+
+    SimpleAuthenticationInfo stored() {
+        return new SimpleAuthenticationInfo(new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey()), null, "sqrl");
+    }
+
+    @Test
+    public void testLogin() {
+        byte[] nut = random(16);
+        byte[] frame = signed(CHALLENGE,
+                SQRLBinaryParser.encodeFields(6, nut, signer.getPublicKey(), null, null, null));
+        assertEquals(5 + 16 + 32 + 64, frame.length);
+
+        // somewhere in a larger buffer, as read from a connection
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length + 10);
+        buffer.position(7);
+        buffer.put(frame).flip().position(7);
+        parser.parse(CHALLENGE, buffer);
+        assertEquals(7, buffer.position());
+
+        assertEquals(6, parser.getD());
+        assertArrayEquals(nut, bytes(parser.getNut()));
+        assertArrayEquals(signer.getPublicKey(), bytes(parser.getKey()));
+        assertEquals(new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey()), parser.principal());
+
+        SQRLCredentials credentials = parser.credentials();
+        assertEquals(CHALLENGE, credentials.getChallenge());
+        assertArrayEquals(nut, bytes(credentials.getNut()));
+        assertFalse(credentials instanceof IdLockCredentials);
+        assertFalse(credentials instanceof IdUnlockCredentials);
+
+        SQRLToken token = new SQRLToken(CHALLENGE, ByteBuffer.wrap(frame), "127.0.0.1");
+        assertTrue(new SQRLCredentialsMatcher().doCredentialsMatch(token, stored()));
+        assertEquals(token.getCredentials(), credentials);
+    }
+
+    @Test
+    public void testSignatureCoversChallengeAndFields() {
+        byte[] fields = SQRLBinaryParser.encodeFields(6, random(16), signer.getPublicKey(), null, null, null);
+        byte[] frame = signed(CHALLENGE, fields);
+        SQRLCredentialsMatcher matcher = new SQRLCredentialsMatcher();
+
+        // posted to another URL
+        assertFalse(matcher.doCredentialsMatch(new SQRLToken(CHALLENGE + "x", ByteBuffer.wrap(frame), null), stored()));
+
+        // another nut
+        byte[] tampered = frame.clone();
+        tampered[5] ^= 1;
+        assertFalse(matcher.doCredentialsMatch(new SQRLToken(CHALLENGE, ByteBuffer.wrap(tampered), null), stored()));
+    }
+
+    @Test
+    public void testIdLockAndUnlock() {
+        byte[] suk = random(32);
+        byte[] vuk = random(32);
+        parser.parse(CHALLENGE, ByteBuffer.wrap(signed(CHALLENGE,
+                SQRLBinaryParser.encodeFields(6, random(16), signer.getPublicKey(), suk, vuk, null))));
+        SQRLCredentials credentials = parser.credentials();
+        assertTrue(credentials instanceof IdLockCredentials);
+        assertArrayEquals(suk, bytes(((IdLockCredentials) credentials).getPublicUnlockKey()));
+        assertArrayEquals(vuk, bytes(((IdLockCredentials) credentials).getKeyVerifier()));
+
+        byte[] nut = random(16);
+        byte[] hmac = IdUnlockCredentialsMatcher.verificationHmac(vuk, nut);
+        parser.parse(CHALLENGE, ByteBuffer.wrap(signed(CHALLENGE,
+                SQRLBinaryParser.encodeFields(6, nut, signer.getPublicKey(), null, null, hmac))));
+        credentials = parser.credentials();
+        assertTrue(credentials instanceof IdUnlockCredentials);
+        assertArrayEquals(hmac, bytes(((IdUnlockCredentials) credentials).getVerificationHmac()));
+
+        IdLockPrincipal locked = new IdLockPrincipal(DOMAIN, signer.getPublicKey(), suk, vuk);
+        assertTrue(new IdUnlockCredentialsMatcher().doCredentialsMatch(
+                IdUnlockCredentialsMatcherTest.token(parser.principal(), credentials),
+                new SimpleAuthenticationInfo(locked, null, "sqrl")));
+    }
+
+    @Test
+    public void testNoNut() {
+        parser.parse(CHALLENGE, ByteBuffer.wrap(signed(CHALLENGE,
+                SQRLBinaryParser.encodeFields(6, null, signer.getPublicKey(), null, null, null))));
+        assertNull(parser.getNut());
+        assertNull(parser.credentials().getNut());
+    }
+
+    @Test
+    public void testMalformed() {
+        byte[] frame = signed(CHALLENGE, SQRLBinaryParser.encodeFields(6, random(16), signer.getPublicKey(),
+                null, null, null));
+
+        rejected(new byte[4]);
+        rejected(Arrays.copyOf(frame, frame.length - 1));
+        rejected(Arrays.copyOf(frame, frame.length + 1));
+        for (int i : new int[]{0, 1, 2}) {
+            byte[] bad = frame.clone();
+            bad[i] = 7;
+            rejected(bad);
+        }
+        // both id lock and id unlock
+        byte[] both = frame.clone();
+        both[2] = (byte) (SQRLBinaryParser.FLAG_ID_LOCK | SQRLBinaryParser.FLAG_ID_UNLOCK);
+        rejected(both);
+
+        // d longer than the path
+        byte[] longD = frame.clone();
+        longD[3] = 100;
+        parser.parse(CHALLENGE, ByteBuffer.wrap(longD));
+        try {
+            parser.principal();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    void rejected(byte[] frame) {
+        try {
+            parser.parse(CHALLENGE, ByteBuffer.wrap(frame));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
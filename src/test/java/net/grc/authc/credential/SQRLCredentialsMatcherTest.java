@@ -0,0 +1,78 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.nut.MemoryNutStore;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLCredentialsMatcherTest {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final Ed25519Signer signer = new Ed25519Signer(new byte[32]);
+    final String key = Base64.encodeBase64URLSafeString(signer.getPublicKey());
+    final URI challenge = URI.create("sqrl://grc.com/login?nut=oOB4QOFJux5Z&sqrlver=0&d=6&sqrlkey=" + key);
+
+    SQRLToken token(URI uri, byte[] sig) {
+        return new SQRLToken(uri, Base64.encodeBase64URLSafeString(sig), "127.0.0.1");
+    }
+
+    @Test
+    public void testSignedChallenge() {
+        byte[] sig = signer.sign(challenge.toASCIIString().getBytes(UTF8));
+        SQRLToken token = token(challenge, sig);
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal("sqrl://grc.com/login", signer.getPublicKey());
+
+        SQRLCredentialsMatcher matcher = new SQRLCredentialsMatcher();
+        assertTrue(matcher.doCredentialsMatch(token, new SimpleAuthenticationInfo(stored, null, "sqrl")));
+
+        // the stored principal now carries the decoded key
+        assertNotNull(stored.getVerificationKey());
+        assertSame(stored.getVerificationKey(), stored.getVerificationKey());
+        assertTrue(matcher.doCredentialsMatch(token(challenge, sig),
+                new SimpleAuthenticationInfo(stored, null, "sqrl")));
+    }
+
+    @Test
+    public void testWrongChallenge() {
+        URI other = URI.create(challenge.toASCIIString().replace("oOB4", "xxxx"));
+        byte[] sig = signer.sign(challenge.toASCIIString().getBytes(UTF8));
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal("sqrl://grc.com/login", signer.getPublicKey());
+
+        assertFalse(new SQRLCredentialsMatcher().doCredentialsMatch(token(other, sig),
+                new SimpleAuthenticationInfo(stored, null, "sqrl")));
+    }
+
+    @Test
+    public void testNutIsSingleUse() {
+        MemoryNutStore nuts = new MemoryNutStore(100, 1, TimeUnit.MINUTES);
+        ByteBuffer nut = nuts.issue("127.0.0.1");
+        byte[] nutBytes = new byte[nut.remaining()];
+        nut.duplicate().get(nutBytes);
+        URI issued = URI.create("sqrl://grc.com/login?nut=" + Base64.encodeBase64URLSafeString(nutBytes)
+                + "&sqrlver=0&d=6&sqrlkey=" + key);
+        byte[] sig = signer.sign(issued.toASCIIString().getBytes(UTF8));
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal("sqrl://grc.com/login", signer.getPublicKey());
+
+        SQRLCredentialsMatcher matcher = new SQRLCredentialsMatcher();
+        matcher.setNutStore(nuts);
+        assertTrue(matcher.doCredentialsMatch(token(issued, sig), new SimpleAuthenticationInfo(stored, null, "sqrl")));
+        assertFalse(matcher.doCredentialsMatch(token(issued, sig), new SimpleAuthenticationInfo(stored, null, "sqrl")));
+
+        // a correctly signed challenge with a nut the store never issued
+        sig = signer.sign(challenge.toASCIIString().getBytes(UTF8));
+        assertFalse(matcher.doCredentialsMatch(token(challenge, sig),
+                new SimpleAuthenticationInfo(stored, null, "sqrl")));
+    }
+}
@@ -0,0 +1,108 @@
+package net.grc.authc.credential;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLKeyTest {
+    final Random random = new Random(1);
+
+    byte[] randomKey() {
+        byte[] key = new byte[SQRLKey.LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        byte[] bytes = randomKey();
+        SQRLKey key = SQRLKey.of(bytes);
+        assertArrayEquals(bytes, key.toByteArray());
+        assertTrue(key.toByteBuffer().isReadOnly());
+
+        // any kind of buffer, position untouched
+        ByteBuffer direct = ByteBuffer.allocateDirect(40).order(ByteOrder.LITTLE_ENDIAN);
+        direct.position(8);
+        direct.duplicate().put(bytes);
+        assertEquals(key, SQRLKey.of(direct.asReadOnlyBuffer()));
+        assertEquals(8, direct.position());
+
+        byte[] padded = new byte[40];
+        System.arraycopy(bytes, 0, padded, 3, 32);
+        assertEquals(key, SQRLKey.of(padded, 3, 32));
+    }
+
+    @Test
+    public void testEquality() {
+        byte[] bytes = randomKey();
+        SQRLKey key = SQRLKey.of(bytes);
+        assertEquals(key, SQRLKey.of(bytes.clone()));
+        assertEquals(key.hashCode(), SQRLKey.of(bytes.clone()).hashCode());
+
+        for (int i = 0; i < SQRLKey.LENGTH; i++) {
+            byte[] other = bytes.clone();
+            other[i] ^= (byte) 0x80;
+            assertNotEquals(key, SQRLKey.of(other));
+        }
+        assertFalse(key.equals(null));
+    }
+
+    @Test
+    public void testLexicographicOrder() {
+        for (int i = 0; i < 1000; i++) {
+            byte[] a = randomKey();
+            byte[] b = random.nextBoolean() ? randomKey() : a.clone();
+            if (random.nextBoolean()) b[random.nextInt(32)] ^= (byte) (1 << random.nextInt(8));
+            assertEquals(Integer.signum(compareBytes(a, b)), Integer.signum(SQRLKey.of(a).compareTo(SQRLKey.of(b))));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongLength() {
+        SQRLKey.of(new byte[64]);
+    }
+
+    @Test
+    public void testPrincipals() {
+        byte[] low = new byte[32];
+        byte[] high = new byte[32];
+        high[0] = (byte) 0xff;
+        SQRLAnonymousPrincipal a = new SQRLAnonymousPrincipal("sqrl://grc.com", low);
+        SQRLAnonymousPrincipal b = new SQRLAnonymousPrincipal("sqrl://grc.com", high);
+        SQRLAnonymousPrincipal c = new SQRLAnonymousPrincipal("sqrl://grc.com", SQRLKey.of(a.getPublicKey()));
+
+        assertEquals(a, c);
+        assertEquals(a.hashCode(), c.hashCode());
+        assertTrue(SQRLAnonymousPrincipal.ANY_SQRL_ID.compare(a, b) < 0);
+        assertTrue(SQRLAnonymousPrincipal.ANY_SQRL_ID.compare(b, a) > 0);
+        assertEquals(0, SQRLAnonymousPrincipal.ANY_SQRL_ID.compare(a, c));
+
+        IdLockPrincipal locked = new IdLockPrincipal("sqrl://grc.com", low, high, low);
+        assertArrayEquals(high, bytes(locked.getIdLockPublicKey()));
+        assertArrayEquals(low, bytes(locked.getIdLockKeyVerifier()));
+        assertEquals(locked, new IdLockPrincipal("sqrl://grc.com", low, high, low));
+        assertNotEquals(locked, new IdLockPrincipal("sqrl://grc.com", low, low, low));
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,138 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.limit.HostRateLimiter;
+import net.grc.authc.nut.MemoryNutStore;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SQRLMatcherPipelineTest {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final Ed25519Signer signer = new Ed25519Signer(new byte[32]);
+    final String key = Base64.encodeBase64URLSafeString(signer.getPublicKey());
+    final MemoryNutStore nuts = new MemoryNutStore(100, 1, TimeUnit.MINUTES);
+    final SimpleAuthenticationInfo info = new SimpleAuthenticationInfo(
+            new SQRLAnonymousPrincipal("sqrl://grc.com/login", signer.getPublicKey()), null, "sqrl");
+
+    URI issue() {
+        ByteBuffer nut = nuts.issue("127.0.0.1");
+        byte[] nutBytes = new byte[nut.remaining()];
+        nut.duplicate().get(nutBytes);
+        return URI.create("sqrl://grc.com/login?nut=" + Base64.encodeBase64URLSafeString(nutBytes)
+                + "&sqrlver=0&d=6&sqrlkey=" + key);
+    }
+
+    SQRLToken token(URI challenge, byte[] sig) {
+        return new SQRLToken(challenge, Base64.encodeBase64URLSafeString(sig), "127.0.0.1");
+    }
+
+    SQRLToken signed(URI challenge) {
+        return token(challenge, signer.sign(challenge.toASCIIString().getBytes(UTF8)));
+    }
+
+    static int stage(SQRLMatcherPipeline pipeline, String name) {
+        for (int i = 0; i < pipeline.getStages().size(); i++) {
+            if (pipeline.getStages().get(i).getName().equals(name)) return i;
+        }
+        throw new AssertionError(name);
+    }
+
+    @Test
+    public void testLogin() {
+        SQRLMatcherPipeline pipeline = SQRLMatcherPipeline.login(nuts);
+        int nut = stage(pipeline, "nut");
+        int signature = stage(pipeline, "signature");
+
+        // the counts are shared with every other pipeline in the process
+        long calls = pipeline.getCalls(signature);
+        long nutRejections = pipeline.getRejections(nut);
+        long signatureRejections = pipeline.getRejections(signature);
+        long nanos = pipeline.getNanos(signature);
+
+        URI challenge = issue();
+        assertTrue(pipeline.doCredentialsMatch(signed(challenge), info));
+        assertEquals(calls + 1, pipeline.getCalls(signature));
+
+        // a replay stops at the nut, before the signature
+        assertFalse(pipeline.doCredentialsMatch(signed(challenge), info));
+        assertEquals(nutRejections + 1, pipeline.getRejections(nut));
+        assertEquals(calls + 1, pipeline.getCalls(signature));
+
+        // and so does a nut we never issued
+        URI forged = URI.create("sqrl://grc.com/login?nut=oOB4QOFJux5ZNvHGCNq7SA&sqrlver=0&d=6&sqrlkey=" + key);
+        assertFalse(pipeline.doCredentialsMatch(signed(forged), info));
+        assertEquals(calls + 1, pipeline.getCalls(signature));
+
+        // a bad signature leaves the nut usable
+        challenge = issue();
+        assertFalse(pipeline.doCredentialsMatch(token(challenge, new byte[64]), info));
+        assertEquals(signatureRejections + 1, pipeline.getRejections(signature));
+        assertTrue(pipeline.doCredentialsMatch(signed(challenge), info));
+        assertTrue(pipeline.getNanos(signature) > nanos);
+    }
+
+    @Test
+    public void testRateLimitComesFirst() {
+        SQRLMatcherPipeline pipeline = SQRLMatcherPipeline.login(nuts, new HostRateLimiter(1, 1));
+        assertEquals("rate", pipeline.getStages().get(0).getName());
+        long rejections = pipeline.getRejections(0);
+        long calls = pipeline.getCalls(stage(pipeline, "signature"));
+        assertTrue(pipeline.doCredentialsMatch(signed(issue()), info));
+        assertFalse(pipeline.doCredentialsMatch(signed(issue()), info));
+        assertEquals(rejections + 1, pipeline.getRejections(0));
+        assertEquals(calls + 1, pipeline.getCalls(stage(pipeline, "signature")));
+    }
+
+    @Test
+    public void testIdLockNeedsLockCredentials() {
+        SQRLMatcherPipeline pipeline = SQRLMatcherPipeline.idLock(nuts);
+        long rejections = pipeline.getRejections(stage(pipeline, "lockable"));
+        long calls = pipeline.getCalls(stage(pipeline, "signature"));
+        assertFalse(pipeline.doCredentialsMatch(signed(issue()), info));
+        assertEquals(rejections + 1, pipeline.getRejections(stage(pipeline, "lockable")));
+        assertEquals(calls, pipeline.getCalls(stage(pipeline, "signature")));
+    }
+
+    @Test
+    public void testStagesShareContext() {
+        final SQRLAnonymousPrincipal[] seen = new SQRLAnonymousPrincipal[2];
+        SQRLMatcherPipeline pipeline = new SQRLMatcherPipeline(SQRLMatchStage.knownPrincipal(),
+                new SQRLMatchStage("first") {
+                    @Override
+                    public boolean match(SQRLMatchContext context) {
+                        seen[0] = context.getKnown();
+                        return true;
+                    }
+                },
+                new SQRLMatchStage("second") {
+                    @Override
+                    public boolean match(SQRLMatchContext context) {
+                        seen[1] = context.getKnown();
+                        throw new IllegalStateException("down");
+                    }
+                });
+
+        long rejections = pipeline.getRejections(2);
+        try {
+            pipeline.doCredentialsMatch(signed(issue()), info);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(info.getPrincipals().getPrimaryPrincipal(), seen[0]);
+        assertTrue(seen[0] == seen[1]);
+        assertEquals(rejections + 1, pipeline.getRejections(2));
+    }
+}
@@ -0,0 +1,109 @@
+package net.grc.authc.credential;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.realm.SQRLRealm;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLPrincipalCollectionTest {
+    final Random random = new Random(1);
+
+    byte[] randomKey() {
+        byte[] key = new byte[SQRLKey.LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    @Test
+    public void testFindMatchingPrincipal() {
+        SQRLPrincipalCollection principals = new SQRLPrincipalCollection("username", "ldap");
+        SimplePrincipalCollection plain = new SimplePrincipalCollection("username", "ldap");
+        SQRLAnonymousPrincipal[] ids = new SQRLAnonymousPrincipal[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = new SQRLAnonymousPrincipal("sqrl://grc.com/" + (i % 7), randomKey());
+            principals.add(ids[i], "sqrl");
+            plain.add(ids[i], "sqrl");
+        }
+
+        for (SQRLAnonymousPrincipal id : ids) {
+            SQRLAnonymousPrincipal presented = new SQRLAnonymousPrincipal(id.getDomain(), id.getKey());
+            assertSame(id, presented.findMatchingPrincipal(principals));
+            assertSame(id, presented.findMatchingPrincipal(plain));
+            assertNull(new SQRLAnonymousPrincipal("sqrl://grc.com/x", id.getKey()).findMatchingPrincipal(principals));
+        }
+        assertNull(new SQRLAnonymousPrincipal("sqrl://grc.com/0", randomKey()).findMatchingPrincipal(principals));
+    }
+
+    @Test
+    public void testSameKeyManyDomains() {
+        byte[] key = randomKey();
+        SQRLAnonymousPrincipal a = new SQRLAnonymousPrincipal("sqrl://a.com", key);
+        IdLockPrincipal b = new IdLockPrincipal("sqrl://b.com", key, randomKey(), randomKey());
+        SQRLAnonymousPrincipal c = new SQRLAnonymousPrincipal("sqrl://c.com", key);
+        SQRLPrincipalCollection principals = new SQRLPrincipalCollection(Arrays.asList(a, b), "sqrl");
+        assertSame(b, principals.find("sqrl://b.com", SQRLKey.of(key)));
+
+        // later additions are seen, and the first of a domain and key wins
+        principals.add(c, "other");
+        principals.add(new SQRLAnonymousPrincipal("sqrl://a.com", key), "other");
+        assertSame(a, principals.find("sqrl://a.com", SQRLKey.of(key)));
+        assertSame(b, principals.find("sqrl://b.com", SQRLKey.of(key)));
+        assertSame(c, principals.find("sqrl://c.com", SQRLKey.of(key)));
+
+        principals.clear();
+        assertNull(principals.find("sqrl://a.com", SQRLKey.of(key)));
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T roundTrip(T object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return (T) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Ed25519Signer signer = new Ed25519Signer(randomKey());
+        String challenge = "sqrl://grc.com/login?nut=oOB4QOFJux5Z&sqrlver=0&d=6&sqrlkey="
+                + Base64.encodeBase64URLSafeString(signer.getPublicKey());
+        SQRLToken token = new SQRLToken(challenge, Base64.encodeBase64URLSafeString(
+                signer.sign(challenge.getBytes(Charset.forName("UTF-8")))), "127.0.0.1");
+        SQRLRealm realm = new SQRLRealm();
+        IdLockPrincipal id = new IdLockPrincipal("sqrl://grc.com/login", signer.getPublicKey(), randomKey(),
+                randomKey());
+        realm.register(id);
+
+        PrincipalCollection principals = realm.getAuthenticationInfo(token).getPrincipals();
+        assertTrue(principals instanceof SQRLPrincipalCollection);
+        // with its index built
+        assertSame(id, ((SQRLPrincipalCollection) principals).find(id.getDomain(), id.getKey()));
+
+        SQRLPrincipalCollection copy = (SQRLPrincipalCollection) roundTrip(principals);
+        SQRLAnonymousPrincipal found = copy.find(id.getDomain(), SQRLKey.of(signer.getPublicKey()));
+        assertEquals(id, found);
+        assertEquals(IdLockPrincipal.class, found.getClass());
+        assertSame(found, new SQRLAnonymousPrincipal(id.getDomain(), id.getKey()).findMatchingPrincipal(copy));
+        assertEquals(id.getKey().hashCode(), found.getKey().hashCode());
+        // a key read back still verifies signatures
+        assertNotNull(found.getVerificationKey());
+    }
+}
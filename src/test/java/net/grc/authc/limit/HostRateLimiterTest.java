@@ -0,0 +1,94 @@
+package net.grc.authc.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostRateLimiterTest {
+    long now = 1000000;
+
+    class TestLimiter extends HostRateLimiter {
+        TestLimiter(double perSecond, int burst, int capacity, int prefixLimit) {
+            super(perSecond, burst, capacity, prefixLimit, 1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testTokenBucket() {
+        HostRateLimiter limiter = new TestLimiter(10, 5, 1024, 0);
+        for (int i = 0; i < 5; i++) assertTrue(limiter.tryAcquire("192.0.2.1"));
+        assertFalse(limiter.tryAcquire("192.0.2.1"));
+        // other hosts have their own bucket
+        assertTrue(limiter.tryAcquire("192.0.2.2"));
+
+        // 10 per second is one every 100ms
+        now += 99;
+        assertFalse(limiter.tryAcquire("192.0.2.1"));
+        now += 1;
+        assertTrue(limiter.tryAcquire("192.0.2.1"));
+        assertFalse(limiter.tryAcquire("192.0.2.1"));
+
+        // refills up to the burst
+        now += TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < 5; i++) assertTrue(limiter.tryAcquire("192.0.2.1"));
+        assertFalse(limiter.tryAcquire("192.0.2.1"));
+    }
+
+    @Test
+    public void testTableIsBounded() {
+        HostRateLimiter limiter = new TestLimiter(1, 1, 64, 0);
+        assertTrue(limiter.tryAcquire("192.0.2.1"));
+        assertFalse(limiter.tryAcquire("192.0.2.1"));
+
+        // many more hosts than slots: idle buckets are reused and new hosts start full
+        for (int i = 0; i < 100000; i++) {
+            now++;
+            assertTrue(limiter.tryAcquire("10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255)));
+        }
+    }
+
+    @Test
+    public void testPrefixLimit() {
+        HostRateLimiter limiter = new TestLimiter(1000, 1000, 1024, 100);
+        // each host is well within its own rate, the /24 is not
+        int admitted = 0;
+        for (int i = 0; i < 250; i++) {
+            if (limiter.tryAcquire("198.51.100." + i)) admitted++;
+        }
+        assertEquals(100, admitted);
+        assertFalse(limiter.tryAcquire("198.51.100.7"));
+        assertTrue(limiter.tryAcquire("198.51.101.7"));
+        assertTrue(limiter.getPrefixEstimate("198.51.100.200") >= 250);
+
+        // the count decays
+        now += TimeUnit.SECONDS.toMillis(3);
+        assertTrue(limiter.tryAcquire("198.51.100.7"));
+    }
+
+    @Test
+    public void testHostKeys() {
+        assertEquals(0xC0000201L, HostRateLimiter.parseIPv4("192.0.2.1"));
+        assertEquals(-1, HostRateLimiter.parseIPv4("192.0.2"));
+        assertEquals(-1, HostRateLimiter.parseIPv4("192.0.2.256"));
+        assertEquals(-1, HostRateLimiter.parseIPv4("example.com"));
+
+        // an IPv6 /64 is one host
+        assertEquals(HostRateLimiter.hostKey("2001:db8:1:2::1"), HostRateLimiter.hostKey("2001:db8:1:2:ffff::9"));
+        assertNotEquals(HostRateLimiter.hostKey("2001:db8:1:2::1"), HostRateLimiter.hostKey("2001:db8:1:3::1"));
+        assertEquals(HostRateLimiter.hostKey("192.0.2.1"), HostRateLimiter.hostKey("::ffff:192.0.2.1"));
+        assertEquals(HostRateLimiter.prefixKey("2001:db8:1:2::1", HostRateLimiter.hostKey("2001:db8:1:2::1")),
+                HostRateLimiter.prefixKey("2001:db8:1:3::1", HostRateLimiter.hostKey("2001:db8:1:3::1")));
+        assertNotEquals(0, HostRateLimiter.hostKey("::"));
+        assertNotEquals(0, HostRateLimiter.hostKey("not-an-address"));
+    }
+}
@@ -0,0 +1,72 @@
+package net.grc.authc.limit;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProofOfWorkTest {
+    double load;
+    long now;
+
+    final ProofOfWork work = new ProofOfWork(12, 0.9) {
+        @Override
+        protected double load() {
+            return load;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void testSolveAndVerify() {
+        ByteBuffer nut = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        long solution = ProofOfWork.solve(nut, 12);
+        assertTrue(work.verify(nut, solution));
+        assertTrue(nut.remaining() == 16);
+
+        // bound to the nut
+        ByteBuffer other = ByteBuffer.wrap(new byte[16]);
+        long otherSolution = ProofOfWork.solve(other, 12);
+        assertTrue(work.verify(other, otherSolution));
+        assertFalse(solution != otherSolution && work.verify(other, solution));
+        assertFalse(work.verify(null, solution));
+    }
+
+    @Test
+    public void testRequiredUnderLoad() {
+        load = 0.5;
+        assertFalse(work.isRequired());
+        load = 1.5;
+        // sampled once a second
+        assertFalse(work.isRequired());
+        now += 1000;
+        assertTrue(work.isRequired());
+        assertTrue(new ProofOfWork(8, 0).isRequired());
+    }
+
+    @Test
+    public void testRedeemedOnce() {
+        ByteBuffer nut = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        long solution = ProofOfWork.solve(nut, 12);
+        assertTrue(work.redeem(nut, solution));
+        assertFalse(work.redeem(nut, solution));
+        assertTrue(work.verify(nut, solution));
+
+        // trying again takes another solution
+        long next = ProofOfWork.solve(nut, 12, solution + 1);
+        assertTrue(next > solution);
+        assertTrue(work.redeem(nut, next));
+
+        // remembered for as long as the nut could be outstanding
+        now += ProofOfWork.DEFAULT_NUT_TTL_MILLIS;
+        assertFalse(work.redeem(nut, solution));
+        now += 2 * ProofOfWork.DEFAULT_NUT_TTL_MILLIS;
+        assertTrue(work.redeem(nut, solution));
+    }
+}
@@ -0,0 +1,98 @@
+package net.grc.authc.load;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A load test run from the command line, of key=value arguments:
+ * <pre>
+ * rate=200      requests per second
+ * seconds=30    how long arrivals go on
+ * phones=1000   simulated phones, each of which does one thing at a time
+ * threads=64    load generator workers, and the loopback server's request threads
+ * http=false    over the loopback interface, else in process
+ * binary=0.5    the share of logins posted in the binary form
+ * lock=0.05     the chance a registered phone locks its id, and a locked one unlocks it
+ * poisson=true  Poisson arrivals, else evenly spaced
+ * </pre>
+ * A phone logs in, which registers it with the site the first time, and now and then locks or unlocks its id.
+ */
+public class LoadDriver {
+    private final SimulatedPhone[] phones;
+    private final LoadTarget target;
+    private final double binaryRatio;
+    private final double lockRatio;
+
+    public LoadDriver(LoadTarget target, int phones, double binaryRatio, double lockRatio) {
+        if (phones <= 0) throw new IllegalArgumentException("phones " + phones);
+        this.target = target;
+        this.binaryRatio = binaryRatio;
+        this.lockRatio = lockRatio;
+        this.phones = new SimulatedPhone[phones];
+        Random random = new Random(phones);
+        for (int i = 0; i < phones; i++) this.phones[i] = new SimulatedPhone(random);
+    }
+
+    /**
+     * One request: the next phone scans a fresh challenge and posts its answer.
+     */
+    public boolean request(long sequence) throws IOException {
+        SimulatedPhone phone = phones[(int) (sequence % phones.length)];
+        synchronized (phone) {
+            String challenge = target.issue();
+            String domain = SimulatedPhone.domain(challenge, SQRLBackend.D);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            SimulatedPhone.Request request;
+            if (phone.isLocked(domain) && random.nextDouble() < lockRatio) {
+                request = phone.unlock(challenge, SQRLBackend.D);
+            } else if (phone.isRegistered(domain) && !phone.isLocked(domain) && random.nextDouble() < lockRatio) {
+                request = phone.lock(challenge, SQRLBackend.D);
+            } else {
+                request = phone.login(challenge, SQRLBackend.D, random.nextDouble() < binaryRatio);
+            }
+            if (target.post(request) != 200) return false;
+            phone.completed(request);
+            return true;
+        }
+    }
+
+    public LoadGenerator.Report run(LoadGenerator generator) throws InterruptedException {
+        return generator.run(this::request);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int at = arg.indexOf('=');
+            if (at < 0) throw new IllegalArgumentException("not key=value: " + arg);
+            options.put(arg.substring(0, at), arg.substring(at + 1));
+        }
+        double rate = Double.parseDouble(option(options, "rate", "200"));
+        long seconds = Long.parseLong(option(options, "seconds", "30"));
+        int phones = Integer.parseInt(option(options, "phones", "1000"));
+        int threads = Integer.parseInt(option(options, "threads", "64"));
+        boolean http = Boolean.parseBoolean(option(options, "http", "false"));
+        double binary = Double.parseDouble(option(options, "binary", "0.5"));
+        double lock = Double.parseDouble(option(options, "lock", "0.05"));
+        boolean poisson = Boolean.parseBoolean(option(options, "poisson", "true"));
+        if (!options.isEmpty()) throw new IllegalArgumentException("unknown options " + options.keySet());
+
+        LoadGenerator generator = new LoadGenerator(rate, seconds * 1000, threads);
+        generator.setPoisson(poisson);
+        LoopbackServer server = http ? new LoopbackServer(threads) : null;
+        try {
+            LoadTarget target = server != null ? server : new SQRLBackend(LoadTarget.LOCALHOST);
+            System.out.println(new LoadDriver(target, phones, binary, lock).run(generator));
+        } finally {
+            if (server != null) server.close();
+        }
+    }
+
+    private static String option(Map<String, String> options, String key, String otherwise) {
+        String value = options.remove(key);
+        return value != null ? value : otherwise;
+    }
+}
@@ -0,0 +1,182 @@
+package net.grc.authc.load;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop arrivals: requests start on a schedule of their own, at a rate per second, whether or not the earlier
+ * ones have finished, as logins from many phones would. A closed loop, where each thread waits for its answer
+ * before the next request, slows down with the server and hides its queueing.
+ * <p/>
+ * Each request's latency runs from when it was due, not from when a worker got to it, so that time spent waiting
+ * for a worker counts (no coordinated omission). Arrivals are a Poisson process by default, or evenly spaced.
+ */
+public class LoadGenerator {
+    /**
+     * One request, run on a worker thread.
+     */
+    public interface Scenario {
+        /**
+         * @param sequence the how manieth request, from 0
+         * @return whether the request succeeded
+         */
+        boolean run(long sequence) throws Exception;
+    }
+
+    private final double rate;
+    private final long durationNanos;
+    private final int threads;
+    private boolean poisson = true;
+    private long seed = 1;
+
+    /**
+     * @param rate requests per second
+     * @param durationMillis how long arrivals go on
+     * @param threads the workers; more than the server can keep busy, so that they are not what limits it
+     */
+    public LoadGenerator(double rate, long durationMillis, int threads) {
+        if (rate <= 0) throw new IllegalArgumentException("rate " + rate);
+        if (durationMillis <= 0) throw new IllegalArgumentException("duration " + durationMillis);
+        if (threads <= 0) throw new IllegalArgumentException("threads " + threads);
+        this.rate = rate;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.threads = threads;
+    }
+
+    /**
+     * @param poisson exponential times between arrivals, else a fixed interval
+     */
+    public void setPoisson(boolean poisson) {
+        this.poisson = poisson;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the scenario on schedule, and waits for the last request to finish.
+     */
+    public Report run(final Scenario scenario) throws InterruptedException {
+        double expected = rate * durationNanos / 1e9;
+        final long[] latencies = new long[(int) (expected + 6 * Math.sqrt(expected) + 16)];
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicInteger workers = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "load-" + workers.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Random random = new Random(seed);
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        long due = 0;
+        long sequence = 0;
+        try {
+            while (true) {
+                due += poisson ? (long) (-Math.log(1 - random.nextDouble()) * interval) : (long) interval;
+                if (due >= durationNanos || sequence >= latencies.length) break;
+                final long intended = start + due;
+                for (long wait; (wait = intended - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+
+                final long n = sequence++;
+                pool.execute(() -> {
+                    try {
+                        if (!scenario.run(n)) failures.incrementAndGet();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[count.getAndIncrement()] = System.nanoTime() - intended;
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        return new Report(Arrays.copyOf(latencies, count.get()), failures.get(), errors.get(), rate,
+                count.get() * 1e9 / elapsed);
+    }
+
+    /**
+     * What a run measured; latencies in nanoseconds.
+     */
+    public static final class Report {
+        private final long[] latencies;
+        private final long failures;
+        private final long errors;
+        private final double offered;
+        private final double achieved;
+
+        Report(long[] latencies, long failures, long errors, double offered, double achieved) {
+            Arrays.sort(latencies);
+            this.latencies = latencies;
+            this.failures = failures;
+            this.errors = errors;
+            this.offered = offered;
+            this.achieved = achieved;
+        }
+
+        public int getCount() {
+            return latencies.length;
+        }
+
+        /**
+         * requests the server turned down
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * requests that threw, such as on a broken connection
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return requests per second asked for
+         */
+        public double getOffered() {
+            return offered;
+        }
+
+        /**
+         * @return requests per second finished, over the whole run
+         */
+        public double getAchieved() {
+            return achieved;
+        }
+
+        /**
+         * @param quantile from 0 to 1
+         */
+        public long getLatency(double quantile) {
+            if (latencies.length == 0) return 0;
+            int at = (int) Math.ceil(quantile * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(at, latencies.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d failed, %d errors; %.1f/s offered, %.1f/s achieved%n"
+                            + "latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                    getCount(), failures, errors, offered, achieved, millis(0.5), millis(0.9), millis(0.99),
+                    millis(0.999), millis(1));
+        }
+
+        private double millis(double quantile) {
+            return getLatency(quantile) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.grc.authc.load;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+    @Test
+    public void testOpenLoop() throws Exception {
+        LoadGenerator generator = new LoadGenerator(200, 500, 4);
+        generator.setPoisson(false);
+        final AtomicInteger failed = new AtomicInteger();
+        LoadGenerator.Report report = generator.run(sequence -> {
+            if (sequence == 3) throw new IllegalStateException();
+            if (sequence % 10 == 0) {
+                failed.incrementAndGet();
+                return false;
+            }
+            return true;
+        });
+        // a fixed 5ms interval within 500ms
+        assertEquals(99, report.getCount());
+        assertEquals(failed.get(), report.getFailures());
+        assertEquals(1, report.getErrors());
+        assertTrue(report.getLatency(0.5) <= report.getLatency(0.99));
+    }
+
+    @Test
+    public void testLatencyIncludesQueueing() throws Exception {
+        // one worker, and each request takes four intervals
+        LoadGenerator generator = new LoadGenerator(100, 200, 1);
+        generator.setPoisson(false);
+        LoadGenerator.Report report = generator.run(sequence -> {
+            Thread.sleep(40);
+            return true;
+        });
+        assertTrue(report.getLatency(1) > 3 * 40_000_000L);
+    }
+
+    @Test
+    public void testInProcess() throws Exception {
+        LoadDriver driver = new LoadDriver(new SQRLBackend(LoadTarget.LOCALHOST), 5, 0.5, 0.3);
+        for (int i = 0; i < 60; i++) assertTrue("request " + i, driver.request(i));
+    }
+
+    @Test
+    public void testLoopback() throws Exception {
+        LoopbackServer server = new LoopbackServer(2);
+        try {
+            LoadDriver driver = new LoadDriver(server, 3, 0.5, 0.3);
+            LoadGenerator.Report report = driver.run(new LoadGenerator(40, 500, 2));
+            assertTrue(report.getCount() > 0);
+            assertEquals(0, report.getErrors());
+            assertEquals(0, report.getFailures());
+        } finally {
+            server.close();
+        }
+    }
+}
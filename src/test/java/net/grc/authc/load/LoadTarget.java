@@ -0,0 +1,20 @@
+package net.grc.authc.load;
+
+import java.io.IOException;
+
+/**
+ * Where a load test sends its phones: the {@link SQRLBackend} itself, or a {@link LoopbackServer} in front of it.
+ */
+public interface LoadTarget {
+    String LOCALHOST = "127.0.0.1";
+
+    /**
+     * @return a challenge URL with a fresh nut, as the login page's QR code shows it
+     */
+    String issue() throws IOException;
+
+    /**
+     * @return the HTTP status of the answer
+     */
+    int post(SimulatedPhone.Request request) throws IOException;
+}
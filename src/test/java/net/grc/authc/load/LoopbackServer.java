@@ -0,0 +1,128 @@
+package net.grc.authc.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link SQRLBackend} behind the JDK's HTTP server on the loopback interface, so that a load test also pays
+ * for connections, HTTP parsing and the request threads. GET {@value SQRLBackend#PATH} answers a challenge URL as
+ * text; a POST to a challenge URL is a phone's request. As the filter does, the challenge is rebuilt from the Host
+ * header and the request URI.
+ * <p/>
+ * The server is its own {@link LoadTarget} client, over HttpURLConnection with keep-alive.
+ */
+public class LoopbackServer implements LoadTarget, Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final SQRLBackend backend;
+    private final String authority;
+
+    /**
+     * @param threads request threads, as a container would have
+     */
+    public LoopbackServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(LOCALHOST), 0), 1024);
+        authority = LOCALHOST + ":" + server.getAddress().getPort();
+        backend = new SQRLBackend(authority);
+
+        final AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "loopback-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(this.threads);
+        server.createContext(SQRLBackend.PATH, this::handle);
+        server.start();
+    }
+
+    public SQRLBackend getBackend() {
+        return backend;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String host = exchange.getRemoteAddress().getAddress().getHostAddress();
+            if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] challenge = backend.issue(host).getBytes(ASCII);
+                exchange.sendResponseHeaders(200, challenge.length);
+                exchange.getResponseBody().write(challenge);
+                return;
+            }
+            String challenge = "qrl://" + exchange.getRequestHeaders().getFirst("Host")
+                    + exchange.getRequestURI().getRawPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) challenge += "?" + query;
+            int status = backend.post(challenge, exchange.getRequestHeaders().getFirst("Content-Type"),
+                    read(exchange.getRequestBody()), host);
+            exchange.sendResponseHeaders(status, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public String issue() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + authority + SQRLBackend.PATH)
+                .openConnection();
+        try {
+            if (connection.getResponseCode() != 200) {
+                throw new IOException("GET " + SQRLBackend.PATH + ": " + connection.getResponseCode());
+            }
+            return new String(read(connection.getInputStream()), ASCII);
+        } finally {
+            connection.getInputStream().close();
+        }
+    }
+
+    @Override
+    public int post(SimulatedPhone.Request request) throws IOException {
+        // qrl:// becomes http://
+        URL url = new URL("http" + request.getChallenge().substring(3));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", request.getContentType());
+        connection.setFixedLengthStreamingMode(request.getBody().length);
+        OutputStream out = connection.getOutputStream();
+        out.write(request.getBody());
+        out.close();
+        int status = connection.getResponseCode();
+        // drained so that the connection is kept alive
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            read(in);
+            in.close();
+        }
+        return status;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        threads.shutdown();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) >= 0; ) bytes.write(buffer, 0, n);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+package net.grc.authc.load;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.credential.IdLockCredentials;
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.IdUnlockCredentials;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLBinaryParser;
+import net.grc.authc.credential.SQRLMatcherPipeline;
+import net.grc.authc.credential.VerificationOverloadException;
+import net.grc.authc.nut.MemoryNutStore;
+import net.grc.authc.realm.MemoryIdentityStore;
+import net.grc.authc.realm.SQRLRealm;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+
+import javax.servlet.http.HttpServletResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The server side of a load test, in process: what the login page and the {@link
+ * net.grc.authc.web.SQRLAuthenticationFilter filter} do, without a servlet container.
+ * <p/>
+ * {@link #issue} hands out a challenge URL with a fresh nut, as a login page does. {@link #post} turns a
+ * phone's post into a {@link SQRLToken} and passes it to one of three realms over one identity store, by what the
+ * credentials ask for: a login, which registers a new identity, an id lock or an id unlock, each with its
+ * {@link SQRLMatcherPipeline} and the shared nut store. A lock or unlock that succeeds is saved, as the
+ * application would. The answer is an HTTP status, as the filter would send it.
+ */
+public class SQRLBackend implements LoadTarget {
+    public static final String PATH = "/sqrl";
+    /**
+     * all of the path is in the domain
+     */
+    public static final int D = PATH.length();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String authority;
+    private final MemoryNutStore nuts = new MemoryNutStore();
+    private final SQRLRealm login;
+    private final SQRLRealm lock;
+    private final SQRLRealm unlock;
+
+    /**
+     * @param authority the host and port the challenge URLs name
+     */
+    public SQRLBackend(String authority) {
+        this.authority = authority;
+        MemoryIdentityStore identities = new MemoryIdentityStore();
+        login = new SQRLRealm(identities, SQRLMatcherPipeline.login(nuts));
+        login.setRegisterNewIdentities(true);
+        lock = new SQRLRealm(identities, SQRLMatcherPipeline.idLock(nuts));
+        unlock = new SQRLRealm(identities, SQRLMatcherPipeline.idUnlock(nuts));
+    }
+
+    public SQRLRealm getLoginRealm() {
+        return login;
+    }
+
+    /**
+     * A challenge for the client host, as a QR code would show it.
+     */
+    public String issue(String clientHost) {
+        ByteBuffer nut = nuts.issue(clientHost);
+        byte[] bytes = new byte[nut.remaining()];
+        nut.duplicate().get(bytes);
+        return "qrl://" + authority + PATH + "?nut=" + Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    @Override
+    public String issue() {
+        return issue(LOCALHOST);
+    }
+
+    @Override
+    public int post(SimulatedPhone.Request request) {
+        return post(request.getChallenge(), request.getContentType(), request.getBody(), LOCALHOST);
+    }
+
+    /**
+     * @param challenge the URL posted to, in its sqrl:// or qrl:// form
+     * @return 200, 403 for a request that does not check out, 400 for a malformed one and 503 when overloaded
+     */
+    public int post(String challenge, String contentType, byte[] body, String clientHost) {
+        SQRLToken token;
+        try {
+            if (SQRLBinaryParser.CONTENT_TYPE.equals(contentType)) {
+                token = new SQRLToken(challenge, ByteBuffer.wrap(body), clientHost);
+            } else {
+                String form = new String(body, ASCII);
+                if (!form.startsWith("sqrlsig=")) return HttpServletResponse.SC_BAD_REQUEST;
+                token = new SQRLToken(challenge, form.substring("sqrlsig=".length()), clientHost);
+            }
+        } catch (IllegalArgumentException e) {
+            return HttpServletResponse.SC_BAD_REQUEST;
+        }
+
+        Object credentials = token.getCredentials();
+        SQRLRealm realm = credentials instanceof IdLockCredentials ? lock
+                : credentials instanceof IdUnlockCredentials ? unlock : login;
+        try {
+            AuthenticationInfo info = realm.getAuthenticationInfo(token);
+            if (info == null) return HttpServletResponse.SC_FORBIDDEN;
+        } catch (VerificationOverloadException e) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } catch (AuthenticationException e) {
+            return HttpServletResponse.SC_FORBIDDEN;
+        }
+
+        SQRLAnonymousPrincipal presented = (SQRLAnonymousPrincipal) token.getPrincipal();
+        if (realm == lock) {
+            IdLockCredentials locking = (IdLockCredentials) credentials;
+            login.save(new IdLockPrincipal(presented.getDomain(), presented.getKey().toByteArray(),
+                    bytes(locking.getPublicUnlockKey()), bytes(locking.getKeyVerifier())));
+        } else if (realm == unlock) {
+            login.save(new SQRLAnonymousPrincipal(presented.getDomain(), presented.getKey()));
+        }
+        return HttpServletResponse.SC_OK;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,208 @@
+package net.grc.authc.load;
+
+import net.grc.authc.credential.IdUnlockCredentialsMatcher;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLBinaryParser;
+import net.grc.crypto.Curve25519;
+import net.grc.crypto.Ed25519Signer;
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A SQRL client as a phone runs it: one master key, from which a site key is derived per domain as
+ * HMAC-SHA256(master key, domain), and one Identity Lock key pair for all sites.
+ * <p/>
+ * It turns the challenge URL of a QR code into a signed {@link Request}, in the text or the binary form, to log
+ * in, to lock its id for the site or to unlock it again, and remembers which sites it is registered with and
+ * locked at once told a request {@link #completed succeeded}. Not thread safe: a phone does one thing at a time.
+ */
+public class SimulatedPhone {
+    public enum Operation {
+        LOGIN, ID_LOCK, ID_UNLOCK
+    }
+
+    static final String FORM = "application/x-www-form-urlencoded";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] masterKey = new byte[32];
+    private final byte[] idLockSecret = new byte[32];
+    private final byte[] idLockPublic;
+    private final Random random;
+    private final Map<String, Ed25519Signer> siteKeys = new HashMap<String, Ed25519Signer>();
+    private final Set<String> registered = new HashSet<String>();
+    // per domain, the Public Unlock Key the site keeps for a locked id
+    private final Map<String, byte[]> locks = new HashMap<String, byte[]>();
+
+    /**
+     * @param random for the keys, so that a seeded run makes the same phones
+     */
+    public SimulatedPhone(Random random) {
+        this.random = random;
+        random.nextBytes(masterKey);
+        random.nextBytes(idLockSecret);
+        this.idLockPublic = Curve25519.publicKey(idLockSecret);
+    }
+
+    /**
+     * The site key for a domain, derived on first use.
+     */
+    public Ed25519Signer siteKey(String domain) {
+        Ed25519Signer key = siteKeys.get(domain);
+        if (key == null) {
+            key = new Ed25519Signer(hmac(masterKey, domain.getBytes(UTF8)));
+            siteKeys.put(domain, key);
+        }
+        return key;
+    }
+
+    public boolean isRegistered(String domain) {
+        return registered.contains(domain);
+    }
+
+    public boolean isLocked(String domain) {
+        return locks.containsKey(domain);
+    }
+
+    /**
+     * @param challenge the URL of the QR code, with its nut
+     * @param d how many characters of the path belong to the domain
+     * @param binary whether to post the {@link SQRLBinaryParser binary form}
+     */
+    public Request login(String challenge, int d, boolean binary) {
+        String domain = domain(challenge, d);
+        Ed25519Signer key = siteKey(domain);
+        if (binary) {
+            return binary(Operation.LOGIN, challenge, domain, key,
+                    SQRLBinaryParser.encodeFields(d, nut(challenge), key.getPublicKey(), null, null, null), null);
+        }
+
+        String signed = challenge + "&sqrlver=0&d=" + d + "&sqrlkey="
+                + Base64.encodeBase64URLSafeString(key.getPublicKey());
+        byte[] signature = key.sign(signed.getBytes(ASCII));
+        byte[] body = ("sqrlsig=" + Base64.encodeBase64URLSafeString(signature)).getBytes(ASCII);
+        return new Request(Operation.LOGIN, signed, FORM, body, domain, null);
+    }
+
+    /**
+     * Locks the id at the site: a new request key pair gives the Public Unlock Key the site keeps and, agreed with
+     * the Identity Lock public key, the Key Verifier. Only the binary form carries them.
+     */
+    public Request lock(String challenge, int d) {
+        String domain = domain(challenge, d);
+        Ed25519Signer key = siteKey(domain);
+        byte[] requestSecret = new byte[32];
+        random.nextBytes(requestSecret);
+        byte[] publicUnlockKey = Curve25519.publicKey(requestSecret);
+        byte[] keyVerifier = Curve25519.agree(requestSecret, idLockPublic);
+        return binary(Operation.ID_LOCK, challenge, domain, key, SQRLBinaryParser.encodeFields(d, nut(challenge),
+                key.getPublicKey(), publicUnlockKey, keyVerifier, null), publicUnlockKey);
+    }
+
+    /**
+     * Unlocks the id at the site, recovering the Key Verifier from the Identity Lock secret and the Public Unlock
+     * Key the site kept.
+     *
+     * @throws IllegalStateException if the id is not locked there
+     */
+    public Request unlock(String challenge, int d) {
+        String domain = domain(challenge, d);
+        byte[] publicUnlockKey = locks.get(domain);
+        if (publicUnlockKey == null) throw new IllegalStateException("not locked at " + domain);
+        Ed25519Signer key = siteKey(domain);
+        byte[] nut = nut(challenge);
+        byte[] hmac = IdUnlockCredentialsMatcher.verificationHmac(Curve25519.agree(idLockSecret, publicUnlockKey),
+                nut);
+        return binary(Operation.ID_UNLOCK, challenge, domain, key,
+                SQRLBinaryParser.encodeFields(d, nut, key.getPublicKey(), null, null, hmac), publicUnlockKey);
+    }
+
+    /**
+     * the site accepted the request
+     */
+    public void completed(Request request) {
+        registered.add(request.domain);
+        if (request.operation == Operation.ID_LOCK) locks.put(request.domain, request.publicUnlockKey);
+        if (request.operation == Operation.ID_UNLOCK) locks.remove(request.domain);
+    }
+
+    private static Request binary(Operation operation, String challenge, String domain, Ed25519Signer key,
+                                  byte[] fields, byte[] publicUnlockKey) {
+        byte[] signature = key.sign(SQRLBinaryParser.signedMessage(challenge, fields));
+        return new Request(operation, challenge, SQRLBinaryParser.CONTENT_TYPE,
+                SQRLBinaryParser.frame(fields, signature), domain, publicUnlockKey);
+    }
+
+    static String domain(String challenge, int d) {
+        return SQRLAnonymousPrincipal.validateURI(URI.create(challenge), d);
+    }
+
+    private static byte[] nut(String challenge) {
+        int at = challenge.indexOf("nut=");
+        if (at < 0) return null;
+        int end = challenge.indexOf('&', at);
+        return Base64.decodeBase64(challenge.substring(at + 4, end < 0 ? challenge.length() : end));
+    }
+
+    private static byte[] hmac(byte[] key, byte[] message) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * What the phone posts: to the challenge URL, turned into https:// (http://), a body of the content type.
+     */
+    public static final class Request {
+        final Operation operation;
+        final String challenge;
+        final String contentType;
+        final byte[] body;
+        final String domain;
+        final byte[] publicUnlockKey;
+
+        Request(Operation operation, String challenge, String contentType, byte[] body, String domain,
+                byte[] publicUnlockKey) {
+            this.operation = operation;
+            this.challenge = challenge;
+            this.contentType = contentType;
+            this.body = body;
+            this.domain = domain;
+            this.publicUnlockKey = publicUnlockKey;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * the signed challenge URL, in its sqrl:// or qrl:// form
+         */
+        public String getChallenge() {
+            return challenge;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.grc.authc.nut;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryNutStoreTest {
+    static final String HOST = "192.0.2.1";
+
+    static class ManualClockNutStore extends MemoryNutStore {
+        long now;
+
+        ManualClockNutStore(int capacity, long ttlSeconds) {
+            super(capacity, ttlSeconds, TimeUnit.SECONDS, 4);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        void sleep(long seconds) {
+            now += TimeUnit.SECONDS.toNanos(seconds);
+        }
+    }
+
+    @Test
+    public void testSingleUse() {
+        MemoryNutStore store = new MemoryNutStore(1000, 1, TimeUnit.MINUTES);
+        ByteBuffer nut = store.issue(HOST);
+        assertEquals(NutStore.NUT_LENGTH, nut.remaining());
+        assertTrue(nut.isReadOnly());
+
+        assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+        assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.state(nut, HOST));
+
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.wrap(new byte[16]), HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.wrap(new byte[3]), HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(null, HOST));
+    }
+
+    @Test
+    public void testExpiry() {
+        ManualClockNutStore store = new ManualClockNutStore(1000, 60);
+        ByteBuffer used = store.issue(HOST);
+        ByteBuffer unused = store.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, store.consume(used, HOST));
+
+        store.sleep(61);
+        assertEquals(NutState.EXPIRED, store.consume(unused, HOST));
+        assertEquals(NutState.CONSUMED, store.consume(used, HOST));
+
+        // forgotten one time-to-live after expiry
+        store.sleep(61);
+        assertEquals(NutState.UNKNOWN, store.consume(unused, HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(used, HOST));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testFullStoreDropsOldest() {
+        ManualClockNutStore store = new ManualClockNutStore(400, 60);
+        List<ByteBuffer> old = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 300; i++) old.add(store.issue(HOST));
+        store.sleep(30);
+        List<ByteBuffer> recent = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 50 == 0) store.sleep(1);
+            recent.add(store.issue(HOST));
+        }
+
+        assertTrue(store.size() <= 400);
+        for (ByteBuffer nut : old) assertEquals(NutState.UNKNOWN, store.state(nut, HOST));
+        for (ByteBuffer nut : recent.subList(recent.size() - 50, recent.size())) {
+            assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+        }
+    }
+
+    @Test
+    public void testChurnKeepsEveryOutstandingNut() {
+        ManualClockNutStore store = new ManualClockNutStore(60000, 60);
+        List<ByteBuffer> live = new ArrayList<ByteBuffer>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 2000; i++) live.add(store.issue(HOST));
+            for (int i = 0; i < 1000; i++) assertEquals(NutState.OUTSTANDING, store.consume(live.remove(0), HOST));
+            store.sleep(1);
+        }
+        for (ByteBuffer nut : live) assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+    }
+}
@@ -0,0 +1,48 @@
+package net.grc.authc.nut;
+
+import net.grc.metrics.Metrics;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeteredNutStoreTest {
+    static final String HOST = "192.0.2.1";
+
+    final MeteredNutStore store = new MeteredNutStore(new MemoryNutStore(100, 1, TimeUnit.MINUTES));
+
+    static long consumed(String state) {
+        return Metrics.counter("sqrl.nut.consume." + state).sum();
+    }
+
+    static long count(String histogram) {
+        return Metrics.histogram(histogram).snapshot().getCount();
+    }
+
+    @Test
+    public void testCountsOutcomes() {
+        // the metrics are shared with every other store in the process
+        long used = consumed("outstanding");
+        long replayed = consumed("consumed");
+        long unknown = consumed("unknown");
+        long issued = count("sqrl.nut.issue");
+        long states = count("sqrl.nut.state");
+        long consumes = count("sqrl.nut.consume");
+
+        ByteBuffer nut = store.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+        assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.consume(nut, HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.allocate(NutStore.NUT_LENGTH), HOST));
+
+        assertEquals(used + 1, consumed("outstanding"));
+        assertEquals(replayed + 1, consumed("consumed"));
+        assertEquals(unknown + 1, consumed("unknown"));
+        assertEquals(issued + 1, count("sqrl.nut.issue"));
+        assertEquals(states + 1, count("sqrl.nut.state"));
+        assertEquals(consumes + 3, count("sqrl.nut.consume"));
+    }
+
+}
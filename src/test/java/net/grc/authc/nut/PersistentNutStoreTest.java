@@ -0,0 +1,100 @@
+package net.grc.authc.nut;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersistentNutStoreTest {
+    static final String HOST = "192.0.2.1";
+
+    long now = TimeUnit.DAYS.toMillis(20000);
+
+    /**
+     * a table of issued nuts that outlives the stores in front of it
+     */
+    static class Table implements NutPersistence {
+        final Map<ByteBuffer, Long> expiresAt = new HashMap<ByteBuffer, Long>();
+        final Map<ByteBuffer, Boolean> consumed = new HashMap<ByteBuffer, Boolean>();
+
+        static ByteBuffer key(ByteBuffer nut) {
+            byte[] bytes = new byte[nut.remaining()];
+            nut.duplicate().get(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public synchronized void issued(ByteBuffer nut, long expiresAtMillis) {
+            expiresAt.put(key(nut), expiresAtMillis);
+        }
+
+        @Override
+        public synchronized NutState state(ByteBuffer nut, long nowMillis) {
+            Long expires = expiresAt.get(key(nut));
+            if (expires == null) return NutState.UNKNOWN;
+            if (consumed.containsKey(key(nut))) return NutState.CONSUMED;
+            return nowMillis < expires ? NutState.OUTSTANDING : NutState.EXPIRED;
+        }
+
+        @Override
+        public synchronized NutState consume(ByteBuffer nut, long nowMillis) {
+            NutState state = state(nut, nowMillis);
+            if (state == NutState.OUTSTANDING) consumed.put(key(nut), Boolean.TRUE);
+            return state;
+        }
+    }
+
+    final Table table = new Table();
+
+    /**
+     * a node started afresh: nothing in memory, the same table
+     */
+    PersistentNutStore start() {
+        return new PersistentNutStore(new MemoryNutStore(100, 1, TimeUnit.MINUTES), table) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testSingleUse() {
+        PersistentNutStore store = start();
+        ByteBuffer nut = store.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+        assertEquals(NutState.OUTSTANDING, table.state(nut, now));
+        assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, table.state(nut, now));
+
+        assertEquals(NutState.UNKNOWN, store.state(null, HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.wrap(new byte[16]), HOST));
+    }
+
+    @Test
+    public void testAcrossRestart() {
+        PersistentNutStore before = start();
+        ByteBuffer used = before.issue(HOST);
+        ByteBuffer issued = before.issue(HOST);
+        ByteBuffer late = before.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, before.consume(used, HOST));
+
+        PersistentNutStore after = start();
+        assertEquals(NutState.CONSUMED, after.state(used, HOST));
+        assertEquals(NutState.CONSUMED, after.consume(used, HOST));
+        assertEquals(NutState.OUTSTANDING, after.state(issued, HOST));
+        assertEquals(NutState.OUTSTANDING, after.consume(issued, HOST));
+        assertEquals(NutState.CONSUMED, after.consume(issued, HOST));
+
+        // expiry is kept too
+        now += TimeUnit.MINUTES.toMillis(1);
+        PersistentNutStore later = start();
+        assertEquals(NutState.EXPIRED, later.state(late, HOST));
+        assertEquals(NutState.EXPIRED, later.consume(late, HOST));
+    }
+}
@@ -0,0 +1,159 @@
+package net.grc.authc.nut;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatelessNutStoreTest {
+    static final String HOST = "192.0.2.1";
+    static final byte[] SECRET = "a secret every node shares".getBytes();
+
+    long now = TimeUnit.DAYS.toMillis(20000);
+
+    final NutKeyRing keys = new NutKeyRing(SECRET, 60, 10, TimeUnit.MINUTES);
+
+    StatelessNutStore store(NutKeyRing keys, int node) {
+        return new StatelessNutStore(keys, node, 1, TimeUnit.MINUTES, 1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    void sleep(long seconds) {
+        now += TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    @Test
+    public void testSingleUse() {
+        StatelessNutStore store = store(keys, 1);
+        ByteBuffer nut = store.issue(HOST);
+        assertEquals(NutStore.NUT_LENGTH, nut.remaining());
+        assertTrue(nut.isReadOnly());
+
+        assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+        assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.consume(nut, HOST));
+        assertEquals(NutState.CONSUMED, store.state(nut, HOST));
+
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.wrap(new byte[16]), HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(ByteBuffer.wrap(new byte[3]), HOST));
+        assertEquals(NutState.UNKNOWN, store.consume(null, HOST));
+
+        // the replay is remembered for as long as the nut would be fresh
+        sleep(50);
+        assertEquals(NutState.CONSUMED, store.consume(nut, HOST));
+        sleep(20);
+        assertEquals(NutState.EXPIRED, store.consume(nut, HOST));
+    }
+
+    @Test
+    public void testNutsAreUnique() {
+        StatelessNutStore store = store(keys, 1);
+        Set<ByteBuffer> nuts = new HashSet<ByteBuffer>();
+        for (int i = 0; i < 10000; i++) assertTrue(nuts.add(store.issue(HOST)));
+    }
+
+    @Test
+    public void testAnyNodeWithTheSecretValidates() {
+        StatelessNutStore a = store(keys, 1);
+        StatelessNutStore b = store(new NutKeyRing(SECRET.clone(), 60, 10, TimeUnit.MINUTES), 2);
+        StatelessNutStore stranger = store(NutKeyRing.random(60, 10, TimeUnit.MINUTES), 3);
+
+        ByteBuffer nut = a.issue(HOST);
+        assertEquals(NutState.UNKNOWN, stranger.state(nut, HOST));
+        assertEquals(-1, stranger.issuingNode(nut));
+        assertEquals(1, b.issuingNode(nut));
+        assertEquals(NutState.OUTSTANDING, b.consume(nut, HOST));
+    }
+
+    @Test
+    public void testTamperedNut() {
+        StatelessNutStore store = store(keys, 1);
+        ByteBuffer nut = store.issue(HOST);
+        for (int i = 0; i < NutStore.NUT_LENGTH; i++) {
+            byte[] copy = new byte[NutStore.NUT_LENGTH];
+            nut.duplicate().get(copy);
+            copy[i] ^= 1;
+            assertEquals(NutState.UNKNOWN, store.state(ByteBuffer.wrap(copy), HOST));
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        StatelessNutStore store = store(keys, 1);
+        ByteBuffer nut = store.issue(HOST);
+        sleep(59);
+        assertEquals(NutState.OUTSTANDING, store.state(nut, HOST));
+        sleep(2);
+        assertEquals(NutState.EXPIRED, store.consume(nut, HOST));
+    }
+
+    @Test
+    public void testKeyRotationOverlap() {
+        StatelessNutStore store = store(keys, 1);
+        long rotation = TimeUnit.HOURS.toMillis(1);
+        long boundary = (now / rotation + 1) * rotation;
+
+        // issued just before the key changes, used just after
+        now = boundary - 1000;
+        ByteBuffer old = store.issue(HOST);
+        now = boundary + 30000;
+        ByteBuffer current = store.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, store.consume(old, HOST));
+        assertEquals(NutState.OUTSTANDING, store.consume(current, HOST));
+
+        // a node whose clock is a little behind still reads nuts issued under the next key
+        now = boundary + 10000;
+        ByteBuffer ahead = store.issue(HOST);
+        now = boundary - 10000;
+        assertEquals(NutState.OUTSTANDING, store.state(ahead, HOST));
+
+        // once the overlap is over the old key is gone
+        now = boundary + TimeUnit.MINUTES.toMillis(11);
+        assertEquals(NutState.UNKNOWN, store.state(old, HOST));
+    }
+
+    @Test
+    public void testRequireSameHost() {
+        StatelessNutStore store = store(keys, 1);
+        ByteBuffer nut = store.issue(HOST);
+        assertEquals(NutState.OUTSTANDING, store.state(nut, "198.51.100.7"));
+
+        store.setRequireSameHost(true);
+        assertEquals(NutState.UNKNOWN, store.consume(nut, "198.51.100.7"));
+        assertEquals(NutState.OUTSTANDING, store.consume(nut, HOST));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverlapShorterThanTtl() {
+        new StatelessNutStore(new NutKeyRing(SECRET, 60, 1, TimeUnit.MINUTES), 1, 5, TimeUnit.MINUTES, 1000);
+    }
+
+    @Test
+    public void testReplayFilter() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(1000, 1e-6, 1000, 0);
+        assertTrue(filter.add(1, 2, 0));
+        assertTrue(!filter.add(1, 2, 999));
+        assertTrue(filter.contains(1, 2, 1999));
+        assertTrue(!filter.contains(1, 2, 2000));
+        assertTrue(filter.add(1, 2, 2000));
+
+        // a full generation keeps its false positive rate
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) filter.add(random.nextLong(), random.nextLong(), 3000);
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.contains(random.nextLong(), random.nextLong(), 3000)) falsePositives++;
+        }
+        assertTrue("falsePositives=" + falsePositives, falsePositives <= 1);
+    }
+}
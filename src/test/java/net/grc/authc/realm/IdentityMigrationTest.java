@@ -0,0 +1,225 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import net.grc.crypto.Ed25519;
+import net.grc.crypto.Ed25519Signer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdentityMigrationTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    final Random random = new Random(1);
+
+    byte[] randomBytes() {
+        byte[] bytes = new byte[SQRLKey.LENGTH];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * a key that is an Ed25519 point
+     */
+    byte[] publicKey() {
+        return new Ed25519Signer(randomBytes()).getPublicKey();
+    }
+
+    /**
+     * about half of all 32 byte strings are not
+     */
+    byte[] notAPoint() {
+        byte[] key;
+        do {
+            key = randomBytes();
+        } while (Ed25519.decodePublicKey(ByteBuffer.wrap(key)) != null);
+        return key;
+    }
+
+    List<SQRLAnonymousPrincipal> identities(int n) {
+        List<SQRLAnonymousPrincipal> ids = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < n; i++) {
+            String domain = i % 7 == 0 ? "sqrl://grc.com/a,b" : "sqrl://grc.com/" + (i % 3);
+            ids.add(i % 10 == 0
+                    ? new IdLockPrincipal(domain, publicKey(), randomBytes(), randomBytes())
+                    : new SQRLAnonymousPrincipal(domain, publicKey()));
+        }
+        return ids;
+    }
+
+    byte[] dump(List<SQRLAnonymousPrincipal> ids, IdentityDump.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IdentityDump.Writer writer = IdentityDump.writer(out, format, 64);
+        for (SQRLAnonymousPrincipal id : ids) writer.write(id);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    List<SQRLAnonymousPrincipal> read(byte[] dump, IdentityDump.Format format) throws IOException {
+        IdentityDump.Reader reader = IdentityDump.reader(new ByteArrayInputStream(dump), format);
+        List<SQRLAnonymousPrincipal> ids = new ArrayList<SQRLAnonymousPrincipal>();
+        while (reader.read(ids, 100) > 0) {
+            // chunks of 100 across chunks of 64
+        }
+        reader.close();
+        return ids;
+    }
+
+    @Test
+    public void testDumpRoundTrip() throws Exception {
+        List<SQRLAnonymousPrincipal> ids = identities(500);
+        ids.add(new SQRLAnonymousPrincipal("sqrl://grc.com/\"quoted\"", publicKey()));
+        for (IdentityDump.Format format : IdentityDump.Format.values()) {
+            List<SQRLAnonymousPrincipal> read = read(dump(ids, format), format);
+            assertEquals(ids, read);
+            // equals does not tell locked from anonymous
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(ids.get(i).getClass(), read.get(i).getClass());
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedDump() throws Exception {
+        byte[] dump = dump(identities(10), IdentityDump.Format.BINARY);
+        byte[] truncated = new byte[dump.length - 10];
+        System.arraycopy(dump, 0, truncated, 0, truncated.length);
+        try {
+            read(truncated, IdentityDump.Format.BINARY);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        List<SQRLAnonymousPrincipal> ids = identities(3000);
+        List<SQRLAnonymousPrincipal> dumped = new ArrayList<SQRLAnonymousPrincipal>(ids);
+        // duplicates: an anonymous copy of a locked identity, and a locked copy of an anonymous one
+        IdLockPrincipal locked = (IdLockPrincipal) ids.get(0);
+        dumped.add(new SQRLAnonymousPrincipal(locked.getDomain(), locked.getKey()));
+        SQRLAnonymousPrincipal anonymous = ids.get(1);
+        IdLockPrincipal lockedLater = new IdLockPrincipal(anonymous.getDomain(), anonymous.getKey().toByteArray(),
+                randomBytes(), randomBytes());
+        dumped.add(lockedLater);
+        // not a point on the curve, and a domain with a non canonical escape
+        byte[] notAPoint = notAPoint();
+        dumped.add(new SQRLAnonymousPrincipal("sqrl://grc.com/0", notAPoint));
+        dumped.add(new SQRLAnonymousPrincipal("sqrl://grc.com/%7e", publicKey()));
+        // canonicalized into an identity already there
+        dumped.add(new SQRLAnonymousPrincipal("sqrl://GRC.com/x/../" + ids.get(2).getDomain().substring(15),
+                ids.get(2).getKey()));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        MappedIdentityPersistence target = new MappedIdentityPersistence(folder.newFolder());
+        try {
+            IdentityMigration migration = new IdentityMigration(pool);
+            migration.setChunkSize(100);
+            migration.setMaxChunksInFlight(2);
+            migration.setCanonicalize(true);
+            migration.setVerifyKeys(true);
+            IdentityMigration.Progress progress = migration.run(
+                    IdentityDump.reader(new ByteArrayInputStream(dump(dumped, IdentityDump.Format.CSV)),
+                            IdentityDump.Format.CSV), target);
+
+            assertEquals(dumped.size(), progress.getRead());
+            // the locked copy replaces the anonymous one
+            assertEquals(ids.size() + 1, progress.getWritten());
+            assertEquals(2, progress.getDuplicates());
+            assertEquals(2, progress.getRejected());
+            assertEquals(ids.size(), target.size());
+            assertTrue(target.load(locked.getDomain(), locked.getKey()) instanceof IdLockPrincipal);
+            assertTrue(target.load(anonymous.getDomain(), anonymous.getKey()) instanceof IdLockPrincipal);
+            assertNull(target.load("sqrl://grc.com/0", SQRLKey.of(notAPoint)));
+
+            // and back out
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IdentityDump.Writer writer = IdentityDump.writer(out, IdentityDump.Format.BINARY);
+            assertEquals(ids.size(), migration.export(target, writer));
+            writer.close();
+            Set<SQRLAnonymousPrincipal> exported = new HashSet<SQRLAnonymousPrincipal>(
+                    read(out.toByteArray(), IdentityDump.Format.BINARY));
+            Set<SQRLAnonymousPrincipal> expected = new HashSet<SQRLAnonymousPrincipal>(ids);
+            expected.remove(anonymous);
+            expected.add(lockedLater);
+            assertEquals(expected, exported);
+        } finally {
+            target.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCanonicalDomain() {
+        assertEquals("sqrl://grc.com/login", IdentityMigration.canonicalDomain("sqrl://grc.com/login"));
+        assertEquals("sqrl://grc.com/login", IdentityMigration.canonicalDomain("SQRL://GRC.COM/a/../login"));
+        assertEquals("sqrl://grc.com", IdentityMigration.canonicalDomain("sqrl://grc.com"));
+        try {
+            IdentityMigration.canonicalDomain("grc.com/login");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testTransformAndFailure() throws Exception {
+        List<SQRLAnonymousPrincipal> ids = identities(50);
+        IdentityMigration migration = new IdentityMigration();
+        // drop the locked ones
+        migration.setTransform(id -> id instanceof IdLockPrincipal ? null : id);
+        MemoryPersistence target = new MemoryPersistence();
+        IdentityMigration.Progress progress = migration.run(
+                IdentityDump.reader(new ByteArrayInputStream(dump(ids, IdentityDump.Format.BINARY)),
+                        IdentityDump.Format.BINARY), target);
+        assertEquals(5, progress.getRejected());
+        assertEquals(45, progress.getWritten());
+
+        migration.setTransform(id -> {
+            throw new IllegalStateException("bug");
+        });
+        try {
+            migration.run(IdentityDump.reader(new ByteArrayInputStream(dump(ids, IdentityDump.Format.BINARY)),
+                    IdentityDump.Format.BINARY), target);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    static class MemoryPersistence implements IdentityPersistence {
+        final MemoryIdentityStore store = new MemoryIdentityStore();
+
+        @Override
+        public SQRLAnonymousPrincipal load(String domain, SQRLKey key) {
+            return store.find(domain, key);
+        }
+
+        @Override
+        public void store(SQRLAnonymousPrincipal identity) {
+            store.save(identity);
+        }
+
+        @Override
+        public void delete(String domain, SQRLKey key) {
+            store.remove(domain, key);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedIdentityPersistenceTest {
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    final Random random = new Random(1);
+
+    byte[] randomKey() {
+        byte[] key = new byte[SQRLKey.LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    @Test
+    public void testStoreLoadDelete() throws Exception {
+        File dir = folder.newFolder();
+        MappedIdentityPersistence store = new MappedIdentityPersistence(dir);
+        byte[] key = randomKey();
+        SQRLAnonymousPrincipal id = new SQRLAnonymousPrincipal(DOMAIN, key);
+        store.store(id);
+        assertEquals(id, store.load(DOMAIN, SQRLKey.of(key)));
+        assertNull(store.load("sqrl://grc.com/", SQRLKey.of(key)));
+        assertNull(store.load(DOMAIN, SQRLKey.of(randomKey())));
+
+        // locking replaces the anonymous identity
+        IdLockPrincipal locked = new IdLockPrincipal(DOMAIN, key, randomKey(), randomKey());
+        store.store(locked);
+        assertEquals(locked, store.load(DOMAIN, SQRLKey.of(key)));
+        assertEquals(1, store.size());
+        assertEquals(2, store.getRecordCount());
+
+        store.delete(DOMAIN, SQRLKey.of(key));
+        assertNull(store.load(DOMAIN, SQRLKey.of(key)));
+        store.delete(DOMAIN, SQRLKey.of(key));
+        assertEquals(0, store.size());
+        assertEquals(3, store.getRecordCount());
+        store.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLongDomain() throws Exception {
+        StringBuilder domain = new StringBuilder("sqrl://grc.com/");
+        while (domain.length() <= MappedIdentityPersistence.MAX_DOMAIN_BYTES) domain.append('x');
+        MappedIdentityPersistence store = new MappedIdentityPersistence(folder.newFolder());
+        try {
+            store.store(new SQRLAnonymousPrincipal(domain.toString(), randomKey()));
+        } finally {
+            store.close();
+        }
+    }
+
+    List<SQRLAnonymousPrincipal> fill(MappedIdentityPersistence store, int n) {
+        List<SQRLAnonymousPrincipal> ids = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < n; i++) {
+            SQRLAnonymousPrincipal id = i % 10 == 0
+                    ? new IdLockPrincipal("sqrl://grc.com/" + (i % 3), randomKey(), randomKey(), randomKey())
+                    : new SQRLAnonymousPrincipal("sqrl://grc.com/" + (i % 3), randomKey());
+            store.store(id);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    void assertAll(MappedIdentityPersistence store, List<SQRLAnonymousPrincipal> ids) {
+        for (SQRLAnonymousPrincipal id : ids) {
+            assertEquals(id, store.load(id.getDomain(), id.getKey()));
+        }
+        assertEquals(ids.size(), store.size());
+    }
+
+    @Test
+    public void testReopenAndGrow() throws Exception {
+        File dir = folder.newFolder();
+        MappedIdentityPersistence store = new MappedIdentityPersistence(dir);
+        // past the initial index capacity
+        List<SQRLAnonymousPrincipal> ids = fill(store, 20000);
+        assertAll(store, ids);
+        store.close();
+
+        store = new MappedIdentityPersistence(dir);
+        assertAll(store, ids);
+        ids.addAll(fill(store, 100));
+        assertAll(store, ids);
+        store.close();
+    }
+
+    @Test
+    public void testCrashRecovery() throws Exception {
+        File dir = folder.newFolder();
+        MappedIdentityPersistence crashed = new MappedIdentityPersistence(dir);
+        List<SQRLAnonymousPrincipal> ids = fill(crashed, 1000);
+        SQRLAnonymousPrincipal deleted = ids.remove(0);
+        crashed.delete(deleted.getDomain(), deleted.getKey());
+        // never closed: the index is rebuilt from the log
+
+        MappedIdentityPersistence store = new MappedIdentityPersistence(dir);
+        assertAll(store, ids);
+        assertEquals(1001, store.getRecordCount());
+        store.close();
+
+        // tear the last record, the delete, as a crash in the middle of writing it would
+        RandomAccessFile log = new RandomAccessFile(new File(dir, "identities.0.log"), "rw");
+        log.seek(MappedIdentityPersistence.RECORD_SIZE * 1001 + 100);
+        log.write(0x55);
+        log.seek(16);
+        log.writeInt(0);
+        log.close();
+
+        store = new MappedIdentityPersistence(dir);
+        assertEquals(1000, store.getRecordCount());
+        ids.add(deleted);
+        assertAll(store, ids);
+        ids.addAll(fill(store, 10));
+        assertAll(store, ids);
+        store.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File dir = folder.newFolder();
+        MappedIdentityPersistence store = new MappedIdentityPersistence(dir);
+        List<SQRLAnonymousPrincipal> ids = fill(store, 3000);
+        List<SQRLAnonymousPrincipal> kept = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < ids.size(); i++) {
+            SQRLAnonymousPrincipal id = ids.get(i);
+            if (i % 3 == 0) store.delete(id.getDomain(), id.getKey());
+            else kept.add(id);
+        }
+        assertEquals(4000, store.getRecordCount());
+
+        store.compact();
+        assertEquals(2000, store.getRecordCount());
+        assertAll(store, kept);
+        assertFalse(new File(dir, "identities.0.log").exists());
+        assertTrue(new File(dir, "identities.1.log").exists());
+        for (int i = 0; i < ids.size(); i += 3) {
+            assertNull(store.load(ids.get(i).getDomain(), ids.get(i).getKey()));
+        }
+        kept.addAll(fill(store, 10));
+        store.close();
+
+        store = new MappedIdentityPersistence(dir);
+        assertAll(store, kept);
+        store.close();
+    }
+}
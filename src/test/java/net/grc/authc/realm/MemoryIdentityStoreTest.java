@@ -0,0 +1,137 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MemoryIdentityStoreTest {
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    final Random random = new Random(1);
+
+    SQRLAnonymousPrincipal identity() {
+        byte[] key = new byte[SQRLKey.LENGTH];
+        random.nextBytes(key);
+        return new SQRLAnonymousPrincipal(DOMAIN, key);
+    }
+
+    @Test
+    public void testAddFindRemove() {
+        MemoryIdentityStore store = new MemoryIdentityStore(0);
+        List<SQRLAnonymousPrincipal> ids = new ArrayList<SQRLAnonymousPrincipal>();
+        // well past the initial tables
+        for (int i = 0; i < 10000; i++) {
+            SQRLAnonymousPrincipal id = identity();
+            ids.add(id);
+            assertNull(store.add(id));
+        }
+        assertEquals(10000, store.size());
+        for (SQRLAnonymousPrincipal id : ids) {
+            assertSame(id, store.find(DOMAIN, SQRLKey.of(id.getKey().toByteArray())));
+            assertSame(id, store.add(new SQRLAnonymousPrincipal(DOMAIN, id.getKey())));
+            assertNull(store.find("sqrl://grc.com/", id.getKey()));
+        }
+
+        for (int i = 0; i < ids.size(); i += 2) {
+            assertSame(ids.get(i), store.remove(DOMAIN, ids.get(i).getKey()));
+            assertNull(store.remove(DOMAIN, ids.get(i).getKey()));
+        }
+        assertEquals(5000, store.size());
+        for (int i = 0; i < ids.size(); i++) {
+            SQRLAnonymousPrincipal found = store.find(DOMAIN, ids.get(i).getKey());
+            if (i % 2 == 0) assertNull(found);
+            else assertSame(ids.get(i), found);
+        }
+
+        // churn through tombstones without growing without bound
+        for (int i = 0; i < 100000; i++) {
+            SQRLAnonymousPrincipal id = identity();
+            store.add(id);
+            store.remove(DOMAIN, id.getKey());
+        }
+        assertEquals(5000, store.size());
+    }
+
+    @Test
+    public void testSaveReplacesWithLocked() {
+        MemoryIdentityStore store = new MemoryIdentityStore();
+        SQRLAnonymousPrincipal id = identity();
+        byte[] key = id.getKey().toByteArray();
+        store.add(id);
+
+        IdLockPrincipal locked = new IdLockPrincipal(DOMAIN, key, new byte[32], new byte[32]);
+        assertSame(id, store.save(locked));
+        assertSame(locked, store.find(DOMAIN, id.getKey()));
+        assertSame(locked, store.add(id));
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final MemoryIdentityStore store = new MemoryIdentityStore(0);
+        final List<SQRLAnonymousPrincipal> stable = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < 1000; i++) {
+            SQRLAnonymousPrincipal id = identity();
+            stable.add(id);
+            store.add(id);
+        }
+        final List<SQRLAnonymousPrincipal> added = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < 20000; i++) added.add(identity());
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger misses = new AtomicInteger();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final int n = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (n < 2) {
+                        // writers grow every segment and leave tombstones behind
+                        for (int i = n; i < added.size(); i += 2) {
+                            store.add(added.get(i));
+                            if (i % 3 == 0) store.remove(DOMAIN, added.get(i).getKey());
+                        }
+                    } else {
+                        for (int round = 0; round < 50; round++) {
+                            for (SQRLAnonymousPrincipal id : stable) {
+                                if (store.find(DOMAIN, id.getKey()) != id) misses.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(0, misses.get());
+        int expected = stable.size();
+        for (int i = 0; i < added.size(); i++) {
+            SQRLAnonymousPrincipal found = store.find(DOMAIN, added.get(i).getKey());
+            if (i % 3 == 0) {
+                assertNull(found);
+            } else {
+                assertSame(added.get(i), found);
+                expected++;
+            }
+        }
+        assertEquals(expected, store.size());
+    }
+}
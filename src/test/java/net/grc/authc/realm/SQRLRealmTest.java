@@ -0,0 +1,282 @@
+package net.grc.authc.realm;
+
+import net.grc.authc.SQRLToken;
+import net.grc.authc.cache.SQRLCacheManager;
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLKey;
+import net.grc.crypto.Ed25519Signer;
+import net.grc.metrics.Metrics;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.IncorrectCredentialsException;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SQRLRealmTest {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final String DOMAIN = "sqrl://grc.com/login";
+
+    final Ed25519Signer signer = new Ed25519Signer(new byte[32]);
+    final String challenge = "sqrl://grc.com/login?nut=oOB4QOFJux5Z&sqrlver=0&d=6&sqrlkey="
+            + Base64.encodeBase64URLSafeString(signer.getPublicKey());
+
+    SQRLToken signed(String challenge) {
+        byte[] sig = signer.sign(challenge.getBytes(UTF8));
+        return new SQRLToken(challenge, Base64.encodeBase64URLSafeString(sig), "127.0.0.1");
+    }
+
+    @Test
+    public void testKnownIdentity() {
+        SQRLRealm realm = new SQRLRealm();
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey());
+        assertNull(realm.register(stored));
+
+        assertTrue(realm.supports(signed(challenge)));
+        AuthenticationInfo info = realm.getAuthenticationInfo(signed(challenge));
+        assertSame(stored, info.getPrincipals().getPrimaryPrincipal());
+
+        try {
+            realm.getAuthenticationInfo(new SQRLToken(challenge, Base64.encodeBase64URLSafeString(new byte[64]),
+                    "127.0.0.1"));
+            fail();
+        } catch (IncorrectCredentialsException expected) {
+        }
+    }
+
+    @Test
+    public void testUnknownIdentity() {
+        SQRLRealm realm = new SQRLRealm();
+        assertNull(realm.getAuthenticationInfo(signed(challenge)));
+        assertEquals(0, ((MemoryIdentityStore) realm.getIdentityStore()).size());
+    }
+
+    @Test
+    public void testRegistration() {
+        SQRLRealm realm = new SQRLRealm();
+        realm.setRegisterNewIdentities(true);
+
+        // a bad signature registers nothing
+        try {
+            realm.getAuthenticationInfo(new SQRLToken(challenge, Base64.encodeBase64URLSafeString(new byte[64]),
+                    "127.0.0.1"));
+            fail();
+        } catch (IncorrectCredentialsException expected) {
+        }
+        assertNull(realm.getIdentityStore().find(DOMAIN, SQRLKey.of(signer.getPublicKey())));
+
+        assertNotNull(realm.getAuthenticationInfo(signed(challenge)));
+        SQRLAnonymousPrincipal registered = realm.getIdentityStore().find(DOMAIN, SQRLKey.of(signer.getPublicKey()));
+        assertNotNull(registered);
+        assertSame(registered, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+    }
+
+    static class MapPersistence implements IdentityPersistence {
+        final Map<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal> rows =
+                new HashMap<SQRLAnonymousPrincipal, SQRLAnonymousPrincipal>();
+        int loads;
+        int stores;
+
+        @Override
+        public synchronized SQRLAnonymousPrincipal load(String domain, SQRLKey key) {
+            loads++;
+            return rows.get(new SQRLAnonymousPrincipal(domain, key));
+        }
+
+        @Override
+        public synchronized void store(SQRLAnonymousPrincipal identity) {
+            stores++;
+            rows.put(new SQRLAnonymousPrincipal(identity.getDomain(), identity.getKey()), identity);
+        }
+
+        @Override
+        public synchronized void delete(String domain, SQRLKey key) {
+            rows.remove(new SQRLAnonymousPrincipal(domain, key));
+        }
+    }
+
+    @Test
+    public void testWriteThrough() {
+        MapPersistence persistence = new MapPersistence();
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey());
+        persistence.store(stored);
+
+        PersistentIdentityStore store = new PersistentIdentityStore(persistence);
+        SQRLRealm realm = new SQRLRealm(store);
+        assertSame(stored, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        assertSame(stored, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        // loaded once, then answered from memory
+        assertEquals(1, persistence.loads);
+
+        store.remove(DOMAIN, stored.getKey());
+        assertTrue(persistence.rows.isEmpty());
+        assertNull(realm.getAuthenticationInfo(signed(challenge)));
+    }
+
+    @Test
+    public void testWriteBehind() {
+        MapPersistence persistence = new MapPersistence();
+        PersistentIdentityStore store = new PersistentIdentityStore(persistence, 16,
+                1, TimeUnit.HOURS);
+        try {
+            SQRLAnonymousPrincipal id = new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey());
+            assertNull(store.add(id));
+            store.save(id);
+            assertSame(id, store.find(DOMAIN, id.getKey()));
+            assertTrue(persistence.rows.isEmpty());
+            assertEquals(1, store.pendingWrites());
+
+            store.flush();
+            assertEquals(1, persistence.stores);
+            assertSame(id, persistence.rows.values().iterator().next());
+
+            // an unflushed removal is not reloaded from persistence
+            store.remove(DOMAIN, id.getKey());
+            assertNull(store.find(DOMAIN, id.getKey()));
+            assertEquals(1, persistence.rows.size());
+        } finally {
+            store.close();
+        }
+        assertTrue(persistence.rows.isEmpty());
+        assertEquals(0, store.pendingWrites());
+    }
+
+    @Test
+    public void testBoundedCache() {
+        MapPersistence persistence = new MapPersistence();
+        PersistentIdentityStore store = new PersistentIdentityStore(persistence, 16, 1, TimeUnit.HOURS);
+        List<SQRLAnonymousPrincipal> ids = new ArrayList<SQRLAnonymousPrincipal>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            key[0] = (byte) i;
+            ids.add(new SQRLAnonymousPrincipal(DOMAIN, key));
+            assertNull(store.add(ids.get(i)));
+        }
+        // an unknown identity is looked for in persistence before it is added
+        assertEquals(200, persistence.loads);
+        persistence.loads = 0;
+        // writes the cache dropped are still found in the queue
+        for (SQRLAnonymousPrincipal id : ids) assertSame(id, store.find(DOMAIN, id.getKey()));
+        assertEquals(0, persistence.loads);
+
+        store.close();
+        assertEquals(200, persistence.rows.size());
+        for (SQRLAnonymousPrincipal id : ids) assertSame(id, store.find(DOMAIN, id.getKey()));
+        // most were loaded again: only the most used are kept
+        assertTrue(persistence.loads >= 200 - 16);
+        IdLockPrincipal locked = new IdLockPrincipal(DOMAIN, ids.get(0).getKey().toByteArray(), new byte[32],
+                new byte[32]);
+        assertSame(ids.get(0), store.add(locked));
+        assertSame(ids.get(0), store.save(locked));
+        assertSame(locked, store.find(DOMAIN, locked.getKey()));
+    }
+
+    static class CountingStore extends MemoryIdentityStore {
+        int finds;
+
+        @Override
+        public SQRLAnonymousPrincipal find(String domain, SQRLKey key) {
+            finds++;
+            return super.find(domain, key);
+        }
+    }
+
+    static SQRLRealm cachingRealm(IdentityStore store) {
+        SQRLRealm realm = new SQRLRealm(store);
+        realm.setAuthenticationCachingEnabled(true);
+        realm.setCacheManager(new SQRLCacheManager());
+        return realm;
+    }
+
+    @Test
+    public void testCachedLookups() {
+        CountingStore store = new CountingStore();
+        SQRLRealm realm = cachingRealm(store);
+
+        // an unknown identity is looked up once, then remembered as unknown
+        assertNull(realm.getAuthenticationInfo(signed(challenge)));
+        String metric = "sqrl.cache." + realm.getAuthenticationCacheName();
+        long lookups = Metrics.counter(metric + ".hit").sum() + Metrics.counter(metric + ".miss").sum();
+        assertNull(realm.getAuthenticationInfo(signed(challenge)));
+        assertEquals(1, store.finds);
+        // in the cache only by Shiro
+        assertEquals(lookups + 1, Metrics.counter(metric + ".hit").sum() + Metrics.counter(metric + ".miss").sum());
+
+        SQRLAnonymousPrincipal stored = new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey());
+        assertNull(realm.register(stored));
+        assertSame(stored, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        assertSame(stored, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        assertEquals(2, store.finds);
+    }
+
+    @Test
+    public void testRegistrationIsNotCachedBeforeTheSignature() {
+        SQRLRealm realm = cachingRealm(new MemoryIdentityStore());
+        realm.setRegisterNewIdentities(true);
+        try {
+            realm.getAuthenticationInfo(new SQRLToken(challenge, Base64.encodeBase64URLSafeString(new byte[64]),
+                    "127.0.0.1"));
+            fail();
+        } catch (IncorrectCredentialsException expected) {
+        }
+        assertNotNull(realm.getAuthenticationInfo(signed(challenge)));
+        assertNotNull(realm.getIdentityStore().find(DOMAIN, SQRLKey.of(signer.getPublicKey())));
+    }
+
+    @Test
+    public void testSaveInvalidatesAndNotifies() {
+        CountingStore store = new CountingStore();
+        SQRLRealm realm = cachingRealm(store);
+        final List<SQRLAnonymousPrincipal> changes = new ArrayList<SQRLAnonymousPrincipal>();
+        realm.addIdentityListener(new SQRLRealm.IdentityListener() {
+            @Override
+            public void identityChanged(SQRLAnonymousPrincipal previous, SQRLAnonymousPrincipal current) {
+                changes.add(previous);
+                changes.add(current);
+            }
+        });
+
+        SQRLAnonymousPrincipal anonymous = new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey());
+        assertNull(realm.register(anonymous));
+        assertEquals(Arrays.asList(null, anonymous), changes);
+        // registering it again changes nothing
+        assertSame(anonymous, realm.register(new SQRLAnonymousPrincipal(DOMAIN, signer.getPublicKey())));
+        assertEquals(2, changes.size());
+        realm.bindSession("session", anonymous);
+        assertSame(anonymous, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        assertSame(anonymous, realm.getSessionIdentity("session"));
+
+        IdLockPrincipal locked = new IdLockPrincipal(DOMAIN, signer.getPublicKey(), new byte[32], new byte[32]);
+        assertSame(anonymous, realm.save(locked));
+        assertEquals(4, changes.size());
+        assertSame(anonymous, changes.get(2));
+        assertSame(locked, changes.get(3));
+
+        // the locked form is found through the same key, and the session follows it
+        assertSame(locked, realm.getAuthenticationInfo(signed(challenge)).getPrincipals().getPrimaryPrincipal());
+        assertSame(locked, realm.getSessionIdentity("session"));
+
+        assertSame(locked, realm.remove(locked));
+        assertSame(locked, changes.get(4));
+        assertNull(changes.get(5));
+        assertNull(realm.getSessionIdentity("session"));
+        assertNull(realm.getAuthenticationInfo(signed(challenge)));
+
+        realm.unbindSession("session");
+        assertNull(realm.getSessionIdentityCache().get("session"));
+    }
+}
@@ -0,0 +1,248 @@
+package net.grc.authc.web;
+
+import net.grc.authc.credential.IdLockPrincipal;
+import net.grc.authc.credential.SQRLAnonymousPrincipal;
+import net.grc.authc.credential.SQRLPrincipalCollection;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompletionBusTest {
+    final Random random = new Random(1);
+    File file;
+
+    static class Batches implements CompletionBus.Subscriber {
+        final List<Map<String, PrincipalCollection>> received = new ArrayList<Map<String, PrincipalCollection>>();
+
+        @Override
+        public synchronized void completed(Map<String, PrincipalCollection> batch) {
+            received.add(batch);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("completions", ".bus");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    byte[] randomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+
+    PrincipalCollection principals() {
+        SQRLPrincipalCollection principals = new SQRLPrincipalCollection();
+        principals.add(new SQRLAnonymousPrincipal("sqrl://grc.com/sqrl", randomKey()), "sqrl");
+        principals.add(new IdLockPrincipal("sqrl://grc.com/sqrl", randomKey(), randomKey(), randomKey()), "sqrl");
+        principals.add(new SQRLAnonymousPrincipal("sqrl://example.com", randomKey()), "other");
+        return principals;
+    }
+
+    @Test
+    public void testLocalBusCoalescesBatch() {
+        LocalCompletionBus bus = new LocalCompletionBus(1, TimeUnit.HOURS);
+        Batches batches = new Batches();
+        bus.subscribe(batches);
+
+        PrincipalCollection last = principals();
+        bus.publish("a", principals());
+        bus.publish("b", principals());
+        bus.publish("a", last);
+        assertTrue(batches.received.isEmpty());
+
+        bus.close();
+        assertEquals(1, batches.received.size());
+        Map<String, PrincipalCollection> batch = batches.received.get(0);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(batch.keySet()));
+        assertEquals(last, batch.get("a"));
+    }
+
+    @Test
+    public void testLocalBusCompletesLogin() {
+        LocalCompletionBus bus = new LocalCompletionBus();
+        LoginCompletions completions = new LoginCompletions();
+        bus.subscribe(completions);
+        PrincipalCollection principals = principals();
+        bus.publish("nut", principals);
+        assertEquals(principals, completions.get("nut"));
+    }
+
+    @Test
+    public void testFileBusBetweenNodes() {
+        FileCompletionBus a = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        FileCompletionBus b = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        try {
+            Batches atA = new Batches();
+            a.subscribe(atA);
+            LoginCompletions atB = new LoginCompletions();
+            b.subscribe(atB);
+
+            PrincipalCollection first = principals();
+            PrincipalCollection second = principals();
+            a.publish("first", first);
+            a.publish("second", second);
+            // the sender hears its own completions straight away, and only once
+            assertEquals(2, atA.received.size());
+            a.poll();
+            assertEquals(2, atA.received.size());
+
+            b.poll();
+            assertEquals(first, atB.get("first"));
+            assertEquals(second, atB.get("second"));
+            assertTrue(atB.get("first") instanceof SQRLPrincipalCollection);
+            assertEquals(2, atB.get("first").fromRealm("sqrl").size());
+
+            b.publish("third", first);
+            a.poll();
+            assertEquals(3, atA.received.size());
+            assertNotNull(atA.received.get(2).get("third"));
+
+            // a node that joins late only sees what comes after
+            FileCompletionBus c = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+            Batches atC = new Batches();
+            c.subscribe(atC);
+            c.poll();
+            assertTrue(atC.received.isEmpty());
+            c.close();
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testFileBusBatchesOnePollIntoOneDelivery() throws Exception {
+        FileCompletionBus a = new FileCompletionBus(file, 1, 1, TimeUnit.HOURS);
+        FileCompletionBus b = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        try {
+            Batches atB = new Batches();
+            b.subscribe(atB);
+            for (int i = 0; i < 100; i++) {
+                a.publish("nut" + i, principals());
+                if (i % 10 == 9) a.flush();
+            }
+            b.poll();
+            assertEquals(1, atB.received.size());
+            assertEquals(100, atB.received.get(0).size());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlySQRLPrincipalsCrossNodes() {
+        FileCompletionBus a = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        try {
+            a.publish("nut", new SimplePrincipalCollection("user", "ini"));
+        } finally {
+            a.close();
+        }
+    }
+
+    void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A completion whose frame takes about half of {@link CompletionCodec#MAX_FRAME}.
+     */
+    PrincipalCollection large() {
+        char[] domain = new char[60000];
+        Arrays.fill(domain, 'd');
+        SQRLPrincipalCollection principals = new SQRLPrincipalCollection();
+        for (int i = 0; i < 150; i++) {
+            principals.add(new SQRLAnonymousPrincipal(new String(domain) + i, randomKey()), "sqrl");
+        }
+        return principals;
+    }
+
+    @Test
+    public void testOversizedFrameIsRejected() {
+        Map<String, PrincipalCollection> batch = new LinkedHashMap<String, PrincipalCollection>();
+        batch.put("a", large());
+        batch.put("b", large());
+        try {
+            CompletionCodec.encode(1, batch);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // the bus sends it as two frames instead
+        FileCompletionBus a = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        FileCompletionBus b = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        try {
+            a.send(batch);
+            LoginCompletions atB = new LoginCompletions();
+            b.subscribe(atB);
+            b.poll();
+            assertEquals(batch.get("a"), atB.get("a"));
+            assertEquals(batch.get("b"), atB.get("b"));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testFileBusSkipsBadFrames() throws IOException {
+        FileCompletionBus a = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        FileCompletionBus b = new FileCompletionBus(file, 0, 1, TimeUnit.HOURS);
+        try {
+            LoginCompletions atB = new LoginCompletions();
+            b.subscribe(atB);
+
+            // a whole frame that does not decode is passed over
+            ByteBuffer bad = CompletionCodec.encode(2, Collections.singletonMap("bad", principals()));
+            bad.put(4 + 8 + 4 + 2 + 3 + 4 + 2 + 4 + 4, (byte) 9);
+            append(bad.array());
+            PrincipalCollection first = principals();
+            a.publish("first", first);
+            b.poll();
+            assertEquals(first, atB.get("first"));
+            assertEquals(null, atB.get("bad"));
+
+            // as is everything up to a length out of range
+            append(ByteBuffer.allocate(4).putInt(CompletionCodec.MAX_FRAME + 1).array());
+            b.poll();
+            PrincipalCollection second = principals();
+            a.publish("second", second);
+            b.poll();
+            assertEquals(second, atB.get("second"));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LoginCompletionsTest {
+    long now = 1000;
+
+    final LoginCompletions completions = new LoginCompletions(1, TimeUnit.MINUTES) {
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    static class Recorder implements LoginCompletions.Listener {
+        final List<PrincipalCollection> calls = new ArrayList<PrincipalCollection>();
+
+        @Override
+        public void completed(PrincipalCollection principals) {
+            calls.add(principals);
+        }
+    }
+
+    static PrincipalCollection principals(String name) {
+        return new SimplePrincipalCollection(name, "test");
+    }
+
+    @Test
+    public void testWaiterIsCalledOnCompletion() {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        completions.await("nut", a);
+        completions.await("nut", b);
+        completions.await("other", new Recorder());
+        assertTrue(a.calls.isEmpty());
+
+        PrincipalCollection phone = principals("phone");
+        assertTrue(completions.complete("nut", phone));
+        assertEquals(1, a.calls.size());
+        assertSame(phone, a.calls.get(0));
+        assertSame(phone, b.calls.get(0));
+
+        // a nut logs in once
+        assertFalse(completions.complete("nut", principals("again")));
+        assertEquals(1, a.calls.size());
+    }
+
+    @Test
+    public void testLateWaiterSeesRetainedCompletion() {
+        PrincipalCollection phone = principals("phone");
+        completions.complete("nut", phone);
+        assertSame(phone, completions.get("nut"));
+
+        Recorder late = new Recorder();
+        completions.await("nut", late);
+        assertSame(phone, late.calls.get(0));
+
+        now += TimeUnit.MINUTES.toMillis(1);
+        assertNull(completions.get("nut"));
+        Recorder expired = new Recorder();
+        completions.await("nut", expired);
+        assertTrue(expired.calls.isEmpty());
+        // the expired completion made way for the new waiter
+        assertEquals(1, completions.size());
+        completions.cancel("nut", expired);
+        assertEquals(0, completions.size());
+    }
+
+    @Test
+    public void testCancel() {
+        Recorder a = new Recorder();
+        completions.await("nut", a);
+        assertEquals(1, completions.size());
+        completions.cancel("nut", a);
+        assertEquals(0, completions.size());
+        completions.cancel("nut", a);
+
+        completions.complete("nut", principals("phone"));
+        assertTrue(a.calls.isEmpty());
+    }
+
+    @Test
+    public void testChallengeFromRequest() {
+        assertEquals("sqrl://grc.com/sqrl/login?d=5&nut=abc&sqrlver=0",
+                LoginCompletionsTest.challenge(true, 443, "/sqrl/login", "d=5&nut=abc&sqrlver=0"));
+        assertEquals("qrl://grc.com:8080/sqrl/login?nut=abc",
+                LoginCompletionsTest.challenge(false, 8080, "/sqrl/login", "nut=abc"));
+        assertEquals("sqrl://grc.com:80/login", LoginCompletionsTest.challenge(true, 80, "/login", null));
+    }
+
+    static String challenge(boolean secure, int port, String uri, String query) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("isSecure", secure);
+        values.put("getServerPort", port);
+        values.put("getServerName", "grc.com");
+        values.put("getRequestURI", uri);
+        values.put("getQueryString", query);
+        return SQRLAuthenticationFilter.challenge(stub(HttpServletRequest.class, values));
+    }
+
+    /**
+     * an interface answering the named getters from a map and everything else with null
+     */
+    static <T> T stub(Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return values.get(method.getName());
+            }
+        }));
+    }
+}
@@ -0,0 +1,359 @@
+package net.grc.authc.web;
+
+import net.grc.authc.credential.OffloadedCredentialsMatcher;
+import net.grc.authc.credential.SQRLBinaryParser;
+import net.grc.authc.credential.SQRLMatcherPipeline;
+import net.grc.authc.limit.ProofOfWork;
+import net.grc.authc.load.SimulatedPhone;
+import net.grc.authc.nut.MemoryNutStore;
+import net.grc.authc.realm.MemoryIdentityStore;
+import net.grc.authc.realm.SQRLRealm;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+import org.apache.shiro.web.subject.WebSubject;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLAuthenticationFilterTest {
+    static final String CLIENT = "192.0.2.1";
+    static final Charset ASCII = Charset.forName("US-ASCII");
+    static final int D = "/sqrl".length();
+
+    final MemoryNutStore nuts = new MemoryNutStore();
+    final SQRLRealm realm = new SQRLRealm(new MemoryIdentityStore(), SQRLMatcherPipeline.login(nuts));
+    final DefaultWebSecurityManager securityManager = new DefaultWebSecurityManager(realm);
+    final LoginCompletions completions = new LoginCompletions(1, TimeUnit.MINUTES);
+    final SQRLAuthenticationFilter filter = new SQRLAuthenticationFilter();
+    final SimulatedPhone phone = new SimulatedPhone(new Random(1));
+    OffloadedCredentialsMatcher offload;
+
+    {
+        realm.setRegisterNewIdentities(true);
+        filter.setLoginCompletions(completions);
+    }
+
+    @After
+    public void close() {
+        if (offload != null) offload.close();
+    }
+
+    /**
+     * one post: the request, its response and, once started, its async context
+     */
+    static class Exchange implements InvocationHandler {
+        final String method;
+        final URI url;
+        final Map<String, String> parameters = new HashMap<String, String>();
+        final String contentType;
+        final byte[] body;
+        final boolean asyncSupported;
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final Map<String, String> headers = new HashMap<String, String>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile int status = HttpServletResponse.SC_OK;
+        int sessions;
+        boolean started;
+
+        final HttpServletRequest request = proxy(HttpServletRequest.class);
+        final HttpServletResponse response = proxy(HttpServletResponse.class);
+        final AsyncContext async = proxy(AsyncContext.class);
+
+        Exchange(String method, String url, String contentType, byte[] body, boolean asyncSupported) {
+            this.method = method;
+            this.url = URI.create(url);
+            this.contentType = contentType;
+            this.body = body;
+            this.asyncSupported = asyncSupported;
+            parse(this.url.getRawQuery());
+            if (!SQRLBinaryParser.CONTENT_TYPE.equals(contentType) && body != null) parse(new String(body, ASCII));
+        }
+
+        private void parse(String query) {
+            if (query == null) return;
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) continue;
+                int at = pair.indexOf('=');
+                parameters.put(pair.substring(0, at), pair.substring(at + 1));
+            }
+        }
+
+        <T> T proxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if (name.equals("getMethod")) return method;
+            if (name.equals("getServerName")) return url.getHost();
+            if (name.equals("getServerPort")) return url.getPort();
+            if (name.equals("getRequestURI")) return url.getRawPath();
+            if (name.equals("getQueryString")) return url.getRawQuery();
+            if (name.equals("getParameter")) return parameters.get(args[0]);
+            if (name.equals("getContentType")) return contentType;
+            if (name.equals("getContentLength")) return body == null ? -1 : body.length;
+            if (name.equals("getInputStream")) return input(body == null ? new byte[0] : body);
+            if (name.equals("getRemoteHost") || name.equals("getRemoteAddr")) return CLIENT;
+            if (name.equals("getAttribute")) return attributes.get(args[0]);
+            if (name.equals("setAttribute")) attributes.put((String) args[0], args[1]);
+            if (name.equals("removeAttribute")) attributes.remove(args[0]);
+            if (name.equals("getSession")) {
+                if (args != null && !(Boolean) args[0]) return null;
+                sessions++;
+                return Proxy.newProxyInstance(HttpSession.class.getClassLoader(), new Class<?>[]{HttpSession.class},
+                        (p, sm, sargs) -> defaultValue(sm.getReturnType()));
+            }
+            if (name.equals("isAsyncSupported")) return asyncSupported;
+            if (name.equals("startAsync")) {
+                started = true;
+                return async;
+            }
+            if (name.equals("getRequest")) return request;
+            if (name.equals("getResponse")) return response;
+            if (name.equals("complete")) completed.countDown();
+            if (name.equals("setStatus") || name.equals("sendError")) status = (Integer) args[0];
+            if (name.equals("setHeader")) headers.put((String) args[0], (String) args[1]);
+            if (name.equals("hashCode")) return System.identityHashCode(proxy);
+            if (name.equals("equals")) return proxy == args[0];
+            return defaultValue(m.getReturnType());
+        }
+
+        static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+
+        static ServletInputStream input(byte[] bytes) {
+            InputStream in = new ByteArrayInputStream(bytes);
+            return new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+            };
+        }
+    }
+
+    String challenge() {
+        return "qrl://localhost:8080/sqrl?nut=" + Base64.encodeBase64URLSafeString(bytes(nuts.issue(CLIENT)));
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    static String http(String challenge) {
+        return "http" + challenge.substring("qrl".length());
+    }
+
+    static String nut(String challenge) {
+        int at = challenge.indexOf("nut=") + 4;
+        int end = challenge.indexOf('&', at);
+        return challenge.substring(at, end < 0 ? challenge.length() : end);
+    }
+
+    static String key(String challenge) {
+        return LoginCompletions.key(ByteBuffer.wrap(Base64.decodeBase64(nut(challenge))));
+    }
+
+    static Exchange post(SimulatedPhone.Request request) {
+        return post(http(request.getChallenge()), request, false);
+    }
+
+    static Exchange post(String url, SimulatedPhone.Request request, boolean async) {
+        return new Exchange("POST", url, request.getContentType(), request.getBody(), async);
+    }
+
+    Exchange send(Exchange exchange) throws Exception {
+        WebSubject subject = new WebSubject.Builder(securityManager, exchange.request, exchange.response)
+                .buildWebSubject();
+        assertFalse(subject.execute(() -> filter.onAccessDenied(exchange.request, exchange.response)));
+        return exchange;
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        String challenge = challenge();
+        SimulatedPhone.Request login = phone.login(challenge, D, false);
+        Exchange exchange = send(post(login));
+        assertEquals(HttpServletResponse.SC_OK, exchange.status);
+        assertNotNull(completions.get(key(challenge)));
+        assertFalse(exchange.started);
+
+        // the nut is spent
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, send(post(login)).status);
+    }
+
+    @Test
+    public void testNoSession() throws Exception {
+        Exchange exchange = send(post(phone.login(challenge(), D, false)));
+        assertEquals(HttpServletResponse.SC_OK, exchange.status);
+        assertEquals(Boolean.FALSE, exchange.attributes.get(DefaultSubjectContext.SESSION_CREATION_ENABLED));
+        assertEquals(0, exchange.sessions);
+    }
+
+    @Test
+    public void testOnlyPost() throws Exception {
+        String challenge = challenge();
+        Exchange exchange = send(new Exchange("GET", http(challenge), null, null, false));
+        assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, exchange.status);
+        assertEquals("POST", exchange.headers.get("Allow"));
+        assertNull(completions.get(key(challenge)));
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String challenge = challenge();
+        SimulatedPhone.Request login = phone.login(challenge, D, false);
+        Exchange exchange = send(new Exchange("POST", http(login.getChallenge()), login.getContentType(),
+                new byte[0], false));
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.status);
+        assertNull(completions.get(key(challenge)));
+    }
+
+    @Test
+    public void testBadSignature() throws Exception {
+        String challenge = challenge();
+        SimulatedPhone.Request login = phone.login(challenge, D, false);
+        byte[] signature = Base64.decodeBase64(new String(login.getBody(), ASCII).substring("sqrlsig=".length()));
+        signature[0] ^= 1;
+        byte[] body = ("sqrlsig=" + Base64.encodeBase64URLSafeString(signature)).getBytes(ASCII);
+        Exchange exchange = send(new Exchange("POST", http(login.getChallenge()), login.getContentType(), body,
+                false));
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, exchange.status);
+        assertNull(completions.get(key(challenge)));
+    }
+
+    @Test
+    public void testPublishesToBus() throws Exception {
+        LocalCompletionBus bus = new LocalCompletionBus();
+        LoginCompletions node = new LoginCompletions(1, TimeUnit.MINUTES);
+        bus.subscribe(node);
+        filter.setCompletionBus(bus);
+
+        String challenge = challenge();
+        assertEquals(HttpServletResponse.SC_OK, send(post(phone.login(challenge, D, false))).status);
+        assertNotNull(node.get(key(challenge)));
+        assertNull(completions.get(key(challenge)));
+        bus.close();
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        String challenge = challenge();
+        Exchange exchange = send(post(phone.login(challenge, D, true)));
+        assertEquals(HttpServletResponse.SC_OK, exchange.status);
+        assertNotNull(completions.get(key(challenge)));
+    }
+
+    @Test
+    public void testBinaryNutMustBeTheURLs() throws Exception {
+        String signed = challenge();
+        String other = challenge();
+        Exchange exchange = send(post(http(other), phone.login(signed, D, true), false));
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.status);
+        assertNull(completions.get(key(signed)));
+        assertNull(completions.get(key(other)));
+
+        // neither nut was consumed
+        assertEquals(HttpServletResponse.SC_OK, send(post(phone.login(signed, D, true))).status);
+    }
+
+    @Test
+    public void testProofOfWork() throws Exception {
+        ProofOfWork work = new ProofOfWork(4, 0);
+        filter.setProofOfWork(work);
+
+        String challenge = challenge();
+        SimulatedPhone.Request login = phone.login(challenge, D, false);
+        Exchange unsolved = send(post(login));
+        assertEquals(429, unsolved.status);
+        assertEquals("4", unsolved.headers.get(SQRLAuthenticationFilter.WORK_HEADER));
+        assertNull(completions.get(key(challenge)));
+
+        long solution = ProofOfWork.solve(ByteBuffer.wrap(Base64.decodeBase64(nut(challenge))), 4);
+        // posted next to the signature, since the URL is what was signed
+        byte[] body = (new String(login.getBody(), ASCII) + "&" + SQRLAuthenticationFilter.WORK_PARAM + "="
+                + solution).getBytes(ASCII);
+        Exchange solved = send(new Exchange("POST", http(login.getChallenge()), login.getContentType(), body, false));
+        assertEquals(HttpServletResponse.SC_OK, solved.status);
+        assertNotNull(completions.get(key(challenge)));
+
+        // a solution buys a single post
+        Exchange replayed = send(new Exchange("POST", http(login.getChallenge()), login.getContentType(), body,
+                false));
+        assertEquals(429, replayed.status);
+    }
+
+    @Test
+    public void testOffloaded() throws Exception {
+        offload = new OffloadedCredentialsMatcher(realm.getCredentialsMatcher(), 1, 1);
+        filter.setOffload(offload);
+
+        String challenge = challenge();
+        SimulatedPhone.Request login = phone.login(challenge, D, false);
+        Exchange exchange = send(post(http(login.getChallenge()), login, true));
+        assertTrue(exchange.started);
+        assertTrue(exchange.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(HttpServletResponse.SC_OK, exchange.status);
+        assertNotNull(completions.get(key(challenge)));
+        assertEquals(0, exchange.sessions);
+    }
+
+    @Test
+    public void testOffloadOverloaded() throws Exception {
+        offload = new OffloadedCredentialsMatcher(realm.getCredentialsMatcher(), 1, 1);
+        filter.setOffload(offload);
+        CountDownLatch release = new CountDownLatch(1);
+        offload.submit(() -> release.await(10, TimeUnit.SECONDS));
+
+        try {
+            String challenge = challenge();
+            SimulatedPhone.Request login = phone.login(challenge, D, false);
+            Exchange exchange = send(post(http(login.getChallenge()), login, true));
+            assertTrue(exchange.started);
+            assertTrue(exchange.completed.await(10, TimeUnit.SECONDS));
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exchange.status);
+            assertEquals("1", exchange.headers.get("Retry-After"));
+            assertNull(completions.get(key(challenge)));
+        } finally {
+            release.countDown();
+        }
+    }
+}
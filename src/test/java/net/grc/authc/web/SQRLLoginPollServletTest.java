@@ -0,0 +1,117 @@
+package net.grc.authc.web;
+
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SQRLLoginPollServletTest {
+    final LoginCompletions completions = new LoginCompletions();
+    final SQRLLoginPollServlet servlet = new SQRLLoginPollServlet(completions);
+
+    /**
+     * one GET: the request, its response and, once suspended, its async context
+     */
+    static class Exchange implements InvocationHandler {
+        final String nut;
+        final StringWriter body = new StringWriter();
+        int status = HttpServletResponse.SC_OK;
+        boolean suspended;
+        boolean completed;
+        long timeout;
+        AsyncListener listener;
+
+        final HttpServletRequest request = proxy(HttpServletRequest.class);
+        final HttpServletResponse response = proxy(HttpServletResponse.class);
+        final AsyncContext async = proxy(AsyncContext.class);
+
+        Exchange(String nut) {
+            this.nut = nut;
+        }
+
+        <T> T proxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            String name = method.getName();
+            if (name.equals("getParameter")) return nut;
+            if (name.equals("startAsync")) {
+                suspended = true;
+                return async;
+            }
+            if (name.equals("setTimeout")) timeout = (Long) args[0];
+            if (name.equals("addListener")) listener = (AsyncListener) args[0];
+            if (name.equals("getRequest")) return request;
+            if (name.equals("getResponse")) return response;
+            if (name.equals("complete")) {
+                assertFalse("completed twice", completed);
+                completed = true;
+                listener.onComplete(new AsyncEvent(async));
+            }
+            if (name.equals("setStatus") || name.equals("sendError")) status = (Integer) args[0];
+            if (name.equals("getWriter")) return new PrintWriter(body);
+            return null;
+        }
+    }
+
+    @Test
+    public void testParksUntilPhoneCompletes() throws Exception {
+        Exchange browser = new Exchange("nut");
+        servlet.doGet(browser.request, browser.response);
+        assertTrue(browser.suspended);
+        assertFalse(browser.completed);
+        assertEquals(SQRLLoginPollServlet.DEFAULT_TIMEOUT_MILLIS, browser.timeout);
+
+        completions.complete("nut", new SimplePrincipalCollection("phone", "test"));
+        assertTrue(browser.completed);
+        assertEquals(HttpServletResponse.SC_OK, browser.status);
+        assertEquals("authenticated", browser.body.toString());
+        assertEquals(1, completions.size());
+    }
+
+    @Test
+    public void testAlreadyCompleted() throws Exception {
+        completions.complete("nut", new SimplePrincipalCollection("phone", "test"));
+        Exchange browser = new Exchange("nut");
+        servlet.doGet(browser.request, browser.response);
+        assertFalse(browser.suspended);
+        assertEquals("authenticated", browser.body.toString());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Exchange browser = new Exchange("nut");
+        servlet.doGet(browser.request, browser.response);
+        browser.listener.onTimeout(new AsyncEvent(browser.async));
+        assertTrue(browser.completed);
+        assertEquals(HttpServletResponse.SC_NO_CONTENT, browser.status);
+        assertEquals(0, completions.size());
+
+        // a completion after the timeout is kept for the next poll, not written to the old response
+        completions.complete("nut", new SimplePrincipalCollection("phone", "test"));
+        assertEquals("", browser.body.toString());
+    }
+
+    @Test
+    public void testMissingNut() throws Exception {
+        Exchange browser = new Exchange(null);
+        servlet.doGet(browser.request, browser.response);
+        assertFalse(browser.suspended);
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, browser.status);
+    }
+}
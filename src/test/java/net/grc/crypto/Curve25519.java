@@ -0,0 +1,131 @@
+package net.grc.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java Curve25519 Diffie-Hellman (X25519, RFC 7748), the DHKA of SQRL's identity lock, for tests and simulated
+ * clients: the server only checks the HMAC the client derives with it.
+ * <p/>
+ * A constant time Montgomery ladder over {@link Field25519}, as in the ref10 reference implementation. The working
+ * state lives in a per-thread {@link Context}, so apart from the result no call allocates.
+ */
+public final class Curve25519 {
+    public static final int KEY_LENGTH = 32;
+
+    private static final byte[] BASE_POINT = new byte[KEY_LENGTH];
+
+    static {
+        BASE_POINT[0] = 9;
+    }
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private Curve25519() {
+    }
+
+    /**
+     * EC_MakePublic: the public key of a 32 byte secret key, which is clamped as it is used
+     */
+    public static byte[] publicKey(byte[] secretKey) {
+        return agree(secretKey, BASE_POINT);
+    }
+
+    /**
+     * DHKA(publicKey, secretKey), equal to DHKA of the other side's public key and this side's secret key.
+     *
+     * @return the shared secret, or null if the public key is of low order and would force a known result
+     */
+    public static byte[] agree(byte[] secretKey, byte[] publicKey) {
+        if (secretKey == null || secretKey.length != KEY_LENGTH) throw new IllegalArgumentException("secretKey");
+        if (publicKey == null || publicKey.length != KEY_LENGTH) throw new IllegalArgumentException("publicKey");
+
+        Context ctx = CONTEXT.get();
+        byte[] shared = new byte[KEY_LENGTH];
+        scalarMult(ctx, shared, secretKey, publicKey);
+
+        int bits = 0;
+        for (int i = 0; i < KEY_LENGTH; i++) bits |= shared[i];
+        return bits == 0 ? null : shared;
+    }
+
+    public static byte[] agree(byte[] secretKey, ByteBuffer publicKey) {
+        if (publicKey == null || publicKey.remaining() != KEY_LENGTH) throw new IllegalArgumentException("publicKey");
+        byte[] pub = new byte[KEY_LENGTH];
+        publicKey.duplicate().get(pub);
+        return agree(secretKey, pub);
+    }
+
+    private static void scalarMult(Context ctx, byte[] out, byte[] scalar, byte[] point) {
+        byte[] e = ctx.e;
+        System.arraycopy(scalar, 0, e, 0, KEY_LENGTH);
+        e[0] &= (byte) 248;
+        e[31] &= 127;
+        e[31] |= 64;
+
+        int[] x1 = ctx.x1, x2 = ctx.x2, z2 = ctx.z2, x3 = ctx.x3, z3 = ctx.z3, tmp0 = ctx.tmp0, tmp1 = ctx.tmp1;
+        Field25519.fromBytes(x1, point, 0);
+        Field25519.one(x2);
+        Field25519.zero(z2);
+        Field25519.copy(x3, x1);
+        Field25519.one(z3);
+
+        int swap = 0;
+        for (int pos = 254; pos >= 0; pos--) {
+            int b = (e[pos >>> 3] >>> (pos & 7)) & 1;
+            swap ^= b;
+            Field25519.cswap(x2, x3, swap);
+            Field25519.cswap(z2, z3, swap);
+            swap = b;
+
+            Field25519.sub(tmp0, x3, z3);
+            Field25519.sub(tmp1, x2, z2);
+            Field25519.add(x2, x2, z2);
+            Field25519.add(z2, x3, z3);
+            Field25519.mul(z3, tmp0, x2);
+            Field25519.mul(z2, z2, tmp1);
+            Field25519.sq(tmp0, tmp1);
+            Field25519.sq(tmp1, x2);
+            Field25519.add(x3, z3, z2);
+            Field25519.sub(z2, z3, z2);
+            Field25519.mul(x2, tmp1, tmp0);
+            Field25519.sub(tmp1, tmp1, tmp0);
+            Field25519.sq(z2, z2);
+            Field25519.mul(z3, tmp1, ctx.a24);
+            Field25519.sq(x3, x3);
+            Field25519.add(tmp0, tmp0, z3);
+            Field25519.mul(z3, x1, z2);
+            Field25519.mul(z2, tmp1, tmp0);
+        }
+        Field25519.cswap(x2, x3, swap);
+        Field25519.cswap(z2, z3, swap);
+
+        Field25519.invert(z2, z2, ctx.t0, ctx.t1, ctx.t2, ctx.t3);
+        Field25519.mul(x2, x2, z2);
+        Field25519.toBytes(out, 0, x2);
+    }
+
+    /**
+     * Per-thread working state for one scalar multiplication.
+     */
+    static final class Context {
+        final byte[] e = new byte[KEY_LENGTH];
+        final int[] x1 = Field25519.create();
+        final int[] x2 = Field25519.create();
+        final int[] z2 = Field25519.create();
+        final int[] x3 = Field25519.create();
+        final int[] z3 = Field25519.create();
+        final int[] tmp0 = Field25519.create();
+        final int[] tmp1 = Field25519.create();
+        final int[] t0 = Field25519.create();
+        final int[] t1 = Field25519.create();
+        final int[] t2 = Field25519.create();
+        final int[] t3 = Field25519.create();
+        // (A + 2) / 4
+        final int[] a24 = Field25519.create(121666, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,49 @@
+package net.grc.crypto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static net.grc.crypto.Ed25519Test.hex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class Curve25519Test {
+    // RFC 7748 section 6.1
+    static final String ALICE_SK = "77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a";
+    static final String ALICE_PK = "8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a";
+    static final String BOB_SK = "5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb";
+    static final String BOB_PK = "de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f";
+    static final String SHARED = "4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742";
+
+    @Test
+    public void testRfcVectors() throws Exception {
+        assertArrayEquals(hex(ALICE_PK), Curve25519.publicKey(hex(ALICE_SK)));
+        assertArrayEquals(hex(BOB_PK), Curve25519.publicKey(hex(BOB_SK)));
+        assertArrayEquals(hex(SHARED), Curve25519.agree(hex(ALICE_SK), hex(BOB_PK)));
+        assertArrayEquals(hex(SHARED), Curve25519.agree(hex(BOB_SK), hex(ALICE_PK)));
+
+        // section 5.2, with the top bit of u set
+        assertArrayEquals(hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+                Curve25519.agree(hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                        hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+    }
+
+    @Test
+    public void testAgreement() {
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            byte[] a = new byte[32];
+            byte[] b = new byte[32];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            assertArrayEquals(Curve25519.agree(a, Curve25519.publicKey(b)),
+                    Curve25519.agree(b, Curve25519.publicKey(a)));
+        }
+    }
+
+    @Test
+    public void testLowOrderPoint() throws Exception {
+        assertNull(Curve25519.agree(hex(ALICE_SK), new byte[32]));
+    }
+}
@@ -0,0 +1,135 @@
+package net.grc.crypto;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Ed25519BatchVerifierTest {
+    static final int N = 37;
+
+    final Random random = new Random(3);
+    final byte[][] msgs = new byte[N][];
+    final byte[][] sigs = new byte[N][];
+    final Ed25519.PublicKey[] keys = new Ed25519.PublicKey[N];
+
+    public Ed25519BatchVerifierTest() {
+        for (int i = 0; i < N; i++) {
+            byte[] seed = new byte[32];
+            random.nextBytes(seed);
+            Ed25519Signer signer = new Ed25519Signer(seed);
+            msgs[i] = ("sqrl://grc.com/login?nut=" + i).getBytes(Charset.forName("UTF-8"));
+            sigs[i] = signer.sign(msgs[i]);
+            keys[i] = Ed25519.decodePublicKey(ByteBuffer.wrap(signer.getPublicKey()));
+        }
+    }
+
+    boolean[] verify(Ed25519BatchVerifier verifier) {
+        verifier.clear();
+        for (int i = 0; i < N; i++) {
+            assertEquals(i, verifier.add(ByteBuffer.wrap(sigs[i]), msgs[i], keys[i]));
+        }
+        boolean[] results = new boolean[N];
+        verifier.verify(results);
+        return results;
+    }
+
+    @Test
+    public void testAllValid() {
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier(64);
+        boolean[] results = verify(verifier);
+        for (int i = 0; i < N; i++) assertTrue("index " + i, results[i]);
+
+        // reusable after clear
+        results = verify(verifier);
+        for (int i = 0; i < N; i++) assertTrue("index " + i, results[i]);
+    }
+
+    @Test
+    public void testBisectsToBadSignatures() {
+        sigs[3][5] ^= 1;            // R no longer matches
+        sigs[17][40] ^= 1;          // S no longer matches
+        msgs[30] = "sqrl://grc.com/login?nut=x".getBytes(Charset.forName("UTF-8"));
+        keys[31] = keys[32];        // signed by somebody else
+
+        boolean[] results = verify(new Ed25519BatchVerifier(N));
+        for (int i = 0; i < N; i++) {
+            boolean bad = i == 3 || i == 17 || i == 30 || i == 31;
+            assertEquals("index " + i, !bad, results[i]);
+        }
+    }
+
+    @Test
+    public void testMalformedEntries() {
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier(4);
+        verifier.add(ByteBuffer.wrap(sigs[0]), msgs[0], keys[0]);
+        verifier.add(ByteBuffer.wrap(new byte[10]), msgs[1], keys[1]);
+        verifier.add(ByteBuffer.wrap(sigs[2]), msgs[2], null);
+        verifier.add(ByteBuffer.wrap(sigs[3]), msgs[3], keys[3]);
+
+        boolean[] results = new boolean[4];
+        verifier.verify(results);
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertFalse(results[2]);
+        assertTrue(results[3]);
+    }
+
+    @Test
+    public void testSmallOrderComponentAgreesWithSingle() {
+        long[] limbs = new long[3 * Scalar25519.LIMBS];
+        byte[] a = new byte[32];
+        byte[] r = new byte[32];
+        byte[] wide = new byte[64];
+        random.nextBytes(wide);
+        Scalar25519.reduce(a, wide, 0, limbs);
+        random.nextBytes(wide);
+        Scalar25519.reduce(r, wide, 0, limbs);
+        byte[] pub = new byte[32];
+        Ed25519Signer.scalarMultBase(pub, a);
+
+        // R = [r]B + (0, -1), a point of order 2 that [S]B - [h]A cannot account for
+        byte[] sig = new byte[64];
+        Ed25519Signer.scalarMultBase(sig, r);
+        Edwards25519.Scratch scratch = new Edwards25519.Scratch();
+        Edwards25519.P3 negR = new Edwards25519.P3();
+        assertTrue(Edwards25519.decodeNegated(negR, sig, 0, scratch));
+        Edwards25519.P3 order2 = new Edwards25519.P3();
+        order2.setIdentity();
+        Field25519.neg(order2.Y, order2.Y);
+        Edwards25519.Cached cached = new Edwards25519.Cached();
+        Edwards25519.toCached(cached, order2);
+        Edwards25519.P1P1 sum = new Edwards25519.P1P1();
+        Edwards25519.addCached(sum, negR, cached, Field25519.create());
+        Edwards25519.P3 p3 = new Edwards25519.P3();
+        Edwards25519.toP3(p3, sum);
+        Edwards25519.negate(negR, p3);
+        Edwards25519.P2 p2 = new Edwards25519.P2();
+        Edwards25519.toP2(p2, negR);
+        Edwards25519.encode(sig, 0, p2, scratch);
+
+        byte[] msg = "sqrl://grc.com/login?nut=order2".getBytes(Charset.forName("UTF-8"));
+        MessageDigest sha512 = Ed25519.sha512();
+        sha512.update(sig, 0, 32);
+        sha512.update(pub);
+        sha512.update(msg);
+        byte[] h = new byte[32];
+        Scalar25519.reduce(h, sha512.digest(), 0, limbs);
+        byte[] s = new byte[32];
+        Scalar25519.mulAdd(s, h, a, r, limbs);
+        System.arraycopy(s, 0, sig, 32, 32);
+
+        assertTrue(Ed25519.verify(sig, msg, pub));
+        sigs[5] = sig;
+        msgs[5] = msg;
+        keys[5] = Ed25519.decodePublicKey(ByteBuffer.wrap(pub));
+        boolean[] results = verify(new Ed25519BatchVerifier(N));
+        for (int i = 0; i < N; i++) assertTrue("index " + i, results[i]);
+    }
+}
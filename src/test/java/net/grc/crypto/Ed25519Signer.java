@@ -0,0 +1,66 @@
+package net.grc.crypto;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Ed25519 key generation and signing for tests and simulated clients. Variable time: never use it with a secret
+ * that matters.
+ */
+public class Ed25519Signer {
+    private final byte[] prefix;
+    private final byte[] scalar = new byte[32];
+    private final byte[] publicKey = new byte[32];
+
+    public Ed25519Signer(byte[] seed) {
+        if (seed.length != 32) throw new IllegalArgumentException("seed length=" + seed.length);
+
+        byte[] h = Ed25519.sha512().digest(seed);
+        System.arraycopy(h, 0, scalar, 0, 32);
+        scalar[0] &= (byte) 248;
+        scalar[31] &= 127;
+        scalar[31] |= 64;
+        prefix = Arrays.copyOfRange(h, 32, 64);
+
+        scalarMultBase(publicKey, scalar);
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    public byte[] sign(byte[] msg) {
+        MessageDigest sha512 = Ed25519.sha512();
+        long[] limbs = new long[3 * Scalar25519.LIMBS];
+
+        sha512.update(prefix);
+        sha512.update(msg);
+        byte[] r = new byte[32];
+        Scalar25519.reduce(r, sha512.digest(), 0, limbs);
+
+        byte[] sig = new byte[64];
+        scalarMultBase(sig, r);
+
+        sha512.update(sig, 0, 32);
+        sha512.update(publicKey);
+        sha512.update(msg);
+        byte[] k = new byte[32];
+        Scalar25519.reduce(k, sha512.digest(), 0, limbs);
+
+        byte[] s = new byte[32];
+        Scalar25519.mulAdd(s, k, scalar, r, limbs);
+        System.arraycopy(s, 0, sig, 32, 32);
+        return sig;
+    }
+
+    static void scalarMultBase(byte[] out, byte[] scalar) {
+        byte[] noA = new byte[256];
+        byte[] bSlide = new byte[256];
+        Edwards25519.slide(bSlide, scalar, 0);
+
+        Edwards25519.P2 r = new Edwards25519.P2();
+        Edwards25519.doubleScalarMult(r, noA, Edwards25519.BASE_ODD_MULTIPLES, bSlide,
+                new Edwards25519.P1P1(), new Edwards25519.P3(), Field25519.create());
+        Edwards25519.encode(out, 0, r, new Edwards25519.Scratch());
+    }
+}
@@ -0,0 +1,140 @@
+package net.grc.crypto;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Ed25519Test {
+    // RFC 8032 section 7.1, TEST 1 and TEST 2
+    static final String SEED1 = "9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60";
+    static final String PUB1 = "d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a";
+    static final String SIG1 = "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065224901555fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b";
+    static final String SEED2 = "4ccd089b28ff96da9db6c346ec114e0f5b8a319f35aba624da8cf6ed4fb8a6fb";
+    static final String PUB2 = "3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c";
+    static final String SIG2 = "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00";
+
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(new BigInteger("27742317777372353535851937790883648493"));
+
+    static byte[] hex(String s) throws Exception {
+        return Hex.decodeHex(s.toCharArray());
+    }
+
+    @Test
+    public void testRfcVectors() throws Exception {
+        assertTrue(Ed25519.verify(hex(SIG1), new byte[0], hex(PUB1)));
+        assertTrue(Ed25519.verify(hex(SIG2), new byte[]{0x72}, hex(PUB2)));
+
+        assertFalse(Ed25519.verify(hex(SIG1), new byte[]{0x72}, hex(PUB1)));
+        assertFalse(Ed25519.verify(hex(SIG2), new byte[]{0x72}, hex(PUB1)));
+    }
+
+    @Test
+    public void testSignerMatchesRfc() throws Exception {
+        Ed25519Signer signer = new Ed25519Signer(hex(SEED2));
+        assertArrayEquals(hex(PUB2), signer.getPublicKey());
+        assertArrayEquals(hex(SIG2), signer.sign(new byte[]{0x72}));
+        assertArrayEquals(hex(SIG1), new Ed25519Signer(hex(SEED1)).sign(new byte[0]));
+    }
+
+    @Test
+    public void testCachedKey() throws Exception {
+        Ed25519.PublicKey key = Ed25519.decodePublicKey(ByteBuffer.wrap(hex(PUB2)));
+        assertNotNull(key);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(Ed25519.verify(ByteBuffer.wrap(hex(SIG2)).asReadOnlyBuffer(), new byte[]{0x72}, key));
+        }
+        assertFalse(Ed25519.verify(ByteBuffer.wrap(hex(SIG1)), new byte[]{0x72}, key));
+
+        byte[] padded = new byte[80];
+        System.arraycopy(hex(SIG2), 0, padded, 7, 64);
+        assertTrue(Ed25519.verify(padded, 7, new byte[]{0, 0x72}, 1, 1, key));
+    }
+
+    @Test
+    public void testTamperedSignatures() throws Exception {
+        Random random = new Random(42);
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        Ed25519Signer signer = new Ed25519Signer(seed);
+        byte[] msg = "sqrl://example.com/login?nut=abc".getBytes(Charset.forName("UTF-8"));
+        byte[] sig = signer.sign(msg);
+        assertTrue(Ed25519.verify(sig, msg, signer.getPublicKey()));
+
+        for (int i = 0; i < 64; i++) {
+            byte[] bad = sig.clone();
+            bad[i] ^= 1 << random.nextInt(8);
+            assertFalse("bit flip in byte " + i, Ed25519.verify(bad, msg, signer.getPublicKey()));
+        }
+    }
+
+    @Test
+    public void testNonCanonicalScalarRejected() throws Exception {
+        byte[] sig = hex(SIG2);
+        BigInteger s = le(sig, 32).add(L);
+        byte[] sPlusL = le(s);
+        System.arraycopy(sPlusL, 0, sig, 32, 32);
+        assertFalse(Ed25519.verify(sig, new byte[]{0x72}, hex(PUB2)));
+    }
+
+    @Test
+    public void testInvalidKeys() throws Exception {
+        assertNull(Ed25519.decodePublicKey(ByteBuffer.wrap(new byte[64])));
+        assertNull(Ed25519.decodePublicKey(null));
+
+        // y = 2 is not on the curve
+        byte[] notOnCurve = new byte[32];
+        notOnCurve[0] = 2;
+        assertNull(Ed25519.decodePublicKey(ByteBuffer.wrap(notOnCurve)));
+        assertFalse(Ed25519.verify(hex(SIG2), new byte[]{0x72}, notOnCurve));
+    }
+
+    @Test
+    public void testScalarReduce() {
+        Random random = new Random(7);
+        long[] limbs = new long[3 * Scalar25519.LIMBS];
+        for (int n = 0; n < 1000; n++) {
+            byte[] in = new byte[64];
+            random.nextBytes(in);
+            if (n == 0) java.util.Arrays.fill(in, (byte) 0xff);
+            byte[] out = new byte[32];
+            Scalar25519.reduce(out, in, 0, limbs);
+            assertEquals(le(in, 0, 64).mod(L), le(out, 0));
+
+            byte[] a = new byte[32], b = new byte[32], c = new byte[32];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            random.nextBytes(c);
+            a[31] &= 0x7f;
+            Scalar25519.mulAdd(out, a, b, c, limbs);
+            assertEquals(le(a, 0).multiply(le(b, 0)).add(le(c, 0)).mod(L), le(out, 0));
+        }
+    }
+
+    static BigInteger le(byte[] b, int off) {
+        return le(b, off, 32);
+    }
+
+    static BigInteger le(byte[] b, int off, int len) {
+        byte[] be = new byte[len + 1];
+        for (int i = 0; i < len; i++) be[len - i] = b[off + i];
+        return new BigInteger(be);
+    }
+
+    static byte[] le(BigInteger v) {
+        byte[] out = new byte[32];
+        byte[] be = v.toByteArray();
+        for (int i = 0; i < be.length && i < 32; i++) out[i] = be[be.length - 1 - i];
+        return out;
+    }
+}
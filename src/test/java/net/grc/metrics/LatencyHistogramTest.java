@@ -0,0 +1,81 @@
+package net.grc.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(value <= LatencyHistogram.highest(bucket));
+            if (bucket != previous && bucket > 0) assertEquals(value - 1, LatencyHistogram.highest(bucket - 1));
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void testRelativeError() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (21 + random.nextInt(40));
+            long highest = LatencyHistogram.highest(LatencyHistogram.bucket(value));
+            assertTrue(value <= highest);
+            assertTrue(value + " " + highest, highest - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (long i = 1; i <= 1000; i++) histogram.record(i * 1000);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500000, snapshot.getSum());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500, snapshot.getMean(), 0.001);
+        assertNear(500000, snapshot.getValueAt(0.5));
+        assertNear(990000, snapshot.getValueAt(0.99));
+        assertEquals(1000000, snapshot.getValueAt(1));
+        assertNear(1000, snapshot.getValueAt(0));
+    }
+
+    @Test
+    public void testStripesAddUp() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) histogram.record(100);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(40000, histogram.snapshot().getCount());
+        assertEquals(4000000, histogram.snapshot().getSum());
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram("test").snapshot();
+        assertEquals(0, snapshot.getValueAt(0.99));
+        assertEquals(0, snapshot.getMean(), 0);
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,93 @@
+package net.grc.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @After
+    public void tearDown() {
+        Tracer.setSampleRate(0);
+    }
+
+    @Test
+    public void testCounterSumsThreads() throws InterruptedException {
+        final Counter counter = Metrics.counter("test.counter.threads");
+        assertSame(counter, Metrics.counter("test.counter.threads"));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) counter.increment();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        counter.add(5);
+        assertEquals(40005, counter.sum());
+    }
+
+    @Test
+    public void testWriteText() throws Exception {
+        Metrics.counter("test.text-counter").add(3);
+        Metrics.histogram("test.text.histogram").record(2000000);
+        StringBuilder text = new StringBuilder();
+        Metrics.writeText(text);
+
+        assertTrue(text.indexOf("# TYPE test_text_counter_total counter\ntest_text_counter_total 3\n") >= 0);
+        assertTrue(text.indexOf("# TYPE test_text_histogram_seconds summary\n") >= 0);
+        assertTrue(text.indexOf("test_text_histogram_seconds{quantile=\"0.5\"} 0.002\n") >= 0);
+        assertTrue(text.indexOf("test_text_histogram_seconds_count 1\n") >= 0);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        Metrics.counter("test.mbean.counter").add(7);
+        Metrics.histogram("test.mbean.histogram").record(3000);
+        Metrics.registerMBean();
+        Metrics.registerMBean();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+        assertEquals(7L, server.getAttribute(name, "test.mbean.counter"));
+        assertEquals(1L, server.getAttribute(name, "test.mbean.histogram.count"));
+        assertEquals(3.0, (Double) server.getAttribute(name, "test.mbean.histogram.maxMicros"), 0);
+    }
+
+    @Test
+    public void testTracerCollectsPhases() {
+        LatencyHistogram parse = Metrics.histogram("test.trace.parse");
+        LatencyHistogram verify = Metrics.histogram("test.trace.verify");
+
+        assertNull(Tracer.begin("off"));
+        parse.record(1);
+
+        Tracer.setSampleRate(1);
+        Tracer.Trace trace = Tracer.begin("login");
+        assertNull(Tracer.begin("nested"));
+        parse.record(1000);
+        verify.record(2000);
+        Tracer.end(trace);
+        parse.record(3000);
+
+        assertTrue(trace.getTotalNanos() >= 0);
+        assertEquals(2, trace.getPhases().size());
+        assertEquals("test.trace.parse", trace.getPhases().get(0));
+        assertEquals("test.trace.verify", trace.getPhases().get(1));
+        assertEquals(Long.valueOf(2000), trace.getPhaseNanos().get(1));
+        List<Tracer.Trace> recent = Tracer.recent();
+        assertSame(trace, recent.get(0));
+    }
+}
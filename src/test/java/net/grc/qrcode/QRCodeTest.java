@@ -1,9 +1,31 @@
 package net.grc.qrcode;
 
+import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 public class QRCodeTest {
+    static final String CHALLENGE = "sqrl://www.grc.com/sqrl/login?nut=oOB4QOFJux5ZNvHGCNq7SA&sqrlver=0&d=11"
+            + "&sqrlkey=ocUDZ-uuyMZ7xUk05TeMkTyIGVk7omCTV3nWjHkxJtw";
+
     @Test
     public void testBlobQRC() throws WriterException {
         byte[] data = new byte[256];
@@ -13,4 +35,148 @@ public class QRCodeTest {
 
         QRCode.createQRCode(data,300,300);
     }
+
+    static void assertSamePixels(BitMatrix expected, BufferedImage image) {
+        assertEquals(expected.getWidth(), image.getWidth());
+        assertEquals(expected.getHeight(), image.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y) & 0xffffff;
+                assertEquals(x + "," + y, expected.get(x, y) ? 0 : 0xffffff, rgb);
+            }
+        }
+    }
+
+    @Test
+    public void testSamePixelsAsQRCodeWriter() throws Exception {
+        QRMatrix matrix = QRCode.encode(CHALLENGE);
+        int[][] sizes = {{300, 300}, {301, 257}, {10, 10}, {0, 0}, {600, 200}, {1000, 1003}};
+        for (int[] size : sizes) {
+            BitMatrix expected = new QRCodeWriter().encode(CHALLENGE, BarcodeFormat.QR_CODE, size[0], size[1]);
+            assertSamePixels(expected, QRCode.toImage(matrix, size[0], size[1]));
+            assertSamePixels(expected, QRCode.toBufferedImage(expected));
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            QRCode.writePng(matrix, size[0], size[1], png);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+            assertNotNull(decoded);
+            assertSamePixels(expected, decoded);
+        }
+    }
+
+    @Test
+    public void testLargePng() throws Exception {
+        // several IDAT chunks
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        QRMatrix matrix = QRCode.encode(data);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        QRCode.writePng(matrix, 2000, 2000, png);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        assertEquals(2000, decoded.getWidth());
+        int scale = matrix.scale(2000, 2000);
+        int left = matrix.padding(2000, scale);
+        for (int y = 0; y < matrix.getSize(); y++) {
+            for (int x = 0; x < matrix.getSize(); x++) {
+                int rgb = decoded.getRGB(left + x * scale + scale / 2, left + y * scale + scale / 2) & 0xffffff;
+                assertEquals(matrix.get(x, y) ? 0 : 0xffffff, rgb);
+            }
+        }
+    }
+
+    @Test
+    public void testClearBits() {
+        for (int from = 0; from < 40; from++) {
+            for (int to = from + 1; to <= 40; to++) {
+                byte[] row = {-1, -1, -1, -1, -1, -1, -1};
+                QRCode.clearBits(row, 1, from, to);
+                assertEquals(-1, row[0]);
+                for (int i = 0; i < 48; i++) {
+                    boolean set = (row[1 + (i >>> 3)] & (0x80 >>> (i & 7))) != 0;
+                    assertEquals(from + " " + to + " " + i, i < from || i >= to, set);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSvg() throws Exception {
+        QRMatrix matrix = QRCode.encode(CHALLENGE);
+        String svg = QRCode.toSvg(matrix);
+        int n = matrix.getSize() + 2 * QRMatrix.QUIET_ZONE;
+        assertTrue(svg.startsWith("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 " + n + " " + n + "\""));
+
+        // paint the rectangles back onto a grid
+        boolean[][] dark = new boolean[n][n];
+        String d = svg.substring(svg.indexOf(" d=\"") + 4, svg.lastIndexOf('"'));
+        Matcher m = Pattern.compile("m(-?\\d+) (-?\\d+)h(\\d+)v(\\d+)h-(\\d+)z").matcher(d);
+        int end = 0, penX = 0, penY = 0;
+        while (m.find()) {
+            assertEquals(end, m.start());
+            end = m.end();
+            int x = penX += Integer.parseInt(m.group(1));
+            int y = penY += Integer.parseInt(m.group(2));
+            int w = Integer.parseInt(m.group(3)), h = Integer.parseInt(m.group(4));
+            assertEquals(w, Integer.parseInt(m.group(5)));
+            for (int j = y; j < y + h; j++) {
+                for (int i = x; i < x + w; i++) {
+                    assertFalse("overlap", dark[j][i]);
+                    dark[j][i] = true;
+                }
+            }
+        }
+        assertEquals(d.length(), end);
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                int mx = x - QRMatrix.QUIET_ZONE, my = y - QRMatrix.QUIET_ZONE;
+                boolean module = mx >= 0 && my >= 0 && mx < matrix.getSize() && my < matrix.getSize()
+                        && matrix.get(mx, my);
+                assertEquals(module, dark[y][x]);
+            }
+        }
+    }
+
+    @Test
+    public void testBitmap() throws Exception {
+        QRMatrix matrix = QRCode.encode(CHALLENGE);
+        byte[] bitmap = matrix.toBitmap();
+        int stride = (matrix.getSize() + 7) / 8;
+        assertEquals(stride * matrix.getSize(), bitmap.length);
+        for (int y = 0; y < matrix.getSize(); y++) {
+            for (int x = 0; x < matrix.getSize(); x++) {
+                assertEquals(matrix.get(x, y), (bitmap[y * stride + x / 8] & (0x80 >>> (x % 8))) != 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRenderCache() throws Exception {
+        QRMatrix matrix = QRCode.encode(CHALLENGE);
+        QRRenderCache cache = new QRRenderCache(4);
+
+        String uri = cache.pngDataUri(matrix, 4);
+        assertTrue(uri.startsWith("data:image/png;base64,"));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                Base64.decodeBase64(uri.substring("data:image/png;base64,".length()))));
+        assertEquals(QRCode.pixels(matrix, 4), image.getWidth());
+        assertEquals(0, image.getRGB(4 * QRMatrix.QUIET_ZONE, 4 * QRMatrix.QUIET_ZONE) & 0xffffff);
+        assertSame(uri, cache.pngDataUri(matrix, 4));
+        assertSame(cache.svg(matrix), cache.svg(QRCode.encode(CHALLENGE)));
+
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        cache.writePng(matrix, 4, a);
+        cache.writePng(matrix, 4, b);
+        assertArrayEquals(a.toByteArray(), b.toByteArray());
+        // the data URI is the cached PNG
+        assertArrayEquals(a.toByteArray(), Base64.decodeBase64(uri.substring("data:image/png;base64,".length())));
+        assertEquals(3, cache.size());
+
+        // bounded
+        cache.writePng(matrix, 2, new ByteArrayOutputStream());
+        cache.writePng(matrix, 3, new ByteArrayOutputStream());
+        cache.writePng(matrix, 5, new ByteArrayOutputStream());
+        assertTrue(cache.size() <= 4);
+        assertEquals(uri, cache.pngDataUri(matrix, 4));
+    }
 }